@@ -60,7 +60,6 @@ import com.google.android.mms.pdu.SendConf;
 import com.google.android.mms.pdu.SendReq;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -128,7 +127,7 @@ public class MmsMessagingDemo extends Activity {
     /**
      * File we write our message pdu to. The method {@code make} of a {@code PduComposer} created
      * from the {@code SendReq} (see com.google.android.mms.pdu.SendReq) we build from the message
-     * the user wants to send returns a byte[] array which we write to {@code mSendFile}. We then
+     * the user wants to send writes the message straight to {@code mSendFile}. We then
      * pass an {@code Uri} pointing to this file when we call {@code sendMultimediaMessage}.
      */
     private File mSendFile;
@@ -357,7 +356,7 @@ public class MmsMessagingDemo extends Activity {
              * when the message is successfully sent, or failed, and sends the MMS message using the
              * {@code SmsManager} associated with the default subscription id.
              *
-             * First we call our method {@code buildPdu} to fill {@code byte[] pdu} with a PDU constructed
+             * First we call our method {@code buildPdu} to fill {@code SendReq pdu} with a PDU constructed
              * from the {@code recipients}, {@code subject}, and {@code text} passed to {@code sendMessage}.
              * We use a new {@code Uri.Builder} to build a Uri in {@code Uri writerUri} with the
              * authority set to "com.example.android.apis.os.MmsFileProvider" ({@code MmsFileProvider}
@@ -369,9 +368,10 @@ public class MmsMessagingDemo extends Activity {
              *
              * We initialize both {@code FileOutputStream writer} and {@code Uri contentUri} to null,
              * then wrapped in a try block intended to catch IOException we create a file output stream
-             * from our {@code File mSendFile} for {@code FileOutputStream writer}, write the entire
-             * contents of {@code pdu} to it, and set {@code contentUri} to {@code writerUri}. If
-             * everything went well, we close {@code writer} in the finally block.
+             * from our {@code File mSendFile} for {@code FileOutputStream writer}, have a new instance
+             * of {@code PduComposer} created from {@code pdu} compose it straight into the stream, and
+             * if that succeeded set {@code contentUri} to {@code writerUri}. If everything went well,
+             * we close {@code writer} in the finally block.
              *
              * If {@code contentUri} is not null, we call the {@code sendMultimediaMessage} method
              * of the {@code SmsManager} associated with the default subscription id to send the MMS
@@ -385,7 +385,7 @@ public class MmsMessagingDemo extends Activity {
              */
             @Override
             public void run() {
-                final byte[] pdu = buildPdu(MmsMessagingDemo.this, recipients, subject, text);
+                final SendReq pdu = buildPdu(MmsMessagingDemo.this, recipients, subject, text);
                 Uri writerUri = (new Uri.Builder())
                         .authority("com.example.android.apis.os.MmsFileProvider")
                         .path(fileName)
@@ -397,8 +397,9 @@ public class MmsMessagingDemo extends Activity {
                 Uri contentUri = null;
                 try {
                     writer = new FileOutputStream(mSendFile);
-                    writer.write(pdu);
-                    contentUri = writerUri;
+                    if (new PduComposer(MmsMessagingDemo.this, pdu).make(writer)) {
+                        contentUri = writerUri;
+                    }
                 } catch (final IOException e) {
                     Log.e(TAG, "Error writing send file", e);
                 } finally {
@@ -581,13 +582,12 @@ public class MmsMessagingDemo extends Activity {
      * <p>
      * First we initialize {@code int status} to point to the resource string R.string.mms_status_failed
      * ("Failed"). If {@code code} is the result code RESULT_OK, then wrapped in a try block intended
-     * to catch FileNotFoundException or IOException, we set {@code int nBytes} to the length of the
-     * file {@code File mDownloadFile}, and We create {@code FileInputStream reader} to read the file.
+     * to catch FileNotFoundException or IOException, we check the length of the file
+     * {@code File mDownloadFile}.
      * <p>
-     * We allocate a byte array holding {@code nBytes} for {@code byte[] response} and try to read
-     * {@code nBytes} bytes from {@code reader} into it, saving the number of bytes actually read in
-     * {@code int read}. If {@code read} is not equal to {@code nBytes} we log the message "MMS received,
-     * empty response", otherwise we parse {@code response} into {@code GenericPdu pdu}. If {@code pdu}
+     * If the file is empty we log the message "MMS received, empty response", otherwise we parse
+     * {@code mDownloadFile} into {@code GenericPdu pdu} using a {@code PduParser} which memory-maps
+     * the file, so the downloaded PDU is never copied onto the heap. If {@code pdu}
      * is not an instance of {@code RetrieveConf} we log the message "MMS received, invalid response",
      * otherwise we cast {@code pdu} to {@code RetrieveConf retrieveConf}, and use it to set the
      * text of {@code EditText mRecipientsInput} to the string returned by our method {@code getRecipients},
@@ -609,13 +609,9 @@ public class MmsMessagingDemo extends Activity {
         int status = R.string.mms_status_failed;
         if (code == Activity.RESULT_OK) {
             try {
-                final int nBytes = (int) mDownloadFile.length();
-                FileInputStream reader = new FileInputStream(mDownloadFile);
-                final byte[] response = new byte[nBytes];
-                final int read = reader.read(response, 0, nBytes);
-                if (read == nBytes) {
+                if (mDownloadFile.length() > 0) {
                     final GenericPdu pdu = new PduParser(
-                            response, PduParserUtil.shouldParseContentDisposition()).parse();
+                            mDownloadFile, PduParserUtil.shouldParseContentDisposition()).parse();
                     if (pdu instanceof RetrieveConf) {
                         final RetrieveConf retrieveConf = (RetrieveConf) pdu;
                         mRecipientsInput.setText(getRecipients(context, retrieveConf));
@@ -676,8 +672,8 @@ public class MmsMessagingDemo extends Activity {
                     "</smil>";
 
     /**
-     * Builds a {@code SendReq} from its parameters, builds a {@code PduComposer} from it, and returns
-     * a {@code byte[]} array containing the output message.
+     * Builds a {@code SendReq} from its parameters and returns it, ready to be composed by a
+     * {@code PduComposer}.
      * <p>
      * First we create a new instance for {@code SendReq req}. We call our method {@code getSimNumber}
      * to retrieve the phone number string for line 1 and set {@code String lineNumber} to it. If
@@ -709,16 +705,16 @@ public class MmsMessagingDemo extends Activity {
      * set the X-Mms-Delivery-Report value to {@code PduHeaders.VALUE_NO} (0x81), and set the
      * X-Mms-Read-Report value of {@code req} to {@code PduHeaders.VALUE_NO} as well.
      * <p>
-     * Finally we return the {@code byte[]} array that results from "making" a new instance of
-     * {@code PduComposer} created from {@code req}.
+     * Finally we return {@code req}, which our caller composes straight into the send file with a
+     * {@code PduComposer}.
      *
      * @param context    {@code Context} used to retrieve resources, MmsMessagingDemo.this in our case
      * @param recipients Used for the "To" value of our message (see {@code SendReq.setTo})
      * @param subject    The "subject" value of our message (see {@code SendReq.setSubject})
      * @param text       The body of the PDU (see {@code SendReq.setBody})
-     * @return {@code byte[]} array containing the output message.
+     * @return {@code SendReq} holding the output message.
      */
-    private static byte[] buildPdu(Context context, String recipients, String subject, String text) {
+    private static SendReq buildPdu(Context context, String recipients, String subject, String text) {
         final SendReq req = new SendReq();
         // From, per spec
         final String lineNumber = getSimNumber(context);
@@ -760,7 +756,7 @@ public class MmsMessagingDemo extends Activity {
             Log.i(TAG, e.getLocalizedMessage());
         }
 
-        return new PduComposer(context, req).make();
+        return req;
     }
 
     /**
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.benchmark;
+
+import com.google.android.mms.pdu.Base64;
+import com.google.android.mms.pdu.Base64InputStream;
+import com.google.android.mms.pdu.CharacterSets;
+import com.google.android.mms.pdu.EncodedStringValue;
+import com.google.android.mms.pdu.QuotedPrintable;
+import com.google.android.mms.pdu.QuotedPrintableInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the part data and string decoders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CodecBenchmark {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private byte[] mBase64;
+    private ByteBuffer mDecoded;
+    private byte[] mBlock;
+    private byte[] mQuotedPrintable;
+    private ByteBuffer mDecodedText;
+    private EncodedStringValue mSubject;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+
+        // A 48KB image, as a MIME encoder lays it out in 76 character lines.
+        byte[] image = new byte[48 * 1024];
+        random.nextBytes(image);
+        mBase64 = java.util.Base64.getMimeEncoder().encode(image);
+        mDecoded = ByteBuffer.allocate(image.length);
+        mBlock = new byte[4096];
+
+        // 16KB of mostly ASCII text.
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 16 * 1024) {
+            text.append("Caf\u00e9 au lait = 3\u20ac, see you at the station. ");
+        }
+        mQuotedPrintable = encodeQuotedPrintable(PduCorpus.utf8(text.toString()));
+        mDecodedText = ByteBuffer.allocate(mQuotedPrintable.length);
+
+        mSubject = new EncodedStringValue(CharacterSets.UTF_8,
+                PduCorpus.utf8("R\u00e9union demain \u2014 \u4f1a\u8bae\u660e\u5929 \u263a"));
+    }
+
+    @Benchmark
+    public byte[] decodeBase64(ByteCounter counter) {
+        counter.bytes += mBase64.length;
+        return Base64.decodeBase64(mBase64);
+    }
+
+    @Benchmark
+    public int decodeBase64IntoBuffer(ByteCounter counter) {
+        counter.bytes += mBase64.length;
+        mDecoded.clear();
+        return Base64.decodeBase64(ByteBuffer.wrap(mBase64), mDecoded);
+    }
+
+    @Benchmark
+    public int decodeBase64Stream(ByteCounter counter) throws IOException {
+        counter.bytes += mBase64.length;
+        return readAll(new Base64InputStream(new ByteArrayInputStream(mBase64)));
+    }
+
+    /**
+     * The decoder of the JDK, for reference.
+     */
+    @Benchmark
+    public byte[] decodeBase64Jdk(ByteCounter counter) {
+        counter.bytes += mBase64.length;
+        return java.util.Base64.getMimeDecoder().decode(mBase64);
+    }
+
+    @Benchmark
+    public byte[] decodeQuotedPrintable(ByteCounter counter) {
+        counter.bytes += mQuotedPrintable.length;
+        return QuotedPrintable.decodeQuotedPrintable(mQuotedPrintable);
+    }
+
+    @Benchmark
+    public int decodeQuotedPrintableIntoBuffer(ByteCounter counter) {
+        counter.bytes += mQuotedPrintable.length;
+        mDecodedText.clear();
+        return QuotedPrintable.decodeQuotedPrintable(ByteBuffer.wrap(mQuotedPrintable),
+                mDecodedText);
+    }
+
+    @Benchmark
+    public int decodeQuotedPrintableStream(ByteCounter counter) throws IOException {
+        counter.bytes += mQuotedPrintable.length;
+        return readAll(new QuotedPrintableInputStream(
+                new ByteArrayInputStream(mQuotedPrintable)));
+    }
+
+    @Benchmark
+    public String encodedStringValueGetString() {
+        return mSubject.getString();
+    }
+
+    @Benchmark
+    public String encodedStringValueDecode() {
+        // Setting the Char-set drops the decoded string, so it is decoded again.
+        mSubject.setCharacterSet(CharacterSets.UTF_8);
+        return mSubject.getString();
+    }
+
+    /**
+     * Read a stream to its end, a block at a time.
+     *
+     * @return the number of bytes read
+     */
+    private int readAll(InputStream is) throws IOException {
+        int total = 0;
+        for (int len; (len = is.read(mBlock)) != -1; ) {
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Encode data as quoted-printable, with soft line breaks after at most
+     * 76 characters.
+     */
+    private static byte[] encodeQuotedPrintable(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int lineLength = 0;
+        for (byte b : data) {
+            int c = b & 0xFF;
+            boolean literal = (c >= 33) && (c <= 126) && (c != '=');
+            int length = literal ? 1 : 3;
+            if (lineLength + length > 75) {
+                out.write('=');
+                out.write('\r');
+                out.write('\n');
+                lineLength = 0;
+            }
+            if (literal) {
+                out.write(c);
+            } else {
+                out.write('=');
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0x0F]);
+            }
+            lineLength += length;
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.benchmark;
+
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduComposer;
+import com.google.android.mms.pdu.PduParser;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.SendReq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of parsing a M-Send.req and composing it again, which walks
+ * the parts of its {@link PduBody} by index only, and of building a body
+ * part by part. Run with the gc profiler, gc.alloc.rate.norm is the
+ * allocation per pdu.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PduBodyBenchmark {
+    @Param({ "1", "5", "20", "50" })
+    public int parts;
+
+    private byte[] mData;
+    private PduPart[] mParts;
+
+    @Setup
+    public void setUp() {
+        mData = PduCorpus.get("send-req-" + parts);
+        PduBody body = PduCorpus.sendReq(parts).getBody();
+        mParts = new PduPart[body.getPartsNum()];
+        for (int i = 0; i < mParts.length; i++) {
+            mParts[i] = body.getPart(i);
+        }
+    }
+
+    @Benchmark
+    public byte[] parseThenRender(ByteCounter counter) {
+        SendReq req = (SendReq) new PduParser(mData, true).parse();
+        byte[] data = new PduComposer(PduCorpus.CONTEXT, req).make();
+        counter.bytes += mData.length;
+        return data;
+    }
+
+    @Benchmark
+    public PduBody addParts() {
+        PduBody body = new PduBody();
+        for (PduPart part : mParts) {
+            body.addPart(part);
+        }
+        return body;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.benchmark;
+
+import com.google.android.mms.pdu.PduComposer;
+import com.google.android.mms.pdu.SendReq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link PduComposer#make()} and
+ * {@link PduComposer#make(OutputStream)} on M-Send.req pdus.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PduComposerBenchmark {
+    @Param({ "1", "5", "20" })
+    public int parts;
+
+    private SendReq mReq;
+
+    /**
+     * Stream the composed pdus are written to, and dropped.
+     */
+    private final OutputStream mSink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        mReq = PduCorpus.sendReq(parts);
+    }
+
+    @Benchmark
+    public byte[] make(ByteCounter counter) {
+        byte[] data = new PduComposer(PduCorpus.CONTEXT, mReq).make();
+        counter.bytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public boolean makeToStream() throws IOException {
+        return new PduComposer(PduCorpus.CONTEXT, mReq).make(mSink);
+    }
+}
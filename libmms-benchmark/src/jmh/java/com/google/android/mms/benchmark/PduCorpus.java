@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.benchmark;
+
+import android.content.ContentResolver;
+import android.content.Context;
+
+import com.google.android.mms.InvalidHeaderValueException;
+import com.google.android.mms.pdu.CharacterSets;
+import com.google.android.mms.pdu.EncodedStringValue;
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduComposer;
+import com.google.android.mms.pdu.PduHeaders;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.SendReq;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates the pdus the benchmarks run on. The corpus is the same on every
+ * run, so results can be compared across changes.
+ */
+public final class PduCorpus {
+    /**
+     * Context of the PduComposer; all part data is held in memory.
+     */
+    public static final Context CONTEXT = new Context() {
+        private final ContentResolver mResolver = new ContentResolver();
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+    };
+
+    private static final String TEXT =
+            "Running a little late, see you at the station in twenty minutes. "
+            + "Bringing the photos from last weekend \u2014 \u00e0 tout \u00e0 l'heure! ";
+
+    private PduCorpus() {
+    }
+
+    /**
+     * Get a pdu of the corpus by name: "send-req-N" or "retrieve-conf-N"
+     * with N parts, "notification-ind" or "delivery-ind".
+     */
+    public static byte[] get(String name) {
+        if (name.startsWith("send-req-")) {
+            return compose(sendReq(partCount(name)));
+        } else if (name.startsWith("retrieve-conf-")) {
+            return retrieveConf(partCount(name));
+        } else if (name.equals("notification-ind")) {
+            return notificationInd();
+        } else if (name.equals("delivery-ind")) {
+            return deliveryInd();
+        }
+        throw new IllegalArgumentException("Unknown pdu: " + name);
+    }
+
+    private static int partCount(String name) {
+        return Integer.parseInt(name.substring(name.lastIndexOf('-') + 1));
+    }
+
+    /**
+     * Build a M-Send.req of a SMIL part followed by text and image parts,
+     * partCount parts in all.
+     */
+    public static SendReq sendReq(int partCount) {
+        Random random = new Random(partCount);
+        SendReq req = new SendReq();
+        req.setTransactionId(("T" + Long.toHexString(random.nextLong())).getBytes());
+        req.setFrom(new EncodedStringValue("+15551234567"));
+        req.setTo(EncodedStringValue.encodeStrings(
+                new String[] { "+15559876543", "someone@example.com" }));
+        req.setSubject(new EncodedStringValue(CharacterSets.UTF_8, utf8("Photos \u263a")));
+        req.setDate(1500000000L);
+        req.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+        req.setExpiry(604800);
+        try {
+            req.setPriority(PduHeaders.PRIORITY_NORMAL);
+            req.setDeliveryReport(PduHeaders.VALUE_NO);
+            req.setReadReport(PduHeaders.VALUE_NO);
+        } catch (InvalidHeaderValueException e) {
+            throw new IllegalStateException(e);
+        }
+
+        PduBody body = new PduBody();
+        StringBuilder smil = new StringBuilder("<smil><body>");
+        for (int i = 1; i < partCount; i++) {
+            PduPart part = new PduPart();
+            if (i % 2 == 1) {
+                part.setContentType("image/jpeg".getBytes());
+                part.setContentLocation(("image" + i + ".jpg").getBytes());
+                byte[] data = new byte[8 * 1024 + random.nextInt(16 * 1024)];
+                random.nextBytes(data);
+                part.setData(data);
+                smil.append("<par dur=\"5000ms\"><img src=\"image").append(i)
+                        .append(".jpg\"/></par>");
+            } else {
+                part.setContentType("text/plain".getBytes());
+                part.setCharset(CharacterSets.UTF_8);
+                part.setContentLocation(("text" + i + ".txt").getBytes());
+                part.setData(utf8(TEXT + TEXT + i));
+                smil.append("<par dur=\"5000ms\"><text src=\"text").append(i)
+                        .append(".txt\"/></par>");
+            }
+            part.setContentId(("<part" + i + ">").getBytes());
+            body.addPart(part);
+        }
+        smil.append("</body></smil>");
+
+        PduPart smilPart = new PduPart();
+        smilPart.setContentType("application/smil".getBytes());
+        smilPart.setContentId("<smil>".getBytes());
+        smilPart.setContentLocation("smil.xml".getBytes());
+        smilPart.setData(utf8(smil.toString()));
+        body.addPart(0, smilPart);
+
+        req.setBody(body);
+        return req;
+    }
+
+    /**
+     * Build a M-Retrieve.conf with partCount parts. Its encoding is the one
+     * of the M-Send.req with the same parts, except for the message type.
+     */
+    public static byte[] retrieveConf(int partCount) {
+        byte[] pdu = compose(sendReq(partCount));
+        if ((pdu[0] & 0xFF) != PduHeaders.MESSAGE_TYPE) {
+            throw new IllegalStateException("Message type is not the first header");
+        }
+        pdu[1] = (byte) PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF;
+        return pdu;
+    }
+
+    /**
+     * Encode a M-Notification.ind.
+     */
+    public static byte[] notificationInd() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+        out.write(PduHeaders.TRANSACTION_ID);
+        appendText(out, "T5a7f0e3c91b2");
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+        out.write(PduHeaders.FROM);
+        byte[] from = utf8("+15551234567/TYPE=PLMN");
+        out.write(from.length + 2);
+        out.write(PduHeaders.FROM_ADDRESS_PRESENT_TOKEN);
+        appendText(out, from);
+        out.write(PduHeaders.SUBJECT);
+        appendText(out, "Photos");
+        out.write(PduHeaders.MESSAGE_CLASS);
+        out.write(PduHeaders.MESSAGE_CLASS_PERSONAL);
+        out.write(PduHeaders.MESSAGE_SIZE);
+        appendLongInteger(out, 123456);
+        out.write(PduHeaders.EXPIRY);
+        out.write(5);
+        out.write(PduHeaders.VALUE_RELATIVE_TOKEN);
+        appendLongInteger(out, 604800);
+        out.write(PduHeaders.CONTENT_LOCATION);
+        appendText(out, "http://mmsc.example.com/mms/wapenc?location=5a7f0e3c91b2&rid=17");
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode a M-Delivery.ind.
+     */
+    public static byte[] deliveryInd() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_DELIVERY_IND);
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+        out.write(PduHeaders.MESSAGE_ID);
+        appendText(out, "0123456789abcdef@mmsc.example.com");
+        out.write(PduHeaders.TO);
+        appendText(out, "+15559876543/TYPE=PLMN");
+        out.write(PduHeaders.DATE);
+        appendLongInteger(out, 1500000000L);
+        out.write(PduHeaders.STATUS);
+        out.write(PduHeaders.STATUS_RETRIEVED);
+        return out.toByteArray();
+    }
+
+    /**
+     * Compose a pdu.
+     */
+    public static byte[] compose(GenericPdu pdu) {
+        byte[] data = new PduComposer(CONTEXT, pdu).make();
+        if (data == null) {
+            throw new IllegalStateException("Failed to compose " + pdu);
+        }
+        return data;
+    }
+
+    static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendText(ByteArrayOutputStream out, String text) {
+        appendText(out, utf8(text));
+    }
+
+    private static void appendText(ByteArrayOutputStream out, byte[] text) {
+        out.write(text, 0, text.length);
+        out.write(0);
+    }
+
+    private static void appendLongInteger(ByteArrayOutputStream out, long value) {
+        int size = 1;
+        while ((size < 8) && ((value >>> (8 * size)) != 0)) {
+            size++;
+        }
+        out.write(size);
+        for (int i = size - 1; i >= 0; i--) {
+            out.write((int) (value >>> (8 * i)) & 0xFF);
+        }
+    }
+}
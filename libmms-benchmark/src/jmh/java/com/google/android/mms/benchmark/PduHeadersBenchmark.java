@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.benchmark;
+
+import com.google.android.mms.InvalidHeaderValueException;
+import com.google.android.mms.pdu.EncodedStringValue;
+import com.google.android.mms.pdu.NotificationInd;
+import com.google.android.mms.pdu.PduHeaders;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of storing and looking up header values, as the parser and the
+ * composer do for every pdu, without the cost of the encoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PduHeadersBenchmark {
+    private NotificationInd mPdu;
+    private EncodedStringValue mFrom;
+    private EncodedStringValue mSubject;
+    private byte[] mTransactionId;
+    private byte[] mContentLocation;
+
+    @Setup
+    public void setUp() throws InvalidHeaderValueException {
+        mFrom = new EncodedStringValue("+15551234567");
+        mSubject = new EncodedStringValue("Photos");
+        mTransactionId = "T5a7f0e3c91b2".getBytes();
+        mContentLocation = "http://mmsc.example.com/mms/5a7f0e3c91b2".getBytes();
+        mPdu = fill(new NotificationInd());
+    }
+
+    private NotificationInd fill(NotificationInd pdu) throws InvalidHeaderValueException {
+        pdu.setTransactionId(mTransactionId);
+        pdu.setFrom(mFrom);
+        pdu.setSubject(mSubject);
+        pdu.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+        pdu.setMessageSize(123456);
+        pdu.setExpiry(604800);
+        pdu.setContentClass(PduHeaders.CONTENT_CLASS_IMAGE_RICH);
+        pdu.setDeliveryReport(PduHeaders.VALUE_NO);
+        pdu.setContentLocation(mContentLocation);
+        return pdu;
+    }
+
+    @Benchmark
+    public NotificationInd set() throws InvalidHeaderValueException {
+        return fill(new NotificationInd());
+    }
+
+    @Benchmark
+    public void get(Blackhole blackhole) {
+        blackhole.consume(mPdu.getMessageType());
+        blackhole.consume(mPdu.getMmsVersion());
+        blackhole.consume(mPdu.getTransactionId());
+        blackhole.consume(mPdu.getFrom());
+        blackhole.consume(mPdu.getSubject());
+        blackhole.consume(mPdu.getMessageClass());
+        blackhole.consume(mPdu.getMessageSize());
+        blackhole.consume(mPdu.getExpiry());
+        blackhole.consume(mPdu.getContentClass());
+        blackhole.consume(mPdu.getDeliveryReport());
+        blackhole.consume(mPdu.getContentLocation());
+    }
+}
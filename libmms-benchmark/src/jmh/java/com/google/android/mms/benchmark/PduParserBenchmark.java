@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.benchmark;
+
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.PduParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link PduParser#parse()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PduParserBenchmark {
+    @Param({
+        "send-req-3",
+        "retrieve-conf-1",
+        "retrieve-conf-5",
+        "retrieve-conf-20",
+        "notification-ind",
+        "delivery-ind"
+    })
+    public String pdu;
+
+    private byte[] mData;
+
+    @Setup
+    public void setUp() {
+        mData = PduCorpus.get(pdu);
+        if (new PduParser(mData, true).parse() == null) {
+            throw new IllegalStateException("Corpus pdu doesn't parse: " + pdu);
+        }
+    }
+
+    @Benchmark
+    public GenericPdu parse(ByteCounter counter) {
+        counter.bytes += mData.length;
+        return new PduParser(mData, true).parse();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+/**
+ * Shim of the platform Uri for the benchmarks. The corpus keeps all part
+ * data in memory, so Uris are only parsed back from pdu snapshots.
+ */
+public abstract class Uri {
+    public static Uri parse(String uriString) {
+        return new StringUri(uriString);
+    }
+
+    private static final class StringUri extends Uri {
+        private final String mUriString;
+
+        StringUri(String uriString) {
+            mUriString = uriString;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof StringUri) && mUriString.equals(((StringUri) o).mUriString);
+        }
+
+        @Override
+        public int hashCode() {
+            return mUriString.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mUriString;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks how often {@link PduComposer} reads the data of parts which is
+ * only at a Uri, served by a provider through pipes, so that only the data
+ * which is actually read gets through.
+ */
+public class PduComposerDataUriTest extends AndroidTestCase {
+    private static final String AUTHORITY = "com.google.android.mms.pdu.test";
+
+    /**
+     * More than a pipe holds, so that a writer only finishes when its data
+     * is read.
+     */
+    private static final byte[] DATA = new byte[256 * 1024];
+
+    private PipeProvider mProvider;
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < DATA.length; i++) {
+            DATA[i] = (byte) (i * 31);
+        }
+        mProvider = new PipeProvider();
+        mProvider.attachInfo(getContext(), null);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(AUTHORITY, mProvider);
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+    }
+
+    public void testDataOfKnownLengthIsReadOnce() throws Exception {
+        mProvider.mKnownLength = true;
+        byte[] pdu = new PduComposer(mContext, createSendReq()).make();
+        assertEquals(1, mProvider.awaitTransfers());
+        assertData(pdu);
+    }
+
+    public void testDataOfUnknownLengthIsReadInEachPass() throws Exception {
+        mProvider.mKnownLength = false;
+        byte[] pdu = new PduComposer(mContext, createSendReq()).make();
+        assertEquals(2, mProvider.awaitTransfers());
+        assertData(pdu);
+    }
+
+    private static SendReq createSendReq() throws Exception {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue("+15550001111"));
+        req.setTo(EncodedStringValue.encodeStrings(new String[] { "+15552223333" }));
+        req.setTransactionId("T1234".getBytes());
+        req.setContentType("application/vnd.wap.multipart.related".getBytes());
+        PduPart part = new PduPart();
+        part.setContentType("image/jpeg".getBytes());
+        part.setContentLocation("image.jpg".getBytes());
+        part.setDataUri(Uri.parse("content://" + AUTHORITY + "/image"));
+        PduBody body = new PduBody();
+        body.addPart(part);
+        req.setBody(body);
+        return req;
+    }
+
+    private static void assertData(byte[] pdu) {
+        assertNotNull(pdu);
+        SendReq req = (SendReq) new PduParser(pdu, true).parse();
+        assertTrue(Arrays.equals(DATA, req.getBody().getPart(0).getData()));
+    }
+
+    /**
+     * Serves DATA through a pipe each time a file is opened, with its
+     * length or without, and counts the times all of it was read.
+     */
+    public static class PipeProvider extends ContentProvider {
+        volatile boolean mKnownLength;
+
+        private final ArrayList<Thread> mWriters = new ArrayList<Thread>();
+        private final AtomicInteger mTransfers = new AtomicInteger();
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public AssetFileDescriptor openAssetFile(Uri uri, String mode)
+                throws FileNotFoundException {
+            final ParcelFileDescriptor[] pipe;
+            try {
+                pipe = ParcelFileDescriptor.createPipe();
+            } catch (IOException e) {
+                throw new FileNotFoundException(e.toString());
+            }
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                    try {
+                        out.write(DATA);
+                        mTransfers.incrementAndGet();
+                    } catch (IOException e) {
+                        // The pipe was closed before all of it was read.
+                    } finally {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            };
+            synchronized (mWriters) {
+                mWriters.add(writer);
+            }
+            writer.start();
+            return new AssetFileDescriptor(pipe[0], 0,
+                    mKnownLength ? DATA.length : AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
+        /**
+         * Wait for the writers to finish.
+         *
+         * @return the number of times all of DATA was read
+         */
+        int awaitTransfers() throws InterruptedException {
+            synchronized (mWriters) {
+                for (Thread writer : mWriters) {
+                    writer.join();
+                }
+                mWriters.clear();
+            }
+            return mTransfers.getAndSet(0);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return null;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.mms.pdu;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Mms.Addr;
+import android.provider.Telephony.Mms.Part;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.android.mms.ContentType;
+import com.google.android.mms.MmsException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares {@link PduPersister#persist} with {@link PduPersister#persistBatched}
+ * for a group message, against an in-process provider which counts the
+ * transactions it is asked for. Each call through the ContentResolver,
+ * including a whole batch, is one transaction, as it would be one binder
+ * call to the real MmsProvider.
+ *
+ * Run with
+ *     ./gradlew :libmms:connectedAndroidTest
+ * and look for the PduPersisterBatch tag in the log.
+ */
+public class PduPersisterBatchBenchmark extends AndroidTestCase {
+    private static final String TAG = "PduPersisterBatch";
+
+    private static final int PARTS = 10;
+    private static final int RECIPIENTS = 20;
+    private static final int ITERATIONS = 20;
+
+    private CountingMmsProvider mProvider;
+    private PduPersister mPersister;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new CountingMmsProvider();
+        mProvider.attachInfo(getContext(), null);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(Mms.CONTENT_URI.getAuthority(), mProvider);
+        Context context = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mPersister = PduPersister.getPduPersister(context);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.deleteFiles();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testPersistBatchedUsesFewerTransactions() throws Exception {
+        // The smil, a text and files.
+        int fileParts = PARTS - 2;
+
+        long start = SystemClock.elapsedRealtime();
+        mProvider.mTransactions = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            mPersister.persist(createGroupMessage(), Mms.Outbox.CONTENT_URI, false, false, null);
+        }
+        int persistTransactions = mProvider.mTransactions / ITERATIONS;
+        long persistMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        mProvider.mTransactions = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            mPersister.persistBatched(createGroupMessage(), Mms.Outbox.CONTENT_URI,
+                    false, false, null);
+        }
+        int batchedTransactions = mProvider.mTransactions / ITERATIONS;
+        long batchedMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, PARTS + " parts, " + RECIPIENTS + " recipients: persist "
+                + persistTransactions + " transactions, "
+                + (persistMillis / ITERATIONS) + " ms; persistBatched "
+                + batchedTransactions + " transactions, "
+                + (batchedMillis / ITERATIONS) + " ms");
+
+        // One per part and its data, the pdu, the fix-up of the parts and
+        // one per address, with the sender.
+        assertEquals(2 * PARTS + 2 + RECIPIENTS + 1, persistTransactions);
+        // Three batches and the data of the files.
+        assertEquals(3 + fileParts, batchedTransactions);
+    }
+
+    @LargeTest
+    public void testPersistBatchedStoresTheSameRows() throws Exception {
+        Uri uri = mPersister.persist(createGroupMessage(), Mms.Outbox.CONTENT_URI,
+                false, false, null);
+        String persisted = mProvider.describe(ContentUris.parseId(uri));
+
+        SendReq message = createGroupMessage();
+        uri = mPersister.persistBatched(message, Mms.Outbox.CONTENT_URI, false, false, null);
+
+        assertEquals(persisted, mProvider.describe(ContentUris.parseId(uri)));
+        assertTrue(uri.toString().startsWith(Mms.Outbox.CONTENT_URI + "/"));
+        for (int i = 0; i < PARTS; i++) {
+            assertNotNull(message.getBody().getPart(i).getDataUri());
+        }
+    }
+
+    @LargeTest
+    public void testPersistBatchedWritesDataInParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                PduPersister.MAX_CONCURRENT_PART_WRITES);
+        try {
+            long start = SystemClock.elapsedRealtime();
+            Uri serialUri = null;
+            for (int i = 0; i < ITERATIONS; i++) {
+                serialUri = mPersister.persistBatched(createGroupMessage(),
+                        Mms.Outbox.CONTENT_URI, false, false, null);
+            }
+            long serialMillis = SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            Uri uri = null;
+            for (int i = 0; i < ITERATIONS; i++) {
+                uri = mPersister.persistBatched(createGroupMessage(), Mms.Outbox.CONTENT_URI,
+                        false, false, null, executor);
+            }
+            long parallelMillis = SystemClock.elapsedRealtime() - start;
+
+            Log.i(TAG, PARTS + " parts: data written serially "
+                    + (serialMillis / ITERATIONS) + " ms, in parallel "
+                    + (parallelMillis / ITERATIONS) + " ms");
+            assertEquals(mProvider.describe(ContentUris.parseId(serialUri)),
+                    mProvider.describe(ContentUris.parseId(uri)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @LargeTest
+    public void testFailedPartDataRollsBackTheMessage() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                PduPersister.MAX_CONCURRENT_PART_WRITES);
+        try {
+            mProvider.mFailingFile = 3;
+            mPersister.persistBatched(createGroupMessage(), Mms.Outbox.CONTENT_URI,
+                    false, false, null, executor);
+            fail("The data of a part couldn't be written");
+        } catch (MmsException e) {
+            // Expected.
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(mProvider.isEmpty());
+    }
+
+    private static SendReq createGroupMessage() {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue("+15550000000"));
+        for (int i = 0; i < RECIPIENTS; i++) {
+            req.addTo(new EncodedStringValue("+1555010" + (1000 + i)));
+        }
+
+        PduBody body = new PduBody();
+        for (int i = 0; i < PARTS; i++) {
+            PduPart part = new PduPart();
+            String contentType;
+            if (i == 0) {
+                contentType = ContentType.APP_SMIL;
+            } else if (i == 1) {
+                contentType = ContentType.TEXT_PLAIN;
+            } else {
+                contentType = ContentType.IMAGE_JPEG;
+            }
+            part.setContentType(contentType.getBytes());
+            part.setContentLocation(("part" + i).getBytes());
+            part.setData(new byte[(i < 2) ? 64 : 16 * 1024]);
+            body.addPart(part);
+        }
+        req.setBody(body);
+        return req;
+    }
+
+    /**
+     * Keeps the rows written by the persister in memory, and the data of
+     * the parts in files. Like the MmsProvider, it takes the message id of
+     * parts and addresses from their Uri.
+     */
+    public static class CountingMmsProvider extends ContentProvider {
+        volatile int mTransactions;
+
+        /**
+         * The number of the file which can't be opened, counting from 1,
+         * or 0.
+         */
+        int mFailingFile;
+
+        private final HashMap<Long, ContentValues> mPdus = new HashMap<Long, ContentValues>();
+        private final LinkedHashMap<Long, ContentValues> mParts =
+                new LinkedHashMap<Long, ContentValues>();
+        private final ArrayList<ContentValues> mAddresses = new ArrayList<ContentValues>();
+        private final ArrayList<File> mFiles = new ArrayList<File>();
+        private boolean mInBatch;
+        private long mNextId = 1;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            mTransactions++;
+            mInBatch = true;
+            try {
+                return super.applyBatch(operations);
+            } finally {
+                mInBatch = false;
+            }
+        }
+
+        @Override
+        public synchronized Uri insert(Uri uri, ContentValues values) {
+            count();
+            long id = mNextId++;
+            List<String> segments = uri.getPathSegments();
+            String table = segments.get(segments.size() - 1);
+            ContentValues row = new ContentValues(values);
+            if ("part".equals(table)) {
+                row.put(Part.MSG_ID, Long.parseLong(segments.get(0)));
+                mParts.put(id, row);
+                return Uri.parse("content://mms/part/" + id);
+            } else if ("addr".equals(table)) {
+                row.put(Addr.MSG_ID, Long.parseLong(segments.get(0)));
+                mAddresses.add(row);
+                return Uri.withAppendedPath(uri, Long.toString(id));
+            }
+            mPdus.put(id, row);
+            return ContentUris.withAppendedId(Mms.CONTENT_URI, id);
+        }
+
+        @Override
+        public synchronized int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            count();
+            List<String> segments = uri.getPathSegments();
+            if ((segments.size() == 2) && "part".equals(segments.get(0))) {
+                mParts.get(Long.parseLong(segments.get(1))).putAll(values);
+                return 1;
+            } else if ((segments.size() == 2) && "part".equals(segments.get(1))) {
+                Long msgId = Long.parseLong(segments.get(0));
+                int count = 0;
+                for (ContentValues part : mParts.values()) {
+                    if (msgId.equals(part.getAsLong(Part.MSG_ID))) {
+                        part.putAll(values);
+                        count++;
+                    }
+                }
+                return count;
+            }
+            mPdus.get(ContentUris.parseId(uri)).putAll(values);
+            return 1;
+        }
+
+        @Override
+        public synchronized ParcelFileDescriptor openFile(Uri uri, String mode)
+                throws FileNotFoundException {
+            count();
+            if (mFiles.size() + 1 == mFailingFile) {
+                throw new FileNotFoundException(uri.toString());
+            }
+            File file = new File(getContext().getCacheDir(),
+                    "part-" + uri.getLastPathSegment());
+            mFiles.add(file);
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_WRITE
+                    | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            count();
+            return null;
+        }
+
+        @Override
+        public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+            count();
+            List<String> segments = uri.getPathSegments();
+            Long msgId = Long.parseLong(segments.get(0));
+            int count = 0;
+            for (Iterator<ContentValues> i = mParts.values().iterator(); i.hasNext(); ) {
+                if (msgId.equals(i.next().getAsLong(Part.MSG_ID))) {
+                    i.remove();
+                    count++;
+                }
+            }
+            if (segments.size() == 1) {
+                // Deleting a pdu deletes its parts and addresses.
+                for (Iterator<ContentValues> i = mAddresses.iterator(); i.hasNext(); ) {
+                    if (msgId.equals(i.next().getAsLong(Addr.MSG_ID))) {
+                        i.remove();
+                    }
+                }
+                if (mPdus.remove(msgId) != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        synchronized boolean isEmpty() {
+            return mPdus.isEmpty() && mParts.isEmpty() && mAddresses.isEmpty();
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        /**
+         * Describe a message and its parts and addresses, without ids.
+         */
+        synchronized String describe(long msgId) {
+            StringBuilder description = new StringBuilder();
+            description.append("pdu ").append(sorted(mPdus.get(msgId))).append('\n');
+            for (ContentValues part : mParts.values()) {
+                if (part.getAsLong(Part.MSG_ID) == msgId) {
+                    description.append("part ").append(sorted(part)).append('\n');
+                }
+            }
+            for (ContentValues address : mAddresses) {
+                if (address.getAsLong(Addr.MSG_ID) == msgId) {
+                    description.append("addr ").append(sorted(address)).append('\n');
+                }
+            }
+            return description.toString();
+        }
+
+        private static String sorted(ContentValues values) {
+            TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+            for (String key : values.keySet()) {
+                if (!Part.MSG_ID.equals(key) && !Addr.MSG_ID.equals(key)) {
+                    sorted.put(key, values.get(key));
+                }
+            }
+            return sorted.toString();
+        }
+
+        synchronized void deleteFiles() {
+            for (File file : mFiles) {
+                file.delete();
+            }
+            mFiles.clear();
+        }
+
+        private void count() {
+            // The operations of a batch are part of its transaction.
+            if (!mInBatch) {
+                mTransactions++;
+            }
+        }
+    }
+}
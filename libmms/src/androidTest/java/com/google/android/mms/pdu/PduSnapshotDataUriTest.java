@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.net.Uri;
+
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the parts of a {@link PduSnapshot} whose data is at a Uri,
+ * which need the Uri of the platform.
+ */
+public class PduSnapshotDataUriTest extends TestCase {
+    public void testRefersToDataAtItsUri() throws Exception {
+        Uri imageUri = Uri.parse("content://mms/part/7");
+        Uri vcardUri = Uri.parse("content://mms/part/8");
+        final AtomicInteger loads = new AtomicInteger();
+        PduPart.DataLoader loader = new PduPart.DataLoader() {
+            @Override
+            public byte[] load(Uri uri) {
+                loads.incrementAndGet();
+                return uri.toString().getBytes();
+            }
+
+            @Override
+            public InputStream open(Uri uri) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long length(Uri uri) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        PduPart image = new PduPart();
+        image.setContentType("image/png".getBytes());
+        image.setDataUri(imageUri);
+        PduPart vcard = new PduPart();
+        vcard.setContentType("text/x-vCard".getBytes());
+        vcard.setDataUri(vcardUri);
+        vcard.setDataLoader(loader);
+        PduBody body = new PduBody();
+        body.addPart(image);
+        body.addPart(vcard);
+        SendReq req = new SendReq();
+        req.setBody(body);
+        req.setContentType("application/vnd.wap.multipart.related".getBytes());
+
+        byte[] snapshot = PduSnapshot.write(req);
+        assertEquals(0, loads.get());
+
+        PduBody copy = ((SendReq) PduSnapshot.read(snapshot, loader)).getBody();
+        assertEquals(imageUri, copy.getPart(0).getDataUri());
+        assertNull(copy.getPart(0).getData());
+        assertEquals(vcardUri, copy.getPart(1).getDataUri());
+        assertEquals(0, loads.get());
+        assertEquals(vcardUri.toString(), new String(copy.getPart(1).getData()));
+        assertEquals(1, loads.get());
+
+        // Without a loader only the Uri is left.
+        copy = ((SendReq) PduSnapshot.read(snapshot)).getBody();
+        assertEquals(vcardUri, copy.getPart(1).getDataUri());
+        assertNull(copy.getPart(1).getData());
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.MmsSms;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.NotificationInd;
+import com.google.android.mms.pdu.PduSnapshot;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests of the message box and thread indexes of {@link PduCache}, and a
+ * mixed workload of lookups, puts and purges from several threads.
+ *
+ * Run with
+ *     ./gradlew :libmms:connectedAndroidTest
+ * and look for the PduCacheTest tag in the log for the throughput.
+ */
+public class PduCacheTest extends TestCase {
+    private static final String TAG = "PduCacheTest";
+
+    private static final int READERS = 4;
+    private static final int WRITERS = 4;
+    private static final int MESSAGES = 400;
+    private static final int THREADS = 20;
+    private static final long RUN_MILLIS = 2000;
+
+    private static final Uri[] BOXES = {
+        Mms.Inbox.CONTENT_URI, Mms.Sent.CONTENT_URI,
+        Mms.Draft.CONTENT_URI, Mms.Outbox.CONTENT_URI
+    };
+    private static final int[] BOX_IDS = {
+        Mms.MESSAGE_BOX_INBOX, Mms.MESSAGE_BOX_SENT,
+        Mms.MESSAGE_BOX_DRAFTS, Mms.MESSAGE_BOX_OUTBOX
+    };
+
+    /**
+     * The version of the messages in the provider, as far as the snapshots
+     * read by SNAPSHOT_READER are concerned.
+     */
+    private static final long VERSION = 42;
+
+    private static final PduCache.SnapshotReader SNAPSHOT_READER =
+            new PduCache.SnapshotReader() {
+        @Override
+        public boolean isCurrent(Uri uri, PduDiskCache.Snapshot snapshot) {
+            return snapshot.getVersion() == VERSION;
+        }
+
+        @Override
+        public GenericPdu read(byte[] snapshot) throws IOException, MmsException {
+            return PduSnapshot.read(snapshot);
+        }
+    };
+
+    private PduCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = PduCache.getInstance();
+        mCache.purgeAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.purgeAll();
+        super.tearDown();
+    }
+
+    public void testPurgeByMessageBox() {
+        put(1, 0, 10);
+        put(2, 0, 10);
+        put(3, 1, 10);
+
+        mCache.purge(Mms.Inbox.CONTENT_URI);
+        assertNull(mCache.get(messageUri(1)));
+        assertNull(mCache.get(messageUri(2)));
+        assertNotNull(mCache.get(messageUri(3)));
+        assertEquals(2, mCache.indexedUriCount());
+
+        // The thread index doesn't hold the purged messages any more.
+        mCache.purge(conversationUri(10));
+        assertEquals(0, mCache.size());
+        assertEquals(0, mCache.indexedUriCount());
+    }
+
+    public void testPurgeByThreadId() {
+        put(1, 0, 10);
+        put(2, 0, 11);
+
+        mCache.purge(conversationUri(10));
+        assertNull(mCache.get(messageUri(1)));
+        assertNotNull(mCache.get(messageUri(2)));
+        assertEquals(2, mCache.indexedUriCount());
+
+        // The message box index doesn't hold the purged message any more.
+        mCache.purge(Mms.Inbox.CONTENT_URI);
+        assertEquals(0, mCache.size());
+        assertEquals(0, mCache.indexedUriCount());
+    }
+
+    public void testPutAgainMovesTheMessage() {
+        put(1, 0, 10);
+        put(1, 1, 11);
+
+        mCache.purge(Mms.Inbox.CONTENT_URI);
+        mCache.purge(conversationUri(10));
+        assertNotNull(mCache.get(messageUri(1)));
+
+        mCache.purge(Mms.Sent.CONTENT_URI);
+        assertNull(mCache.get(messageUri(1)));
+        assertEquals(0, mCache.indexedUriCount());
+    }
+
+    public void testMessageBoxUrisAreTheSameKey() {
+        put(1, 0, 10);
+        assertNotNull(mCache.get(ContentUris.withAppendedId(Mms.CONTENT_URI, 1)));
+
+        assertNotNull(mCache.purge(ContentUris.withAppendedId(Mms.CONTENT_URI, 1)));
+        assertNull(mCache.get(messageUri(1)));
+        assertEquals(0, mCache.indexedUriCount());
+    }
+
+    public void testEvictedMessagesAreNotIndexed() {
+        for (int i = 0; i < 2000; i++) {
+            put(i, i % BOXES.length, i % THREADS);
+        }
+        assertTrue(mCache.evictionCount() > 0);
+        assertEquals(2 * mCache.size(), mCache.indexedUriCount());
+    }
+
+    public void testDiskCacheOutlivesTheMemoryCache() throws Exception {
+        File directory = File.createTempFile("pdus", null);
+        directory.delete();
+        PduDiskCache diskCache = new PduDiskCache(directory, 64 * 1024);
+        mCache.setDiskCache(diskCache);
+        try {
+            mCache.put(messageUri(1), new PduCacheEntry(
+                    createNotificationInd("T1"), Mms.MESSAGE_BOX_INBOX, 10), VERSION);
+            mCache.put(messageUri(2), new PduCacheEntry(
+                    createNotificationInd("T2"), Mms.MESSAGE_BOX_INBOX, 11), VERSION);
+            // Without a version the pdu is only cached in memory.
+            mCache.put(messageUri(3), new PduCacheEntry(
+                    createNotificationInd("T3"), Mms.MESSAGE_BOX_INBOX, 11));
+            assertEquals(2, diskCache.size());
+
+            // As if the process was started again.
+            mCache.setDiskCache(null);
+            mCache.purgeAll();
+            mCache.setDiskCache(diskCache);
+            assertNull(mCache.get(messageUri(1)));
+
+            PduCacheEntry entry = mCache.loadFromDisk(messageUri(1), SNAPSHOT_READER);
+            assertEquals("T1", new String(((NotificationInd) entry.getPdu()).getTransactionId()));
+            assertEquals(Mms.MESSAGE_BOX_INBOX, entry.getMessageBox());
+            assertEquals(10, entry.getThreadId());
+            assertSame(entry, mCache.get(messageUri(1)));
+            assertEquals(2, mCache.indexedUriCount());
+
+            // Purges reach the disk cache.
+            mCache.purge(conversationUri(10));
+            assertNull(mCache.get(messageUri(1)));
+            assertNull(mCache.loadFromDisk(messageUri(1), SNAPSHOT_READER));
+            assertEquals(1, diskCache.size());
+            mCache.purge(Mms.Inbox.CONTENT_URI);
+            assertEquals(0, diskCache.size());
+
+            // Snapshots of messages changed since are dropped.
+            mCache.put(messageUri(4), new PduCacheEntry(
+                    createNotificationInd("T4"), Mms.MESSAGE_BOX_INBOX, 12), VERSION - 1);
+            mCache.setDiskCache(null);
+            mCache.purgeAll();
+            mCache.setDiskCache(diskCache);
+            assertNull(mCache.loadFromDisk(messageUri(4), SNAPSHOT_READER));
+            assertEquals(0, diskCache.size());
+        } finally {
+            mCache.setDiskCache(null);
+            diskCache.removeAll();
+            directory.delete();
+        }
+    }
+
+    @LargeTest
+    public void testMixedWorkload() throws Exception {
+        // As before the cache was segmented: puts and purges hold one lock.
+        long[] serialized = runMixedWorkload(true);
+        long[] segmented = runMixedWorkload(false);
+
+        Log.i(TAG, READERS + " readers, " + WRITERS + " writers: lookups/s "
+                + serialized[0] + " serialized, " + segmented[0] + " segmented; changes/s "
+                + serialized[1] + " serialized, " + segmented[1] + " segmented");
+    }
+
+    /**
+     * Run readers looking messages up and writers putting and purging them
+     * for RUN_MILLIS, then check that the indexes hold the cached messages.
+     *
+     * @param serialize if true the writers hold one lock while changing
+     *        the cache
+     * @return the lookups and the changes per second
+     */
+    private long[] runMixedWorkload(final boolean serialize) throws Exception {
+        mCache.purgeAll();
+        for (int i = 0; i < MESSAGES; i++) {
+            put(i, i % BOXES.length, i % THREADS);
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final long[] counts = new long[READERS + WRITERS];
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Object writeLock = new Object();
+        Thread[] threads = new Thread[READERS + WRITERS];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            final boolean reader = t < READERS;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        int i = index;
+                        while (!stop.get()) {
+                            i = (i * 1103515245 + 12345) & 0x7FFFFFFF;
+                            if (reader) {
+                                mCache.get(messageUri(i % MESSAGES));
+                            } else if (serialize) {
+                                synchronized (writeLock) {
+                                    change(i);
+                                }
+                            } else {
+                                change(i);
+                            }
+                            count++;
+                        }
+                        counts[index] = count;
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        start.countDown();
+        SystemClock.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+        assertEquals(2 * mCache.size(), mCache.indexedUriCount());
+
+        long lookups = 0;
+        long changes = 0;
+        for (int t = 0; t < counts.length; t++) {
+            if (t < READERS) {
+                lookups += counts[t];
+            } else {
+                changes += counts[t];
+            }
+        }
+        return new long[] {
+            lookups * 1000 / RUN_MILLIS, changes * 1000 / RUN_MILLIS
+        };
+    }
+
+    /**
+     * Mostly put a message into a random box and thread, sometimes purge
+     * a message, a thread or a message box.
+     */
+    private void change(int random) {
+        int id = random % MESSAGES;
+        int box = (random >>> 8) % BOXES.length;
+        int thread = (random >>> 12) % THREADS;
+        switch ((random >>> 16) % 16) {
+            case 0:
+                mCache.purge(BOXES[box]);
+                break;
+            case 1:
+                mCache.purge(conversationUri(thread));
+                break;
+            case 2:
+            case 3:
+                mCache.purge(messageUri(id));
+                break;
+            default:
+                put(id, box, thread);
+                break;
+        }
+    }
+
+    private void put(int id, int box, long threadId) {
+        mCache.put(ContentUris.withAppendedId(BOXES[box], id),
+                new PduCacheEntry(new GenericPdu(), BOX_IDS[box], threadId));
+    }
+
+    private static NotificationInd createNotificationInd(String transactionId)
+            throws Exception {
+        NotificationInd ind = new NotificationInd();
+        ind.setTransactionId(transactionId.getBytes());
+        ind.setContentLocation(("http://mmsc/" + transactionId).getBytes());
+        return ind;
+    }
+
+    private static Uri messageUri(int id) {
+        return ContentUris.withAppendedId(Mms.Inbox.CONTENT_URI, id);
+    }
+
+    private static Uri conversationUri(long threadId) {
+        return ContentUris.withAppendedId(MmsSms.CONTENT_CONVERSATIONS_URI, threadId);
+    }
+}
@@ -17,6 +17,9 @@
 
 package com.google.android.mms.pdu;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 public class Base64 {
     /**
      * Used to get the number of Quadruples.
@@ -31,7 +34,17 @@ public class Base64 {
     /**
      * The base length.
      */
-    static final int BASELENGTH = 255;
+    static final int BASELENGTH = 256;
+
+    /**
+     * Value in base64Alphabet of the bytes outside of the alphabet.
+     */
+    private static final byte NOT_BASE64 = -1;
+
+    /**
+     * Value in base64Alphabet of the pad.
+     */
+    private static final byte PAD_VALUE = -2;
 
     // Create arrays to hold the base64 characters
     private static byte[] base64Alphabet = new byte[BASELENGTH];
@@ -39,7 +52,7 @@ public class Base64 {
     // Populating the character arrays
     static {
         for (int i = 0; i < BASELENGTH; i++) {
-            base64Alphabet[i] = (byte) -1;
+            base64Alphabet[i] = NOT_BASE64;
         }
         for (int i = 'Z'; i >= 'A'; i--) {
             base64Alphabet[i] = (byte) (i - 'A');
@@ -53,8 +66,15 @@ public class Base64 {
 
         base64Alphabet['+'] = 62;
         base64Alphabet['/'] = 63;
+        base64Alphabet[PAD] = PAD_VALUE;
     }
 
+    /**
+     * Number of bytes decoded at a time out of buffers which aren't backed
+     * by an accessible array.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
     /**
      * Decodes Base64 data into octects
      *
@@ -62,106 +82,266 @@ public class Base64 {
      * @return Array containing decoded data.
      */
     public static byte[] decodeBase64(byte[] base64Data) {
-        // RFC 2045 requires that we discard ALL non-Base64 characters
-        base64Data = discardNonBase64(base64Data);
+        return decodeBase64(ByteBuffer.wrap(base64Data));
+    }
 
-        // handle the edge case, so we don't have to worry about it later
-        if (base64Data.length == 0) {
-            return new byte[0];
-        }
+    /**
+     * Decodes the Base64 data between the position and the limit of a
+     * buffer into octects. The buffer itself is not modified.
+     *
+     * RFC 2045 requires that we discard ALL non-Base64 characters, such as
+     * the line breaks; they are skipped while decoding, so the data is not
+     * copied first. A pad ends a quadruple, and a quadruple left incomplete
+     * at the end of the data is decoded as if it were padded.
+     *
+     * @param base64Data Buffer containing Base64 data
+     * @return Array containing decoded data.
+     */
+    public static byte[] decodeBase64(ByteBuffer base64Data) {
+        byte[] decodedData = new byte[getDecodedLength(base64Data)];
+        Decoder decoder = new Decoder();
+        int length = decoder.decode(base64Data.duplicate(), decodedData, 0);
+        decoder.finish(decodedData, length);
+        return decodedData;
+    }
 
-        int numberQuadruple = base64Data.length / FOURBYTE;
-        byte decodedData[] = null;
-        byte b1 = 0, b2 = 0, b3 = 0, b4 = 0, marker0 = 0, marker1 = 0;
-
-        // Throw away anything not in base64Data
-
-        int encodedIndex = 0;
-        int dataIndex = 0;
-        {
-            // this sizes the output array properly - rlw
-            int lastData = base64Data.length;
-            // ignore the '=' padding
-            while (base64Data[lastData - 1] == PAD) {
-                if (--lastData == 0) {
-                    return new byte[0];
-                }
-            }
-            decodedData = new byte[lastData - numberQuadruple];
+    /**
+     * Decodes the Base64 data between the position and the limit of src
+     * into dst. The position of src is moved to its limit, and the position
+     * of dst past the decoded data.
+     *
+     * @param src Buffer containing Base64 data
+     * @param dst Buffer to decode into
+     * @return the number of octects decoded
+     * @throws BufferOverflowException if dst has less room than
+     *         {@link #getDecodedLength(ByteBuffer)} src; nothing is decoded
+     *         then.
+     */
+    public static int decodeBase64(ByteBuffer src, ByteBuffer dst) {
+        // Only count the octects when dst may be too small.
+        int length = getMaxDecodedLength(src.remaining());
+        if ((dst.remaining() < length)
+                && (dst.remaining() < (length = getDecodedLength(src)))) {
+            throw new BufferOverflowException();
         }
 
-        for (int i = 0; i < numberQuadruple; i++) {
-            dataIndex = i * 4;
-            marker0 = base64Data[dataIndex + 2];
-            marker1 = base64Data[dataIndex + 3];
-
-            b1 = base64Alphabet[base64Data[dataIndex]];
-            b2 = base64Alphabet[base64Data[dataIndex + 1]];
-
-            if (marker0 != PAD && marker1 != PAD) {
-                //No PAD e.g 3cQl
-                b3 = base64Alphabet[marker0];
-                b4 = base64Alphabet[marker1];
-
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-                decodedData[encodedIndex + 1] =
-                    (byte) (((b2 & 0xf) << 4) | ((b3 >> 2) & 0xf));
-                decodedData[encodedIndex + 2] = (byte) (b3 << 6 | b4);
-            } else if (marker0 == PAD) {
-                //Two PAD e.g. 3c[Pad][Pad]
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-            } else if (marker1 == PAD) {
-                //One PAD e.g. 3cQ[Pad]
-                b3 = base64Alphabet[marker0];
-
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-                decodedData[encodedIndex + 1] =
-                    (byte) (((b2 & 0xf) << 4) | ((b3 >> 2) & 0xf));
-            }
-            encodedIndex += 3;
+        Decoder decoder = new Decoder();
+        if (dst.hasArray()) {
+            int start = dst.arrayOffset() + dst.position();
+            int end = decoder.decode(src, dst.array(), start);
+            end = decoder.finish(dst.array(), end);
+            dst.position(dst.position() + end - start);
+            return end - start;
         }
-        return decodedData;
+
+        byte[] decoded = new byte[length];
+        length = decoder.finish(decoded, decoder.decode(src, decoded, 0));
+        dst.put(decoded, 0, length);
+        return length;
     }
 
     /**
-     * Check octect wheter it is a base64 encoding.
+     * Count the octects the Base64 data between the position and the limit
+     * of a buffer decodes into, without decoding it.
      *
-     * @param octect to be checked byte
-     * @return ture if it is base64 encoding, false otherwise.
+     * @param base64Data Buffer containing Base64 data
+     * @return the length of the decoded data
      */
-    private static boolean isBase64(byte octect) {
-        if (octect == PAD) {
-            return true;
-        } else if (base64Alphabet[octect] == -1) {
-            return false;
+    public static int getDecodedLength(ByteBuffer base64Data) {
+        Decoder decoder = new Decoder();
+        int length;
+        if (base64Data.hasArray()) {
+            int offset = base64Data.arrayOffset();
+            length = decoder.count(base64Data.array(), offset + base64Data.position(),
+                    offset + base64Data.limit());
         } else {
-            return true;
+            ByteBuffer src = base64Data.duplicate();
+            byte[] chunk = new byte[Math.min(src.remaining(), CHUNK_SIZE)];
+            length = 0;
+            while (src.hasRemaining()) {
+                int count = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, count);
+                length += decoder.count(chunk, 0, count);
+            }
         }
+        return length + getTrailingLength(decoder.mSextets);
     }
 
     /**
-     * Discards any characters outside of the base64 alphabet, per
-     * the requirements on page 25 of RFC 2045 - "Any characters
-     * outside of the base64 alphabet are to be ignored in base64
-     * encoded data."
-     *
-     * @param data The base-64 encoded data to groom
-     * @return The data, less non-base64 characters (see RFC 2045).
+     * @return the most octects Base64 data of the given length can be
+     *         decoded into.
+     */
+    static int getMaxDecodedLength(int base64Length) {
+        return base64Length / FOURBYTE * 3 + getTrailingLength(base64Length % FOURBYTE);
+    }
+
+    /**
+     * @return the number of octects in a quadruple cut short after the
+     *         given number of sextets.
+     */
+    private static int getTrailingLength(int sextets) {
+        return (sextets < 2) ? 0 : sextets - 1;
+    }
+
+    /**
+     * Decodes Base64 data given in pieces, keeping the quadruple
+     * which is incomplete at the end of a piece until the next one.
      */
-    static byte[] discardNonBase64(byte[] data) {
-        byte groomedData[] = new byte[data.length];
-        int bytesCopied = 0;
+    static final class Decoder {
+        /**
+         * The sextets of the current quadruple.
+         */
+        private int mBits = 0;
+
+        /**
+         * The number of sextets in the current quadruple.
+         */
+        private int mSextets = 0;
 
-        for (int i = 0; i < data.length; i++) {
-            if (isBase64(data[i])) {
-                groomedData[bytesCopied++] = data[i];
+        /**
+         * Decode the data between the position and the limit of src into
+         * dst, and move the position of src to its limit.
+         *
+         * @param src Buffer containing Base64 data
+         * @param dst Array to decode into. It must have room for
+         *        getMaxDecodedLength(src.remaining() + 3) octects, as the
+         *        quadruple left from the previous piece is completed too.
+         * @param out Index in dst to decode at
+         * @return the index in dst after the decoded data
+         */
+        int decode(ByteBuffer src, byte[] dst, int out) {
+            if (src.hasArray()) {
+                int offset = src.arrayOffset();
+                out = decode(src.array(), offset + src.position(), offset + src.limit(),
+                        dst, out);
+                src.position(src.limit());
+                return out;
             }
+
+            byte[] chunk = new byte[Math.min(src.remaining(), CHUNK_SIZE)];
+            while (src.hasRemaining()) {
+                int count = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, count);
+                out = decode(chunk, 0, count, dst, out);
+            }
+            return out;
         }
 
-        byte packedData[] = new byte[bytesCopied];
+        /**
+         * Decode src[off, end) into dst, like {@link #decode(ByteBuffer, byte[], int)}.
+         */
+        int decode(byte[] src, int off, int end, byte[] dst, int out) {
+            byte[] alphabet = base64Alphabet;
+            int bits = mBits;
+            int sextets = mSextets;
+            int i = off;
+            while (i < end) {
+                if (sextets == 0) {
+                    // Whole quadruples without anything to skip, as most are.
+                    for (int last = end - FOURBYTE; i <= last; i += FOURBYTE) {
+                        int b1 = alphabet[src[i] & 0xFF];
+                        int b2 = alphabet[src[i + 1] & 0xFF];
+                        int b3 = alphabet[src[i + 2] & 0xFF];
+                        int b4 = alphabet[src[i + 3] & 0xFF];
+                        if ((b1 | b2 | b3 | b4) < 0) {
+                            break;
+                        }
+                        dst[out] = (byte) (b1 << 2 | b2 >> 4);
+                        dst[out + 1] = (byte) (b2 << 4 | b3 >> 2);
+                        dst[out + 2] = (byte) (b3 << 6 | b4);
+                        out += 3;
+                    }
+                    if (i == end) {
+                        break;
+                    }
+                }
 
-        System.arraycopy(groomedData, 0, packedData, 0, bytesCopied);
+                byte value = alphabet[src[i++] & 0xFF];
+                if (value >= 0) {
+                    bits = (bits << 6) | value;
+                    if (++sextets == FOURBYTE) {
+                        dst[out] = (byte) (bits >> 16);
+                        dst[out + 1] = (byte) (bits >> 8);
+                        dst[out + 2] = (byte) bits;
+                        out += 3;
+                        bits = 0;
+                        sextets = 0;
+                    }
+                } else if (value == PAD_VALUE) {
+                    out = flush(bits, sextets, dst, out);
+                    bits = 0;
+                    sextets = 0;
+                }
+            }
+            mBits = bits;
+            mSextets = sextets;
+            return out;
+        }
 
-        return packedData;
+        /**
+         * Count the octects of the quadruples src[off, end) completes,
+         * as {@link #decode(byte[], int, int, byte[], int)} would write.
+         */
+        int count(byte[] src, int off, int end) {
+            byte[] alphabet = base64Alphabet;
+            int length = 0;
+            int sextets = mSextets;
+            int i = off;
+            while (i < end) {
+                if (sextets == 0) {
+                    for (int last = end - FOURBYTE; i <= last; i += FOURBYTE) {
+                        if ((alphabet[src[i] & 0xFF] | alphabet[src[i + 1] & 0xFF]
+                                | alphabet[src[i + 2] & 0xFF] | alphabet[src[i + 3] & 0xFF]) < 0) {
+                            break;
+                        }
+                        length += 3;
+                    }
+                    if (i == end) {
+                        break;
+                    }
+                }
+
+                byte value = alphabet[src[i++] & 0xFF];
+                if (value >= 0) {
+                    if (++sextets == FOURBYTE) {
+                        length += 3;
+                        sextets = 0;
+                    }
+                } else if (value == PAD_VALUE) {
+                    length += getTrailingLength(sextets);
+                    sextets = 0;
+                }
+            }
+            mSextets = sextets;
+            return length;
+        }
+
+        /**
+         * Decode the quadruple left incomplete at the end of the data.
+         *
+         * @param dst Array to decode into, with room for 2 octects.
+         * @param out Index in dst to decode at
+         * @return the index in dst after the decoded data
+         */
+        int finish(byte[] dst, int out) {
+            out = flush(mBits, mSextets, dst, out);
+            mBits = 0;
+            mSextets = 0;
+            return out;
+        }
+
+        /**
+         * Write the octects of a quadruple cut short, e.g. 3c[Pad][Pad]
+         * or 3cQ[Pad].
+         */
+        private static int flush(int bits, int sextets, byte[] dst, int out) {
+            if (sextets == 2) {
+                dst[out++] = (byte) (bits >> 4);
+            } else if (sextets == 3) {
+                dst[out++] = (byte) (bits >> 10);
+                dst[out++] = (byte) (bits >> 2);
+            }
+            return out;
+        }
     }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.InputStream;
+
+/**
+ * An InputStream which decodes the Base64 data read from another stream.
+ * The data is decoded a block at a time, so that large encoded parts never
+ * need to be held in memory whole, encoded or decoded.
+ *
+ * As {@link Base64#decodeBase64(byte[])}, characters outside of the Base64
+ * alphabet are skipped.
+ */
+public class Base64InputStream extends DecodingInputStream {
+    private final Base64.Decoder mDecoder = new Base64.Decoder();
+
+    /**
+     * Constructor.
+     *
+     * @param in the stream of Base64 data
+     */
+    public Base64InputStream(InputStream in) {
+        super(in, Base64.getMaxDecodedLength(BLOCK_SIZE + 3));
+    }
+
+    @Override
+    int decode(byte[] src, int length, byte[] dst) {
+        return mDecoder.decode(src, 0, length, dst, 0);
+    }
+
+    @Override
+    int finish(byte[] dst) {
+        return mDecoder.finish(dst, 0);
+    }
+}
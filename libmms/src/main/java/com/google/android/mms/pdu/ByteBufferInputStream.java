@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A ByteArrayInputStream which reads from a {@link ByteBuffer} instead of
+ * a byte array, so that the PduParser can walk heap or direct buffers
+ * without copying them first.
+ *
+ * The stream is backed by a {@link WspDecoder}, which the PduParser uses
+ * to decode the WSP primitives straight from the buffer. Part data can be
+ * taken out as read-only slices of the underlying buffer by
+ * {@link #slice(int)}.
+ */
+class ByteBufferInputStream extends ByteArrayInputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Block size when writing direct buffers to an OutputStream.
+     */
+    private static final int TRANSFER_BLOCK_SIZE = 8192;
+
+    /**
+     * The decoder of the buffer. Its position is the current read position.
+     */
+    private final WspDecoder mDecoder;
+
+    /**
+     * The marked position.
+     */
+    private int mMarkPosition = 0;
+
+    /**
+     * Constructor. The bytes between the position and the limit of
+     * the given buffer are read; the buffer itself is not modified.
+     *
+     * @param buffer the buffer to be read
+     */
+    ByteBufferInputStream(ByteBuffer buffer) {
+        super(EMPTY);
+        mDecoder = new WspDecoder(buffer);
+    }
+
+    /**
+     * Get the decoder of the buffer, which reads from the same position
+     * as the stream.
+     */
+    WspDecoder getDecoder() {
+        return mDecoder;
+    }
+
+    @Override
+    public int read() {
+        return mDecoder.readOctet();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if ((off < 0) || (len < 0) || (len > b.length - off)) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (mDecoder.remaining() == 0) {
+            return -1;
+        }
+        return mDecoder.read(b, off, len);
+    }
+
+    // Newer platforms add readAllBytes, readNBytes and transferTo to
+    // ByteArrayInputStream, reading its array directly, so they have to be
+    // backed by the buffer too. They are not annotated with @Override since
+    // they don't exist at the compile SDK.
+
+    public byte[] readAllBytes() {
+        byte[] bytes = new byte[mDecoder.remaining()];
+        mDecoder.read(bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    public int readNBytes(byte[] b, int off, int len) {
+        int count = read(b, off, len);
+        return (count == -1) ? 0 : count;
+    }
+
+    public long transferTo(OutputStream out) throws IOException {
+        int count = mDecoder.remaining();
+        byte[] array = mDecoder.array();
+        if (array != null) {
+            out.write(array, mDecoder.arrayOffset() + mDecoder.position(), count);
+            mDecoder.skip(count);
+        } else {
+            byte[] block = new byte[Math.min(count, TRANSFER_BLOCK_SIZE)];
+            int length;
+            while ((length = mDecoder.read(block, 0, block.length)) > 0) {
+                out.write(block, 0, length);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        return mDecoder.skip((int) Math.min(n, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public int available() {
+        return mDecoder.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        mMarkPosition = mDecoder.position();
+    }
+
+    @Override
+    public void reset() {
+        mDecoder.position(mMarkPosition);
+    }
+
+    /**
+     * Take the next bytes as a read-only view of the underlying buffer
+     * and skip over them. No data is copied.
+     *
+     * @param length the number of bytes wanted
+     * @return a read-only buffer holding at most length bytes
+     */
+    ByteBuffer slice(int length) {
+        return mDecoder.slice(length);
+    }
+}
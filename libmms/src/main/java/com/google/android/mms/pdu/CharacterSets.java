@@ -18,6 +18,7 @@
 package com.google.android.mms.pdu;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 
 public class CharacterSets {
@@ -119,6 +120,19 @@ public class CharacterSets {
     private static final HashMap<Integer, String> MIBENUM_TO_NAME_MAP;
     private static final HashMap<String, Integer> NAME_TO_MIBENUM_MAP;
 
+    /**
+     * The charset to decode text with when its character set is unknown
+     * or unsupported.
+     */
+    public static final Charset FALLBACK_CHARSET = Charset.forName(MIMENAME_ISO_8859_1);
+
+    /**
+     * The charsets of the MIB enum numbers, resolved once as looking a
+     * charset up by name is slow. The numbers whose charset isn't supported
+     * have the FALLBACK_CHARSET.
+     */
+    private static final Charset[] CHARSETS = new Charset[MIBENUM_NUMBERS.length];
+
     static {
         // Create the HashMaps.
         MIBENUM_TO_NAME_MAP = new HashMap<Integer, String>();
@@ -128,6 +142,12 @@ public class CharacterSets {
         for(int i = 0; i <= count; i++) {
             MIBENUM_TO_NAME_MAP.put(MIBENUM_NUMBERS[i], MIME_NAMES[i]);
             NAME_TO_MIBENUM_MAP.put(MIME_NAMES[i], MIBENUM_NUMBERS[i]);
+            try {
+                CHARSETS[i] = Charset.forName(MIME_NAMES[i]);
+            } catch (IllegalArgumentException e) {
+                // Unsupported, or not a charset name at all as "*".
+                CHARSETS[i] = FALLBACK_CHARSET;
+            }
         }
     }
 
@@ -150,6 +170,23 @@ public class CharacterSets {
         return name;
     }
 
+    /**
+     * Map an MIBEnum number to the charset which this number is assigned
+     * to by IANA, without looking the charset up by name.
+     *
+     * @param mibEnumValue An IANA assigned MIBEnum number.
+     * @return The charset, or {@link #FALLBACK_CHARSET} if the number is
+     *         unknown or its charset is unsupported.
+     */
+    public static Charset getCharset(int mibEnumValue) {
+        for (int i = 0; i < MIBENUM_NUMBERS.length; i++) {
+            if (MIBENUM_NUMBERS[i] == mibEnumValue) {
+                return CHARSETS[i];
+            }
+        }
+        return FALLBACK_CHARSET;
+    }
+
     /**
      * Map a well-known charset name to its assigned MIBEnum number.
      *
@@ -169,4 +206,23 @@ public class CharacterSets {
         }
         return mibEnumValue;
     }
+
+    /**
+     * Map a well-known charset name, as the bytes of a text string, to its
+     * assigned MIBEnum number without decoding it first. Charset names are
+     * compared ignoring case.
+     *
+     * @param mimeName The charset name.
+     * @return The MIBEnum number assigned by IANA for this charset.
+     * @throws UnsupportedEncodingException if the name is null or unknown
+     */
+    static int getMibEnumValue(byte[] mimeName)
+            throws UnsupportedEncodingException {
+        for (int i = 0; i < MIME_NAMES.length; i++) {
+            if (ContentTypeTable.equalsIgnoreCase(mimeName, MIME_NAMES[i])) {
+                return MIBENUM_NUMBERS[i];
+            }
+        }
+        throw new UnsupportedEncodingException();
+    }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.util.Arrays;
+
+/**
+ * Content types interned by their bytes, so that the parser, the composer
+ * and the persister look them up without making a String of each one.
+ *
+ * The table holds the well known content types of
+ * {@link PduContentTypes#contentTypes} with their assigned numbers, and
+ * interns up to MAX_INTERNED other content types as they are looked up.
+ * Content types are matched ignoring the case of ASCII letters, as MIME
+ * types are. An entry keeps the spelling it was first seen with, which
+ * {@link Entry#matches(byte[])} compares exactly, for the callers which
+ * must not change the spelling of a content type.
+ *
+ * Lookups don't lock. Entries are immutable and are only added, while
+ * holding the lock of the class; a lookup which misses an entry being
+ * added meanwhile looks it up again under the lock before adding it.
+ */
+final class ContentTypeTable {
+    /**
+     * The most content types interned besides the well known ones, and the
+     * longest content type interned.
+     */
+    static final int MAX_INTERNED = 256;
+    static final int MAX_LENGTH = 128;
+
+    /**
+     * Slots of the open addressing table, a power of two over twice the
+     * most entries.
+     */
+    private static final int TABLE_SIZE = 1024;
+
+    private static final Entry[] WELL_KNOWN = new Entry[PduContentTypes.contentTypes.length];
+    private static final Entry[] sTable = new Entry[TABLE_SIZE];
+    private static int sInterned = 0;
+
+    static {
+        for (int i = 0; i < WELL_KNOWN.length; i++) {
+            String name = PduContentTypes.contentTypes[i];
+            byte[] bytes = name.getBytes(CharacterSets.FALLBACK_CHARSET);
+            WELL_KNOWN[i] = new Entry(bytes, name, i, hash(bytes));
+            insert(WELL_KNOWN[i]);
+        }
+    }
+
+    private ContentTypeTable() {
+    }
+
+    /**
+     * An interned content type.
+     */
+    static final class Entry {
+        /**
+         * The bytes of the content type, which are shared and never given
+         * out.
+         */
+        private final byte[] bytes;
+        private final int hash;
+
+        /**
+         * The content type, decoded as ISO-8859-1.
+         */
+        final String name;
+
+        /**
+         * The assigned number of a well known content type, -1 for others.
+         */
+        final int number;
+
+        Entry(byte[] bytes, String name, int number, int hash) {
+            this.bytes = bytes;
+            this.name = name;
+            this.number = number;
+            this.hash = hash;
+        }
+
+        /**
+         * @return a copy of the bytes of the content type
+         */
+        byte[] getBytes() {
+            return bytes.clone();
+        }
+
+        /**
+         * @return true if the content type is spelled exactly like this one
+         */
+        boolean matches(byte[] type) {
+            return Arrays.equals(bytes, type);
+        }
+    }
+
+    /**
+     * Get a well known content type by its assigned number.
+     *
+     * @throws ArrayIndexOutOfBoundsException if no content type has the number
+     */
+    static Entry get(int number) {
+        return WELL_KNOWN[number];
+    }
+
+    /**
+     * Get a copy of the bytes of a well known content type.
+     *
+     * @throws ArrayIndexOutOfBoundsException if no content type has the number
+     */
+    static byte[] getBytes(int number) {
+        return WELL_KNOWN[number].getBytes();
+    }
+
+    /**
+     * Look a content type up, interning it if it isn't yet and there is
+     * room for it.
+     *
+     * @param type the content type
+     * @return the entry, null if the content type is not interned because
+     *         it is too long, it isn't printable ASCII or the table is full
+     */
+    static Entry lookup(byte[] type) {
+        int hash = hash(type);
+        Entry entry = find(type, hash);
+        if ((entry != null) || !isInternable(type)) {
+            return entry;
+        }
+
+        synchronized (ContentTypeTable.class) {
+            entry = find(type, hash);
+            if ((null == entry) && (sInterned < MAX_INTERNED)) {
+                byte[] bytes = type.clone();
+                entry = new Entry(bytes, new String(bytes, CharacterSets.FALLBACK_CHARSET),
+                        -1, hash);
+                insert(entry);
+                sInterned++;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Get the assigned number of a well known content type.
+     *
+     * @param type the content type, spelled exactly as the well known one
+     * @return the number, -1 if it isn't well known or type is null
+     */
+    static int getNumber(byte[] type) {
+        if (null == type) {
+            return -1;
+        }
+        Entry entry = find(type, hash(type));
+        return ((entry != null) && (entry.number >= 0) && entry.matches(type))
+                ? entry.number : -1;
+    }
+
+    /**
+     * Decode a content type as ISO-8859-1. Content types which are interned
+     * with the same spelling are the same String each time.
+     *
+     * @param type the content type
+     * @return the content type as a String
+     */
+    static String toString(byte[] type) {
+        Entry entry = lookup(type);
+        if ((entry != null) && entry.matches(type)) {
+            return entry.name;
+        }
+        return new String(type, CharacterSets.FALLBACK_CHARSET);
+    }
+
+    /**
+     * Compare bytes with an ASCII string, ignoring the case of letters.
+     *
+     * @param value the bytes, may be null
+     * @param ascii the string
+     * @return true if they are the same
+     */
+    static boolean equalsIgnoreCase(byte[] value, String ascii) {
+        if ((null == value) || (value.length != ascii.length())) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (toLowerCase(value[i] & 0xFF) != toLowerCase(ascii.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Entry find(byte[] type, int hash) {
+        for (int i = spread(hash); ; i = (i + 1) & (TABLE_SIZE - 1)) {
+            Entry entry = sTable[i];
+            if (null == entry) {
+                return null;
+            }
+            if ((entry.hash == hash) && equalsIgnoreCase(entry.bytes, type)) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Put an entry in the first free slot from its own. Called from the
+     * static initializer or with the lock of the class held.
+     */
+    private static void insert(Entry entry) {
+        int i = spread(entry.hash);
+        while (sTable[i] != null) {
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        sTable[i] = entry;
+    }
+
+    private static boolean isInternable(byte[] type) {
+        if ((type.length == 0) || (type.length > MAX_LENGTH)) {
+            return false;
+        }
+        for (byte b : type) {
+            if ((b < 0x20) || (b > 0x7E)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if ((a[i] != b[i]) && (toLowerCase(a[i] & 0xFF) != toLowerCase(b[i] & 0xFF))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash the bytes of a content type, ignoring the case of letters.
+     */
+    private static int hash(byte[] type) {
+        int hash = 0;
+        for (byte b : type) {
+            hash = 31 * hash + toLowerCase(b & 0xFF);
+        }
+        return hash;
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+    }
+
+    private static int toLowerCase(int c) {
+        return ((c >= 'A') && (c <= 'Z')) ? (c + ('a' - 'A')) : c;
+    }
+}
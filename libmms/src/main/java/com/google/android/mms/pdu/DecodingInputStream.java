@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream which decodes the data read from another stream a block
+ * at a time, so that large encoded parts never need to be held in memory
+ * whole, encoded or decoded.
+ */
+abstract class DecodingInputStream extends FilterInputStream {
+    /**
+     * Number of encoded bytes read from the stream at a time.
+     */
+    static final int BLOCK_SIZE = 8192;
+
+    /**
+     * The last block read from the stream.
+     */
+    private final byte[] mEncoded = new byte[BLOCK_SIZE];
+
+    /**
+     * The decoded data of the last block.
+     */
+    private final byte[] mDecoded;
+
+    /**
+     * The index in mDecoded of the next byte to be read.
+     */
+    private int mPosition = 0;
+
+    /**
+     * The number of bytes in mDecoded.
+     */
+    private int mCount = 0;
+
+    private boolean mEndOfStream = false;
+
+    /**
+     * Constructor.
+     *
+     * @param in the stream of encoded data
+     * @param maxDecodedLength the most bytes a block decodes into
+     */
+    DecodingInputStream(InputStream in, int maxDecodedLength) {
+        super(in);
+        mDecoded = new byte[maxDecodedLength];
+    }
+
+    /**
+     * Decode a block of data, keeping what is left incomplete at its end
+     * until the next block.
+     *
+     * @param src the encoded data
+     * @param length the length of the encoded data
+     * @param dst the array to decode into
+     * @return the number of bytes decoded
+     * @throws IOException if the data is malformed
+     */
+    abstract int decode(byte[] src, int length, byte[] dst) throws IOException;
+
+    /**
+     * Decode what was left incomplete at the end of the data.
+     *
+     * @param dst the array to decode into
+     * @return the number of bytes decoded
+     * @throws IOException if the data is malformed
+     */
+    abstract int finish(byte[] dst) throws IOException;
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return mDecoded[mPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if ((off < 0) || (len < 0) || (len > b.length - off)) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, mCount - mPosition);
+        System.arraycopy(mDecoded, mPosition, b, off, count);
+        mPosition += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while ((skipped < n) && fill()) {
+            int count = (int) Math.min(n - skipped, mCount - mPosition);
+            mPosition += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return mCount - mPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Decode blocks until there is decoded data to be read.
+     *
+     * @return false at the end of the data
+     */
+    private boolean fill() throws IOException {
+        while (mPosition == mCount) {
+            if (mEndOfStream) {
+                return false;
+            }
+            mPosition = 0;
+            int count = in.read(mEncoded, 0, BLOCK_SIZE);
+            if (count == -1) {
+                mEndOfStream = true;
+                mCount = finish(mDecoded);
+            } else {
+                mCount = decode(mEncoded, count, mDecoded);
+            }
+        }
+        return true;
+    }
+}
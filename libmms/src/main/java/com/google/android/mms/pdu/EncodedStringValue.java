@@ -42,6 +42,12 @@ public class EncodedStringValue implements Cloneable {
      */
     private byte[] mData;
 
+    /**
+     * The Text-string value decoded by getString(), or null. It is cleared
+     * whenever the Char-set or the Text-string change.
+     */
+    private String mString;
+
     /**
      * Constructor.
      *
@@ -96,6 +102,7 @@ public class EncodedStringValue implements Cloneable {
     public void setCharacterSet(int charset) {
         // TODO: CharSet needs to be validated against MIBEnum.
         mCharacterSet = charset;
+        mString = null;
     }
 
     /**
@@ -123,6 +130,7 @@ public class EncodedStringValue implements Cloneable {
 
         mData = new byte[textString.length];
         System.arraycopy(textString, 0, mData, 0, textString.length);
+        mString = null;
     }
 
     /**
@@ -130,26 +138,22 @@ public class EncodedStringValue implements Cloneable {
      * the EncodedStringValue is null or unsupported, it will be
      * treated as iso-8859-1 encoding.
      *
+     * The String is decoded once, and returned again until the Char-set or
+     * the Text-string change.
+     *
      * @return The decoded String.
      */
     public String getString()  {
-        if (CharacterSets.ANY_CHARSET == mCharacterSet) {
-            return new String(mData); // system default encoding.
-        } else {
-            try {
-                String name = CharacterSets.getMimeName(mCharacterSet);
-                return new String(mData, name);
-            } catch (UnsupportedEncodingException e) {
-            	if (LOCAL_LOGV) {
-            		Log.v(TAG, e.getMessage(), e);
-            	}
-            	try {
-                    return new String(mData, CharacterSets.MIMENAME_ISO_8859_1);
-                } catch (UnsupportedEncodingException e2) {
-                    return new String(mData); // system default encoding.
-                }
+        String string = mString;
+        if (null == string) {
+            if (CharacterSets.ANY_CHARSET == mCharacterSet) {
+                string = new String(mData); // system default encoding.
+            } else {
+                string = new String(mData, CharacterSets.getCharset(mCharacterSet));
             }
+            mString = string;
         }
+        return string;
     }
 
     /**
@@ -180,6 +184,7 @@ public class EncodedStringValue implements Cloneable {
 
             mData = newTextString.toByteArray();
         }
+        mString = null;
     }
 
     /*
@@ -194,7 +199,9 @@ public class EncodedStringValue implements Cloneable {
         System.arraycopy(mData, 0, dstBytes, 0, len);
 
         try {
-            return new EncodedStringValue(mCharacterSet, dstBytes);
+            EncodedStringValue clone = new EncodedStringValue(mCharacterSet, dstBytes);
+            clone.mString = mString;
+            return clone;
         } catch (Exception e) {
             Log.e(TAG, "failed to clone an EncodedStringValue: " + this);
             e.printStackTrace();
@@ -266,7 +273,9 @@ public class EncodedStringValue implements Cloneable {
             return null;
         }
 
-        return new EncodedStringValue(value.mCharacterSet, value.mData);
+        EncodedStringValue copy = new EncodedStringValue(value.mCharacterSet, value.mData);
+        copy.mString = value.mString;
+        return copy;
     }
     
     public static EncodedStringValue[] encodeStrings(String[] array) {
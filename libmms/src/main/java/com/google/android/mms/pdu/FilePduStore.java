@@ -0,0 +1,687 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import com.google.android.mms.MmsException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link PduStore} which keeps the messages in a directory. It only uses
+ * java.io and java.nio, so that it also runs on a JVM, for a relay or for
+ * benchmarks.
+ *
+ * The headers of the messages and of their parts are appended to an index
+ * file, a record for each change of a message. The data of the parts is
+ * kept in blob files named after the SHA-1 of the data, so that the same
+ * data is only stored once. The offset of the last record of each message
+ * is kept in memory, so that a message is found without reading the index.
+ *
+ * The writes are safe against crashes: a blob is written to a temporary
+ * file, synced and renamed into place before the record referring to it
+ * is appended, and the index is synced after each record. The records
+ * carry a CRC32, and a torn record left at the end of the index by a
+ * crash is cut off when the store is opened again.
+ *
+ * The index only grows: old records of a message and blobs which are no
+ * longer referred to are not reclaimed.
+ *
+ * The methods may be called from any thread; they are serialized.
+ */
+public class FilePduStore implements PduStore, Closeable {
+    private static final String INDEX_FILE = "index";
+    private static final String BLOBS_DIRECTORY = "blobs";
+    private static final String TEMPORARY_DIRECTORY = "tmp";
+
+    /**
+     * The index starts with MAGIC and VERSION.
+     */
+    private static final int MAGIC = 0x4D4D5349;
+    private static final int VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 8;
+
+    /**
+     * Records are their payload length and the CRC32 of the payload,
+     * followed by the payload.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Types of records. A message record holds the message box, the headers
+     * and the parts of a message; a move record only a new message box.
+     */
+    private static final int RECORD_MESSAGE = 1;
+    private static final int RECORD_MOVE = 2;
+
+    /**
+     * Bytes before the headers in a message record: the type, the message
+     * id and the message box.
+     */
+    private static final int RECORD_PREFIX_SIZE = 1 + 8 + 4;
+
+    /**
+     * The range of the MESSAGE_BOX_* constants of Telephony.Mms, which
+     * aren't referred to so that the store builds without the platform.
+     */
+    private static final int MESSAGE_BOX_FIRST = 1; // MESSAGE_BOX_INBOX
+    private static final int MESSAGE_BOX_LAST = 4; // MESSAGE_BOX_OUTBOX
+
+    private static final int DIGEST_SIZE = 20;
+    private static final int TRANSFER_BUFFER_SIZE = 8192;
+    private static final int NO_DATA = -1;
+
+    private final File mBlobs;
+    private final File mTemporary;
+    private final RandomAccessFile mIndex;
+    private final FileChannel mChannel;
+
+    /**
+     * Where the last record of each message is, by message id.
+     */
+    private final HashMap<Long, Location> mMessages = new HashMap<Long, Location>();
+
+    /**
+     * The end of the valid records in the index.
+     */
+    private long mEnd;
+
+    private long mNextId = 1;
+
+    /**
+     * Open the store in a directory, creating it if needed.
+     *
+     * @param directory the directory of the store
+     * @throws IOException if the store can't be opened
+     */
+    public FilePduStore(File directory) throws IOException {
+        mBlobs = new File(directory, BLOBS_DIRECTORY);
+        mTemporary = new File(directory, TEMPORARY_DIRECTORY);
+        makeDirectory(directory);
+        makeDirectory(mBlobs);
+        makeDirectory(mTemporary);
+        // Blobs which were being written when the process died.
+        File[] leftovers = mTemporary.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                file.delete();
+            }
+        }
+
+        mIndex = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+        mChannel = mIndex.getChannel();
+        try {
+            openIndex();
+        } catch (IOException e) {
+            mIndex.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized GenericPdu load(long msgId) throws MmsException {
+        byte[] record = readRecord(getLocation(msgId).offset);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            in.skipBytes(RECORD_PREFIX_SIZE);
+            PduHeaders headers = PduHeaders.readFrom(in);
+            PduBody body = new PduBody();
+            int partsNum = in.readInt();
+            for (int i = 0; i < partsNum; i++) {
+                body.addPart(readPart(in));
+            }
+            return GenericPdu.create(headers, body);
+        } catch (IOException e) {
+            throw new MmsException("Failed to load message " + msgId, e);
+        }
+    }
+
+    @Override
+    public synchronized long persist(GenericPdu pdu, int msgBox) throws MmsException {
+        checkMessageBox(msgBox);
+        long msgId = mNextId;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeRecordPrefix(out, RECORD_MESSAGE, msgId, msgBox);
+            pdu.getPduHeaders().writeTo(out);
+            writeParts(out, getBody(pdu));
+            out.flush();
+            append(msgId, msgBox, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new MmsException("Failed to store a message", e);
+        }
+        return msgId;
+    }
+
+    @Override
+    public synchronized void updateHeaders(long msgId, SendReq sendReq) throws MmsException {
+        Location location = getLocation(msgId);
+        byte[] record = readRecord(location.offset);
+        try {
+            int partsStart = getPartsStart(record);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeRecordPrefix(out, RECORD_MESSAGE, msgId, location.msgBox);
+            sendReq.getPduHeaders().writeTo(out);
+            out.write(record, partsStart, record.length - partsStart);
+            out.flush();
+            append(msgId, location.msgBox, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new MmsException("Failed to update message " + msgId, e);
+        }
+    }
+
+    @Override
+    public synchronized void updateParts(long msgId, PduBody body) throws MmsException {
+        Location location = getLocation(msgId);
+        byte[] record = readRecord(location.offset);
+        try {
+            int partsStart = getPartsStart(record);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            // The prefix and the headers are kept as they are.
+            out.write(record, 0, partsStart);
+            writeParts(out, body);
+            out.flush();
+            append(msgId, location.msgBox, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new MmsException("Failed to update message " + msgId, e);
+        }
+    }
+
+    @Override
+    public synchronized void move(long msgId, int msgBox) throws MmsException {
+        checkMessageBox(msgBox);
+        Location location = getLocation(msgId);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_PREFIX_SIZE);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeRecordPrefix(out, RECORD_MOVE, msgId, msgBox);
+            out.flush();
+            append(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new MmsException("Failed to move message " + msgId, e);
+        }
+        mMessages.put(msgId, new Location(location.offset, msgBox));
+    }
+
+    /**
+     * Get the message box a message is filed in.
+     *
+     * @param msgId the id of the message
+     * @return one of the MESSAGE_BOX_* constants of Telephony.Mms
+     * @throws MmsException if the message isn't stored
+     */
+    public synchronized int getMessageBox(long msgId) throws MmsException {
+        return getLocation(msgId).msgBox;
+    }
+
+    /**
+     * @return the number of stored messages
+     */
+    public synchronized int size() {
+        return mMessages.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mIndex.close();
+    }
+
+    /**
+     * Check the header of the index, or write it to a new index, and find
+     * the messages in the records. A torn or corrupt record and whatever
+     * follows it is cut off.
+     */
+    private void openIndex() throws IOException {
+        long size = mChannel.size();
+        if (size < INDEX_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            mChannel.truncate(0);
+            writeFully(header, 0);
+            mChannel.force(true);
+            mEnd = INDEX_HEADER_SIZE;
+            return;
+        }
+
+        ByteBuffer header = readFully(0, INDEX_HEADER_SIZE);
+        if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)) {
+            throw new IOException("Not a pdu store index");
+        }
+
+        long position = INDEX_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            ByteBuffer recordHeader = readFully(position, RECORD_HEADER_SIZE);
+            int length = recordHeader.getInt();
+            int crc = recordHeader.getInt();
+            if ((length < RECORD_PREFIX_SIZE)
+                    || (length > size - position - RECORD_HEADER_SIZE)) {
+                break;
+            }
+            byte[] record = readFully(position + RECORD_HEADER_SIZE, length).array();
+            if (crc(record) != crc) {
+                break;
+            }
+            replay(position, record);
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position < size) {
+            mChannel.truncate(position);
+            mChannel.force(true);
+        }
+        mEnd = position;
+    }
+
+    /**
+     * Apply a record found when opening the index.
+     */
+    private void replay(long offset, byte[] record) throws IOException {
+        ByteBuffer prefix = ByteBuffer.wrap(record, 0, RECORD_PREFIX_SIZE);
+        int type = prefix.get();
+        long msgId = prefix.getLong();
+        int msgBox = prefix.getInt();
+        if (type == RECORD_MESSAGE) {
+            mMessages.put(msgId, new Location(offset, msgBox));
+        } else if (type == RECORD_MOVE) {
+            Location location = mMessages.get(msgId);
+            if (location != null) {
+                mMessages.put(msgId, new Location(location.offset, msgBox));
+            }
+        } else {
+            throw new IOException("Unknown record type " + type);
+        }
+        mNextId = Math.max(mNextId, msgId + 1);
+    }
+
+    /**
+     * Append the record of a message and make it the message's last one.
+     */
+    private void append(long msgId, int msgBox, byte[] record) throws IOException {
+        long offset = append(record);
+        mMessages.put(msgId, new Location(offset, msgBox));
+        mNextId = Math.max(mNextId, msgId + 1);
+    }
+
+    /**
+     * Append a record to the index and sync it.
+     *
+     * @return the offset of the record
+     */
+    private long append(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+        buffer.putInt(record.length).putInt(crc(record)).put(record).flip();
+        long offset = mEnd;
+        try {
+            writeFully(buffer, offset);
+            mChannel.force(false);
+        } catch (IOException e) {
+            // Don't leave a torn record for the next one to follow.
+            try {
+                mChannel.truncate(offset);
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+        mEnd = offset + buffer.limit();
+        return offset;
+    }
+
+    /**
+     * Read the payload of the record at an offset, checking its CRC.
+     */
+    private byte[] readRecord(long offset) throws MmsException {
+        try {
+            ByteBuffer header = readFully(offset, RECORD_HEADER_SIZE);
+            int length = header.getInt();
+            int crc = header.getInt();
+            byte[] record = readFully(offset + RECORD_HEADER_SIZE, length).array();
+            if (crc(record) != crc) {
+                throw new MmsException("Corrupt record at " + offset);
+            }
+            return record;
+        } catch (IOException e) {
+            throw new MmsException("Failed to read the record at " + offset, e);
+        }
+    }
+
+    /**
+     * Get the offset of the parts in a message record, after its headers.
+     */
+    private static int getPartsStart(byte[] record) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(record);
+        DataInputStream in = new DataInputStream(bytes);
+        in.skipBytes(RECORD_PREFIX_SIZE);
+        PduHeaders.readFrom(in);
+        return record.length - bytes.available();
+    }
+
+    private static void writeRecordPrefix(DataOutputStream out, int type, long msgId,
+            int msgBox) throws IOException {
+        out.writeByte(type);
+        out.writeLong(msgId);
+        out.writeInt(msgBox);
+    }
+
+    /**
+     * Write the data of the parts to blobs, then their headers and the
+     * digests of their data to a record.
+     */
+    private void writeParts(DataOutputStream out, PduBody body) throws IOException {
+        int partsNum = (body == null) ? 0 : body.getPartsNum();
+        out.writeInt(partsNum);
+        for (int i = 0; i < partsNum; i++) {
+            PduPart part = body.getPart(i);
+            out.writeInt(part.getCharset());
+            writeBytes(out, part.getContentType());
+            writeBytes(out, part.getContentId());
+            writeBytes(out, part.getContentLocation());
+            writeBytes(out, part.getContentDisposition());
+            writeBytes(out, part.getContentTransferEncoding());
+            writeBytes(out, part.getName());
+            writeBytes(out, part.getFilename());
+
+            if (part.hasPendingData()) {
+                // Data still to be loaded from its Uri is streamed instead.
+                InputStream in = part.getDataStream();
+                if (null == in) {
+                    throw new IOException("The data of part " + i + " can't be read");
+                }
+                try {
+                    writeBlob(in, out);
+                } finally {
+                    in.close();
+                }
+                continue;
+            }
+            ByteBuffer data = part.getDataBuffer();
+            if (data != null) {
+                out.writeInt(data.remaining());
+                out.write(writeBlob(data));
+            } else if (part.getDataUri() != null) {
+                throw new IOException("The data of part " + i + " is not in memory");
+            } else {
+                out.writeInt(NO_DATA);
+            }
+        }
+    }
+
+    private PduPart readPart(DataInputStream in) throws IOException {
+        PduPart part = new PduPart();
+        int charset = in.readInt();
+        if (charset != 0) {
+            part.setCharset(charset);
+        }
+        byte[] value = readBytes(in);
+        if (value != null) {
+            part.setContentType(value);
+        }
+        value = readBytes(in);
+        if (value != null) {
+            part.setContentId(value);
+        }
+        value = readBytes(in);
+        if (value != null) {
+            part.setContentLocation(value);
+        }
+        value = readBytes(in);
+        if (value != null) {
+            part.setContentDisposition(value);
+        }
+        value = readBytes(in);
+        if (value != null) {
+            part.setContentTransferEncoding(value);
+        }
+        value = readBytes(in);
+        if (value != null) {
+            part.setName(value);
+        }
+        value = readBytes(in);
+        if (value != null) {
+            part.setFilename(value);
+        }
+
+        int length = in.readInt();
+        if (length != NO_DATA) {
+            byte[] digest = new byte[DIGEST_SIZE];
+            in.readFully(digest);
+            part.setData(readBlob(digest, length));
+        }
+        return part;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (null == bytes) {
+            out.writeInt(NO_DATA);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NO_DATA) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Corrupt part header");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Store data in the blob named after its digest, unless it is stored
+     * already.
+     *
+     * @return the digest of the data
+     */
+    private byte[] writeBlob(ByteBuffer data) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(data.duplicate());
+        byte[] hash = digest.digest();
+
+        File blob = getBlobFile(hash);
+        if (blob.exists()) {
+            return hash;
+        }
+        makeDirectory(blob.getParentFile());
+        File temporary = File.createTempFile(blob.getName(), null, mTemporary);
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                FileChannel channel = out.getChannel();
+                ByteBuffer buffer = data.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(blob) && !blob.exists()) {
+                throw new IOException("Failed to rename " + temporary + " to " + blob);
+            }
+        } finally {
+            temporary.delete();
+        }
+        return hash;
+    }
+
+    /**
+     * Store the data read from a stream like {@link #writeBlob(ByteBuffer)},
+     * without holding it in memory: it is written to a temporary file while
+     * its digest is computed, and the file is renamed after the digest.
+     * The length and the digest of the data are written to the record.
+     */
+    private void writeBlob(InputStream in, DataOutputStream record) throws IOException {
+        MessageDigest digest = newDigest();
+        long length = 0;
+        File temporary = File.createTempFile("blob", null, mTemporary);
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+                for (int len = 0; (len = in.read(buffer)) != -1; ) {
+                    digest.update(buffer, 0, len);
+                    out.write(buffer, 0, len);
+                    length += len;
+                }
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Part data of " + length + " octets is too large");
+            }
+            byte[] hash = digest.digest();
+            File blob = getBlobFile(hash);
+            if (!blob.exists()) {
+                makeDirectory(blob.getParentFile());
+                if (!temporary.renameTo(blob) && !blob.exists()) {
+                    throw new IOException("Failed to rename " + temporary + " to " + blob);
+                }
+            }
+            record.writeInt((int) length);
+            record.write(hash);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    private byte[] readBlob(byte[] digest, int length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getBlobFile(digest), "r");
+        try {
+            if (file.length() != length) {
+                throw new IOException("Corrupt blob " + toHex(digest));
+            }
+            byte[] data = new byte[length];
+            file.readFully(data);
+            return data;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Blobs are spread over directories named after the first octet of
+     * their digest, so that no directory gets too large.
+     */
+    private File getBlobFile(byte[] digest) {
+        String name = toHex(digest);
+        return new File(new File(mBlobs, name.substring(0, 2)), name.substring(2));
+    }
+
+    private Location getLocation(long msgId) throws MmsException {
+        Location location = mMessages.get(msgId);
+        if (null == location) {
+            throw new MmsException("No message " + msgId);
+        }
+        return location;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the index");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static PduBody getBody(GenericPdu pdu) {
+        if (pdu instanceof MultimediaMessagePdu) {
+            return ((MultimediaMessagePdu) pdu).getBody();
+        }
+        return null;
+    }
+
+    private static void checkMessageBox(int msgBox) throws MmsException {
+        if ((msgBox < MESSAGE_BOX_FIRST) || (msgBox > MESSAGE_BOX_LAST)) {
+            throw new MmsException("Bad message box: " + msgBox);
+        }
+    }
+
+    private static void makeDirectory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform has SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Where the last record of a message is, and the message box the
+     * message is filed in.
+     */
+    private static final class Location {
+        final long offset;
+        final int msgBox;
+
+        Location(long offset, int msgBox) {
+            this.offset = offset;
+            this.msgBox = msgBox;
+        }
+    }
+}
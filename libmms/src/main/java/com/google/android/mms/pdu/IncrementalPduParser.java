@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A parser which is fed a pdu as it arrives, rather than given all of it
+ * at once like {@link PduParser}. The headers are available as soon as
+ * they have arrived, and each part as soon as its data has, so that e.g.
+ * the SMIL and text parts can be shown while the attachments after them
+ * are still being received.
+ *
+ * The headers and the headers of each part are parsed by the grammar of
+ * {@link PduParser} once they are complete. They are buffered until then,
+ * up to a maximum size. Whether the headers are complete is told by
+ * scanning each octet once, as it arrives, for the end of the Content-Type
+ * header. The data of a part goes straight into the array which becomes
+ * the data of the part; the array grows as the data arrives, so that the
+ * length a part claims costs no memory before its data is received.
+ *
+ * <pre>
+ * IncrementalPduParser parser = new IncrementalPduParser(true);
+ * while (parser.needsMoreInput() &amp;&amp; channel.read(buffer) != -1) {
+ *     buffer.flip();
+ *     parser.feed(buffer);
+ *     buffer.compact();
+ *     for (PduPart part; (part = parser.pollPart()) != null; ) {
+ *         show(part);
+ *     }
+ * }
+ * parser.endOfInput();
+ * GenericPdu pdu = parser.getPdu();
+ * </pre>
+ *
+ * A parser is not thread safe.
+ */
+public class IncrementalPduParser {
+    private static final String LOG_TAG = "IncrementalPduParser";
+    private static final boolean LOCAL_LOGV = false;
+
+    /**
+     * Default maximum size of the headers, and of the headers of a part.
+     */
+    public static final int DEFAULT_MAX_HEADERS_SIZE = 64 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    private static final int INITIAL_PART_DATA_SIZE = 4096;
+
+    /**
+     * The maximum size of a uintvar is 32 bits, so it is encoded in no
+     * more than 5 octets.
+     */
+    private static final int UINTVAR_LENGTH_MAX = 5;
+
+    /**
+     * What the parser is waiting for.
+     */
+    private static final int STATE_HEADERS = 0;
+    private static final int STATE_PARTS_COUNT = 1;
+    private static final int STATE_PART_HEADERS_LENGTH = 2;
+    private static final int STATE_PART_DATA_LENGTH = 3;
+    private static final int STATE_PART_HEADERS = 4;
+    private static final int STATE_PART_DATA = 5;
+    private static final int STATE_DONE = 6;
+    private static final int STATE_FAILED = 7;
+
+    /**
+     * What the scan of the headers is in.
+     */
+    private static final int SCAN_FIELD = 0;
+    private static final int SCAN_VALUE = 1;
+    private static final int SCAN_TEXT = 2;
+    private static final int SCAN_LENGTH = 3;
+    private static final int SCAN_SKIP = 4;
+
+    private static final int TEXT_MIN = 32;
+    private static final int SHORT_LENGTH_MAX = 30;
+    private static final int LENGTH_QUOTE = 31;
+
+    private final int mMaxHeadersSize;
+
+    /**
+     * Reads the buffered headers for {@link #mParser}.
+     */
+    private final PaddedInputStream mStream = new PaddedInputStream();
+
+    /**
+     * Parses the headers and the parts, and orders the parts.
+     */
+    private final PduParser mParser;
+
+    private final ArrayDeque<PduPart> mParsedParts = new ArrayDeque<PduPart>();
+
+    private int mState = STATE_HEADERS;
+    private boolean mEndOfInput = false;
+
+    /**
+     * The headers, or the headers of the current part, received so far.
+     */
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mBufferLength = 0;
+
+    /**
+     * The scan of the headers: how far it went, what it is in, the header
+     * field it is in and the octets left of its value.
+     */
+    private int mScanPosition = 0;
+    private int mScanState = SCAN_FIELD;
+    private int mScanField = 0;
+    private int mScanCount = 0;
+
+    private GenericPdu mPdu = null;
+    private PduBody mBody = null;
+    private int mPartsLeft = 0;
+
+    /**
+     * The uintvar being received, and how many of its octets were.
+     */
+    private int mUintvar = 0;
+    private int mUintvarLength = 0;
+
+    /**
+     * The current part, its lengths and its data received so far.
+     */
+    private PduPart mPart = null;
+    private int mPartHeadersLength = 0;
+    private byte[] mPartData = null;
+    private int mPartDataLength = 0;
+    private int mPartDataPosition = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public IncrementalPduParser(boolean parseContentDisposition) {
+        this(parseContentDisposition, DEFAULT_MAX_HEADERS_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param maxHeadersSize maximum size of the headers, and of the headers of
+     *        a part; a pdu with larger headers fails to parse
+     */
+    public IncrementalPduParser(boolean parseContentDisposition, int maxHeadersSize) {
+        if (maxHeadersSize <= 0) {
+            throw new IllegalArgumentException("maxHeadersSize must be positive");
+        }
+        mParser = new PduParser(mStream, parseContentDisposition);
+        mMaxHeadersSize = maxHeadersSize;
+    }
+
+    /**
+     * Set whether base64 and quoted-printable part data is decoded when
+     * the part is parsed, or only the first time it is accessed.
+     *
+     * @see PduParser#setDecodePartsLazily(boolean)
+     */
+    public void setDecodePartsLazily(boolean lazily) {
+        mParser.setDecodePartsLazily(lazily);
+    }
+
+    /**
+     * Feed the next bytes of the pdu. The bytes between the position and
+     * the limit of the buffer are consumed, and the position is moved to
+     * the limit. Bytes after the end of the pdu are ignored.
+     *
+     * @param data the next bytes of the pdu
+     * @throws IllegalStateException if {@link #endOfInput()} was called
+     */
+    public void feed(ByteBuffer data) {
+        if (mEndOfInput) {
+            throw new IllegalStateException("Fed after the end of the input");
+        }
+        while (data.hasRemaining() && needsMoreInput()) {
+            if (mState == STATE_HEADERS) {
+                int length = Math.min(data.remaining(), mMaxHeadersSize - mBufferLength);
+                ensureCapacity(mBufferLength + length);
+                data.get(mBuffer, mBufferLength, length);
+                mBufferLength += length;
+                if (scanHeaders()) {
+                    parseHeaders();
+                } else if (mBufferLength >= mMaxHeadersSize) {
+                    fail("Headers larger than " + mMaxHeadersSize);
+                }
+            } else {
+                parseBody(data);
+            }
+        }
+        if (!needsMoreInput()) {
+            data.position(data.limit());
+        }
+    }
+
+    /**
+     * Tell the parser that all of the pdu was fed. The headers of pdus
+     * without a body, such as an M-Notification.ind, only end with the
+     * input. A pdu whose body was not fed completely fails to parse.
+     */
+    public void endOfInput() {
+        mEndOfInput = true;
+        if (mState == STATE_HEADERS) {
+            parseHeaders();
+        }
+        if (needsMoreInput()) {
+            fail("Truncated pdu");
+        }
+    }
+
+    /**
+     * @return true while the pdu is neither parsed nor failed to parse
+     */
+    public boolean needsMoreInput() {
+        return (mState != STATE_DONE) && (mState != STATE_FAILED);
+    }
+
+    /**
+     * @return true if the pdu was parsed completely
+     */
+    public boolean isDone() {
+        return mState == STATE_DONE;
+    }
+
+    /**
+     * @return true if the pdu failed to parse, like {@link PduParser#parse()}
+     *         returning null
+     */
+    public boolean hasFailed() {
+        return mState == STATE_FAILED;
+    }
+
+    /**
+     * Get the pdu. It is available once its headers were parsed; its body is
+     * set once all of its parts were, in the order {@link PduParser#parse()}
+     * gives them.
+     *
+     * @return the pdu, or null if its headers were not parsed yet or it
+     *         failed to parse
+     */
+    public GenericPdu getPdu() {
+        return (mState == STATE_FAILED) ? null : mPdu;
+    }
+
+    /**
+     * Get the next part which was parsed. Parts are returned in the order
+     * they are in the pdu.
+     *
+     * @return the part, or null if no part was parsed since the last call
+     */
+    public PduPart pollPart() {
+        return mParsedParts.poll();
+    }
+
+    /**
+     * Parse the buffered headers, if they are complete.
+     */
+    private void parseHeaders() {
+        mStream.setData(mBuffer, mBufferLength);
+        GenericPdu pdu = null;
+        boolean failed = false;
+        try {
+            pdu = mParser.parseHeadersOnly();
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+
+        // The headers of a pdu with a body end with its Content-Type, the
+        // headers of other pdus with the pdu.
+        boolean complete = !mStream.hasUnderflowed() && (mEndOfInput
+                || (mStream.available() > 0) || hasContentType(pdu));
+        if (!complete) {
+            if (mEndOfInput) {
+                fail("Truncated headers");
+            } else if (mBufferLength >= mMaxHeadersSize) {
+                fail("Headers larger than " + mMaxHeadersSize);
+            }
+            return;
+        }
+        if (failed || (null == pdu)) {
+            fail("Bad headers");
+            return;
+        }
+
+        mPdu = pdu;
+        if (!(pdu instanceof MultimediaMessagePdu)) {
+            mState = STATE_DONE;
+            return;
+        }
+        int bodyOffset = mParser.getBodyOffset();
+        ByteBuffer body = ByteBuffer.wrap(
+                Arrays.copyOfRange(mBuffer, bodyOffset, mBufferLength));
+        mBufferLength = 0;
+        mBody = new PduBody();
+        mState = STATE_PARTS_COUNT;
+        parseBody(body);
+    }
+
+    /**
+     * Scan the headers received since the last scan, with the generic
+     * encoding of WSP header values, for the end of a Content-Type header.
+     *
+     * @return true if the headers may be complete and are to be parsed
+     */
+    private boolean scanHeaders() {
+        while (mScanPosition < mBufferLength) {
+            if (mScanState == SCAN_SKIP) {
+                int length = Math.min(mScanCount, mBufferLength - mScanPosition);
+                mScanPosition += length;
+                mScanCount -= length;
+                if ((mScanCount == 0) && endScannedHeader()) {
+                    return true;
+                }
+                continue;
+            }
+
+            int octet = mBuffer[mScanPosition++] & 0xFF;
+            switch (mScanState) {
+                case SCAN_FIELD:
+                    // A well known field has a value; an application header
+                    // is a text string. Other octets are skipped.
+                    mScanField = octet;
+                    if (octet > 0x7F) {
+                        mScanState = SCAN_VALUE;
+                    } else if (octet >= TEXT_MIN) {
+                        mScanState = SCAN_TEXT;
+                    }
+                    break;
+                case SCAN_VALUE:
+                    if (octet > 0x7F) {
+                        if (endScannedHeader()) {
+                            return true;
+                        }
+                    } else if (octet <= SHORT_LENGTH_MAX) {
+                        mScanCount = octet;
+                        mScanState = SCAN_SKIP;
+                    } else if (octet == LENGTH_QUOTE) {
+                        mScanCount = 0;
+                        mUintvarLength = 0;
+                        mScanState = SCAN_LENGTH;
+                    } else {
+                        mScanState = SCAN_TEXT;
+                    }
+                    break;
+                case SCAN_TEXT:
+                    if ((octet == 0) && endScannedHeader()) {
+                        return true;
+                    }
+                    break;
+                case SCAN_LENGTH:
+                    mScanCount = (mScanCount << 7) | (octet & 0x7F);
+                    mUintvarLength++;
+                    if ((octet & 0x80) == 0) {
+                        mUintvarLength = 0;
+                        if (mScanCount < 0) {
+                            // Leave it to the parser to reject.
+                            return true;
+                        }
+                        mScanState = SCAN_SKIP;
+                    } else if (mUintvarLength == UINTVAR_LENGTH_MAX) {
+                        mUintvarLength = 0;
+                        return true;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected scan state " + mScanState);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * End the header being scanned.
+     *
+     * @return true if it is the Content-Type, which ends the headers
+     */
+    private boolean endScannedHeader() {
+        mScanState = SCAN_FIELD;
+        return mScanField == PduHeaders.CONTENT_TYPE;
+    }
+
+    private static boolean hasContentType(GenericPdu pdu) {
+        return (pdu != null)
+                && (pdu.getPduHeaders().getTextString(PduHeaders.CONTENT_TYPE) != null);
+    }
+
+    /**
+     * Parse as much of the body as there is in the data.
+     */
+    private void parseBody(ByteBuffer data) {
+        while (data.hasRemaining() && needsMoreInput()) {
+            switch (mState) {
+                case STATE_PARTS_COUNT: {
+                    int count = parseUintvar(data);
+                    if (count >= 0) {
+                        mPartsLeft = count;
+                        nextPart();
+                    }
+                    break;
+                }
+                case STATE_PART_HEADERS_LENGTH: {
+                    int length = parseUintvar(data);
+                    if (length >= 0) {
+                        mPartHeadersLength = length;
+                        mState = STATE_PART_DATA_LENGTH;
+                    }
+                    break;
+                }
+                case STATE_PART_DATA_LENGTH: {
+                    int length = parseUintvar(data);
+                    if (length >= 0) {
+                        mPartDataLength = length;
+                        if ((mPartHeadersLength == 0)
+                                || (mPartHeadersLength > mMaxHeadersSize)) {
+                            fail("Bad length of part headers: " + mPartHeadersLength);
+                        } else {
+                            ensureCapacity(mPartHeadersLength);
+                            mState = STATE_PART_HEADERS;
+                        }
+                    }
+                    break;
+                }
+                case STATE_PART_HEADERS: {
+                    int length = Math.min(data.remaining(), mPartHeadersLength - mBufferLength);
+                    data.get(mBuffer, mBufferLength, length);
+                    mBufferLength += length;
+                    if (mBufferLength == mPartHeadersLength) {
+                        parsePartHeaders();
+                    }
+                    break;
+                }
+                case STATE_PART_DATA: {
+                    int length = Math.min(data.remaining(),
+                            mPartDataLength - mPartDataPosition);
+                    if (mPartDataPosition + length > mPartData.length) {
+                        mPartData = Arrays.copyOf(mPartData, (int) Math.min(mPartDataLength,
+                                Math.max(mPartDataPosition + length, 2L * mPartData.length)));
+                    }
+                    data.get(mPartData, mPartDataPosition, length);
+                    mPartDataPosition += length;
+                    if (mPartDataPosition == mPartDataLength) {
+                        endPart();
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unexpected state " + mState);
+            }
+        }
+    }
+
+    private void parsePartHeaders() {
+        mBufferLength = 0;
+        try {
+            mPart = mParser.parsePart(
+                    new ByteBufferInputStream(ByteBuffer.wrap(mBuffer, 0, mPartHeadersLength)),
+                    mPartHeadersLength);
+        } catch (RuntimeException e) {
+            mPart = null;
+        }
+        if (null == mPart) {
+            fail("Bad part headers");
+        } else if (mPartDataLength == 0) {
+            endPart();
+        } else {
+            mPartData = new byte[Math.min(mPartDataLength, INITIAL_PART_DATA_SIZE)];
+            mPartDataPosition = 0;
+            mState = STATE_PART_DATA;
+        }
+    }
+
+    private void endPart() {
+        PduPart part = mPart;
+        if (mPartDataLength > 0) {
+            part = mParser.setPartData(part, mPartData, null);
+            if (null == part) {
+                fail("Bad part data");
+                return;
+            }
+        }
+        mPart = null;
+        mPartData = null;
+        mParser.addPart(mBody, part);
+        mParsedParts.add(part);
+        mPartsLeft--;
+        nextPart();
+    }
+
+    private void nextPart() {
+        if (mPartsLeft > 0) {
+            mState = STATE_PART_HEADERS_LENGTH;
+            return;
+        }
+        ((MultimediaMessagePdu) mPdu).setBody(mBody);
+        mState = STATE_DONE;
+    }
+
+    /**
+     * Parse a uintvar, which may arrive in several pieces.
+     *
+     * @return the value, or -1 if more octets are needed or it is too large
+     */
+    private int parseUintvar(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            int octet = data.get() & 0xFF;
+            mUintvar = (mUintvar << 7) | (octet & 0x7F);
+            mUintvarLength++;
+            if ((octet & 0x80) == 0) {
+                int value = mUintvar;
+                mUintvar = 0;
+                mUintvarLength = 0;
+                if (value < 0) {
+                    fail("Uintvar too large");
+                }
+                return value;
+            }
+            if (mUintvarLength == UINTVAR_LENGTH_MAX) {
+                fail("Uintvar too long");
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer,
+                    Math.min(Math.max(capacity, mBuffer.length * 2), mMaxHeadersSize));
+        }
+    }
+
+    private void fail(String reason) {
+        if (LOCAL_LOGV) {
+            Log.v(LOG_TAG, reason);
+        }
+        mState = STATE_FAILED;
+        mBuffer = null;
+        mPartData = null;
+        mParsedParts.clear();
+    }
+
+    /**
+     * A stream over the headers received so far, which reads zeros past
+     * their end and remembers that it did. The grammar of PduParser reads
+     * to the end of the stream without checking for it, and treats a -1
+     * like any other octet; zeros end the loops and strings of the grammar
+     * without it going astray, and the result is thrown away anyway.
+     */
+    private static final class PaddedInputStream extends ByteArrayInputStream {
+        private boolean mUnderflowed = false;
+
+        PaddedInputStream() {
+            super(new byte[0]);
+        }
+
+        void setData(byte[] data, int length) {
+            buf = data;
+            count = length;
+            pos = 0;
+            mark = 0;
+            mUnderflowed = false;
+        }
+
+        boolean hasUnderflowed() {
+            return mUnderflowed;
+        }
+
+        @Override
+        public int read() {
+            if (pos < count) {
+                return buf[pos++] & 0xFF;
+            }
+            pos++;
+            mUnderflowed = true;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if ((off < 0) || (len < 0) || (len > b.length - off)) {
+                throw new IndexOutOfBoundsException();
+            }
+            int available = Math.max(0, Math.min(len, count - pos));
+            if (available > 0) {
+                System.arraycopy(buf, pos, b, off, available);
+            }
+            if (available < len) {
+                Arrays.fill(b, off + available, off + len, (byte) 0);
+                mUnderflowed = true;
+            }
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0) {
+                return 0;
+            }
+            if (n > count - pos) {
+                mUnderflowed = true;
+            }
+            pos += (int) Math.min(n, Integer.MAX_VALUE - pos);
+            return n;
+        }
+    }
+}
@@ -17,56 +17,76 @@
 
 package com.google.android.mms.pdu;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Vector;
 
+/**
+ * The parts of a multipart pdu.
+ *
+ * The parts are kept in an array; most bodies are only walked by index.
+ * The maps of the parts by Content-ID, Content-Location, name and filename
+ * are built on the first getPartBy* call after the parts change. When
+ * parts have the same key, the map has the last of them.
+ *
+ * A body is not synchronized; it may be read from several threads once
+ * it isn't changed anymore.
+ */
 public class PduBody {
-    private Vector<PduPart> mParts = null;
+    private static final int INITIAL_CAPACITY = 4;
+
+    private PduPart[] mParts = new PduPart[INITIAL_CAPACITY];
+    private int mPartsNum = 0;
 
-    private Map<String, PduPart> mPartMapByContentId = null;
-    private Map<String, PduPart> mPartMapByContentLocation = null;
-    private Map<String, PduPart> mPartMapByName = null;
-    private Map<String, PduPart> mPartMapByFileName = null;
+    /**
+     * The maps of the parts, null until they are looked up.
+     */
+    private volatile PartMaps mPartMaps = null;
 
     /**
      * Constructor.
      */
     public PduBody() {
-        mParts = new Vector<PduPart>();
-
-        mPartMapByContentId = new HashMap<String, PduPart>();
-        mPartMapByContentLocation  = new HashMap<String, PduPart>();
-        mPartMapByName = new HashMap<String, PduPart>();
-        mPartMapByFileName = new HashMap<String, PduPart>();
     }
 
-    private void putPartToMaps(PduPart part) {
-        // Put part to mPartMapByContentId.
-        byte[] contentId = part.getContentId();
-        if(null != contentId) {
-            mPartMapByContentId.put(new String(contentId), part);
+    /**
+     * The maps of the parts by their keys, built at once.
+     */
+    private static final class PartMaps {
+        final Map<String, PduPart> byContentId = new HashMap<String, PduPart>();
+        final Map<String, PduPart> byContentLocation = new HashMap<String, PduPart>();
+        final Map<String, PduPart> byName = new HashMap<String, PduPart>();
+        final Map<String, PduPart> byFileName = new HashMap<String, PduPart>();
+
+        PartMaps(PduPart[] parts, int count) {
+            for (int i = 0; i < count; i++) {
+                PduPart part = parts[i];
+                put(byContentId, part.getContentId(), part);
+                put(byContentLocation, part.getContentLocation(), part);
+                put(byName, part.getName(), part);
+                put(byFileName, part.getFilename(), part);
+            }
         }
 
-        // Put part to mPartMapByContentLocation.
-        byte[] contentLocation = part.getContentLocation();
-        if(null != contentLocation) {
-            String clc = new String(contentLocation);
-            mPartMapByContentLocation.put(clc, part);
+        private static void put(Map<String, PduPart> map, byte[] key, PduPart part) {
+            if (null != key) {
+                map.put(new String(key), part);
+            }
         }
+    }
 
-        // Put part to mPartMapByName.
-        byte[] name = part.getName();
-        if(null != name) {
-            String clc = new String(name);
-            mPartMapByName.put(clc, part);
+    private PartMaps getPartMaps() {
+        PartMaps maps = mPartMaps;
+        if (null == maps) {
+            maps = new PartMaps(mParts, mPartsNum);
+            mPartMaps = maps;
         }
+        return maps;
+    }
 
-        // Put part to mPartMapByFileName.
-        byte[] fileName = part.getFilename();
-        if(null != fileName) {
-            String clc = new String(fileName);
-            mPartMapByFileName.put(clc, part);
+    private void checkIndex(int index, int size) {
+        if ((index < 0) || (index >= size)) {
+            throw new ArrayIndexOutOfBoundsException(index);
         }
     }
 
@@ -82,8 +102,8 @@ public class PduBody {
             throw new NullPointerException();
         }
 
-        putPartToMaps(part);
-        return mParts.add(part);
+        addPartAt(mPartsNum, part);
+        return true;
     }
 
     /**
@@ -98,8 +118,18 @@ public class PduBody {
             throw new NullPointerException();
         }
 
-        putPartToMaps(part);
-        mParts.add(index, part);
+        checkIndex(index, mPartsNum + 1);
+        addPartAt(index, part);
+    }
+
+    private void addPartAt(int index, PduPart part) {
+        if (mPartsNum == mParts.length) {
+            mParts = Arrays.copyOf(mParts, mPartsNum * 2);
+        }
+        System.arraycopy(mParts, index, mParts, index + 1, mPartsNum - index);
+        mParts[index] = part;
+        mPartsNum++;
+        mPartMaps = null;
     }
 
     /**
@@ -109,14 +139,22 @@ public class PduBody {
      * @return part at the specified index
      */
     public PduPart removePart(int index) {
-        return mParts.remove(index);
+        checkIndex(index, mPartsNum);
+        PduPart part = mParts[index];
+        mPartsNum--;
+        System.arraycopy(mParts, index + 1, mParts, index, mPartsNum - index);
+        mParts[mPartsNum] = null;
+        mPartMaps = null;
+        return part;
     }
 
     /**
      * Remove all of the parts.
      */
     public void removeAll() {
-        mParts.clear();
+        Arrays.fill(mParts, 0, mPartsNum, null);
+        mPartsNum = 0;
+        mPartMaps = null;
     }
 
     /**
@@ -126,7 +164,8 @@ public class PduBody {
      * @return part at the specified index
      */
     public PduPart getPart(int index) {
-        return mParts.get(index);
+        checkIndex(index, mPartsNum);
+        return mParts[index];
     }
 
     /**
@@ -136,7 +175,14 @@ public class PduBody {
      * @return index the index of the first occurrence of the part in this body
      */
     public int getPartIndex(PduPart part) {
-        return mParts.indexOf(part);
+        if (null != part) {
+            for (int i = 0; i < mPartsNum; i++) {
+                if (part.equals(mParts[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
     }
 
     /**
@@ -145,7 +191,7 @@ public class PduBody {
      * @return the number of parts
      */
     public int getPartsNum() {
-        return mParts.size();
+        return mPartsNum;
     }
 
     /**
@@ -155,7 +201,7 @@ public class PduBody {
      * @return the pdu part.
      */
     public PduPart getPartByContentId(String cid) {
-        return mPartMapByContentId.get(cid);
+        return getPartMaps().byContentId.get(cid);
     }
 
     /**
@@ -166,7 +212,7 @@ public class PduBody {
      * @return the pdu part.
      */
     public PduPart getPartByContentLocation(String contentLocation) {
-        return mPartMapByContentLocation.get(contentLocation);
+        return getPartMaps().byContentLocation.get(contentLocation);
     }
 
     /**
@@ -176,7 +222,7 @@ public class PduBody {
      * @return the pdu part.
      */
     public PduPart getPartByName(String name) {
-        return mPartMapByName.get(name);
+        return getPartMaps().byName.get(name);
     }
 
     /**
@@ -186,6 +232,6 @@ public class PduBody {
      * @return the pdu part.
      */
     public PduPart getPartByFileName(String filename) {
-        return mPartMapByFileName.get(filename);
+        return getPartMaps().byFileName.get(filename);
     }
 }
@@ -19,15 +19,21 @@ package com.google.android.mms.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import android.util.Log;
 import android.text.TextUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
-import java.util.HashMap;
 
 public class PduComposer {
     /**
@@ -72,21 +78,48 @@ public class PduComposer {
      */
     static private final int QUOTED_STRING_FLAG = 34;
     static private final int END_STRING_FLAG = 0;
-    static private final int LENGTH_QUOTE = 31;
     static private final int TEXT_MAX = 127;
-    static private final int SHORT_INTEGER_MAX = 127;
-    static private final int LONG_INTEGER_LENGTH_MAX = 8;
 
     /**
      * Block size when read data from InputStream.
      */
     static private final int PDU_COMPOSER_BLOCK_SIZE = 1024;
 
+    /**
+     * Buffer size when writing the message to an OutputStream.
+     */
+    static private final int PDU_COMPOSER_OUTPUT_BUFFER_SIZE = 8 * 1024;
+
     /**
      * The output message.
+     *
+     * @deprecated The message is no longer composed into this stream, which
+     *             stays null: it is composed into an array of its exact
+     *             size, or written to the stream given to
+     *             {@link #make(OutputStream)}. Subclasses write to either
+     *             through {@link #append} and {@link #arraycopy}.
      */
+    @Deprecated
     protected ByteArrayOutputStream mMessage = null;
 
+    /**
+     * The output message when it is composed into an array, sized by the
+     * sizing pass. Null while sizing or writing to mOutput.
+     */
+    private byte[] mArray = null;
+
+    /**
+     * Where the message is written to in the emit pass, unless it is
+     * composed into mArray.
+     */
+    private OutputStream mOutput = null;
+
+    /**
+     * Whether this is the sizing pass, which only counts the bytes of
+     * the message and records the lengths of its length-prefixed blocks.
+     */
+    private boolean mSizing = false;
+
     /**
      * The PDU.
      */
@@ -98,33 +131,43 @@ public class PduComposer {
     protected int mPosition = 0;
 
     /**
-     * Message compose buffer stack.
+     * Lengths of the length-prefixed blocks recorded in the sizing pass,
+     * in the order the blocks start.
      */
-    private BufferStack mStack = null;
+    private int[] mLengths = new int[16];
+    private int mLengthCount = 0;
 
     /**
-     * Content resolver.
+     * Index of the next length to be used in the emit pass.
      */
-    private final ContentResolver mResolver;
+    private int mNextLength = 0;
 
     /**
-     * Header of this pdu.
+     * Stack of the blocks being composed.
      */
-    private PduHeaders mPduHeader = null;
+    private int[] mBlocks = new int[8];
+    private int mBlockDepth = 0;
 
     /**
-     * Map of all content type
+     * Block buffer used to copy part data.
      */
-    private static HashMap<String, Integer> mContentTypeMap = null;
+    private byte[] mBlock = null;
 
-    static {
-        mContentTypeMap = new HashMap<String, Integer>();
+    /**
+     * WSP integers are encoded here when the message isn't composed into
+     * an array.
+     */
+    private final byte[] mScratch = new byte[WspEncoder.MAX_INTEGER_SIZE];
 
-        int i;
-        for (i = 0; i < PduContentTypes.contentTypes.length; i++) {
-            mContentTypeMap.put(PduContentTypes.contentTypes[i], i);
-        }
-    }
+    /**
+     * Content resolver.
+     */
+    private final ContentResolver mResolver;
+
+    /**
+     * Header of this pdu.
+     */
+    private PduHeaders mPduHeader = null;
 
     /**
      * Constructor.
@@ -136,8 +179,6 @@ public class PduComposer {
         mPdu = pdu;
         mResolver = context.getContentResolver();
         mPduHeader = pdu.getPduHeaders();
-        mStack = new BufferStack();
-        mMessage = new ByteArrayOutputStream();
         mPosition = 0;
     }
 
@@ -149,43 +190,139 @@ public class PduComposer {
      *         the PDU is invalid.
      */
     public byte[] make() {
+        int size = measure();
+        if (size < 0) {
+            return null;
+        }
+
+        // Every byte is written once, straight into its place.
+        byte[] message = new byte[size];
+        mArray = message;
+        try {
+            if (!emit(null) || (mPosition != size)) {
+                return null;
+            }
+        } finally {
+            mArray = null;
+        }
+        return message;
+    }
+
+    /**
+     * Make the message and write it to a stream. The message is composed in
+     * two passes: a sizing pass computes the length of every length-prefixed
+     * value, then an emit pass writes the message straight to the stream.
+     * Part data is never held in memory as a whole, so messages with large
+     * attachments can be written with bounded memory. Data at a part's
+     * data Uri is only read in the emit pass when the length of its file
+     * is known, and once in each pass otherwise.
+     *
+     * @param out the stream to write the message to. It is flushed but
+     *        not closed.
+     * @return true if the message was written, false if the PDU is invalid.
+     *         The stream may hold a partial message then.
+     * @throws IOException if writing to the stream fails
+     */
+    public boolean make(OutputStream out) throws IOException {
+        if (measure() < 0) {
+            return false;
+        }
+
+        BufferedOutputStream buffered =
+                new BufferedOutputStream(out, PDU_COMPOSER_OUTPUT_BUFFER_SIZE);
+        try {
+            if (!emit(buffered)) {
+                return false;
+            }
+        } catch (OutputException e) {
+            throw e.getCause();
+        }
+        buffered.flush();
+        return true;
+    }
+
+    /**
+     * Make the message and write it to a channel.
+     *
+     * @param channel the channel to write the message to. It is not closed.
+     * @return true if the message was written, false if the PDU is invalid.
+     * @throws IOException if writing to the channel fails
+     * @see #make(OutputStream)
+     */
+    public boolean make(WritableByteChannel channel) throws IOException {
+        return make(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Run the sizing pass.
+     *
+     * @return the size of the message, -1 if the PDU is invalid.
+     */
+    private int measure() {
+        mSizing = true;
+        mOutput = null;
+        mLengthCount = 0;
+        boolean composed = compose();
+        mSizing = false;
+        return composed ? mPosition : -1;
+    }
+
+    /**
+     * Run the emit pass, using the lengths recorded by the sizing pass.
+     *
+     * @param out the stream to write the message to
+     * @return true if the message was written, false if the PDU is invalid.
+     */
+    private boolean emit(OutputStream out) {
+        mOutput = out;
+        mNextLength = 0;
+        try {
+            return compose();
+        } finally {
+            mOutput = null;
+        }
+    }
+
+    /**
+     * Compose the message in the current pass.
+     *
+     * @return true if success, false if the PDU is invalid.
+     */
+    private boolean compose() {
+        mPosition = 0;
+        mBlockDepth = 0;
+
         // Get Message-type.
         int type = mPdu.getMessageType();
 
         /* make the message */
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
-                if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeSendReqPdu() == PDU_COMPOSE_SUCCESS;
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeNotifyResp() == PDU_COMPOSE_SUCCESS;
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeAckInd() == PDU_COMPOSE_SUCCESS;
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeReadRecInd() == PDU_COMPOSE_SUCCESS;
             default:
-                return null;
+                return false;
         }
-
-        return mMessage.toByteArray();
     }
 
     /**
      *  Copy buf to mMessage.
      */
     protected void arraycopy(byte[] buf, int pos, int length) {
-        mMessage.write(buf, pos, length);
+        if (mArray != null) {
+            System.arraycopy(buf, pos, mArray, mPosition, length);
+        } else if (!mSizing) {
+            try {
+                mOutput.write(buf, pos, length);
+            } catch (IOException e) {
+                throw new OutputException(e);
+            }
+        }
         mPosition = mPosition + length;
     }
 
@@ -193,10 +330,198 @@ public class PduComposer {
      * Append a byte to mMessage.
      */
     protected void append(int value) {
-        mMessage.write(value);
+        if (mArray != null) {
+            mArray[mPosition] = (byte) value;
+        } else if (!mSizing) {
+            try {
+                mOutput.write(value);
+            } catch (IOException e) {
+                throw new OutputException(e);
+            }
+        }
         mPosition ++;
     }
 
+    /**
+     * Append the remaining bytes of a buffer to mMessage.
+     */
+    private void appendBuffer(ByteBuffer buffer) {
+        if (mSizing) {
+            mPosition += buffer.remaining();
+            return;
+        }
+        if (mArray != null) {
+            int len = buffer.remaining();
+            // Data which grew since the sizing pass isn't copied, the
+            // caller fails on its length.
+            if (len <= mArray.length - mPosition) {
+                buffer.get(mArray, mPosition, len);
+            }
+            mPosition += len;
+            return;
+        }
+
+        if (mBlock == null) {
+            mBlock = new byte[PDU_COMPOSER_BLOCK_SIZE];
+        }
+        while (buffer.hasRemaining()) {
+            int len = Math.min(buffer.remaining(), mBlock.length);
+            buffer.get(mBlock, 0, len);
+            arraycopy(mBlock, 0, len);
+        }
+    }
+
+    /**
+     * Append the bytes read from a stream to mMessage. When the message is
+     * composed into an array the data is read straight into it, up to the
+     * data length recorded for the current part.
+     *
+     * @return the number of bytes read, which differs from the recorded
+     *         length if the data changed since the sizing pass.
+     */
+    private int appendStream(InputStream in) throws IOException {
+        int count = 0;
+        int len;
+        if (mArray != null) {
+            int dataLength = mBlocks[mBlockDepth - 1];
+            while ((count < dataLength)
+                    && ((len = in.read(mArray, mPosition, dataLength - count)) != -1)) {
+                mPosition += len;
+                count += len;
+            }
+            if ((count == dataLength) && (in.read() != -1)) {
+                // There is more data than there is room for.
+                count++;
+            }
+            return count;
+        }
+
+        if (mBlock == null) {
+            mBlock = new byte[PDU_COMPOSER_BLOCK_SIZE];
+        }
+        while ((len = in.read(mBlock)) != -1) {
+            arraycopy(mBlock, 0, len);
+            count += len;
+        }
+        return count;
+    }
+
+    /**
+     * Start a block which is preceded by its Value-length.
+     * In the sizing pass the length of the block is recorded when it ends,
+     * in the emit pass the recorded length is appended here.
+     */
+    private void startValueLength() {
+        if (mSizing) {
+            pushBlock(reserveLengths(1));
+            pushBlock(mPosition);
+        } else {
+            int length = nextLength();
+            appendValueLength(length);
+            pushBlock(mPosition + length);
+        }
+    }
+
+    /**
+     * End the block started by {@link #startValueLength()}.
+     */
+    private void endValueLength() {
+        if (mSizing) {
+            int length = mPosition - popBlock();
+            int index = popBlock();
+            mLengths[index] = length;
+            // The Value-length itself precedes the block.
+            mPosition += WspEncoder.valueLengthSize(length);
+        } else if (popBlock() != mPosition) {
+            throw new RuntimeException("BUG: Length sanity check failed");
+        }
+    }
+
+    /**
+     * Start a multipart entry, which is preceded by the uintvar lengths of
+     * its headers and of its data.
+     */
+    private void startPart() {
+        if (mSizing) {
+            pushBlock(reserveLengths(2));
+            pushBlock(mPosition);
+        } else {
+            int headersLength = nextLength();
+            int dataLength = nextLength();
+            appendUintvarInteger(headersLength);
+            appendUintvarInteger(dataLength);
+            pushBlock(dataLength);
+        }
+    }
+
+    /**
+     * Mark the end of the headers and the start of the data of the
+     * multipart entry started by {@link #startPart()}.
+     */
+    private void startPartData() {
+        if (mSizing) {
+            int headersLength = mPosition - popBlock();
+            mLengths[mBlocks[mBlockDepth - 1]] = headersLength;
+            pushBlock(mPosition);
+        }
+    }
+
+    /**
+     * End the multipart entry started by {@link #startPart()}.
+     *
+     * @return the length of the data of the entry
+     */
+    private int endPart() {
+        if (mSizing) {
+            int dataLength = mPosition - popBlock();
+            int index = popBlock();
+            mLengths[index + 1] = dataLength;
+            // The lengths precede the entry.
+            mPosition += WspEncoder.uintvarSize(mLengths[index])
+                    + WspEncoder.uintvarSize(dataLength);
+            return dataLength;
+        } else {
+            // The caller checks the data length, which may differ from
+            // the recorded one if the data changed since the sizing pass.
+            return popBlock();
+        }
+    }
+
+    private void pushBlock(int value) {
+        if (mBlockDepth == mBlocks.length) {
+            mBlocks = Arrays.copyOf(mBlocks, mBlockDepth * 2);
+        }
+        mBlocks[mBlockDepth++] = value;
+    }
+
+    private int popBlock() {
+        return mBlocks[--mBlockDepth];
+    }
+
+    /**
+     * Reserve room for lengths to be recorded in the sizing pass.
+     *
+     * @return index of the first reserved length
+     */
+    private int reserveLengths(int count) {
+        if (mLengthCount + count > mLengths.length) {
+            mLengths = Arrays.copyOf(mLengths, (mLengthCount + count) * 2);
+        }
+        int index = mLengthCount;
+        mLengthCount += count;
+        return index;
+    }
+
+    /**
+     * Get the next length recorded in the sizing pass.
+     */
+    private int nextLength() {
+        if (mNextLength >= mLengthCount) {
+            throw new RuntimeException("BUG: Lengths out of sync");
+        }
+        return mLengths[mNextLength++];
+    }
+
     /**
      * Append short integer value to mMessage.
      * This implementation doesn't check the validity of parameter, since it
@@ -254,24 +579,12 @@ public class PduComposer {
          * ; most significant octet encoded first (big-endian representation).
          * ; The minimum number of octets must be used to encode the value.
          */
-        int size;
-        long temp = longInt;
-
-        // Count the length of the long integer.
-        for(size = 0; (temp != 0) && (size < LONG_INTEGER_LENGTH_MAX); size++) {
-            temp = (temp >>> 8);
-        }
-
-        // Set Length.
-        appendShortLength(size);
-
-        // Count and set the long integer.
-        int i;
-        int shift = (size -1) * 8;
-
-        for (i = 0; i < size; i++) {
-            append((int)((longInt >>> shift) & 0xff));
-            shift = shift - 8;
+        if (mArray != null) {
+            mPosition = WspEncoder.writeLongInteger(mArray, mPosition, longInt);
+        } else if (mSizing) {
+            mPosition += WspEncoder.longIntegerSize(longInt);
+        } else {
+            arraycopy(mScratch, 0, WspEncoder.writeLongInteger(mScratch, 0, longInt));
         }
     }
 
@@ -288,12 +601,17 @@ public class PduComposer {
          * ; a Quote character must precede it. Otherwise the Quote character
          * ;must be omitted. The Quote is not part of the contents.
          */
-        if (((text[0])&0xff) > TEXT_MAX) { // No need to check for <= 255
-            append(TEXT_MAX);
+        if (mArray != null) {
+            mPosition = WspEncoder.writeTextString(mArray, mPosition, text);
+        } else if (mSizing) {
+            mPosition += WspEncoder.textStringSize(text);
+        } else {
+            if (WspEncoder.isQuoteNeeded(text)) {
+                append(TEXT_MAX);
+            }
+            arraycopy(text, 0, text.length);
+            append(0);
         }
-
-        arraycopy(text, 0, text.length);
-        append(0);
     }
 
     /**
@@ -335,16 +653,12 @@ public class PduComposer {
          * never be 0. It will always be composed as
          * Encoded-string-value = Value-length Char-set Text-string
          */
-        mStack.newbuf();
-        PositionMarker start = mStack.mark();
+        startValueLength();
 
         appendShortInteger(charset);
         appendTextString(textString);
 
-        int len = start.getLength();
-        mStack.pop();
-        appendValueLength(len);
-        mStack.copy();
+        endValueLength();
     }
 
     /**
@@ -361,27 +675,13 @@ public class PduComposer {
          * ending up in the last octet. All octets MUST set the Continue bit to 1
          * except the last octet, which MUST set the Continue bit to 0.
          */
-        int i;
-        long max = SHORT_INTEGER_MAX;
-
-        for (i = 0; i < 5; i++) {
-            if (value < max) {
-                break;
-            }
-
-            max = (max << 7) | 0x7fl;
-        }
-
-        while(i > 0) {
-            long temp = value >>> (i * 7);
-            temp = temp & 0x7f;
-
-            append((int)((temp | 0x80) & 0xff));
-
-            i--;
+        if (mArray != null) {
+            mPosition = WspEncoder.writeUintvar(mArray, mPosition, value);
+        } else if (mSizing) {
+            mPosition += WspEncoder.uintvarSize(value);
+        } else {
+            arraycopy(mScratch, 0, WspEncoder.writeUintvar(mScratch, 0, value));
         }
-
-        append((int)(value & 0x7f));
     }
 
     /**
@@ -411,13 +711,13 @@ public class PduComposer {
          * Length-quote = <Octet 31>
          * Length = Uintvar-integer
          */
-        if (value < LENGTH_QUOTE) {
-            appendShortLength((int) value);
-            return;
+        if (mArray != null) {
+            mPosition = WspEncoder.writeValueLength(mArray, mPosition, value);
+        } else if (mSizing) {
+            mPosition += WspEncoder.valueLengthSize(value);
+        } else {
+            arraycopy(mScratch, 0, WspEncoder.writeValueLength(mScratch, 0, value));
         }
-
-        append(LENGTH_QUOTE);
-        appendUintvarInteger(value);
     }
 
     /**
@@ -432,9 +732,13 @@ public class PduComposer {
          * ;The TEXT encodes an RFC2616 Quoted-string with the enclosing
          * ;quotation-marks <"> removed.
          */
-        append(QUOTED_STRING_FLAG);
-        arraycopy(text, 0, text.length);
-        append(END_STRING_FLAG);
+        if (mArray != null) {
+            mPosition = WspEncoder.writeQuotedString(mArray, mPosition, text);
+        } else {
+            append(QUOTED_STRING_FLAG);
+            arraycopy(text, 0, text.length);
+            append(END_STRING_FLAG);
+        }
     }
 
     /**
@@ -538,23 +842,19 @@ public class PduComposer {
                     // Insert-address-token = <Octet 129>
                     append(PduHeaders.FROM_INSERT_ADDRESS_TOKEN);
                 } else {
-                    mStack.newbuf();
-                    PositionMarker fstart = mStack.mark();
-
-                    // Address-present-token = <Octet 128>
-                    append(PduHeaders.FROM_ADDRESS_PRESENT_TOKEN);
-
                     temp = appendAddressType(from);
                     if (temp == null) {
                         return PDU_COMPOSE_CONTENT_ERROR;
                     }
 
+                    startValueLength();
+
+                    // Address-present-token = <Octet 128>
+                    append(PduHeaders.FROM_ADDRESS_PRESENT_TOKEN);
+
                     appendEncodedString(temp);
 
-                    int flen = fstart.getLength();
-                    mStack.pop();
-                    appendValueLength(flen);
-                    mStack.copy();
+                    endValueLength();
                 }
                 break;
 
@@ -626,16 +926,12 @@ public class PduComposer {
 
                 appendOctet(field);
 
-                mStack.newbuf();
-                PositionMarker expiryStart = mStack.mark();
+                startValueLength();
 
                 append(PduHeaders.VALUE_RELATIVE_TOKEN);
                 appendLongInteger(expiry);
 
-                int expiryLength = expiryStart.getLength();
-                mStack.pop();
-                appendValueLength(expiryLength);
-                mStack.copy();
+                endValueLength();
                 break;
 
             default:
@@ -649,11 +945,6 @@ public class PduComposer {
      * Make ReadRec.Ind.
      */
     private int makeReadRecInd() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         // X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_READ_REC_IND);
@@ -697,11 +988,6 @@ public class PduComposer {
      * Make NotifyResp.Ind.
      */
     private int makeNotifyResp() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         //    X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND);
@@ -729,11 +1015,6 @@ public class PduComposer {
      * Make Acknowledge.Ind.
      */
     private int makeAckInd() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         //    X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND);
@@ -758,11 +1039,6 @@ public class PduComposer {
      * Make Send.req.
      */
     private int makeSendReqPdu() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         // X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_SEND_REQ);
@@ -843,30 +1119,27 @@ public class PduComposer {
      */
     private int makeMessageBody() {
         // 1. add body informations
-        mStack.newbuf();  // Switching buffer because we need to
-
-        PositionMarker ctStart = mStack.mark();
-
         // This contentTypeIdentifier should be used for type of attachment...
-        String contentType = new String(mPduHeader.getTextString(PduHeaders.CONTENT_TYPE));
-        Integer contentTypeIdentifier = mContentTypeMap.get(contentType);
-        if (contentTypeIdentifier == null) {
+        int contentTypeIdentifier = ContentTypeTable.getNumber(
+                mPduHeader.getTextString(PduHeaders.CONTENT_TYPE));
+        if (contentTypeIdentifier < 0) {
             // content type is mandatory
             return PDU_COMPOSE_CONTENT_ERROR;
         }
 
-        appendShortInteger(contentTypeIdentifier.intValue());
-
         // content-type parameter: start
         PduBody body = ((SendReq) mPdu).getBody();
         if (null == body || body.getPartsNum() == 0) {
             // empty message
+            appendShortInteger(contentTypeIdentifier);
             appendUintvarInteger(0);
-            mStack.pop();
-            mStack.copy();
             return PDU_COMPOSE_SUCCESS;
         }
 
+        startValueLength();
+
+        appendShortInteger(contentTypeIdentifier);
+
         PduPart part;
         try {
             part = body.getPart(0);
@@ -889,21 +1162,13 @@ public class PduComposer {
             e.printStackTrace();
         }
 
-        int ctLength = ctStart.getLength();
-        mStack.pop();
-        appendValueLength(ctLength);
-        mStack.copy();
+        endValueLength();
 
         // 3. add content
         int partNum = body.getPartsNum();
         appendUintvarInteger(partNum);
         for (int i = 0; i < partNum; i++) {
             part = body.getPart(i);
-            mStack.newbuf();  // Leaving space for header lengh and data length
-            PositionMarker attachment = mStack.mark();
-
-            mStack.newbuf();  // Leaving space for Content-Type length
-            PositionMarker contentTypeBegin = mStack.mark();
 
             byte[] partContentType = part.getContentType();
 
@@ -912,15 +1177,6 @@ public class PduComposer {
                 return PDU_COMPOSE_CONTENT_ERROR;
             }
 
-            // content-type value
-            Integer partContentTypeIdentifier =
-                mContentTypeMap.get(new String(partContentType));
-            if (partContentTypeIdentifier == null) {
-                appendTextString(partContentType);
-            } else {
-                appendShortInteger(partContentTypeIdentifier.intValue());
-            }
-
             /* Content-type parameter : name.
              * The value of name, filename, content-location is the same.
              * Just one of them is enough for this PDU.
@@ -941,6 +1197,18 @@ public class PduComposer {
                     }
                 }
             }
+
+            startPart();  // Leaving space for header lengh and data length
+            startValueLength();  // Leaving space for Content-Type length
+
+            // content-type value
+            int partContentTypeIdentifier = ContentTypeTable.getNumber(partContentType);
+            if (partContentTypeIdentifier < 0) {
+                appendTextString(partContentType);
+            } else {
+                appendShortInteger(partContentTypeIdentifier);
+            }
+
             appendOctet(PduPart.P_DEP_NAME);
             appendTextString(name);
 
@@ -951,10 +1219,7 @@ public class PduComposer {
                 appendShortInteger(charset);
             }
 
-            int contentTypeLength = contentTypeBegin.getLength();
-            mStack.pop();
-            appendValueLength(contentTypeLength);
-            mStack.copy();
+            endValueLength();
 
             // content id
             byte[] contentId = part.getContentId();
@@ -976,29 +1241,42 @@ public class PduComposer {
             }
 
             // content
-            int headerLength = attachment.getLength();
+            startPartData();
 
             int dataLength = 0; // Just for safety...
-            byte[] partData = part.getData();
+            // Data still to be loaded from its Uri is streamed instead.
+            // Data at a Uri is sized by the length of its file when that
+            // is known, so that it's only read in the emit pass.
+            boolean pending = part.hasPendingData();
+            ByteBuffer partData = pending ? null : part.getDataBuffer();
+            long knownLength = -1;
+            if (mSizing && (partData == null)) {
+                knownLength = pending ? part.getPendingDataLength()
+                        : getDataLength(part.getDataUri());
+            }
 
-            if (partData != null) {
-                arraycopy(partData, 0, partData.length);
-                dataLength = partData.length;
+            if ((knownLength >= 0) && (knownLength <= Integer.MAX_VALUE)) {
+                dataLength = (int) knownLength;
+                mPosition += dataLength;
+            } else if (partData != null) {
+                dataLength = partData.remaining();
+                appendBuffer(partData);
             } else {
                 InputStream cr = null;
                 try {
-                    byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
-                    cr = mResolver.openInputStream(part.getDataUri());
-                    int len = 0;
-                    while ((len = cr.read(buffer)) != -1) {
-                        mMessage.write(buffer, 0, len);
-                        mPosition += len;
-                        dataLength += len;
+                    cr = pending ? part.getDataStream()
+                            : mResolver.openInputStream(part.getDataUri());
+                    if (cr == null) {
+                        return PDU_COMPOSE_CONTENT_ERROR;
                     }
+                    dataLength = appendStream(cr);
                 } catch (FileNotFoundException e) {
                     return PDU_COMPOSE_CONTENT_ERROR;
                 } catch (IOException e) {
                     return PDU_COMPOSE_CONTENT_ERROR;
+                } catch (OutputException e) {
+                    // Writing the message failed, not reading the data.
+                    throw e;
                 } catch (RuntimeException e) {
                     return PDU_COMPOSE_CONTENT_ERROR;
                 } finally {
@@ -1011,124 +1289,57 @@ public class PduComposer {
                 }
             }
 
-            if (dataLength != (attachment.getLength() - headerLength)) {
-                throw new RuntimeException("BUG: Length sanity check failed");
+            if (dataLength != endPart()) {
+                // The data changed between the sizing and the emit pass.
+                return PDU_COMPOSE_CONTENT_ERROR;
             }
-
-            mStack.pop();
-            appendUintvarInteger(headerLength);
-            appendUintvarInteger(dataLength);
-            mStack.copy();
         }
 
         return PDU_COMPOSE_SUCCESS;
     }
 
     /**
-     *  Record current message informations.
-     */
-    static private class LengthRecordNode {
-        ByteArrayOutputStream currentMessage = null;
-        public int currentPosition = 0;
-
-        public LengthRecordNode next = null;
-    }
-
-    /**
-     * Mark current message position and stact size.
+     * Get the length of the data at a Uri without reading it.
+     *
+     * @return the length, -1 if it isn't known
      */
-    private class PositionMarker {
-        private int c_pos;   // Current position
-        private int currentStackSize;  // Current stack size
-
-        int getLength() {
-            // If these assert fails, likely that you are finding the
-            // size of buffer that is deep in BufferStack you can only
-            // find the length of the buffer that is on top
-            if (currentStackSize != mStack.stackSize) {
-                throw new RuntimeException("BUG: Invalid call to getLength()");
+    private long getDataLength(Uri uri) {
+        if (null == uri) {
+            return -1;
+        }
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mResolver.openAssetFileDescriptor(uri, "r");
+            // UNKNOWN_LENGTH is -1 too.
+            return (null == afd) ? -1 : afd.getLength();
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (RuntimeException e) {
+            return -1;
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                }
             }
-
-            return mPosition - c_pos;
         }
     }
 
     /**
-     * This implementation can be OPTIMIZED to use only
-     * 2 buffers. This optimization involves changing BufferStack
-     * only... Its usage (interface) will not change.
+     * Thrown when writing to the output stream fails, to be unwrapped
+     * by {@link #make(OutputStream)}.
      */
-    private class BufferStack {
-        private LengthRecordNode stack = null;
-        private LengthRecordNode toCopy = null;
-
-        int stackSize = 0;
-
-        /**
-         *  Create a new message buffer and push it into the stack.
-         */
-        void newbuf() {
-            // You can't create a new buff when toCopy != null
-            // That is after calling pop() and before calling copy()
-            // If you do, it is a bug
-            if (toCopy != null) {
-                throw new RuntimeException("BUG: Invalid newbuf() before copy()");
-            }
-
-            LengthRecordNode temp = new LengthRecordNode();
-
-            temp.currentMessage = mMessage;
-            temp.currentPosition = mPosition;
+    static private class OutputException extends RuntimeException {
+        private static final long serialVersionUID = 99384914025294161L;
 
-            temp.next = stack;
-            stack = temp;
-
-            stackSize = stackSize + 1;
-
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
+        OutputException(IOException cause) {
+            super(cause);
         }
 
-        /**
-         *  Pop the message before and record current message in the stack.
-         */
-        void pop() {
-            ByteArrayOutputStream currentMessage = mMessage;
-            int currentPosition = mPosition;
-
-            mMessage = stack.currentMessage;
-            mPosition = stack.currentPosition;
-
-            toCopy = stack;
-            // Re using the top element of the stack to avoid memory allocation
-
-            stack = stack.next;
-            stackSize = stackSize - 1;
-
-            toCopy.currentMessage = currentMessage;
-            toCopy.currentPosition = currentPosition;
-        }
-
-        /**
-         *  Append current message to the message before.
-         */
-        void copy() {
-            arraycopy(toCopy.currentMessage.toByteArray(), 0,
-                    toCopy.currentPosition);
-
-            toCopy = null;
-        }
-
-        /**
-         *  Mark current message position
-         */
-        PositionMarker mark() {
-            PositionMarker m = new PositionMarker();
-
-            m.c_pos = mPosition;
-            m.currentStackSize = stackSize;
-
-            return m;
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
         }
     }
 
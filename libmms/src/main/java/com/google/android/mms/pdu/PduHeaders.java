@@ -19,8 +19,10 @@ package com.google.android.mms.pdu;
 
 import com.google.android.mms.InvalidHeaderValueException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 public class PduHeaders {
     /**
@@ -320,15 +322,140 @@ public class PduHeaders {
     public static final int STORE_STATUS_ERROR_END                              = 0xFF;
 
     /**
-     * The map contains the value of all headers.
+     * Header fields are single octets between FIRST_FIELD and LAST_FIELD.
      */
-    private HashMap<Integer, Object> mHeaderMap = null;
+    private static final int FIRST_FIELD = 0x80;
+    private static final int LAST_FIELD = 0xBF;
+
+    /**
+     * Kinds of header values, each kept in an array of its own.
+     */
+    private static final int KIND_OCTET = 1;
+    private static final int KIND_LONG = 2;
+    private static final int KIND_OBJECT = 3;
+
+    /**
+     * Types of the object values written by {@link #writeTo(DataOutput)}
+     * and {@link #writeSnapshot(PduSnapshot.Output)}.
+     */
+    private static final int VALUE_TEXT_STRING = 0;
+    private static final int VALUE_ENCODED_STRING = 1;
+    private static final int VALUE_ENCODED_STRINGS = 2;
+
+    /**
+     * Headers by kind of value. Objects are TextStrings, EncodedStringValues
+     * and lists of EncodedStringValues.
+     */
+    private static final int[] OCTET_FIELDS = {
+        REPORT_ALLOWED, ADAPTATION_ALLOWED, DELIVERY_REPORT, DRM_CONTENT,
+        DISTRIBUTION_INDICATOR, QUOTAS, READ_REPORT, STORE, STORED, TOTALS,
+        SENDER_VISIBILITY, READ_STATUS, CANCEL_STATUS, PRIORITY, STATUS,
+        REPLY_CHARGING, MM_STATE, RECOMMENDED_RETRIEVAL_MODE, CONTENT_CLASS,
+        RETRIEVE_STATUS, STORE_STATUS, RESPONSE_STATUS, MMS_VERSION, MESSAGE_TYPE
+    };
+    private static final int[] LONG_FIELDS = {
+        DATE, REPLY_CHARGING_SIZE, MESSAGE_SIZE, MESSAGE_COUNT, START, LIMIT,
+        DELIVERY_TIME, EXPIRY, REPLY_CHARGING_DEADLINE, PREVIOUSLY_SENT_DATE
+    };
+    private static final int[] OBJECT_FIELDS = {
+        TRANSACTION_ID, REPLY_CHARGING_ID, AUX_APPLIC_ID, APPLIC_ID,
+        REPLY_APPLIC_ID, MESSAGE_ID, REPLACE_ID, CANCEL_ID, CONTENT_LOCATION,
+        MESSAGE_CLASS, CONTENT_TYPE, SUBJECT, RECOMMENDED_RETRIEVAL_MODE_TEXT,
+        RETRIEVE_TEXT, STATUS_TEXT, STORE_STATUS_TEXT, RESPONSE_TEXT, FROM,
+        PREVIOUSLY_SENT_BY, MM_FLAGS, BCC, CC, TO
+    };
+
+    /**
+     * Slot of every header, indexed by field - FIRST_FIELD: the kind of its
+     * value in the high byte and its index in the array of that kind in the
+     * low byte. 0 for fields which are not headers.
+     */
+    private static final short[] SLOTS = new short[LAST_FIELD - FIRST_FIELD + 1];
+
+    static {
+        addSlots(OCTET_FIELDS, KIND_OCTET);
+        addSlots(LONG_FIELDS, KIND_LONG);
+        addSlots(OBJECT_FIELDS, KIND_OBJECT);
+    }
+
+    private static void addSlots(int[] fields, int kind) {
+        for (int i = 0; i < fields.length; i++) {
+            SLOTS[fields[i] - FIRST_FIELD] = (short) ((kind << 8) | i);
+        }
+    }
+
+    /**
+     * The values of the headers, by kind.
+     */
+    private final int[] mOctets = new int[OCTET_FIELDS.length];
+    private final long[] mLongs = new long[LONG_FIELDS.length];
+    private final Object[] mObjects = new Object[OBJECT_FIELDS.length];
+
+    /**
+     * Bit field - FIRST_FIELD is set when the Octet or LongInteger header
+     * is set.
+     */
+    private long mPresent = 0;
 
     /**
      * Constructor of PduHeaders.
      */
     public PduHeaders() {
-        mHeaderMap = new HashMap<Integer, Object>();
+    }
+
+    /**
+     * Get the index of a header in the array of its kind.
+     *
+     * @param field the field
+     * @param kind the kind of value wanted
+     * @return the index, -1 if the field is not a header with
+     *          that kind of value.
+     */
+    private static int slotOf(int field, int kind) {
+        if ((field < FIRST_FIELD) || (field > LAST_FIELD)) {
+            return -1;
+        }
+        int slot = SLOTS[field - FIRST_FIELD];
+        if ((slot >> 8) != kind) {
+            return -1;
+        }
+        return slot & 0xFF;
+    }
+
+    /**
+     * Whether an Octet or LongInteger header is set.
+     */
+    private boolean isSet(int field) {
+        return (mPresent & (1L << (field - FIRST_FIELD))) != 0;
+    }
+
+    /**
+     * Mark an Octet or LongInteger header as set.
+     */
+    private void markSet(int field) {
+        mPresent |= 1L << (field - FIRST_FIELD);
+    }
+
+    /**
+     * Get the value of a TextString, EncodedStringValue or EncodedStringValue
+     * list header.
+     *
+     * @return the value, null if it is not set.
+     */
+    private Object getObject(int field) {
+        int slot = slotOf(field, KIND_OBJECT);
+        if (slot < 0) {
+            return null;
+        }
+        return mObjects[slot];
+    }
+
+    /**
+     * Set the value of a TextString, EncodedStringValue or EncodedStringValue
+     * list header. The field has already been checked by the caller.
+     */
+    private void putObject(int field, Object value) {
+        mObjects[slotOf(field, KIND_OBJECT)] = value;
     }
 
     /**
@@ -340,12 +467,12 @@ public class PduHeaders {
      *          the value is not set.
      */
     protected int getOctet(int field) {
-        Integer octet = (Integer) mHeaderMap.get(field);
-        if (null == octet) {
+        int slot = slotOf(field, KIND_OCTET);
+        if ((slot < 0) || !isSet(field)) {
             return 0;
         }
 
-        return octet;
+        return mOctets[slot];
     }
 
     /**
@@ -489,7 +616,8 @@ public class PduHeaders {
                 // This header value should not be Octect.
                 throw new RuntimeException("Invalid header field!");
         }
-        mHeaderMap.put(field, value);
+        mOctets[slotOf(field, KIND_OCTET)] = value;
+        markSet(field);
     }
 
     /**
@@ -500,7 +628,7 @@ public class PduHeaders {
      *          with specified header field
      */
     protected byte[] getTextString(int field) {
-        return (byte[]) mHeaderMap.get(field);
+        return (byte[]) getObject(field);
     }
 
     /**
@@ -538,7 +666,7 @@ public class PduHeaders {
                 // This header value should not be Text-String.
                 throw new RuntimeException("Invalid header field!");
         }
-        mHeaderMap.put(field, value);
+        putObject(field, value);
     }
 
     /**
@@ -549,7 +677,7 @@ public class PduHeaders {
      *          with specified header field
      */
     protected EncodedStringValue getEncodedStringValue(int field) {
-        return (EncodedStringValue) mHeaderMap.get(field);
+        return (EncodedStringValue) getObject(field);
     }
 
     /**
@@ -561,7 +689,7 @@ public class PduHeaders {
      */
     protected EncodedStringValue[] getEncodedStringValues(int field) {
         ArrayList<EncodedStringValue> list =
-                (ArrayList<EncodedStringValue>) mHeaderMap.get(field);
+                (ArrayList<EncodedStringValue>) getObject(field);
         if (null == list) {
             return null;
         }
@@ -603,7 +731,7 @@ public class PduHeaders {
                 throw new RuntimeException("Invalid header field!");
         }
 
-        mHeaderMap.put(field, value);
+        putObject(field, value);
     }
 
     /**
@@ -634,11 +762,11 @@ public class PduHeaders {
                 throw new RuntimeException("Invalid header field!");
         }
 
-        ArrayList<EncodedStringValue> list = new ArrayList<EncodedStringValue>();
+        ArrayList<EncodedStringValue> list = new ArrayList<EncodedStringValue>(value.length);
         for (int i = 0; i < value.length; i++) {
             list.add(value[i]);
         }
-        mHeaderMap.put(field, list);
+        putObject(field, list);
     }
 
     /**
@@ -664,12 +792,12 @@ public class PduHeaders {
         }
 
         ArrayList<EncodedStringValue> list =
-            (ArrayList<EncodedStringValue>) mHeaderMap.get(field);
+            (ArrayList<EncodedStringValue>) getObject(field);
         if (null == list) {
             list  = new ArrayList<EncodedStringValue>();
+            putObject(field, list);
         }
         list.add(value);
-        mHeaderMap.put(field, list);
     }
 
     /**
@@ -681,12 +809,12 @@ public class PduHeaders {
      *          field is not existed in pdu header.
      */
     protected long getLongInteger(int field) {
-        Long longInteger = (Long) mHeaderMap.get(field);
-        if (null == longInteger) {
+        int slot = slotOf(field, KIND_LONG);
+        if ((slot < 0) || !isSet(field)) {
             return -1;
         }
 
-        return longInteger.longValue();
+        return mLongs[slot];
     }
 
     /**
@@ -716,6 +844,237 @@ public class PduHeaders {
                 // This header value should not be LongInteger.
                 throw new RuntimeException("Invalid header field!");
         }
-        mHeaderMap.put(field, value);
+        mLongs[slotOf(field, KIND_LONG)] = value;
+        markSet(field);
+    }
+
+    /**
+     * Write the headers which are set, to be read back by
+     * {@link #readFrom(DataInput)}. Each header is written as its field
+     * octet and its value, and the headers end with a 0 octet.
+     *
+     * @param out the output
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutput out) throws IOException {
+        for (int field = FIRST_FIELD; field <= LAST_FIELD; field++) {
+            int slot = SLOTS[field - FIRST_FIELD];
+            int kind = slot >> 8;
+            int index = slot & 0xFF;
+            if ((kind == KIND_OCTET) && isSet(field)) {
+                out.writeByte(field);
+                out.writeByte(mOctets[index]);
+            } else if ((kind == KIND_LONG) && isSet(field)) {
+                out.writeByte(field);
+                out.writeLong(mLongs[index]);
+            } else if ((kind == KIND_OBJECT) && (mObjects[index] != null)) {
+                out.writeByte(field);
+                writeObject(out, mObjects[index]);
+            }
+        }
+        out.writeByte(0);
+    }
+
+    private static void writeObject(DataOutput out, Object value) throws IOException {
+        if (value instanceof byte[]) {
+            out.writeByte(VALUE_TEXT_STRING);
+            writeBytes(out, (byte[]) value);
+        } else if (value instanceof EncodedStringValue) {
+            out.writeByte(VALUE_ENCODED_STRING);
+            writeEncodedString(out, (EncodedStringValue) value);
+        } else {
+            ArrayList<?> list = (ArrayList<?>) value;
+            out.writeByte(VALUE_ENCODED_STRINGS);
+            out.writeInt(list.size());
+            for (Object v : list) {
+                writeEncodedString(out, (EncodedStringValue) v);
+            }
+        }
+    }
+
+    private static void writeEncodedString(DataOutput out, EncodedStringValue value)
+            throws IOException {
+        out.writeInt(value.getCharacterSet());
+        writeBytes(out, value.getTextString());
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read headers written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in the input
+     * @return the headers
+     * @throws IOException if reading fails or the headers are corrupt
+     */
+    static PduHeaders readFrom(DataInput in) throws IOException {
+        PduHeaders headers = new PduHeaders();
+        int field;
+        while ((field = in.readUnsignedByte()) != 0) {
+            if ((field < FIRST_FIELD) || (field > LAST_FIELD)) {
+                throw new IOException("Corrupt header field " + field);
+            }
+            int slot = SLOTS[field - FIRST_FIELD];
+            int kind = slot >> 8;
+            int index = slot & 0xFF;
+            if (kind == KIND_OCTET) {
+                headers.mOctets[index] = in.readUnsignedByte();
+                headers.markSet(field);
+            } else if (kind == KIND_LONG) {
+                headers.mLongs[index] = in.readLong();
+                headers.markSet(field);
+            } else if (kind == KIND_OBJECT) {
+                headers.mObjects[index] = readObject(in);
+            } else {
+                throw new IOException("Corrupt header field " + field);
+            }
+        }
+        return headers;
+    }
+
+    private static Object readObject(DataInput in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case VALUE_TEXT_STRING:
+                return readBytes(in);
+            case VALUE_ENCODED_STRING:
+                return readEncodedString(in);
+            case VALUE_ENCODED_STRINGS:
+                int count = in.readInt();
+                if (count < 0) {
+                    throw new IOException("Corrupt header value");
+                }
+                ArrayList<EncodedStringValue> list = new ArrayList<EncodedStringValue>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readEncodedString(in));
+                }
+                return list;
+            default:
+                throw new IOException("Corrupt header value type " + type);
+        }
+    }
+
+    private static EncodedStringValue readEncodedString(DataInput in) throws IOException {
+        int charset = in.readInt();
+        return new EncodedStringValue(charset, readBytes(in));
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt header value");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write the headers which are set to a {@link PduSnapshot}, like
+     * {@link #writeTo(DataOutput)} but with LongIntegers as WSP Long-integers
+     * and lengths and counts as Uintvar-integers.
+     *
+     * @param out the snapshot
+     */
+    void writeSnapshot(PduSnapshot.Output out) {
+        for (int field = FIRST_FIELD; field <= LAST_FIELD; field++) {
+            int slot = SLOTS[field - FIRST_FIELD];
+            int kind = slot >> 8;
+            int index = slot & 0xFF;
+            if ((kind == KIND_OCTET) && isSet(field)) {
+                out.writeOctet(field);
+                out.writeOctet(mOctets[index]);
+            } else if ((kind == KIND_LONG) && isSet(field)) {
+                out.writeOctet(field);
+                out.writeLongInteger(mLongs[index]);
+            } else if ((kind == KIND_OBJECT) && (mObjects[index] != null)) {
+                out.writeOctet(field);
+                writeSnapshotObject(out, mObjects[index]);
+            }
+        }
+        out.writeOctet(0);
+    }
+
+    private static void writeSnapshotObject(PduSnapshot.Output out, Object value) {
+        if (value instanceof byte[]) {
+            out.writeOctet(VALUE_TEXT_STRING);
+            out.writeBytes((byte[]) value);
+        } else if (value instanceof EncodedStringValue) {
+            out.writeOctet(VALUE_ENCODED_STRING);
+            writeSnapshotEncodedString(out, (EncodedStringValue) value);
+        } else {
+            ArrayList<?> list = (ArrayList<?>) value;
+            out.writeOctet(VALUE_ENCODED_STRINGS);
+            out.writeUintvar(list.size());
+            for (Object v : list) {
+                writeSnapshotEncodedString(out, (EncodedStringValue) v);
+            }
+        }
+    }
+
+    private static void writeSnapshotEncodedString(PduSnapshot.Output out,
+            EncodedStringValue value) {
+        out.writeUintvar(value.getCharacterSet());
+        out.writeBytes(value.getTextString());
+    }
+
+    /**
+     * Read headers written by {@link #writeSnapshot(PduSnapshot.Output)}.
+     *
+     * @param in the snapshot
+     * @return the headers
+     * @throws IOException if the snapshot is corrupt
+     */
+    static PduHeaders readSnapshot(PduSnapshot.Input in) throws IOException {
+        PduHeaders headers = new PduHeaders();
+        int field;
+        while ((field = in.readOctet()) != 0) {
+            if ((field < FIRST_FIELD) || (field > LAST_FIELD)) {
+                throw new IOException("Corrupt header field " + field);
+            }
+            int slot = SLOTS[field - FIRST_FIELD];
+            int kind = slot >> 8;
+            int index = slot & 0xFF;
+            if (kind == KIND_OCTET) {
+                headers.mOctets[index] = in.readOctet();
+                headers.markSet(field);
+            } else if (kind == KIND_LONG) {
+                headers.mLongs[index] = in.readLongInteger();
+                headers.markSet(field);
+            } else if (kind == KIND_OBJECT) {
+                headers.mObjects[index] = readSnapshotObject(in);
+            } else {
+                throw new IOException("Corrupt header field " + field);
+            }
+        }
+        return headers;
+    }
+
+    private static Object readSnapshotObject(PduSnapshot.Input in) throws IOException {
+        int type = in.readOctet();
+        switch (type) {
+            case VALUE_TEXT_STRING:
+                return in.readBytes();
+            case VALUE_ENCODED_STRING:
+                return readSnapshotEncodedString(in);
+            case VALUE_ENCODED_STRINGS:
+                int count = in.readLength();
+                ArrayList<EncodedStringValue> list = new ArrayList<EncodedStringValue>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readSnapshotEncodedString(in));
+                }
+                return list;
+            default:
+                throw new IOException("Corrupt header value type " + type);
+        }
+    }
+
+    private static EncodedStringValue readSnapshotEncodedString(PduSnapshot.Input in)
+            throws IOException {
+        int charset = in.readUintvar();
+        return new EncodedStringValue(charset, in.readBytes());
     }
 }
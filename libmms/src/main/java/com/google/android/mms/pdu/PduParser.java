@@ -23,11 +23,24 @@ import com.google.android.mms.ContentType;
 import com.google.android.mms.InvalidHeaderValueException;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.HashMap;
-
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parser of a single pdu. The parser keeps the state of the pdu being
+ * parsed, so an instance must not be shared between threads; separate
+ * instances can parse concurrently.
+ */
 public class PduParser {
     /**
      *  The next are WAP values defined in WSP specification.
@@ -43,9 +56,9 @@ public class PduParser {
     private static final int END_STRING_FLAG = 0x00;
     //The next two are used by the interface "parseWapString" to
     //distinguish Text-String and Quoted-String.
-    private static final int TYPE_TEXT_STRING = 0;
-    private static final int TYPE_QUOTED_STRING = 1;
-    private static final int TYPE_TOKEN_STRING = 2;
+    private static final int TYPE_TEXT_STRING = WspDecoder.TEXT_STRING;
+    private static final int TYPE_QUOTED_STRING = WspDecoder.QUOTED_STRING;
+    private static final int TYPE_TOKEN_STRING = WspDecoder.TOKEN_STRING;
 
     /**
      * Specify the part position.
@@ -68,15 +81,25 @@ public class PduParser {
      */
     private PduBody mBody = null;
 
+    /**
+     * The pdu built from the parsed headers.
+     */
+    private GenericPdu mPdu = null;
+
+    /**
+     * Offset of the message body in the pdu data.
+     */
+    private int mBodyOffset = -1;
+
     /**
      * Store the "type" parameter in "Content-Type" header field.
      */
-    private static byte[] mTypeParam = null;
+    private byte[] mTypeParam = null;
 
     /**
      * Store the "start" parameter in "Content-Type" header field.
      */
-    private static byte[] mStartParam = null;
+    private byte[] mStartParam = null;
 
     /**
      * The log tag.
@@ -85,11 +108,57 @@ public class PduParser {
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
+    /**
+     * Initial and largest kept size of the per-thread string buffer.
+     */
+    private static final int STRING_BUFFER_SIZE = 256;
+    private static final int STRING_BUFFER_MAX_SIZE = 4096;
+
+    /**
+     * Number of tasks per processor a batch of pdus is split into.
+     */
+    private static final int BATCH_RUNS_PER_PROCESSOR = 4;
+
+    /**
+     * Logs the pdus of a batch which throw while they are parsed.
+     */
+    private static final ParseFailureListener LOG_FAILURES = new ParseFailureListener() {
+        @Override
+        public void onParseFailed(int index, Throwable cause) {
+            if (cause != null) {
+                Log.w(LOG_TAG, "Failed to parse pdu " + index, cause);
+            }
+        }
+    };
+
+    /**
+     * Scratch buffer strings are read into, one per thread, so that
+     * parsers running in parallel don't allocate a buffer per string.
+     */
+    private static final ThreadLocal<byte[]> sStringBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[STRING_BUFFER_SIZE];
+        }
+    };
+
     /**
      * Whether to parse content-disposition part header
      */
     private final boolean mParseContentDisposition;
 
+    /**
+     * Whether to leave base64 and quoted-printable part data encoded until
+     * it is accessed.
+     */
+    private boolean mDecodePartsLazily = false;
+
+    /**
+     * Whether the data of binary parts is kept as slices of the pdu data
+     * rather than copied, which it is for pdus given as a ByteBuffer.
+     */
+    private final boolean mSliceData;
+
     /**
      * Constructor.
      *
@@ -97,8 +166,99 @@ public class PduParser {
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        mPduDataStream = new ByteBufferInputStream(ByteBuffer.wrap(pduDataStream));
         mParseContentDisposition = parseContentDisposition;
+        // The caller may reuse the array, so part data is copied out of it.
+        mSliceData = false;
+    }
+
+    /**
+     * Constructor. The bytes between the position and the limit of the
+     * buffer are parsed; the buffer may be a heap or a direct buffer and
+     * is never copied. The data of binary parts is exposed through
+     * {@link PduPart#getDataBuffer()} as read-only slices of this buffer,
+     * so it must not be modified while the parsed pdu is in use.
+     *
+     * @param pduData pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(ByteBuffer pduData, boolean parseContentDisposition) {
+        mPduDataStream = new ByteBufferInputStream(pduData);
+        mParseContentDisposition = parseContentDisposition;
+        mSliceData = true;
+    }
+
+    /**
+     * Constructor for parsers which supply the stream themselves, such as
+     * {@link IncrementalPduParser}.
+     *
+     * @param pduDataStream pdu data input stream
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    PduParser(ByteArrayInputStream pduDataStream, boolean parseContentDisposition) {
+        mPduDataStream = pduDataStream;
+        mParseContentDisposition = parseContentDisposition;
+        mSliceData = false;
+    }
+
+    /**
+     * Constructor. The whole content of the channel is memory-mapped and
+     * parsed in place, so the pdu never has to be read onto the heap. Part
+     * data stays in the mapping and is paged in only when it is accessed.
+     *
+     * @param pduChannel channel of the pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @throws IOException if the channel can not be mapped
+     */
+    public PduParser(FileChannel pduChannel, boolean parseContentDisposition)
+            throws IOException {
+        this(pduChannel.map(FileChannel.MapMode.READ_ONLY, 0, pduChannel.size()),
+                parseContentDisposition);
+    }
+
+    /**
+     * Constructor. The file is memory-mapped and parsed in place.
+     * The mapping stays valid after the file is closed or deleted.
+     *
+     * @param pduFile file holding the pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @throws IOException if the file can not be opened or mapped
+     * @see #PduParser(FileChannel, boolean)
+     */
+    public PduParser(File pduFile, boolean parseContentDisposition) throws IOException {
+        this(mapFile(pduFile), parseContentDisposition);
+    }
+
+    /**
+     * Memory-map a whole file read-only.
+     *
+     * @param file the file to be mapped
+     * @return the mapped content of the file
+     * @throws IOException if the file can not be opened or mapped
+     */
+    private static ByteBuffer mapFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Set whether base64 and quoted-printable part data is decoded while
+     * parsing, or only the first time it is accessed through
+     * {@link PduPart#getData()}, {@link PduPart#getDataBuffer()} or
+     * {@link PduPart#getDataStream()}. Parts which are never accessed are then
+     * never decoded. Note that with lazy decoding a part whose data can't be
+     * decoded does not fail the parse; it just has no data.
+     *
+     * @param lazily true to decode part data on first access,
+     *        false (the default) to decode it while parsing
+     */
+    public void setDecodePartsLazily(boolean lazily) {
+        mDecodePartsLazily = lazily;
     }
 
     /**
@@ -108,16 +268,150 @@ public class PduParser {
      *         null if parsing error happened or mandatory fields are not set.
      */
     public GenericPdu parse(){
+        GenericPdu pdu = parseHeadersOnly();
+        if (null == pdu) {
+            return null;
+        }
+
+        if (pdu instanceof MultimediaMessagePdu) {
+            /* need to parse the parts */
+            if (null == parseBody()) {
+                // Parse parts failed.
+                return null;
+            }
+        }
+
+        return pdu;
+    }
+
+    /**
+     * Told of the pdus of a batch parsed by
+     * {@link PduParser#parseAll(List, boolean, Executor, ParseFailureListener)}
+     * which fail to parse.
+     */
+    public interface ParseFailureListener {
+        /**
+         * Called on the thread the pdu was parsed on.
+         *
+         * @param index the index of the pdu in the batch
+         * @param cause what was thrown while parsing the pdu, or null if
+         *        {@link PduParser#parse()} returned null
+         */
+        void onParseFailed(int index, Throwable cause);
+    }
+
+    /**
+     * Parse a batch of pdus in parallel, like
+     * {@link #parseAll(List, boolean, Executor, ParseFailureListener)},
+     * logging the pdus which throw while they are parsed.
+     *
+     * @param pdus pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param executor executor to run the parsers on
+     * @return the parsed pdus, in the same order as the pdu data. An entry
+     *         is null if parsing error happened or mandatory fields are not
+     *         set in that pdu.
+     * @throws InterruptedException if interrupted while waiting for the parsers
+     */
+    public static List<GenericPdu> parseAll(List<byte[]> pdus,
+            boolean parseContentDisposition, Executor executor)
+            throws InterruptedException {
+        return parseAll(pdus, parseContentDisposition, executor, LOG_FAILURES);
+    }
+
+    /**
+     * Parse a batch of pdus in parallel. Each pdu is parsed by its own
+     * PduParser with {@link #parse()}, on the threads of the given executor,
+     * e.g. a ForkJoinPool or AsyncTask.THREAD_POOL_EXECUTOR. A pdu which
+     * fails to parse doesn't abort the batch; its result is null, and the
+     * listener is told why.
+     *
+     * An Error thrown while parsing a pdu is passed to the listener like an
+     * exception, and the rest of the batch is still parsed; the first one
+     * is then rethrown to the caller.
+     *
+     * @param pdus pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param executor executor to run the parsers on
+     * @param listener told of the pdus which fail to parse
+     * @return the parsed pdus, in the same order as the pdu data. An entry
+     *         is null if parsing error happened or mandatory fields are not
+     *         set in that pdu.
+     * @throws InterruptedException if interrupted while waiting for the parsers
+     */
+    public static List<GenericPdu> parseAll(final List<byte[]> pdus,
+            final boolean parseContentDisposition, Executor executor,
+            final ParseFailureListener listener) throws InterruptedException {
+        final int count = pdus.size();
+        final GenericPdu[] results = new GenericPdu[count];
+        if (count == 0) {
+            return Arrays.asList(results);
+        }
+
+        // Hand each task a run of pdus, rather than a single one, so that
+        // the tasks are not too small while every thread still gets some.
+        int runLength = Math.max(1,
+                count / (BATCH_RUNS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors()));
+        int runCount = (count + runLength - 1) / runLength;
+        final CountDownLatch done = new CountDownLatch(runCount);
+        final AtomicReference<Error> error = new AtomicReference<Error>();
+        for (int start = 0; start < count; start += runLength) {
+            final int first = start;
+            final int end = Math.min(count, start + runLength);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = first; i < end; i++) {
+                            try {
+                                results[i] = new PduParser(pdus.get(i),
+                                        parseContentDisposition).parse();
+                                if (null == results[i]) {
+                                    listener.onParseFailed(i, null);
+                                }
+                            } catch (RuntimeException e) {
+                                listener.onParseFailed(i, e);
+                            } catch (Error e) {
+                                error.compareAndSet(null, e);
+                                listener.onParseFailed(i, e);
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Parse the pdu headers only. The parts of a M-Send.req or a
+     * M-Retrieve.conf pdu are not parsed, so this costs as much as the size
+     * of the headers rather than the size of the whole pdu. The parts can
+     * be parsed later by {@link #parseBody()}, which resumes at the offset
+     * returned by {@link #getBodyOffset()}.
+     *
+     * @return the pdu structure, without its body, if parsing successfully.
+     *         null if parsing error happened or mandatory fields are not set.
+     */
+    public GenericPdu parseHeadersOnly() {
         if (mPduDataStream == null) {
             return null;
         }
 
         /* parse headers */
+        int pduLength = mPduDataStream.available();
         mHeaders = parseHeaders(mPduDataStream);
         if (null == mHeaders) {
             // Parse headers failed.
             return null;
         }
+        mBodyOffset = pduLength - mPduDataStream.available();
 
         /* get the message type */
         int messageType = mHeaders.getOctet(PduHeaders.MESSAGE_TYPE);
@@ -128,49 +422,37 @@ public class PduParser {
             return null;
         }
 
-        if ((PduHeaders.MESSAGE_TYPE_SEND_REQ == messageType) ||
-                (PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF == messageType)) {
-            /* need to parse the parts */
-            mBody = parseParts(mPduDataStream);
-            if (null == mBody) {
-                // Parse parts failed.
-                return null;
-            }
-        }
-
         switch (messageType) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
                 if (LOCAL_LOGV) {
                     Log.v(LOG_TAG, "parse: MESSAGE_TYPE_SEND_REQ");
                 }
-                SendReq sendReq = new SendReq(mHeaders, mBody);
-                return sendReq;
+                mPdu = new SendReq(mHeaders, null);
+                return mPdu;
             case PduHeaders.MESSAGE_TYPE_SEND_CONF:
                 if (LOCAL_LOGV) {
                     Log.v(LOG_TAG, "parse: MESSAGE_TYPE_SEND_CONF");
                 }
-                SendConf sendConf = new SendConf(mHeaders);
-                return sendConf;
+                mPdu = new SendConf(mHeaders);
+                return mPdu;
             case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
                 if (LOCAL_LOGV) {
                     Log.v(LOG_TAG, "parse: MESSAGE_TYPE_NOTIFICATION_IND");
                 }
-                NotificationInd notificationInd =
-                    new NotificationInd(mHeaders);
-                return notificationInd;
+                mPdu = new NotificationInd(mHeaders);
+                return mPdu;
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
                 if (LOCAL_LOGV) {
                     Log.v(LOG_TAG, "parse: MESSAGE_TYPE_NOTIFYRESP_IND");
                 }
-                NotifyRespInd notifyRespInd =
-                    new NotifyRespInd(mHeaders);
-                return notifyRespInd;
+                mPdu = new NotifyRespInd(mHeaders);
+                return mPdu;
             case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
                 if (LOCAL_LOGV) {
                     Log.v(LOG_TAG, "parse: MESSAGE_TYPE_RETRIEVE_CONF");
                 }
                 RetrieveConf retrieveConf =
-                    new RetrieveConf(mHeaders, mBody);
+                    new RetrieveConf(mHeaders, null);
 
                 byte[] contentType = retrieveConf.getContentType();
                 if (null == contentType) {
@@ -183,50 +465,74 @@ public class PduParser {
                     // The MMS content type must be "application/vnd.wap.multipart.mixed"
                     // or "application/vnd.wap.multipart.related"
                     // or "application/vnd.wap.multipart.alternative"
-                    return retrieveConf;
-                } else if (ctTypeStr.equals(ContentType.MULTIPART_ALTERNATIVE)) {
-                    // "application/vnd.wap.multipart.alternative"
-                    // should take only the first part.
-                    PduPart firstPart = mBody.getPart(0);
-                    mBody.removeAll();
-                    mBody.addPart(0, firstPart);
-                    return retrieveConf;
+                    mPdu = retrieveConf;
+                    return mPdu;
                 }
                 return null;
             case PduHeaders.MESSAGE_TYPE_DELIVERY_IND:
                 if (LOCAL_LOGV) {
                     Log.v(LOG_TAG, "parse: MESSAGE_TYPE_DELIVERY_IND");
                 }
-                DeliveryInd deliveryInd =
-                    new DeliveryInd(mHeaders);
-                return deliveryInd;
+                mPdu = new DeliveryInd(mHeaders);
+                return mPdu;
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
                 if (LOCAL_LOGV) {
                     Log.v(LOG_TAG, "parse: MESSAGE_TYPE_ACKNOWLEDGE_IND");
                 }
-                AcknowledgeInd acknowledgeInd =
-                    new AcknowledgeInd(mHeaders);
-                return acknowledgeInd;
+                mPdu = new AcknowledgeInd(mHeaders);
+                return mPdu;
             case PduHeaders.MESSAGE_TYPE_READ_ORIG_IND:
                 if (LOCAL_LOGV) {
                     Log.v(LOG_TAG, "parse: MESSAGE_TYPE_READ_ORIG_IND");
                 }
-                ReadOrigInd readOrigInd =
-                    new ReadOrigInd(mHeaders);
-                return readOrigInd;
+                mPdu = new ReadOrigInd(mHeaders);
+                return mPdu;
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
                 if (LOCAL_LOGV) {
                     Log.v(LOG_TAG, "parse: MESSAGE_TYPE_READ_REC_IND");
                 }
-                ReadRecInd readRecInd =
-                    new ReadRecInd(mHeaders);
-                return readRecInd;
+                mPdu = new ReadRecInd(mHeaders);
+                return mPdu;
             default:
                 log("Parser doesn't support this message type in this version!");
             return null;
         }
     }
 
+    /**
+     * Parse the parts of the pdu whose headers were parsed by
+     * {@link #parseHeadersOnly()}, and set them as the body of that pdu.
+     *
+     * @return the parts in PduBody structure if parsing successfully.
+     *         null if the headers were not parsed, the pdu has no body
+     *         or parsing error happened.
+     */
+    public PduBody parseBody() {
+        if (!(mPdu instanceof MultimediaMessagePdu)) {
+            return null;
+        }
+
+        if (null == mBody) {
+            mBody = parseParts(mPduDataStream);
+            if (null == mBody) {
+                // Parse parts failed.
+                return null;
+            }
+            ((MultimediaMessagePdu) mPdu).setBody(mBody);
+        }
+        return mBody;
+    }
+
+    /**
+     * Get the offset of the message body in the pdu data, which is where
+     * {@link #parseBody()} resumes parsing.
+     *
+     * @return the offset, or -1 if the headers were not parsed yet.
+     */
+    public int getBodyOffset() {
+        return mBodyOffset;
+    }
+
     /**
      * Parse pdu headers.
      *
@@ -843,102 +1149,168 @@ public class PduParser {
         for (int i = 0 ; i < count ; i++) {
             int headerLength = parseUnsignedInt(pduDataStream);
             int dataLength = parseUnsignedInt(pduDataStream);
-            PduPart part = new PduPart();
-            int startPos = pduDataStream.available();
-            if (startPos <= 0) {
-                // Invalid part.
+            PduPart part = parsePart(pduDataStream, headerLength);
+            if (null == part) {
                 return null;
             }
 
-            /* parse part's content-type */
-            HashMap<Integer, Object> map = new HashMap<Integer, Object>();
-            byte[] contentType = parseContentType(pduDataStream, map);
-            if (null != contentType) {
-                part.setContentType(contentType);
-            } else {
-                part.setContentType((PduContentTypes.contentTypes[0]).getBytes()); //"*/*"
+            /* get part's data */
+            if (dataLength > 0) {
+                byte[] partData = null;
+                ByteBuffer partBuffer = null;
+                if (mSliceData && (pduDataStream instanceof ByteBufferInputStream)) {
+                    // Keep a view of the source buffer rather than a copy.
+                    partBuffer = ((ByteBufferInputStream) pduDataStream).slice(dataLength);
+                } else {
+                    partData = new byte[dataLength];
+                    pduDataStream.read(partData, 0, dataLength);
+                }
+                part = setPartData(part, partData, partBuffer);
+                if (null == part) {
+                    return null;
+                }
             }
 
-            /* get name parameter */
-            byte[] name = (byte[]) map.get(PduPart.P_NAME);
-            if (null != name) {
-                part.setName(name);
-            }
+            addPart(body, part);
+        }
 
-            /* get charset parameter */
-            Integer charset = (Integer) map.get(PduPart.P_CHARSET);
-            if (null != charset) {
-                part.setCharset(charset);
-            }
+        return body;
+    }
 
-            /* parse part's headers */
-            int endPos = pduDataStream.available();
-            int partHeaderLen = headerLength - (startPos - endPos);
-            if (partHeaderLen > 0) {
-                if (false == parsePartHeaders(pduDataStream, part, partHeaderLen)) {
-                    // Parse part header faild.
-                    return null;
-                }
-            } else if (partHeaderLen < 0) {
-                // Invalid length of content-type.
+    /**
+     * Parse the content type and the headers of a part.
+     *
+     * @param pduDataStream pdu data input stream, at the content type of the part
+     * @param headerLength length of the content type and the headers
+     * @return the part, without its data, or null if parsing error happened
+     */
+    PduPart parsePart(ByteArrayInputStream pduDataStream, int headerLength) {
+        PduPart part = new PduPart();
+        int startPos = pduDataStream.available();
+        if (startPos <= 0) {
+            // Invalid part.
+            return null;
+        }
+
+        /* parse part's content-type */
+        HashMap<Integer, Object> map = new HashMap<Integer, Object>();
+        byte[] contentType = parseContentType(pduDataStream, map);
+        if (null != contentType) {
+            part.setContentType(contentType);
+        } else {
+            part.setContentType(ContentTypeTable.getBytes(0)); //"*/*"
+        }
+
+        /* get name parameter */
+        byte[] name = (byte[]) map.get(PduPart.P_NAME);
+        if (null != name) {
+            part.setName(name);
+        }
+
+        /* get charset parameter */
+        Integer charset = (Integer) map.get(PduPart.P_CHARSET);
+        if (null != charset) {
+            part.setCharset(charset);
+        }
+
+        /* parse part's headers */
+        int endPos = pduDataStream.available();
+        int partHeaderLen = headerLength - (startPos - endPos);
+        if (partHeaderLen > 0) {
+            if (false == parsePartHeaders(pduDataStream, part, partHeaderLen)) {
+                // Parse part header faild.
                 return null;
             }
+        } else if (partHeaderLen < 0) {
+            // Invalid length of content-type.
+            return null;
+        }
 
-            /* FIXME: check content-id, name, filename and content location,
-             * if not set anyone of them, generate a default content-location
-             */
-            if ((null == part.getContentLocation())
-                    && (null == part.getName())
-                    && (null == part.getFilename())
-                    && (null == part.getContentId())) {
-                part.setContentLocation(Long.toOctalString(
-                        System.currentTimeMillis()).getBytes());
-            }
+        /* FIXME: check content-id, name, filename and content location,
+         * if not set anyone of them, generate a default content-location
+         */
+        if ((null == part.getContentLocation())
+                && (null == part.getName())
+                && (null == part.getFilename())
+                && (null == part.getContentId())) {
+            part.setContentLocation(Long.toOctalString(
+                    System.currentTimeMillis()).getBytes());
+        }
+        return part;
+    }
 
-            /* get part's data */
-            if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
-                String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
-                if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
-                    // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
-                    // take the first part of children.
-                    part = childBody.getPart(0);
-                } else {
-                    // Check Content-Transfer-Encoding.
-                    byte[] partDataEncoding = part.getContentTransferEncoding();
-                    if (null != partDataEncoding) {
-                        String encoding = new String(partDataEncoding);
-                        if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
-                            // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
-                        } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
-                            // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
-                        } else {
-                            // "binary" is the default encoding.
-                        }
-                    }
-                    if (null == partData) {
-                        log("Decode part data error!");
-                        return null;
-                    }
-                    part.setData(partData);
-                }
-            }
+    /**
+     * Set the data of a part, decoding it as its Content-Transfer-Encoding
+     * says. The data of a "multipart/vnd.wap.multipart.alternative" part is
+     * parsed, and its first child replaces the part.
+     *
+     * @param part the part whose headers were parsed by {@link #parsePart}
+     * @param partData the data of the part, or null if it is in partBuffer
+     * @param partBuffer the data of the part, or null if it is in partData
+     * @return the part, or null if the data can not be decoded
+     */
+    PduPart setPartData(PduPart part, byte[] partData, ByteBuffer partBuffer) {
+        if (ContentTypeTable.equalsIgnoreCase(part.getContentType(),
+                ContentType.MULTIPART_ALTERNATIVE)) {
+            // parse "multipart/vnd.wap.multipart.alternative".
+            PduBody childBody = parseParts(new ByteBufferInputStream((null != partBuffer)
+                    ? partBuffer : ByteBuffer.wrap(partData)));
+            // take the first part of children.
+            return childBody.getPart(0);
+        }
 
-            /* add this part to body */
-            if (THE_FIRST_PART == checkPartPosition(part)) {
-                /* this is the first part */
-                body.addPart(0, part);
-            } else {
-                /* add the part to the end */
-                body.addPart(part);
+        // Check Content-Transfer-Encoding.
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        if ((null != partDataEncoding) && isEncoded(partDataEncoding)) {
+            if (mDecodePartsLazily) {
+                // Keep the data encoded until it is accessed.
+                part.setEncodedData((null != partBuffer)
+                        ? partBuffer : ByteBuffer.wrap(partData));
+                return part;
+            }
+            partData = (null != partBuffer)
+                    ? PduPart.decode(partBuffer, partDataEncoding)
+                    : PduPart.decode(partData, partDataEncoding);
+            partBuffer = null;
+            if (null == partData) {
+                log("Decode part data error!");
+                return null;
             }
         }
+        if (null != partBuffer) {
+            part.setDataBuffer(partBuffer);
+        } else if (null != partData) {
+            part.setData(partData);
+        }
+        return part;
+    }
 
-        return body;
+    /**
+     * Add a parsed part to a body: first if it is the root part the "start"
+     * or "type" parameter of the pdu's content type selects, last otherwise.
+     *
+     * @param body the body
+     * @param part the part
+     */
+    void addPart(PduBody body, PduPart part) {
+        if (THE_FIRST_PART == checkPartPosition(part)) {
+            /* this is the first part */
+            body.addPart(0, part);
+        } else {
+            /* add the part to the end */
+            body.addPart(part);
+        }
+    }
+
+    /**
+     * Check whether a Content-Transfer-Encoding needs decoding.
+     *
+     * @param encoding the Content-Transfer-Encoding value
+     * @return true for "base64" and "quoted-printable", false otherwise
+     */
+    private static boolean isEncoded(byte[] encoding) {
+        return ContentTypeTable.equalsIgnoreCase(encoding, PduPart.P_BASE64)
+                || ContentTypeTable.equalsIgnoreCase(encoding, PduPart.P_QUOTED_PRINTABLE);
     }
 
     /**
@@ -952,6 +1324,20 @@ public class PduParser {
         }
     }
 
+    /**
+     * Get the decoder behind a stream, to decode the WSP primitives straight
+     * from its buffer rather than an octet at a time through the stream.
+     *
+     * @param pduDataStream pdu data input stream
+     * @return the decoder, null if the stream is not backed by one
+     */
+    private static WspDecoder getDecoder(ByteArrayInputStream pduDataStream) {
+        if (pduDataStream instanceof ByteBufferInputStream) {
+            return ((ByteBufferInputStream) pduDataStream).getDecoder();
+        }
+        return null;
+    }
+
     /**
      * Parse unsigned integer.
      *
@@ -965,6 +1351,10 @@ public class PduParser {
          * So it will be encoded in no more than 5 octets.
          */
         assert(null != pduDataStream);
+        WspDecoder decoder = getDecoder(pduDataStream);
+        if (null != decoder) {
+            return decoder.readUintvar();
+        }
         int result = 0;
         int temp = pduDataStream.read();
         if (temp == -1) {
@@ -1002,6 +1392,10 @@ public class PduParser {
          * Uintvar-integer = 1*5 OCTET
          */
         assert(null != pduDataStream);
+        WspDecoder decoder = getDecoder(pduDataStream);
+        if (null != decoder) {
+            return decoder.readValueLength();
+        }
         int temp = pduDataStream.read();
         assert(-1 != temp);
         int first = temp & 0xFF;
@@ -1069,6 +1463,10 @@ public class PduParser {
     protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
+        WspDecoder decoder = getDecoder(pduDataStream);
+        if (null != decoder) {
+            return decoder.readString(stringType);
+        }
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Text-string = [Quote] *TEXT End-of-string
@@ -1130,32 +1528,7 @@ public class PduParser {
          * SP         = <US-ASCII SP, space (32)>
          * HT         = <US-ASCII HT, horizontal-tab (9)>
          */
-        if((ch < 33) || (ch > 126)) {
-            return false;
-        }
-
-        switch(ch) {
-            case '"': /* '"' */
-            case '(': /* '(' */
-            case ')': /* ')' */
-            case ',': /* ',' */
-            case '/': /* '/' */
-            case ':': /* ':' */
-            case ';': /* ';' */
-            case '<': /* '<' */
-            case '=': /* '=' */
-            case '>': /* '>' */
-            case '?': /* '?' */
-            case '@': /* '@' */
-            case '[': /* '[' */
-            case '\\': /* '\' */
-            case ']': /* ']' */
-            case '{': /* '{' */
-            case '}': /* '}' */
-                return false;
-        }
-
-        return true;
+        return WspDecoder.isTokenCharacter(ch);
     }
 
     /**
@@ -1174,44 +1547,45 @@ public class PduParser {
          * CR   = <US-ASCII CR, carriage return (13)>
          * LF   = <US-ASCII LF, linefeed (10)>
          */
-        if(((ch >= 32) && (ch <= 126)) || ((ch >= 128) && (ch <= 255))) {
-            return true;
-        }
-
-        switch(ch) {
-            case '\t': /* '\t' */
-            case '\n': /* '\n' */
-            case '\r': /* '\r' */
-                return true;
-        }
-
-        return false;
+        return WspDecoder.isText(ch);
     }
 
     protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WspDecoder decoder = getDecoder(pduDataStream);
+        if (null != decoder) {
+            return decoder.readStringContent(stringType);
+        }
+        byte[] buffer = sStringBuffer.get();
+        int length = 0;
         int temp = pduDataStream.read();
         assert(-1 != temp);
         while((-1 != temp) && ('\0' != temp)) {
             // check each of the character
+            boolean valid;
             if (stringType == TYPE_TOKEN_STRING) {
-                if (isTokenCharacter(temp)) {
-                    out.write(temp);
-                }
+                valid = isTokenCharacter(temp);
             } else {
-                if (isText(temp)) {
-                    out.write(temp);
+                valid = isText(temp);
+            }
+
+            if (valid) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, length * 2);
+                    if (buffer.length <= STRING_BUFFER_MAX_SIZE) {
+                        sStringBuffer.set(buffer);
+                    }
                 }
+                buffer[length++] = (byte) temp;
             }
 
             temp = pduDataStream.read();
             assert(-1 != temp);
         }
 
-        if (out.size() > 0) {
-            return out.toByteArray();
+        if (length > 0) {
+            return Arrays.copyOf(buffer, length);
         }
 
         return null;
@@ -1225,6 +1599,10 @@ public class PduParser {
      */
     protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
         assert(null != pduDataStream);
+        WspDecoder decoder = getDecoder(pduDataStream);
+        if (null != decoder) {
+            return decoder.readOctet() & 0xFF;
+        }
         int temp = pduDataStream.read();
         assert(-1 != temp);
         return temp & 0xFF;
@@ -1245,6 +1623,10 @@ public class PduParser {
          * and with the value in the remaining least significant bits.
          */
         assert(null != pduDataStream);
+        WspDecoder decoder = getDecoder(pduDataStream);
+        if (null != decoder) {
+            return decoder.readShortInteger();
+        }
         int temp = pduDataStream.read();
         assert(-1 != temp);
         return temp & 0x7F;
@@ -1268,6 +1650,10 @@ public class PduParser {
          * Short-length = <Any octet 0-30>
          */
         assert(null != pduDataStream);
+        WspDecoder decoder = getDecoder(pduDataStream);
+        if (null != decoder) {
+            return decoder.readLongInteger();
+        }
         int temp = pduDataStream.read();
         assert(-1 != temp);
         int count = temp & 0xFF;
@@ -1300,6 +1686,10 @@ public class PduParser {
          * Integer-Value = Short-integer | Long-integer
          */
         assert(null != pduDataStream);
+        WspDecoder decoder = getDecoder(pduDataStream);
+        if (null != decoder) {
+            return decoder.readIntegerValue();
+        }
         pduDataStream.mark(1);
         int temp = pduDataStream.read();
         assert(-1 != temp);
@@ -1320,6 +1710,15 @@ public class PduParser {
      */
     protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
         assert(null != pduDataStream);
+        WspDecoder decoder = getDecoder(pduDataStream);
+        if (null != decoder) {
+            // As with a stream, there is nothing to skip at the end, not
+            // even 0 octets.
+            if (0 == decoder.remaining()) {
+                return -1;
+            }
+            return (decoder.skip(length) < length) ? -1 : length;
+        }
         byte[] area = new byte[length];
         int readLen = pduDataStream.read(area, 0, length);
         if (readLen < length) { //The actually read length is lower than the length
@@ -1392,7 +1791,7 @@ public class PduParser {
                         int index = parseShortInteger(pduDataStream);
 
                         if (index < PduContentTypes.contentTypes.length) {
-                            byte[] type = (PduContentTypes.contentTypes[index]).getBytes();
+                            byte[] type = ContentTypeTable.getBytes(index);
                             map.put(PduPart.P_TYPE, type);
                         } else {
                             //not support this type, ignore it.
@@ -1457,8 +1856,7 @@ public class PduParser {
                         //Text-String (extension-charset)
                         byte[] charsetStr = parseWapString(pduDataStream, TYPE_TEXT_STRING);
                         try {
-                            int charsetInt = CharacterSets.getMibEnumValue(
-                                    new String(charsetStr));
+                            int charsetInt = CharacterSets.getMibEnumValue(charsetStr);
                             map.put(PduPart.P_CHARSET, charsetInt);
                         } catch (UnsupportedEncodingException e) {
                             // Not a well-known charset, use "*".
@@ -1553,14 +1951,14 @@ public class PduParser {
                 int index = parseShortInteger(pduDataStream);
 
                 if (index < PduContentTypes.contentTypes.length) { //well-known type
-                    contentType = (PduContentTypes.contentTypes[index]).getBytes();
+                    contentType = ContentTypeTable.getBytes(index);
                 } else {
                     pduDataStream.reset();
                     contentType = parseWapString(pduDataStream, TYPE_TEXT_STRING);
                 }
             } else {
                 Log.e(LOG_TAG, "Corrupt content-type");
-                return (PduContentTypes.contentTypes[0]).getBytes(); //"*/*"
+                return ContentTypeTable.getBytes(0); //"*/*"
             }
 
             int endPos = pduDataStream.available();
@@ -1571,13 +1969,12 @@ public class PduParser {
 
             if (parameterLen < 0) {
                 Log.e(LOG_TAG, "Corrupt MMS message");
-                return (PduContentTypes.contentTypes[0]).getBytes(); //"*/*"
+                return ContentTypeTable.getBytes(0); //"*/*"
             }
         } else if (cur <= TEXT_MAX) {
             contentType = parseWapString(pduDataStream, TYPE_TEXT_STRING);
         } else {
-            contentType =
-                (PduContentTypes.contentTypes[parseShortInteger(pduDataStream)]).getBytes();
+            contentType = ContentTypeTable.getBytes(parseShortInteger(pduDataStream));
         }
 
         return contentType;
@@ -1617,6 +2014,7 @@ public class PduParser {
         int tempPos = 0;
         int lastLen = length;
         while(0 < lastLen) {
+            pduDataStream.mark(1);
             int header = pduDataStream.read();
             assert(-1 != header);
             lastLen--;
@@ -1719,13 +2117,14 @@ public class PduParser {
                     break;
                 }
             } else if ((header >= TEXT_MIN) && (header <= TEXT_MAX)) {
-                // Not assigned header.
+                // Not assigned header. The first octet is part of the header name.
+                pduDataStream.reset();
                 byte[] tempHeader = parseWapString(pduDataStream, TYPE_TEXT_STRING);
                 byte[] tempValue = parseWapString(pduDataStream, TYPE_TEXT_STRING);
 
                 // Check the header whether it is "Content-Transfer-Encoding".
-                if (true ==
-                    PduPart.CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(new String(tempHeader))) {
+                if (ContentTypeTable.equalsIgnoreCase(tempHeader,
+                        PduPart.CONTENT_TRANSFER_ENCODING)) {
                     part.setContentTransferEncoding(tempValue);
                 }
 
@@ -1759,7 +2158,7 @@ public class PduParser {
      * @return part position, THE_FIRST_PART when it's the
      * first one, THE_LAST_PART when it's the last one.
      */
-    private static int checkPartPosition(PduPart part) {
+    private int checkPartPosition(PduPart part) {
         assert(null != part);
         if ((null == mTypeParam) &&
                 (null == mStartParam)) {
@@ -18,7 +18,12 @@
 package com.google.android.mms.pdu;
 
 import android.net.Uri;
+import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -119,8 +124,48 @@ public class PduPart {
       */
      private byte[] mPartData = null;
 
+     /**
+      * Part data as a read-only view of a buffer owned by someone else,
+      * e.g. the buffer a PDU was parsed from.
+      */
+     private ByteBuffer mPartDataBuffer = null;
+
+     /**
+      * Part data still encoded with the Content-Transfer-Encoding of the part.
+      * It is decoded the first time the data is accessed.
+      */
+     private volatile ByteBuffer mEncodedData = null;
+
+     /**
+      * Loader of the part data stored at the data uri, until the data is
+      * accessed for the first time.
+      */
+     private volatile DataLoader mDataLoader = null;
+
      private static final String TAG = "PduPart";
 
+     /**
+      * Fetches the part data stored at a Uri, for parts whose data is only
+      * loaded when it is accessed.
+      */
+     interface DataLoader {
+         /**
+          * @return all the data stored at the uri
+          */
+         byte[] load(Uri uri) throws IOException;
+
+         /**
+          * @return a stream of the data stored at the uri
+          */
+         InputStream open(Uri uri) throws IOException;
+
+         /**
+          * @return the length of the data stored at the uri, without
+          *         reading it. -1 if it isn't known.
+          */
+         long length(Uri uri) throws IOException;
+     }
+
      /**
       * Empty Constructor.
       */
@@ -140,14 +185,193 @@ public class PduPart {
 
          mPartData = new byte[data.length];
          System.arraycopy(data, 0, mPartData, 0, data.length);
+         mPartDataBuffer = null;
+         mEncodedData = null;
+         mDataLoader = null;
+     }
+
+     /**
+      * Set part data without copying it. The bytes between the position and
+      * the limit of the buffer are the data; the part keeps a read-only view
+      * of them, so the buffer must not be modified afterwards.
+      *
+      * @param data the data
+      */
+     public void setDataBuffer(ByteBuffer data) {
+         if(data == null) {
+             return;
+         }
+
+         mPartDataBuffer = data.slice().asReadOnlyBuffer();
+         mPartData = null;
+         mEncodedData = null;
+         mDataLoader = null;
+     }
+
+     /**
+      * Set part data which is still encoded with the Content-Transfer-Encoding
+      * of this part. The data is not copied, and it is only decoded when it
+      * is accessed for the first time, so the Content-Transfer-Encoding must
+      * be set before that.
+      *
+      * @param data the encoded data
+      */
+     void setEncodedData(ByteBuffer data) {
+         if(data == null) {
+             return;
+         }
+
+         mEncodedData = data.slice().asReadOnlyBuffer();
+         mPartData = null;
+         mPartDataBuffer = null;
+         mDataLoader = null;
+     }
+
+     /**
+      * Load the part data from the data uri the first time it is accessed,
+      * instead of holding it now. The data uri must be set first.
+      *
+      * @param loader the loader of the data at the data uri
+      */
+     void setDataLoader(DataLoader loader) {
+         mPartData = null;
+         mPartDataBuffer = null;
+         mEncodedData = null;
+         mDataLoader = loader;
+     }
+
+     /**
+      * @return true if the part data is still to be loaded from the data uri.
+      */
+     boolean hasPendingData() {
+         return mDataLoader != null;
+     }
+
+     /**
+      * @return the length of the data which is still to be loaded from the
+      *         data uri, without loading it. -1 if it isn't known, or if
+      *         there is no such data.
+      */
+     long getPendingDataLength() {
+         DataLoader loader = mDataLoader;
+         if(loader == null) {
+             return -1;
+         }
+
+         try {
+             return loader.length(mUri);
+         } catch (IOException e) {
+             Log.e(TAG, "Failed to get the length of part data at " + mUri, e);
+             return -1;
+         }
+     }
+
+     /**
+      * Load the data set by {@link #setDataLoader}, if it was not yet.
+      * If loading fails the part is left without data, and loading is
+      * tried again the next time the data is accessed.
+      */
+     private void loadData() {
+         if(mDataLoader == null) {
+             return;
+         }
+
+         synchronized (this) {
+             DataLoader loader = mDataLoader;
+             if(loader == null) {
+                 return;
+             }
+             try {
+                 mPartData = loader.load(mUri);
+                 mDataLoader = null;
+             } catch (IOException e) {
+                 Log.e(TAG, "Failed to load part data from " + mUri, e);
+             }
+         }
+     }
+
+     /**
+      * Decode the data set by {@link #setEncodedData}, if it was not yet.
+      * If decoding fails the part is left without data.
+      */
+     private void decodeData() {
+         if(mEncodedData == null) {
+             return;
+         }
+
+         synchronized (this) {
+             ByteBuffer encoded = mEncodedData;
+             if(encoded == null) {
+                 return;
+             }
+             // The decoded data is set before the encoded data is dropped,
+             // as readers which see no encoded data don't take the lock.
+             mPartData = decode(encoded, getContentTransferEncoding());
+             mEncodedData = null;
+         }
+     }
+
+     /**
+      * Decode part data according to a Content-Transfer-Encoding, like
+      * {@link #decode(byte[], byte[])}. The data is decoded straight out
+      * of the buffer, without copying it first.
+      *
+      * @param data the encoded data, between the position and the limit
+      *        of the buffer. The buffer itself is not modified.
+      * @param encoding the Content-Transfer-Encoding value, or null
+      * @return the decoded data. null if decoding fails.
+      */
+     static byte[] decode(ByteBuffer data, byte[] encoding) {
+         if(encoding != null) {
+             if(ContentTypeTable.equalsIgnoreCase(encoding, P_BASE64)) {
+                 return Base64.decodeBase64(data);
+             } else if(ContentTypeTable.equalsIgnoreCase(encoding, P_QUOTED_PRINTABLE)) {
+                 return QuotedPrintable.decodeQuotedPrintable(data);
+             }
+         }
+
+         byte[] bytes = new byte[data.remaining()];
+         data.duplicate().get(bytes);
+         return decode(bytes, encoding);
+     }
+
+     /**
+      * Decode part data according to a Content-Transfer-Encoding.
+      *
+      * @param data the encoded data
+      * @param encoding the Content-Transfer-Encoding value, or null
+      * @return the decoded data, which is the given data itself for the
+      *         "binary", "7bit" and "8bit" encodings. null if decoding fails.
+      */
+     static byte[] decode(byte[] data, byte[] encoding) {
+         if(encoding != null) {
+             if(ContentTypeTable.equalsIgnoreCase(encoding, P_BASE64)) {
+                 // Decode "base64" into "binary".
+                 return Base64.decodeBase64(data);
+             } else if(ContentTypeTable.equalsIgnoreCase(encoding, P_QUOTED_PRINTABLE)) {
+                 // Decode "quoted-printable" into "binary".
+                 return QuotedPrintable.decodeQuotedPrintable(data);
+             }
+         }
+         // "binary" is the default encoding.
+         return data;
      }
 
      /**
       * @return A copy of the part data or null if the data wasn't set or
       *         the data is stored as Uri.
       * @see #getDataUri
+      * @see #getDataBuffer
       */
      public byte[] getData() {
+         loadData();
+         decodeData();
+         if(mPartDataBuffer != null) {
+             byte[] byteArray = new byte[mPartDataBuffer.remaining()];
+             mPartDataBuffer.duplicate().get(byteArray);
+             return byteArray;
+         }
+
          if(mPartData == null) {
             return null;
          }
@@ -157,11 +381,76 @@ public class PduPart {
          return byteArray;
      }
 
+     /**
+      * @return A read-only view of the part data, without copying it, or null
+      *         if the data wasn't set or the data is stored as Uri.
+      * @see #getData
+      */
+     public ByteBuffer getDataBuffer() {
+         loadData();
+         decodeData();
+         if(mPartDataBuffer != null) {
+             return mPartDataBuffer.duplicate();
+         }
+
+         if(mPartData == null) {
+             return null;
+         }
+
+         return ByteBuffer.wrap(mPartData).asReadOnlyBuffer();
+     }
+
+     /**
+      * @return A stream of the part data, without copying it, or null
+      *         if the data wasn't set or the data is stored as Uri.
+      *         Data which is still to be loaded is streamed from the data
+      *         uri instead of being loaded, and data which is still
+      *         encoded is decoded as it is read. Reading quoted-printable
+      *         data throws an IOException at a malformed escape.
+      * @see #getData
+      */
+     public InputStream getDataStream() {
+         DataLoader loader = mDataLoader;
+         if(loader != null) {
+             try {
+                 return loader.open(mUri);
+             } catch (IOException e) {
+                 Log.e(TAG, "Failed to open part data at " + mUri, e);
+                 return null;
+             }
+         }
+
+         ByteBuffer encoded = mEncodedData;
+         byte[] encoding = getContentTransferEncoding();
+         if((encoded != null) && (encoding != null)) {
+             if(ContentTypeTable.equalsIgnoreCase(encoding, P_BASE64)) {
+                 return new Base64InputStream(new ByteBufferInputStream(encoded));
+             } else if(ContentTypeTable.equalsIgnoreCase(encoding, P_QUOTED_PRINTABLE)) {
+                 return new QuotedPrintableInputStream(new ByteBufferInputStream(encoded));
+             }
+         }
+
+         decodeData();
+         if(mPartDataBuffer != null) {
+             return new ByteBufferInputStream(mPartDataBuffer);
+         }
+
+         if(mPartData == null) {
+             return null;
+         }
+
+         return new ByteArrayInputStream(mPartData);
+     }
+
     /**
      * @return The length of the data, if this object have data, else 0.
      */
      public int getDataLength() {
-         if(mPartData != null){
+         loadData();
+         decodeData();
+         if(mPartDataBuffer != null) {
+             return mPartDataBuffer.remaining();
+         } else if(mPartData != null){
              return mPartData.length;
          } else {
              return 0;
@@ -170,7 +459,8 @@ public class PduPart {
 
 
      /**
-      * Set data uri. The data are stored as Uri.
+      * Set data uri. The data are stored as Uri. Data which is still to be
+      * loaded is then loaded from the new uri, which must hold the same data.
       *
       * @param uri the uri
       */
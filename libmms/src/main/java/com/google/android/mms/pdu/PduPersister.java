@@ -24,8 +24,11 @@ import com.google.android.mms.util.DownloadDrmHelper;
 import com.google.android.mms.util.DrmConvertSession;
 import com.google.android.mms.util.PduCache;
 import com.google.android.mms.util.PduCacheEntry;
+import com.google.android.mms.util.PduDiskCache;
 import com.google.android.mms.util.SqliteWrapper;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -35,6 +38,7 @@ import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteException;
 import android.drm.DrmManagerClient;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -55,25 +59,45 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.android.mms.pdu.EncodedStringValue;
 
 /**
  * This class is the high-level manager of PDU storage.
  */
-public class PduPersister {
+public class PduPersister implements PduStore {
     private static final String TAG = "PduPersister";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
     private static final long DUMMY_THREAD_ID = Long.MAX_VALUE;
 
+    /**
+     * The dummy message ids of the parts persistBatched() inserts before
+     * their PDU, one per call. The provider only matches digits in a message
+     * id, so they count up from the time the class is loaded.
+     */
+    private static final AtomicLong sDummyMessageIds =
+            new AtomicLong(System.currentTimeMillis());
+
     /**
      * The uri of temporary drm objects.
      */
@@ -95,6 +119,26 @@ public class PduPersister {
     private static PduPersister sPersister;
     private static final PduCache PDU_CACHE_INSTANCE;
 
+    /**
+     * The loads and updates in flight, by Uri. An update completes with a
+     * null PDU.
+     */
+    private static final ConcurrentHashMap<Uri, FutureTask<GenericPdu>> REQUESTS_IN_FLIGHT =
+            new ConcurrentHashMap<Uri, FutureTask<GenericPdu>>();
+
+    /**
+     * The most parts of a message whose data is written at the same time.
+     */
+    public static final int MAX_CONCURRENT_PART_WRITES = 4;
+
+    private static final int TRANSFER_BUFFER_SIZE = 8192;
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
     private static final int[] ADDRESS_FIELDS = new int[] {
             PduHeaders.BCC,
             PduHeaders.CC,
@@ -281,10 +325,29 @@ public class PduPersister {
     private final ContentResolver mContentResolver;
     private final DrmManagerClient mDrmManagerClient;
     private final TelephonyManager mTelephonyManager;
+    private final PartDataLoader mPartDataLoader;
+
+    /**
+     * Rebuild the PDUs found in the disk cache, loading the data of their
+     * parts from the provider now or when it is accessed.
+     */
+    private final PduCache.SnapshotReader mSnapshotReader = new DiskSnapshotReader(false);
+    private final PduCache.SnapshotReader mLazySnapshotReader = new DiskSnapshotReader(true);
+
+    /**
+     * Projection of the columns a snapshot is checked against.
+     */
+    private static final String[] SNAPSHOT_PROJECTION = new String[] {
+        Mms.MESSAGE_BOX,
+        Mms.THREAD_ID,
+        Mms.DATE,
+        Mms.MESSAGE_SIZE,
+    };
 
     private PduPersister(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
+        mPartDataLoader = new PartDataLoader(mContentResolver);
         mDrmManagerClient = new DrmManagerClient(context);
         mTelephonyManager = (TelephonyManager)context
                 .getSystemService(Context.TELEPHONY_SERVICE);
@@ -356,7 +419,11 @@ public class PduPersister {
         return null;
     }
 
-    private PduPart[] loadParts(long msgId) throws MmsException {
+    /**
+     * @param lazyPartData if true, the data of the parts which is stored in
+     *        files is only loaded when it is accessed
+     */
+    private PduPart[] loadParts(long msgId, boolean lazyPartData) throws MmsException {
         Cursor c = SqliteWrapper.query(mContext, mContentResolver,
                 Uri.parse("content://mms/" + msgId + "/part"),
                 PART_PROJECTION, null, null, null);
@@ -427,48 +494,30 @@ public class PduPersister {
 
                 // For images/audio/video, we won't keep their data in Part
                 // because their renderer accept Uri as source.
-                String type = toIsoString(contentType);
+                String type = ContentTypeTable.toString(contentType);
                 if (!ContentType.isImageType(type)
                         && !ContentType.isAudioType(type)
                         && !ContentType.isVideoType(type)) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    InputStream is = null;
-
                     // Store simple string values directly in the database instead of an
                     // external file.  This makes the text searchable and retrieval slightly
                     // faster.
                     if (ContentType.TEXT_PLAIN.equals(type) || ContentType.APP_SMIL.equals(type)
                             || ContentType.TEXT_HTML.equals(type)) {
                         String text = c.getString(PART_COLUMN_TEXT);
-                        byte [] blob = new EncodedStringValue(text != null ? text : "")
-                            .getTextString();
-                        baos.write(blob, 0, blob.length);
+                        part.setData(new EncodedStringValue(text != null ? text : "")
+                            .getTextString());
+                    } else if (lazyPartData) {
+                        // The file is only read if the data is accessed.
+                        part.setDataLoader(mPartDataLoader);
                     } else {
-
                         try {
-                            is = mContentResolver.openInputStream(partURI);
-
-                            byte[] buffer = new byte[256];
-                            int len = is.read(buffer);
-                            while (len >= 0) {
-                                baos.write(buffer, 0, len);
-                                len = is.read(buffer);
-                            }
+                            part.setDataBuffer(ByteBuffer.wrap(mPartDataLoader.load(partURI)));
                         } catch (IOException e) {
                             Log.e(TAG, "Failed to load part data", e);
                             c.close();
                             throw new MmsException(e);
-                        } finally {
-                            if (is != null) {
-                                try {
-                                    is.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Failed to close stream", e);
-                                } // Ignore
-                            }
                         }
                     }
-                    part.setData(baos.toByteArray());
                 }
                 parts[partIdx++] = part;
             }
@@ -481,6 +530,160 @@ public class PduPersister {
         return parts;
     }
 
+    /**
+     * Reads the data of parts from the files of the provider, for loads and
+     * for parts whose data is loaded when it is accessed.
+     */
+    private static class PartDataLoader implements PduPart.DataLoader {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final ContentResolver mResolver;
+
+        /**
+         * A buffer for reading files whose size isn't known, reused by
+         * the loads which don't run at the same time.
+         */
+        private final AtomicReference<byte[]> mBuffer = new AtomicReference<byte[]>();
+
+        PartDataLoader(ContentResolver resolver) {
+            mResolver = resolver;
+        }
+
+        @Override
+        public InputStream open(Uri uri) throws IOException {
+            return mResolver.openInputStream(uri);
+        }
+
+        @Override
+        public long length(Uri uri) throws IOException {
+            ParcelFileDescriptor pfd = mResolver.openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                throw new FileNotFoundException("No file for " + uri);
+            }
+            try {
+                return pfd.getStatSize();
+            } finally {
+                pfd.close();
+            }
+        }
+
+        @Override
+        public byte[] load(Uri uri) throws IOException {
+            ParcelFileDescriptor pfd = mResolver.openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                throw new FileNotFoundException("No file for " + uri);
+            }
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            try {
+                long size = pfd.getStatSize();
+                if ((size < 0) || (size > Integer.MAX_VALUE)) {
+                    return read(is, null, 0);
+                }
+
+                // Read straight into an array of the size of the file.
+                byte[] data = new byte[(int) size];
+                int count = 0;
+                while (count < data.length) {
+                    int len = is.read(data, count, data.length - count);
+                    if (len == -1) {
+                        return Arrays.copyOf(data, count);
+                    }
+                    count += len;
+                }
+                int next = is.read();
+                if (next == -1) {
+                    return data;
+                }
+                // The file grew since its size was taken.
+                data = Arrays.copyOf(data, data.length + 1);
+                data[data.length - 1] = (byte) next;
+                return read(is, data, data.length);
+            } finally {
+                is.close();
+            }
+        }
+
+        /**
+         * Read the rest of a stream after the first count bytes of head.
+         */
+        private byte[] read(InputStream is, byte[] head, int count) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(count * 2, 32));
+            if (head != null) {
+                baos.write(head, 0, count);
+            }
+            byte[] buffer = mBuffer.getAndSet(null);
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+            try {
+                for (int len = 0; (len = is.read(buffer)) != -1; ) {
+                    baos.write(buffer, 0, len);
+                }
+            } finally {
+                mBuffer.set(buffer);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * The version of a message in the disk cache, which changes with its
+     * date or its size. Both fit in 32 bits: the date is in seconds.
+     */
+    private static long getVersion(long date, long size) {
+        return (date << 32) | (size & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Checks the PDUs found in the disk cache against their row in the
+     * provider, and rebuilds them with the parts whose data was loaded when
+     * accessed loading it again from the provider.
+     */
+    private final class DiskSnapshotReader implements PduCache.SnapshotReader {
+        private final boolean mLazyPartData;
+
+        DiskSnapshotReader(boolean lazyPartData) {
+            mLazyPartData = lazyPartData;
+        }
+
+        @Override
+        public boolean isCurrent(Uri uri, PduDiskCache.Snapshot snapshot) {
+            Cursor c = SqliteWrapper.query(mContext, mContentResolver, uri,
+                    SNAPSHOT_PROJECTION, null, null, null);
+            if (c == null) {
+                return false;
+            }
+            try {
+                return (c.getCount() == 1) && c.moveToFirst()
+                        && (c.getInt(0) == snapshot.getMessageBox())
+                        && (c.getLong(1) == snapshot.getThreadId())
+                        && (getVersion(c.getLong(2), c.getLong(3)) == snapshot.getVersion());
+            } finally {
+                c.close();
+            }
+        }
+
+        @Override
+        public GenericPdu read(byte[] snapshot) throws IOException, MmsException {
+            GenericPdu pdu = PduSnapshot.read(snapshot, mPartDataLoader);
+            if (mLazyPartData || !(pdu instanceof MultimediaMessagePdu)) {
+                return pdu;
+            }
+            PduBody body = ((MultimediaMessagePdu) pdu).getBody();
+            int partsNum = (body == null) ? 0 : body.getPartsNum();
+            for (int i = 0; i < partsNum; i++) {
+                PduPart part = body.getPart(i);
+                if (part.hasPendingData()) {
+                    part.getDataBuffer();
+                    if (part.hasPendingData()) {
+                        throw new IOException("Failed to load the data of " + part.getDataUri());
+                    }
+                }
+            }
+            return pdu;
+        }
+    }
+
     private void loadAddress(long msgId, PduHeaders headers) {
         Cursor c = SqliteWrapper.query(mContext, mContentResolver,
                 Uri.parse("content://mms/" + msgId + "/addr"),
@@ -519,190 +722,280 @@ public class PduPersister {
     }
 
     /**
-     * Load a PDU from storage by given Uri.
+     * Load a PDU from storage by given Uri. Pdus are cached, and concurrent
+     * loads of the same Uri share one query of the provider.
+     * When a {@link PduCache#setDiskCache disk cache} is set, pdus cached
+     * there by an earlier process are loaded from it instead, as long as
+     * their message box, thread, date and size in the provider are the same.
      *
      * @param uri The Uri of the PDU to be loaded.
      * @return A generic PDU object, it may be cast to dedicated PDU.
      * @throws MmsException Failed to load some fields of a PDU.
      */
     public GenericPdu load(Uri uri) throws MmsException {
-        GenericPdu pdu = null;
-        PduCacheEntry cacheEntry = null;
-        int msgBox = 0;
-        long threadId = -1;
-        try {
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, "load: " + uri + " blocked by isUpdating()");
-                    }
-                    try {
-                        PDU_CACHE_INSTANCE.wait();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "load: ", e);
-                    }
-                    cacheEntry = PDU_CACHE_INSTANCE.get(uri);
-                    if (cacheEntry != null) {
-                        return cacheEntry.getPdu();
+        return load(uri, false);
+    }
+
+    /**
+     * Load a PDU from storage by given Uri, like {@link #load(Uri)}.
+     *
+     * The data of parts which isn't text is stored in files. With
+     * lazyPartData, those files are only read the first time the data of
+     * the part is accessed, through {@link PduPart#getData()} or
+     * {@link PduPart#getDataBuffer()}, and {@link PduPart#getDataStream()}
+     * streams them without reading them into memory. Image, audio and video
+     * parts never hold their data; it is read from {@link PduPart#getDataUri()}.
+     *
+     * Since loaded PDUs are shared through the cache, the data of the parts
+     * of the PDU returned may or may not be loaded already, whatever
+     * lazyPartData is.
+     *
+     * @param uri The Uri of the PDU to be loaded.
+     * @param lazyPartData if true, the data of the parts isn't loaded until
+     *        it is accessed.
+     * @return A generic PDU object, it may be cast to dedicated PDU.
+     * @throws MmsException Failed to load some fields of a PDU.
+     */
+    public GenericPdu load(final Uri uri, final boolean lazyPartData) throws MmsException {
+        while (true) {
+            PduCacheEntry cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+            if (cacheEntry != null) {
+                return cacheEntry.getPdu();
+            }
+
+            FutureTask<GenericPdu> load = new FutureTask<GenericPdu>(new Callable<GenericPdu>() {
+                @Override
+                public GenericPdu call() throws MmsException {
+                    // A PDU cached on disk by an earlier process.
+                    PduCacheEntry diskEntry = PDU_CACHE_INSTANCE.loadFromDisk(uri,
+                            lazyPartData ? mLazySnapshotReader : mSnapshotReader);
+                    if (diskEntry != null) {
+                        return diskEntry.getPdu();
                     }
+                    return loadFromProvider(uri, lazyPartData);
+                }
+            });
+            FutureTask<GenericPdu> request = REQUESTS_IN_FLIGHT.putIfAbsent(uri, load);
+            if (request == null) {
+                request = load;
+                try {
+                    load.run();
+                } finally {
+                    REQUESTS_IN_FLIGHT.remove(uri, load);
                 }
-                // Tell the cache to indicate to other callers that this item
-                // is currently being updated.
-                PDU_CACHE_INSTANCE.setUpdating(uri, true);
+            } else if (LOCAL_LOGV) {
+                Log.v(TAG, "load: " + uri + " waiting for the request in flight");
             }
 
-            Cursor c = SqliteWrapper.query(mContext, mContentResolver, uri,
-                    PDU_PROJECTION, null, null, null);
-            PduHeaders headers = new PduHeaders();
-            Set<Entry<Integer, Integer>> set;
-            long msgId = ContentUris.parseId(uri);
+            GenericPdu pdu = getResult(request);
+            if (pdu != null) {
+                return pdu;
+            }
+            // The uri was being updated. Load what was stored.
+            REQUESTS_IN_FLIGHT.remove(uri, request);
+        }
+    }
 
-            try {
-                if ((c == null) || (c.getCount() != 1) || !c.moveToFirst()) {
-                    throw new MmsException("Bad uri: " + uri);
-                }
+    /**
+     * Query the provider for a PDU and cache it.
+     */
+    private GenericPdu loadFromProvider(Uri uri, boolean lazyPartData) throws MmsException {
+        GenericPdu pdu = null;
+        int msgBox = 0;
+        long threadId = -1;
 
-                msgBox = c.getInt(PDU_COLUMN_MESSAGE_BOX);
-                threadId = c.getLong(PDU_COLUMN_THREAD_ID);
+        Cursor c = SqliteWrapper.query(mContext, mContentResolver, uri,
+                PDU_PROJECTION, null, null, null);
+        PduHeaders headers = new PduHeaders();
+        Set<Entry<Integer, Integer>> set;
+        long msgId = ContentUris.parseId(uri);
+        long version;
 
-                set = ENCODED_STRING_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
-                    setEncodedStringValueToHeaders(
-                            c, e.getValue(), headers, e.getKey());
-                }
+        try {
+            if ((c == null) || (c.getCount() != 1) || !c.moveToFirst()) {
+                throw new MmsException("Bad uri: " + uri);
+            }
 
-                set = TEXT_STRING_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
-                    setTextStringToHeaders(
-                            c, e.getValue(), headers, e.getKey());
-                }
+            msgBox = c.getInt(PDU_COLUMN_MESSAGE_BOX);
+            threadId = c.getLong(PDU_COLUMN_THREAD_ID);
+            version = getVersion(c.getLong(PDU_COLUMN_DATE), c.getLong(PDU_COLUMN_MESSAGE_SIZE));
 
-                set = OCTET_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
-                    setOctetToHeaders(
-                            c, e.getValue(), headers, e.getKey());
-                }
+            set = ENCODED_STRING_COLUMN_INDEX_MAP.entrySet();
+            for (Entry<Integer, Integer> e : set) {
+                setEncodedStringValueToHeaders(
+                        c, e.getValue(), headers, e.getKey());
+            }
 
-                set = LONG_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
-                    setLongToHeaders(
-                            c, e.getValue(), headers, e.getKey());
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
+            set = TEXT_STRING_COLUMN_INDEX_MAP.entrySet();
+            for (Entry<Integer, Integer> e : set) {
+                setTextStringToHeaders(
+                        c, e.getValue(), headers, e.getKey());
             }
 
-            // Check whether 'msgId' has been assigned a valid value.
-            if (msgId == -1L) {
-                throw new MmsException("Error! ID of the message: -1.");
+            set = OCTET_COLUMN_INDEX_MAP.entrySet();
+            for (Entry<Integer, Integer> e : set) {
+                setOctetToHeaders(
+                        c, e.getValue(), headers, e.getKey());
             }
 
-            // Load address information of the MM.
-            loadAddress(msgId, headers);
+            set = LONG_COLUMN_INDEX_MAP.entrySet();
+            for (Entry<Integer, Integer> e : set) {
+                setLongToHeaders(
+                        c, e.getValue(), headers, e.getKey());
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
 
-            int msgType = headers.getOctet(PduHeaders.MESSAGE_TYPE);
-            PduBody body = new PduBody();
+        // Check whether 'msgId' has been assigned a valid value.
+        if (msgId == -1L) {
+            throw new MmsException("Error! ID of the message: -1.");
+        }
 
-            // For PDU which type is M_retrieve.conf or Send.req, we should
-            // load multiparts and put them into the body of the PDU.
-            if ((msgType == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF)
-                    || (msgType == PduHeaders.MESSAGE_TYPE_SEND_REQ)) {
-                PduPart[] parts = loadParts(msgId);
-                if (parts != null) {
-                    int partsNum = parts.length;
-                    for (int i = 0; i < partsNum; i++) {
-                        body.addPart(parts[i]);
-                    }
+        // Load address information of the MM.
+        loadAddress(msgId, headers);
+
+        int msgType = headers.getOctet(PduHeaders.MESSAGE_TYPE);
+        PduBody body = new PduBody();
+
+        // For PDU which type is M_retrieve.conf or Send.req, we should
+        // load multiparts and put them into the body of the PDU.
+        if ((msgType == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF)
+                || (msgType == PduHeaders.MESSAGE_TYPE_SEND_REQ)) {
+            PduPart[] parts = loadParts(msgId, lazyPartData);
+            if (parts != null) {
+                int partsNum = parts.length;
+                for (int i = 0; i < partsNum; i++) {
+                    body.addPart(parts[i]);
                 }
             }
+        }
 
-            switch (msgType) {
-            case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
-                pdu = new NotificationInd(headers);
-                break;
-            case PduHeaders.MESSAGE_TYPE_DELIVERY_IND:
-                pdu = new DeliveryInd(headers);
-                break;
-            case PduHeaders.MESSAGE_TYPE_READ_ORIG_IND:
-                pdu = new ReadOrigInd(headers);
-                break;
-            case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
-                pdu = new RetrieveConf(headers, body);
-                break;
-            case PduHeaders.MESSAGE_TYPE_SEND_REQ:
-                pdu = new SendReq(headers, body);
-                break;
-            case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                pdu = new AcknowledgeInd(headers);
-                break;
-            case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                pdu = new NotifyRespInd(headers);
-                break;
-            case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                pdu = new ReadRecInd(headers);
-                break;
-            case PduHeaders.MESSAGE_TYPE_SEND_CONF:
-            case PduHeaders.MESSAGE_TYPE_FORWARD_REQ:
-            case PduHeaders.MESSAGE_TYPE_FORWARD_CONF:
-            case PduHeaders.MESSAGE_TYPE_MBOX_STORE_REQ:
-            case PduHeaders.MESSAGE_TYPE_MBOX_STORE_CONF:
-            case PduHeaders.MESSAGE_TYPE_MBOX_VIEW_REQ:
-            case PduHeaders.MESSAGE_TYPE_MBOX_VIEW_CONF:
-            case PduHeaders.MESSAGE_TYPE_MBOX_UPLOAD_REQ:
-            case PduHeaders.MESSAGE_TYPE_MBOX_UPLOAD_CONF:
-            case PduHeaders.MESSAGE_TYPE_MBOX_DELETE_REQ:
-            case PduHeaders.MESSAGE_TYPE_MBOX_DELETE_CONF:
-            case PduHeaders.MESSAGE_TYPE_MBOX_DESCR:
-            case PduHeaders.MESSAGE_TYPE_DELETE_REQ:
-            case PduHeaders.MESSAGE_TYPE_DELETE_CONF:
-            case PduHeaders.MESSAGE_TYPE_CANCEL_REQ:
-            case PduHeaders.MESSAGE_TYPE_CANCEL_CONF:
-                throw new MmsException(
-                        "Unsupported PDU type: " + Integer.toHexString(msgType));
-
-            default:
-                throw new MmsException(
-                        "Unrecognized PDU type: " + Integer.toHexString(msgType));
+        pdu = GenericPdu.create(headers, body);
+
+        PDU_CACHE_INSTANCE.put(uri, new PduCacheEntry(pdu, msgBox, threadId), version);
+        return pdu;
+    }
+
+    /**
+     * Wait for the loads and updates of the Uri which are in flight, and
+     * register an update of the Uri. Loads started until the update is
+     * ended with {@link #endUpdate(Uri, FutureTask)} wait for it, and then
+     * load the updated PDU.
+     */
+    private static FutureTask<GenericPdu> beginUpdate(Uri uri) {
+        FutureTask<GenericPdu> update = new FutureTask<GenericPdu>(NO_OP, null);
+        FutureTask<GenericPdu> request;
+        while ((request = REQUESTS_IN_FLIGHT.putIfAbsent(uri, update)) != null) {
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "update: " + uri + " waiting for the request in flight");
             }
-        } finally {
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (pdu != null) {
-                    assert(PDU_CACHE_INSTANCE.get(uri) == null);
-                    // Update the cache entry with the real info
-                    cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
-                    PDU_CACHE_INSTANCE.put(uri, cacheEntry);
+            try {
+                getResult(request);
+            } catch (MmsException e) {
+                // The load failed, which doesn't matter to the update.
+            } catch (RuntimeException e) {
+                // Likewise.
+            }
+            REQUESTS_IN_FLIGHT.remove(uri, request);
+        }
+        return update;
+    }
+
+    private static void endUpdate(Uri uri, FutureTask<GenericPdu> update) {
+        REQUESTS_IN_FLIGHT.remove(uri, update);
+        update.run();
+    }
+
+    /**
+     * Wait for a load or an update to finish. Interrupts are deferred
+     * until it's finished.
+     *
+     * @return the loaded PDU, or null for an update
+     * @throws MmsException the load failed
+     */
+    private static GenericPdu getResult(FutureTask<GenericPdu> request) throws MmsException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return request.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw toMmsException(e.getCause());
                 }
-                PDU_CACHE_INSTANCE.setUpdating(uri, false);
-                PDU_CACHE_INSTANCE.notifyAll(); // tell anybody waiting on this entry to go ahead
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
         }
-        return pdu;
+    }
+
+    /**
+     * Rethrow an unchecked exception thrown on another thread, or get an
+     * MmsException for a checked one.
+     */
+    private static MmsException toMmsException(Throwable t) {
+        if (t instanceof MmsException) {
+            return (MmsException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new MmsException(t);
     }
 
     private void persistAddress(
             long msgId, int type, EncodedStringValue[] array) {
-        ContentValues values = new ContentValues(3);
-
         for (EncodedStringValue addr : array) {
-            values.clear(); // Clear all values first.
-            values.put(Addr.ADDRESS, toIsoString(addr.getTextString()));
-            values.put(Addr.CHARSET, addr.getCharacterSet());
-            values.put(Addr.TYPE, type);
-
             Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
-            SqliteWrapper.insert(mContext, mContentResolver, uri, values);
+            SqliteWrapper.insert(mContext, mContentResolver, uri, getAddressValues(type, addr));
         }
     }
 
+    private static ContentValues getAddressValues(int type, EncodedStringValue addr) {
+        ContentValues values = new ContentValues(3);
+        values.put(Addr.ADDRESS, toIsoString(addr.getTextString()));
+        values.put(Addr.CHARSET, addr.getCharacterSet());
+        values.put(Addr.TYPE, type);
+        return values;
+    }
+
     private static String getPartContentType(PduPart part) {
-        return part.getContentType() == null ? null : toIsoString(part.getContentType());
+        return part.getContentType() == null
+                ? null : ContentTypeTable.toString(part.getContentType());
     }
 
     public Uri persistPart(PduPart part, long msgId, HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
         Uri uri = Uri.parse("content://mms/" + msgId + "/part");
+        ContentValues values = getPartValues(part);
+        String contentType = values.getAsString(Part.CONTENT_TYPE);
+
+        Uri res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
+        if (res == null) {
+            throw new MmsException("Failed to persist part, return null.");
+        }
+
+        persistData(part, res, contentType, preOpenedFiles);
+        // After successfully store the data, we should update
+        // the dataUri of the part.
+        part.setDataUri(res);
+
+        return res;
+    }
+
+    /**
+     * Get the columns of the row of a part, besides its data.
+     *
+     * @throws MmsException the part has no content type
+     */
+    private static ContentValues getPartValues(PduPart part) throws MmsException {
         ContentValues values = new ContentValues(8);
 
         int charset = part.getCharset();
@@ -752,18 +1045,25 @@ public class PduPersister {
             value = toIsoString(part.getContentLocation());
             values.put(Part.CONTENT_LOCATION, (String) value);
         }
+        return values;
+    }
 
-        Uri res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
-        if (res == null) {
-            throw new MmsException("Failed to persist part, return null.");
-        }
-
-        persistData(part, res, contentType, preOpenedFiles);
-        // After successfully store the data, we should update
-        // the dataUri of the part.
-        part.setDataUri(res);
+    /**
+     * Whether the data of parts of the content type is stored in the text
+     * column of their row rather than in a file.
+     */
+    private static boolean isTextPart(String contentType) {
+        return ContentType.TEXT_PLAIN.equals(contentType)
+                || ContentType.APP_SMIL.equals(contentType)
+                || ContentType.TEXT_HTML.equals(contentType);
+    }
 
-        return res;
+    private static String getPartText(PduPart part) {
+        byte[] data = part.getData();
+        if (data == null) {
+            data = new byte[0];
+        }
+        return new EncodedStringValue(data).getString();
     }
 
     /**
@@ -783,6 +1083,15 @@ public class PduPersister {
     private void persistData(PduPart part, Uri uri,
             String contentType, HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
+        persistData(part, uri, contentType, preOpenedFiles, null);
+    }
+
+    /**
+     * @param buffer if not null, the buffer to copy the data through
+     */
+    private void persistData(PduPart part, Uri uri,
+            String contentType, HashMap<Uri, InputStream> preOpenedFiles, byte[] buffer)
+            throws MmsException {
         OutputStream os = null;
         InputStream is = null;
         DrmConvertSession drmConvertSession = null;
@@ -790,19 +1099,17 @@ public class PduPersister {
         String path = null;
 
         try {
-            byte[] data = part.getData();
-            if (ContentType.TEXT_PLAIN.equals(contentType)
-                    || ContentType.APP_SMIL.equals(contentType)
-                    || ContentType.TEXT_HTML.equals(contentType)) {
+            if (isTextPart(contentType)) {
                 ContentValues cv = new ContentValues();
-                if (data == null) {
-                    data = new String("").getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
-                }
-                cv.put(Telephony.Mms.Part.TEXT, new EncodedStringValue(data).getString());
+                cv.put(Telephony.Mms.Part.TEXT, getPartText(part));
                 if (mContentResolver.update(uri, cv, null, null) != 1) {
                     throw new MmsException("unable to update " + uri.toString());
                 }
             } else {
+                if (part.hasPendingData() && uri.equals(part.getDataUri())) {
+                    // The data is still where it was loaded from.
+                    return;
+                }
                 boolean isDrm = DownloadDrmHelper.isDrmConvertNeeded(contentType);
                 if (isDrm) {
                     if (uri != null) {
@@ -832,10 +1139,10 @@ public class PduPersister {
                                 " can not be converted.");
                     }
                 }
-                // uri can look like:
-                // content://mms/part/98
-                os = mContentResolver.openOutputStream(uri);
-                if (data == null) {
+                // The data of the part is copied from a stream, so that
+                // data still at its Uri isn't loaded on the way.
+                is = part.getDataStream();
+                if (is == null) {
                     dataUri = part.getDataUri();
                     if ((dataUri == null) || (dataUri == uri)) {
                         Log.w(TAG, "Can't find data for this part.");
@@ -849,33 +1156,23 @@ public class PduPersister {
                     if (is == null) {
                         is = mContentResolver.openInputStream(dataUri);
                     }
+                }
+                // uri can look like:
+                // content://mms/part/98
+                os = mContentResolver.openOutputStream(uri);
 
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, "Saving data to: " + uri);
-                    }
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "Saving data to: " + uri);
+                }
 
-                    byte[] buffer = new byte[8192];
-                    for (int len = 0; (len = is.read(buffer)) != -1; ) {
-                        if (!isDrm) {
-                            os.write(buffer, 0, len);
-                        } else {
-                            byte[] convertedData = drmConvertSession.convert(buffer, len);
-                            if (convertedData != null) {
-                                os.write(convertedData, 0, convertedData.length);
-                            } else {
-                                throw new MmsException("Error converting drm data.");
-                            }
-                        }
-                    }
-                } else {
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, "Saving data to: " + uri);
-                    }
+                if (buffer == null) {
+                    buffer = new byte[TRANSFER_BUFFER_SIZE];
+                }
+                for (int len = 0; (len = is.read(buffer)) != -1; ) {
                     if (!isDrm) {
-                        os.write(data);
+                        os.write(buffer, 0, len);
                     } else {
-                        dataUri = uri;
-                        byte[] convertedData = drmConvertSession.convert(data, data.length);
+                        byte[] convertedData = drmConvertSession.convert(buffer, len);
                         if (convertedData != null) {
                             os.write(convertedData, 0, convertedData.length);
                         } else {
@@ -984,108 +1281,102 @@ public class PduPersister {
      * @throws MmsException Bad URI or updating failed.
      */
     public void updateHeaders(Uri uri, SendReq sendReq) {
-        synchronized(PDU_CACHE_INSTANCE) {
-            // If the cache item is getting updated, wait until it's done updating before
-            // purging it.
-            if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                if (LOCAL_LOGV) {
-                    Log.v(TAG, "updateHeaders: " + uri + " blocked by isUpdating()");
-                }
-                try {
-                    PDU_CACHE_INSTANCE.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "updateHeaders: ", e);
-                }
-            }
-        }
-        PDU_CACHE_INSTANCE.purge(uri);
-
-        ContentValues values = new ContentValues(10);
-        byte[] contentType = sendReq.getContentType();
-        if (contentType != null) {
-            values.put(Mms.CONTENT_TYPE, toIsoString(contentType));
-        }
+        // Loads of the uri wait until it's updated, so that they don't
+        // cache the old headers.
+        FutureTask<GenericPdu> update = beginUpdate(uri);
+        try {
+            PDU_CACHE_INSTANCE.purge(uri);
 
-        long date = sendReq.getDate();
-        if (date != -1) {
-            values.put(Mms.DATE, date);
-        }
 
-        int deliveryReport = sendReq.getDeliveryReport();
-        if (deliveryReport != 0) {
-            values.put(Mms.DELIVERY_REPORT, deliveryReport);
-        }
+            ContentValues values = new ContentValues(10);
+            byte[] contentType = sendReq.getContentType();
+            if (contentType != null) {
+                values.put(Mms.CONTENT_TYPE, toIsoString(contentType));
+            }
 
-        long expiry = sendReq.getExpiry();
-        if (expiry != -1) {
-            values.put(Mms.EXPIRY, expiry);
-        }
+            long date = sendReq.getDate();
+            if (date != -1) {
+                values.put(Mms.DATE, date);
+            }
 
-        byte[] msgClass = sendReq.getMessageClass();
-        if (msgClass != null) {
-            values.put(Mms.MESSAGE_CLASS, toIsoString(msgClass));
-        }
+            int deliveryReport = sendReq.getDeliveryReport();
+            if (deliveryReport != 0) {
+                values.put(Mms.DELIVERY_REPORT, deliveryReport);
+            }
 
-        int priority = sendReq.getPriority();
-        if (priority != 0) {
-            values.put(Mms.PRIORITY, priority);
-        }
+            long expiry = sendReq.getExpiry();
+            if (expiry != -1) {
+                values.put(Mms.EXPIRY, expiry);
+            }
 
-        int readReport = sendReq.getReadReport();
-        if (readReport != 0) {
-            values.put(Mms.READ_REPORT, readReport);
-        }
+            byte[] msgClass = sendReq.getMessageClass();
+            if (msgClass != null) {
+                values.put(Mms.MESSAGE_CLASS, toIsoString(msgClass));
+            }
 
-        byte[] transId = sendReq.getTransactionId();
-        if (transId != null) {
-            values.put(Mms.TRANSACTION_ID, toIsoString(transId));
-        }
+            int priority = sendReq.getPriority();
+            if (priority != 0) {
+                values.put(Mms.PRIORITY, priority);
+            }
 
-        EncodedStringValue subject = sendReq.getSubject();
-        if (subject != null) {
-            values.put(Mms.SUBJECT, toIsoString(subject.getTextString()));
-            values.put(Mms.SUBJECT_CHARSET, subject.getCharacterSet());
-        } else {
-            values.put(Mms.SUBJECT, "");
-        }
+            int readReport = sendReq.getReadReport();
+            if (readReport != 0) {
+                values.put(Mms.READ_REPORT, readReport);
+            }
 
-        long messageSize = sendReq.getMessageSize();
-        if (messageSize > 0) {
-            values.put(Mms.MESSAGE_SIZE, messageSize);
-        }
+            byte[] transId = sendReq.getTransactionId();
+            if (transId != null) {
+                values.put(Mms.TRANSACTION_ID, toIsoString(transId));
+            }
 
-        PduHeaders headers = sendReq.getPduHeaders();
-        HashSet<String> recipients = new HashSet<String>();
-        for (int addrType : ADDRESS_FIELDS) {
-            EncodedStringValue[] array = null;
-            if (addrType == PduHeaders.FROM) {
-                EncodedStringValue v = headers.getEncodedStringValue(addrType);
-                if (v != null) {
-                    array = new EncodedStringValue[1];
-                    array[0] = v;
-                }
+            EncodedStringValue subject = sendReq.getSubject();
+            if (subject != null) {
+                values.put(Mms.SUBJECT, toIsoString(subject.getTextString()));
+                values.put(Mms.SUBJECT_CHARSET, subject.getCharacterSet());
             } else {
-                array = headers.getEncodedStringValues(addrType);
+                values.put(Mms.SUBJECT, "");
             }
 
-            if (array != null) {
-                long msgId = ContentUris.parseId(uri);
-                updateAddress(msgId, addrType, array);
-                if (addrType == PduHeaders.TO) {
-                    for (EncodedStringValue v : array) {
-                        if (v != null) {
-                            recipients.add(v.getString());
+            long messageSize = sendReq.getMessageSize();
+            if (messageSize > 0) {
+                values.put(Mms.MESSAGE_SIZE, messageSize);
+            }
+
+            PduHeaders headers = sendReq.getPduHeaders();
+            HashSet<String> recipients = new HashSet<String>();
+            for (int addrType : ADDRESS_FIELDS) {
+                EncodedStringValue[] array = null;
+                if (addrType == PduHeaders.FROM) {
+                    EncodedStringValue v = headers.getEncodedStringValue(addrType);
+                    if (v != null) {
+                        array = new EncodedStringValue[1];
+                        array[0] = v;
+                    }
+                } else {
+                    array = headers.getEncodedStringValues(addrType);
+                }
+
+                if (array != null) {
+                    long msgId = ContentUris.parseId(uri);
+                    updateAddress(msgId, addrType, array);
+                    if (addrType == PduHeaders.TO) {
+                        for (EncodedStringValue v : array) {
+                            if (v != null) {
+                                recipients.add(v.getString());
+                            }
                         }
                     }
                 }
             }
-        }
-        if (!recipients.isEmpty()) {
-            long threadId = Threads.getOrCreateThreadId(mContext, recipients);
-            values.put(Mms.THREAD_ID, threadId);
-        }
+            if (!recipients.isEmpty()) {
+                long threadId = Threads.getOrCreateThreadId(mContext, recipients);
+                values.put(Mms.THREAD_ID, threadId);
+            }
 
-        SqliteWrapper.update(mContext, mContentResolver, uri, values, null, null);
+            SqliteWrapper.update(mContext, mContentResolver, uri, values, null, null);
+        } finally {
+            endUpdate(uri, update);
+        }
     }
 
     private void updatePart(Uri uri, PduPart part, HashMap<Uri, InputStream> preOpenedFiles)
@@ -1099,7 +1390,7 @@ public class PduPersister {
 
         String contentType = null;
         if (part.getContentType() != null) {
-            contentType = toIsoString(part.getContentType());
+            contentType = ContentTypeTable.toString(part.getContentType());
             values.put(Part.CONTENT_TYPE, contentType);
         } else {
             throw new MmsException("MIME type of the part must be set.");
@@ -1136,7 +1427,8 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        // Data still to be loaded from the Uri of the part is not new.
+        if ((!part.hasPendingData() && (part.getData() != null))
                 || (uri != part.getDataUri())) {
             persistData(part, uri, contentType, preOpenedFiles);
         }
@@ -1152,26 +1444,12 @@ public class PduPersister {
      */
     public void updateParts(Uri uri, PduBody body, HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
+        // Loads of the uri wait until its parts are updated.
+        FutureTask<GenericPdu> update = beginUpdate(uri);
         try {
-            PduCacheEntry cacheEntry;
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, "updateParts: " + uri + " blocked by isUpdating()");
-                    }
-                    try {
-                        PDU_CACHE_INSTANCE.wait();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "updateParts: ", e);
-                    }
-                    cacheEntry = PDU_CACHE_INSTANCE.get(uri);
-                    if (cacheEntry != null) {
-                        ((MultimediaMessagePdu) cacheEntry.getPdu()).setBody(body);
-                    }
-                }
-                // Tell the cache to indicate to other callers that this item
-                // is currently being updated.
-                PDU_CACHE_INSTANCE.setUpdating(uri, true);
+            PduCacheEntry cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+            if (cacheEntry != null) {
+                ((MultimediaMessagePdu) cacheEntry.getPdu()).setBody(body);
             }
 
             ArrayList<PduPart> toBeCreated = new ArrayList<PduPart>();
@@ -1217,10 +1495,7 @@ public class PduPersister {
                 updatePart(e.getKey(), e.getValue(), preOpenedFiles);
             }
         } finally {
-            synchronized(PDU_CACHE_INSTANCE) {
-                PDU_CACHE_INSTANCE.setUpdating(uri, false);
-                PDU_CACHE_INSTANCE.notifyAll();
-            }
+            endUpdate(uri, update);
         }
     }
 
@@ -1240,6 +1515,369 @@ public class PduPersister {
     public Uri persist(GenericPdu pdu, Uri uri, boolean createThreadId, boolean groupMmsEnabled,
             HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
+        long msgId = getMessageId(uri);
+        boolean existingUri = msgId != -1;
+        // Loads of the uri wait until the pdu is stored.
+        FutureTask<GenericPdu> update = beginUpdate(uri);
+        try {
+            PDU_CACHE_INSTANCE.purge(uri);
+
+            HashMap<Integer, EncodedStringValue[]> addressMap =
+                    new HashMap<Integer, EncodedStringValue[]>(ADDRESS_FIELDS.length);
+            ContentValues values = getPduValues(pdu, addressMap, createThreadId, groupMmsEnabled);
+
+            // Save parts first to avoid inconsistent message is loaded
+            // while saving the parts.
+            long dummyId = System.currentTimeMillis(); // Dummy ID of the msg.
+
+            // Get body if the PDU is a RetrieveConf or SendReq.
+            PduBody body = getBody(pdu);
+            putBodyValues(values, body);
+            if (body != null) {
+                int partsNum = body.getPartsNum();
+                for (int i = 0; i < partsNum; i++) {
+                    persistPart(body.getPart(i), dummyId, preOpenedFiles);
+                }
+            }
+
+            Uri res = null;
+            if (existingUri) {
+                res = uri;
+                SqliteWrapper.update(mContext, mContentResolver, res, values, null, null);
+            } else {
+                res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
+                if (res == null) {
+                    throw new MmsException("persist() failed: return null.");
+                }
+                // Get the real ID of the PDU and update all parts which were
+                // saved with the dummy ID.
+                msgId = ContentUris.parseId(res);
+            }
+
+            values = new ContentValues(1);
+            values.put(Part.MSG_ID, msgId);
+            SqliteWrapper.update(mContext, mContentResolver,
+                                 Uri.parse("content://mms/" + dummyId + "/part"),
+                                 values, null, null);
+            // We should return the longest URI of the persisted PDU, for
+            // example, if input URI is "content://mms/inbox" and the _ID of
+            // persisted PDU is '8', we should return "content://mms/inbox/8"
+            // instead of "content://mms/8".
+            // FIXME: Should the MmsProvider be responsible for this???
+            if (!existingUri) {
+                res = Uri.parse(uri + "/" + msgId);
+            }
+
+            // Save address information.
+            for (int addrType : ADDRESS_FIELDS) {
+                EncodedStringValue[] array = addressMap.get(addrType);
+                if (array != null) {
+                    persistAddress(msgId, addrType, array);
+                }
+            }
+
+            return res;
+        } finally {
+            endUpdate(uri, update);
+        }
+    }
+
+    /**
+     * Persist a PDU like {@link #persist}, writing the rows of its parts and
+     * addresses in batches instead of one at a time. A PDU with N parts and
+     * M addresses costs three provider transactions, plus one for the data
+     * of each part which isn't text, instead of about 2N + M + 2:
+     * <ul>
+     * <li>the rows of the parts, with the text of the text parts,</li>
+     * <li>the PDU row, and the message id of the parts as a back reference
+     *     to it,</li>
+     * <li>the addresses, since the provider takes their message id from
+     *     their Uri, which can't refer back to another operation.</li>
+     * </ul>
+     * When all the parts are text, the first two batches are one. The
+     * parameters and the result are the same as {@link #persist}.
+     */
+    public Uri persistBatched(GenericPdu pdu, Uri uri, boolean createThreadId,
+            boolean groupMmsEnabled, HashMap<Uri, InputStream> preOpenedFiles)
+            throws MmsException {
+        return persistBatched(pdu, uri, createThreadId, groupMmsEnabled, preOpenedFiles, null);
+    }
+
+    /**
+     * Persist a PDU like {@link #persistBatched(GenericPdu, Uri, boolean, boolean, HashMap)},
+     * writing the data of its parts concurrently. If anything fails, the
+     * rows written so far are deleted, so that no part of the message is
+     * left behind, unless the PDU was already stored at the given Uri.
+     *
+     * @param dataExecutor if not null, the data of the parts is written on
+     *        it, {@link #MAX_CONCURRENT_PART_WRITES} parts at a time at most.
+     *        Otherwise it's written on the calling thread.
+     */
+    public Uri persistBatched(GenericPdu pdu, Uri uri, boolean createThreadId,
+            boolean groupMmsEnabled, HashMap<Uri, InputStream> preOpenedFiles,
+            Executor dataExecutor) throws MmsException {
+        long msgId = getMessageId(uri);
+        boolean existingUri = msgId != -1;
+        // Loads of the uri wait until the pdu is stored.
+        FutureTask<GenericPdu> update = beginUpdate(uri);
+        // Insert the parts first, with a dummy message id, so that the
+        // message isn't loaded before the data of its parts is stored.
+        long dummyId = sDummyMessageIds.incrementAndGet();
+        Uri[] partUris = null;
+        boolean written = false;
+        Uri insertedUri = null;
+        boolean stored = false;
+        try {
+            PDU_CACHE_INSTANCE.purge(uri);
+
+            HashMap<Integer, EncodedStringValue[]> addressMap =
+                    new HashMap<Integer, EncodedStringValue[]>(ADDRESS_FIELDS.length);
+            ContentValues values = getPduValues(pdu, addressMap, createThreadId, groupMmsEnabled);
+            PduBody body = getBody(pdu);
+            putBodyValues(values, body);
+
+            Uri partsUri = Uri.parse("content://mms/" + dummyId + "/part");
+            int partsNum = (body == null) ? 0 : body.getPartsNum();
+            String[] contentTypes = new String[partsNum];
+            int files = 0;
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>(partsNum + 2);
+            for (int i = 0; i < partsNum; i++) {
+                PduPart part = body.getPart(i);
+                ContentValues partValues = getPartValues(part);
+                contentTypes[i] = partValues.getAsString(Part.CONTENT_TYPE);
+                if (isTextPart(contentTypes[i])) {
+                    partValues.put(Part.TEXT, getPartText(part));
+                } else {
+                    files++;
+                }
+                operations.add(ContentProviderOperation.newInsert(partsUri)
+                        .withValues(partValues).build());
+            }
+
+            partUris = new Uri[partsNum];
+            written = true;
+            if (files > 0) {
+                getInsertedUris(applyBatch(operations), partUris);
+                persistPartData(body, partUris, contentTypes, files, preOpenedFiles,
+                        dataExecutor);
+                operations.clear();
+            }
+
+            int pduIndex = operations.size();
+            if (existingUri) {
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValues(values).build());
+            } else {
+                operations.add(ContentProviderOperation.newInsert(uri)
+                        .withValues(values).build());
+            }
+            // Only the rows inserted above get the message id.
+            for (int i = 0; i < partsNum; i++) {
+                ContentProviderOperation.Builder builder;
+                if (files > 0) {
+                    builder = ContentProviderOperation.newUpdate(partUris[i]);
+                } else {
+                    // The part was inserted by operation i of this batch.
+                    builder = ContentProviderOperation.newUpdate(partsUri)
+                            .withSelection(Part._ID + "=?", new String[1])
+                            .withSelectionBackReference(0, i);
+                }
+                if (existingUri) {
+                    builder.withValue(Part.MSG_ID, msgId);
+                } else {
+                    builder.withValueBackReference(Part.MSG_ID, pduIndex);
+                }
+                operations.add(builder.build());
+            }
+            if (existingUri) {
+                addAddressOperations(operations, msgId, addressMap);
+            }
+
+            ContentProviderResult[] results = applyBatch(operations);
+            if (files == 0) {
+                getInsertedUris(results, partUris);
+            }
+
+            Uri res = uri;
+            if (!existingUri) {
+                insertedUri = results[pduIndex].uri;
+                if (insertedUri == null) {
+                    throw new MmsException("persistBatched() failed: return null.");
+                }
+                msgId = ContentUris.parseId(insertedUri);
+                // The longest Uri of the PDU, as persist() returns.
+                res = Uri.parse(uri + "/" + msgId);
+
+                operations.clear();
+                addAddressOperations(operations, msgId, addressMap);
+                if (!operations.isEmpty()) {
+                    applyBatch(operations);
+                }
+            }
+
+            for (int i = 0; i < partsNum; i++) {
+                body.getPart(i).setDataUri(partUris[i]);
+            }
+            stored = true;
+            return res;
+        } finally {
+            if (written && !stored) {
+                rollBack(dummyId, partUris, insertedUri);
+            }
+            endUpdate(uri, update);
+        }
+    }
+
+    /**
+     * Write the data of the parts which aren't text, after their rows are
+     * inserted. Each writer reuses one transfer buffer for all its parts.
+     */
+    private void persistPartData(final PduBody body, final Uri[] partUris,
+            final String[] contentTypes, int files,
+            final HashMap<Uri, InputStream> preOpenedFiles, Executor executor)
+            throws MmsException {
+        if (executor == null) {
+            byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+            for (int i = 0; i < partUris.length; i++) {
+                if (!isTextPart(contentTypes[i])) {
+                    persistData(body.getPart(i), partUris[i], contentTypes[i],
+                            preOpenedFiles, buffer);
+                }
+            }
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final AtomicReference<Error> error = new AtomicReference<Error>();
+        int writers = Math.min(MAX_CONCURRENT_PART_WRITES, files);
+        final CountDownLatch done = new CountDownLatch(writers);
+        Runnable writer = new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+                try {
+                    int i;
+                    // Stop at the first failure, as the message is rolled back.
+                    while ((failure.get() == null) && (error.get() == null)
+                            && ((i = next.getAndIncrement()) < partUris.length)) {
+                        if (!isTextPart(contentTypes[i])) {
+                            persistData(body.getPart(i), partUris[i], contentTypes[i],
+                                    preOpenedFiles, buffer);
+                        }
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } catch (Error e) {
+                    // Rethrown on the calling thread, once no writer is left.
+                    error.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < writers; i++) {
+            try {
+                executor.execute(writer);
+            } catch (RejectedExecutionException e) {
+                writer.run();
+            }
+        }
+
+        // The rows can't be rolled back while the data is being written.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+        if (failure.get() != null) {
+            throw toMmsException(failure.get());
+        }
+    }
+
+    /**
+     * Delete what a failed persistBatched() stored: the parts it inserted,
+     * and the PDU if it was inserted. If the Uris of the parts aren't all
+     * known, because their batch failed, the parts with the dummy message
+     * id of the call are deleted instead.
+     */
+    private void rollBack(long dummyId, Uri[] partUris, Uri insertedUri) {
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Rolling back message " + ((insertedUri == null) ? dummyId : insertedUri));
+        }
+        boolean unknownParts = false;
+        for (Uri partUri : partUris) {
+            if (partUri == null) {
+                unknownParts = true;
+            } else {
+                SqliteWrapper.delete(mContext, mContentResolver, partUri, null, null);
+            }
+        }
+        if (unknownParts) {
+            SqliteWrapper.delete(mContext, mContentResolver,
+                    Uri.parse("content://mms/" + dummyId + "/part"), null, null);
+        }
+        if (insertedUri != null) {
+            // Deletes the parts and addresses of the PDU too.
+            SqliteWrapper.delete(mContext, mContentResolver, insertedUri, null, null);
+        }
+    }
+
+    private void addAddressOperations(ArrayList<ContentProviderOperation> operations,
+            long msgId, HashMap<Integer, EncodedStringValue[]> addressMap) {
+        Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
+        for (int addrType : ADDRESS_FIELDS) {
+            EncodedStringValue[] array = addressMap.get(addrType);
+            if (array != null) {
+                for (EncodedStringValue addr : array) {
+                    operations.add(ContentProviderOperation.newInsert(uri)
+                            .withValues(getAddressValues(addrType, addr)).build());
+                }
+            }
+        }
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws MmsException {
+        ContentProviderResult[] results = SqliteWrapper.applyBatch(mContext, mContentResolver,
+                Mms.CONTENT_URI.getAuthority(), operations);
+        if ((results == null) || (results.length != operations.size())) {
+            throw new MmsException("persistBatched() failed: batch not applied.");
+        }
+        return results;
+    }
+
+    /**
+     * Copy the Uris of the parts inserted by the first operations of a batch.
+     */
+    private static void getInsertedUris(ContentProviderResult[] results, Uri[] uris)
+            throws MmsException {
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = results[i].uri;
+            if (uris[i] == null) {
+                throw new MmsException("Failed to persist part, return null.");
+            }
+        }
+    }
+
+    /**
+     * @return the id of the PDU at the Uri, or -1 if it's the Uri of a
+     *         message box
+     * @throws MmsException the Uri is neither a PDU nor a message box
+     */
+    private static long getMessageId(Uri uri) throws MmsException {
         if (uri == null) {
             throw new MmsException("Uri may not be null.");
         }
@@ -1249,33 +1887,27 @@ public class PduPersister {
         } catch (NumberFormatException e) {
             // the uri ends with "inbox" or something else like that
         }
-        boolean existingUri = msgId != -1;
 
-        if (!existingUri && MESSAGE_BOX_MAP.get(uri) == null) {
+        if ((msgId == -1) && (MESSAGE_BOX_MAP.get(uri) == null)) {
             throw new MmsException(
                     "Bad destination, must be one of "
                     + "content://mms/inbox, content://mms/sent, "
                     + "content://mms/drafts, content://mms/outbox, "
                     + "content://mms/temp.");
         }
-        synchronized(PDU_CACHE_INSTANCE) {
-            // If the cache item is getting updated, wait until it's done updating before
-            // purging it.
-            if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                if (LOCAL_LOGV) {
-                    Log.v(TAG, "persist: " + uri + " blocked by isUpdating()");
-                }
-                try {
-                    PDU_CACHE_INSTANCE.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "persist1: ", e);
-                }
-            }
-        }
-        PDU_CACHE_INSTANCE.purge(uri);
+        return msgId;
+    }
 
+    /**
+     * Get the columns of the PDU row for the headers of a PDU, and find
+     * or create its thread if asked to.
+     *
+     * @param addressMap filled with the addresses of the PDU, by type
+     */
+    private ContentValues getPduValues(GenericPdu pdu,
+            HashMap<Integer, EncodedStringValue[]> addressMap, boolean createThreadId,
+            boolean groupMmsEnabled) {
         PduHeaders header = pdu.getPduHeaders();
-        PduBody body = null;
         ContentValues values = new ContentValues();
         Set<Entry<Integer, String>> set;
 
@@ -1314,8 +1946,6 @@ public class PduPersister {
             }
         }
 
-        HashMap<Integer, EncodedStringValue[]> addressMap =
-                new HashMap<Integer, EncodedStringValue[]>(ADDRESS_FIELDS.length);
         // Save address information.
         for (int addrType : ADDRESS_FIELDS) {
             EncodedStringValue[] array = null;
@@ -1372,42 +2002,44 @@ public class PduPersister {
             }
             values.put(Mms.THREAD_ID, threadId);
         }
+        return values;
+    }
 
-        // Save parts first to avoid inconsistent message is loaded
-        // while saving the parts.
-        long dummyId = System.currentTimeMillis(); // Dummy ID of the msg.
-
+    /**
+     * Put the columns of the PDU row which summarize its body.
+     */
+    private static void putBodyValues(ContentValues values, PduBody body) {
         // Figure out if this PDU is a text-only message
         boolean textOnly = true;
 
         // Sum up the total message size
         int messageSize = 0;
 
-        // Get body if the PDU is a RetrieveConf or SendReq.
-        if (pdu instanceof MultimediaMessagePdu) {
-            body = ((MultimediaMessagePdu) pdu).getBody();
-            // Start saving parts if necessary.
-            if (body != null) {
-                int partsNum = body.getPartsNum();
-                if (partsNum > 2) {
-                    // For a text-only message there will be two parts: 1-the SMIL, 2-the text.
-                    // Down a few lines below we're checking to make sure we've only got SMIL or
-                    // text. We also have to check then we don't have more than two parts.
-                    // Otherwise, a slideshow with two text slides would be marked as textOnly.
-                    textOnly = false;
-                }
-                for (int i = 0; i < partsNum; i++) {
-                    PduPart part = body.getPart(i);
+        if (body != null) {
+            int partsNum = body.getPartsNum();
+            if (partsNum > 2) {
+                // For a text-only message there will be two parts: 1-the SMIL, 2-the text.
+                // Down a few lines below we're checking to make sure we've only got SMIL or
+                // text. We also have to check then we don't have more than two parts.
+                // Otherwise, a slideshow with two text slides would be marked as textOnly.
+                textOnly = false;
+            }
+            for (int i = 0; i < partsNum; i++) {
+                PduPart part = body.getPart(i);
+                if (part.hasPendingData()) {
+                    // Don't load the data just to size it. Like data which is
+                    // only at a Uri, data of unknown length adds nothing.
+                    messageSize += Math.max(0, part.getPendingDataLength());
+                } else {
                     messageSize += part.getDataLength();
-                    persistPart(part, dummyId, preOpenedFiles);
-
-                    // If we've got anything besides text/plain or SMIL part, then we've got
-                    // an mms message with some other type of attachment.
-                    String contentType = getPartContentType(part);
-                    if (contentType != null && !ContentType.APP_SMIL.equals(contentType)
-                            && !ContentType.TEXT_PLAIN.equals(contentType)) {
-                        textOnly = false;
-                    }
+                }
+
+                // If we've got anything besides text/plain or SMIL part, then we've got
+                // an mms message with some other type of attachment.
+                String contentType = getPartContentType(part);
+                if (contentType != null && !ContentType.APP_SMIL.equals(contentType)
+                        && !ContentType.TEXT_PLAIN.equals(contentType)) {
+                    textOnly = false;
                 }
             }
         }
@@ -1419,44 +2051,11 @@ public class PduPersister {
         if (values.getAsInteger(Mms.MESSAGE_SIZE) == null) {
             values.put(Mms.MESSAGE_SIZE, messageSize);
         }
+    }
 
-        Uri res = null;
-        if (existingUri) {
-            res = uri;
-            SqliteWrapper.update(mContext, mContentResolver, res, values, null, null);
-        } else {
-            res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
-            if (res == null) {
-                throw new MmsException("persist() failed: return null.");
-            }
-            // Get the real ID of the PDU and update all parts which were
-            // saved with the dummy ID.
-            msgId = ContentUris.parseId(res);
-        }
-
-        values = new ContentValues(1);
-        values.put(Part.MSG_ID, msgId);
-        SqliteWrapper.update(mContext, mContentResolver,
-                             Uri.parse("content://mms/" + dummyId + "/part"),
-                             values, null, null);
-        // We should return the longest URI of the persisted PDU, for
-        // example, if input URI is "content://mms/inbox" and the _ID of
-        // persisted PDU is '8', we should return "content://mms/inbox/8"
-        // instead of "content://mms/8".
-        // FIXME: Should the MmsProvider be responsible for this???
-        if (!existingUri) {
-            res = Uri.parse(uri + "/" + msgId);
-        }
-
-        // Save address information.
-        for (int addrType : ADDRESS_FIELDS) {
-            EncodedStringValue[] array = addressMap.get(addrType);
-            if (array != null) {
-                persistAddress(msgId, addrType, array);
-            }
-        }
-
-        return res;
+    private static PduBody getBody(GenericPdu pdu) {
+        return (pdu instanceof MultimediaMessagePdu)
+                ? ((MultimediaMessagePdu) pdu).getBody() : null;
     }
 
     /**
@@ -1525,6 +2124,49 @@ public class PduPersister {
         return ContentUris.withAppendedId(to, msgId);
     }
 
+    /**
+     * Load the PDU of a message id, as {@link #load(Uri)} does.
+     */
+    @Override
+    public GenericPdu load(long msgId) throws MmsException {
+        return load(ContentUris.withAppendedId(Mms.CONTENT_URI, msgId));
+    }
+
+    /**
+     * Persist a new PDU in a message box, creating a thread id for its
+     * sender, as {@link #persist(GenericPdu, Uri, boolean, boolean, HashMap)}
+     * does.
+     */
+    @Override
+    public long persist(GenericPdu pdu, int msgBox) throws MmsException {
+        Uri res = persist(pdu, getMessageBoxUri(msgBox), true, false, null);
+        return ContentUris.parseId(res);
+    }
+
+    @Override
+    public void updateHeaders(long msgId, SendReq sendReq) {
+        updateHeaders(ContentUris.withAppendedId(Mms.CONTENT_URI, msgId), sendReq);
+    }
+
+    @Override
+    public void updateParts(long msgId, PduBody body) throws MmsException {
+        updateParts(ContentUris.withAppendedId(Mms.CONTENT_URI, msgId), body, null);
+    }
+
+    @Override
+    public void move(long msgId, int msgBox) throws MmsException {
+        move(ContentUris.withAppendedId(Mms.CONTENT_URI, msgId), getMessageBoxUri(msgBox));
+    }
+
+    private static Uri getMessageBoxUri(int msgBox) throws MmsException {
+        for (Map.Entry<Uri, Integer> e : MESSAGE_BOX_MAP.entrySet()) {
+            if (e.getValue() == msgBox) {
+                return e.getKey();
+            }
+        }
+        throw new MmsException("Bad message box: " + msgBox);
+    }
+
     /**
      * Wrap a byte[] into a String.
      */
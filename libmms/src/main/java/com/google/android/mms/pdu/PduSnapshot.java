@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.net.Uri;
+
+import com.google.android.mms.MmsException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A compact binary snapshot of a loaded pdu, from which it is rebuilt
+ * without the provider, for caching pdus on disk.
+ *
+ * A snapshot holds the headers of the pdu and of its parts, with lengths
+ * and integers as WSP Uintvar-integers and Long-integers, and the well
+ * known content types as their assigned numbers. The data of the parts
+ * which is in memory is held in the snapshot; the data of parts which is
+ * only at their data Uri is referred to by the Uri.
+ *
+ * A snapshot starts with MAGIC and VERSION, and snapshots of another
+ * version are rejected, so that they are loaded from the provider again.
+ */
+public final class PduSnapshot {
+    private static final int MAGIC = 0x4D4D5350;
+    private static final int VERSION = 1;
+
+    /**
+     * Bits of the flags of a part, set for the values which follow.
+     */
+    private static final int PART_CHARSET = 0x001;
+    private static final int PART_CONTENT_TYPE = 0x002;
+    private static final int PART_CONTENT_ID = 0x004;
+    private static final int PART_CONTENT_LOCATION = 0x008;
+    private static final int PART_CONTENT_DISPOSITION = 0x010;
+    private static final int PART_CONTENT_TRANSFER_ENCODING = 0x020;
+    private static final int PART_NAME = 0x040;
+    private static final int PART_FILENAME = 0x080;
+    private static final int PART_DATA_URI = 0x100;
+    private static final int PART_DATA = 0x200;
+    /**
+     * The data of the part was to be loaded from its data Uri when it is
+     * accessed.
+     */
+    private static final int PART_PENDING_DATA = 0x400;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private PduSnapshot() {
+    }
+
+    /**
+     * Take a snapshot of a pdu.
+     *
+     * @param pdu the pdu
+     * @return the snapshot
+     */
+    public static byte[] write(GenericPdu pdu) {
+        Output out = new Output();
+        out.writeInt(MAGIC);
+        out.writeOctet(VERSION);
+        pdu.getPduHeaders().writeSnapshot(out);
+
+        PduBody body = (pdu instanceof MultimediaMessagePdu)
+                ? ((MultimediaMessagePdu) pdu).getBody() : null;
+        if (null == body) {
+            out.writeOctet(0);
+        } else {
+            out.writeOctet(1);
+            int partsNum = body.getPartsNum();
+            out.writeUintvar(partsNum);
+            for (int i = 0; i < partsNum; i++) {
+                writePart(out, body.getPart(i));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuild a pdu from its snapshot. Parts whose data was only at their
+     * data Uri have only the Uri.
+     *
+     * @param snapshot the snapshot
+     * @return the pdu
+     * @throws IOException if the snapshot is corrupt or of another version
+     * @throws MmsException if the message type is not supported
+     */
+    public static GenericPdu read(byte[] snapshot) throws IOException, MmsException {
+        return read(snapshot, null);
+    }
+
+    /**
+     * Rebuild a pdu from its snapshot.
+     *
+     * @param snapshot the snapshot
+     * @param loader loads the data of the parts whose data was to be loaded
+     *        from their data Uri when accessed, or null to leave them
+     *        with only the Uri
+     * @return the pdu
+     * @throws IOException if the snapshot is corrupt or of another version
+     * @throws MmsException if the message type is not supported
+     */
+    static GenericPdu read(byte[] snapshot, PduPart.DataLoader loader)
+            throws IOException, MmsException {
+        Input in = new Input(snapshot);
+        if ((in.readInt() != MAGIC) || (in.readOctet() != VERSION)) {
+            throw new IOException("Not a snapshot of version " + VERSION);
+        }
+        PduHeaders headers = PduHeaders.readSnapshot(in);
+
+        PduBody body = null;
+        if (in.readOctet() != 0) {
+            body = new PduBody();
+            int partsNum = in.readLength();
+            for (int i = 0; i < partsNum; i++) {
+                body.addPart(readPart(in, loader));
+            }
+        }
+        if (in.remaining() != 0) {
+            throw new IOException("Corrupt snapshot");
+        }
+        return GenericPdu.create(headers, body);
+    }
+
+    private static void writePart(Output out, PduPart part) {
+        int charset = part.getCharset();
+        byte[] contentType = part.getContentType();
+        byte[] contentId = part.getContentId();
+        byte[] contentLocation = part.getContentLocation();
+        byte[] contentDisposition = part.getContentDisposition();
+        byte[] contentTransferEncoding = part.getContentTransferEncoding();
+        byte[] name = part.getName();
+        byte[] filename = part.getFilename();
+        Uri uri = part.getDataUri();
+        boolean pending = part.hasPendingData();
+        ByteBuffer data = pending ? null : part.getDataBuffer();
+
+        int flags = 0;
+        flags |= (charset != 0) ? PART_CHARSET : 0;
+        flags |= (contentType != null) ? PART_CONTENT_TYPE : 0;
+        flags |= (contentId != null) ? PART_CONTENT_ID : 0;
+        flags |= (contentLocation != null) ? PART_CONTENT_LOCATION : 0;
+        flags |= (contentDisposition != null) ? PART_CONTENT_DISPOSITION : 0;
+        flags |= (contentTransferEncoding != null) ? PART_CONTENT_TRANSFER_ENCODING : 0;
+        flags |= (name != null) ? PART_NAME : 0;
+        flags |= (filename != null) ? PART_FILENAME : 0;
+        flags |= (uri != null) ? PART_DATA_URI : 0;
+        flags |= (data != null) ? PART_DATA : 0;
+        flags |= pending ? PART_PENDING_DATA : 0;
+        out.writeUintvar(flags);
+
+        if (charset != 0) {
+            out.writeUintvar(charset);
+        }
+        if (contentType != null) {
+            int number = ContentTypeTable.getNumber(contentType);
+            if (number >= 0) {
+                out.writeUintvar((number << 1) | 1);
+            } else {
+                out.writeUintvar(contentType.length << 1);
+                out.write(contentType, 0, contentType.length);
+            }
+        }
+        writeIfSet(out, contentId);
+        writeIfSet(out, contentLocation);
+        writeIfSet(out, contentDisposition);
+        writeIfSet(out, contentTransferEncoding);
+        writeIfSet(out, name);
+        writeIfSet(out, filename);
+        if (uri != null) {
+            out.writeBytes(uri.toString().getBytes(UTF_8));
+        }
+        if (data != null) {
+            out.writeBytes(data);
+        }
+    }
+
+    private static PduPart readPart(Input in, PduPart.DataLoader loader) throws IOException {
+        PduPart part = new PduPart();
+        int flags = in.readUintvar();
+        if ((flags & PART_CHARSET) != 0) {
+            part.setCharset(in.readUintvar());
+        }
+        if ((flags & PART_CONTENT_TYPE) != 0) {
+            int code = in.readUintvar();
+            if ((code & 1) != 0) {
+                int number = code >>> 1;
+                if (number >= PduContentTypes.contentTypes.length) {
+                    throw new IOException("Corrupt content type " + number);
+                }
+                part.setContentType(ContentTypeTable.getBytes(number));
+            } else {
+                part.setContentType(in.readBytes(code >>> 1));
+            }
+        }
+        if ((flags & PART_CONTENT_ID) != 0) {
+            part.setContentId(in.readBytes());
+        }
+        if ((flags & PART_CONTENT_LOCATION) != 0) {
+            part.setContentLocation(in.readBytes());
+        }
+        if ((flags & PART_CONTENT_DISPOSITION) != 0) {
+            part.setContentDisposition(in.readBytes());
+        }
+        if ((flags & PART_CONTENT_TRANSFER_ENCODING) != 0) {
+            part.setContentTransferEncoding(in.readBytes());
+        }
+        if ((flags & PART_NAME) != 0) {
+            part.setName(in.readBytes());
+        }
+        if ((flags & PART_FILENAME) != 0) {
+            part.setFilename(in.readBytes());
+        }
+        if ((flags & PART_DATA_URI) != 0) {
+            part.setDataUri(Uri.parse(new String(in.readBytes(), UTF_8)));
+        }
+        if ((flags & PART_DATA) != 0) {
+            // The part keeps a view of the snapshot instead of a copy.
+            part.setDataBuffer(in.readBuffer());
+        }
+        if (((flags & PART_PENDING_DATA) != 0) && (part.getDataUri() != null)
+                && (loader != null)) {
+            part.setDataLoader(loader);
+        }
+        return part;
+    }
+
+    private static void writeIfSet(Output out, byte[] value) {
+        if (value != null) {
+            out.writeBytes(value);
+        }
+    }
+
+    /**
+     * Appends the values of a snapshot to a growing array.
+     */
+    static final class Output {
+        private byte[] mBuffer = new byte[256];
+        private int mCount = 0;
+
+        void writeOctet(int value) {
+            ensureCapacity(1);
+            mBuffer[mCount++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                mBuffer[mCount++] = (byte) (value >>> shift);
+            }
+        }
+
+        /**
+         * Write the 32 bits of an int as a Uintvar-integer.
+         */
+        void writeUintvar(int value) {
+            ensureCapacity(WspEncoder.MAX_INTEGER_SIZE);
+            mCount = WspEncoder.writeUintvar(mBuffer, mCount, value & 0xFFFFFFFFL);
+        }
+
+        void writeLongInteger(long value) {
+            ensureCapacity(WspEncoder.MAX_INTEGER_SIZE);
+            mCount = WspEncoder.writeLongInteger(mBuffer, mCount, value);
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, mBuffer, mCount, len);
+            mCount += len;
+        }
+
+        /**
+         * Write bytes after their length.
+         */
+        void writeBytes(byte[] value) {
+            writeUintvar(value.length);
+            write(value, 0, value.length);
+        }
+
+        /**
+         * Write the bytes between the position and the limit of a buffer
+         * after their length. The buffer itself is not modified.
+         */
+        void writeBytes(ByteBuffer value) {
+            int length = value.remaining();
+            writeUintvar(length);
+            ensureCapacity(length);
+            value.duplicate().get(mBuffer, mCount, length);
+            mCount += length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, mCount);
+        }
+
+        private void ensureCapacity(int length) {
+            if (mCount + length > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer,
+                        Math.max(mCount + length, mBuffer.length * 2));
+            }
+        }
+    }
+
+    /**
+     * Reads the values of a snapshot, failing at its end.
+     */
+    static final class Input {
+        private final WspDecoder mDecoder;
+
+        Input(byte[] snapshot) {
+            mDecoder = new WspDecoder(snapshot);
+        }
+
+        int remaining() {
+            return mDecoder.remaining();
+        }
+
+        int readOctet() throws IOException {
+            int octet = mDecoder.readOctet();
+            if (octet == -1) {
+                throw new EOFException();
+            }
+            return octet;
+        }
+
+        int readInt() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | readOctet();
+            }
+            return value;
+        }
+
+        /**
+         * Read a Uintvar-integer written by {@link Output#writeUintvar(int)}.
+         */
+        int readUintvar() throws IOException {
+            int value = 0;
+            int octet;
+            do {
+                octet = readOctet();
+                value = (value << 7) | (octet & 0x7F);
+            } while ((octet & 0x80) != 0);
+            return value;
+        }
+
+        /**
+         * Read a Uintvar-integer which is a count or a length.
+         */
+        int readLength() throws IOException {
+            int length = readUintvar();
+            if ((length < 0) || (length > mDecoder.remaining())) {
+                throw new IOException("Corrupt snapshot length " + length);
+            }
+            return length;
+        }
+
+        long readLongInteger() throws IOException {
+            int count = mDecoder.peekOctet();
+            if ((count < 0) || (count > WspDecoder.LONG_INTEGER_LENGTH_MAX)
+                    || (count >= remaining())) {
+                throw new IOException("Corrupt snapshot integer");
+            }
+            return mDecoder.readLongInteger();
+        }
+
+        /**
+         * Read bytes after their length.
+         */
+        byte[] readBytes() throws IOException {
+            return readBytes(readLength());
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            if ((length < 0) || (length > remaining())) {
+                throw new IOException("Corrupt snapshot length " + length);
+            }
+            byte[] value = new byte[length];
+            mDecoder.read(value, 0, length);
+            return value;
+        }
+
+        /**
+         * Read bytes after their length, as a view of the snapshot.
+         */
+        ByteBuffer readBuffer() throws IOException {
+            return mDecoder.slice(readLength());
+        }
+    }
+}
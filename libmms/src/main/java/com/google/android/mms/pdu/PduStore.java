@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import com.google.android.mms.MmsException;
+
+/**
+ * Storage of PDUs, keyed on message ids and filed in message boxes.
+ *
+ * {@link PduPersister} stores them in the MmsProvider, {@link FilePduStore}
+ * in files, which needs no Android framework.
+ */
+public interface PduStore {
+    /**
+     * Load a stored PDU.
+     *
+     * @param msgId the id of the message
+     * @return the PDU, which may be cast to the class of its message type
+     * @throws MmsException if the message isn't stored or can't be loaded
+     */
+    GenericPdu load(long msgId) throws MmsException;
+
+    /**
+     * Store a new PDU.
+     *
+     * @param pdu the PDU. The data of its parts is stored as well.
+     * @param msgBox the message box to file it in, one of the
+     *        MESSAGE_BOX_* constants of Telephony.Mms
+     * @return the id of the new message
+     * @throws MmsException if the PDU can't be stored
+     */
+    long persist(GenericPdu pdu, int msgBox) throws MmsException;
+
+    /**
+     * Replace the headers of a stored M-Send.req, keeping its parts.
+     *
+     * @param msgId the id of the message
+     * @param sendReq the PDU holding the new headers
+     * @throws MmsException if the message can't be updated
+     */
+    void updateHeaders(long msgId, SendReq sendReq) throws MmsException;
+
+    /**
+     * Replace the parts of a stored message, keeping its headers.
+     *
+     * @param msgId the id of the message
+     * @param body the new parts
+     * @throws MmsException if the message can't be updated
+     */
+    void updateParts(long msgId, PduBody body) throws MmsException;
+
+    /**
+     * File a stored message in another message box.
+     *
+     * @param msgId the id of the message
+     * @param msgBox the message box, one of the MESSAGE_BOX_* constants of
+     *        Telephony.Mms
+     * @throws MmsException if the message can't be moved
+     */
+    void move(long msgId, int msgBox) throws MmsException;
+}
@@ -17,11 +17,36 @@
 
 package com.google.android.mms.pdu;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 public class QuotedPrintable {
     private static byte ESCAPE_CHAR = '=';
 
+    /**
+     * The values of the hexadecimal digits, -1 for other bytes.
+     */
+    private static final byte[] HEX_DIGITS = new byte[256];
+
+    static {
+        for (int i = 0; i < HEX_DIGITS.length; i++) {
+            HEX_DIGITS[i] = -1;
+        }
+        for (int i = '0'; i <= '9'; i++) {
+            HEX_DIGITS[i] = (byte) (i - '0');
+        }
+        for (int i = 'A'; i <= 'F'; i++) {
+            HEX_DIGITS[i] = (byte) (i - 'A' + 10);
+            HEX_DIGITS[i - 'A' + 'a'] = (byte) (i - 'A' + 10);
+        }
+    }
+
+    /**
+     * Number of bytes decoded at a time out of buffers which aren't backed
+     * by an accessible array.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
     /**
      * Decodes an array quoted-printable characters into an array of original bytes.
      * Escaped characters are converted back to their original representation.
@@ -40,29 +65,288 @@ public class QuotedPrintable {
         if (bytes == null) {
             return null;
         }
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        for (int i = 0; i < bytes.length; i++) {
-            int b = bytes[i];
-            if (b == ESCAPE_CHAR) {
-                try {
-                    if('\r' == (char)bytes[i + 1] &&
-                            '\n' == (char)bytes[i + 2]) {
-                        i += 2;
+        return decodeQuotedPrintable(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes the quoted-printable characters between the position and the
+     * limit of a buffer into an array of original bytes, like
+     * {@link #decodeQuotedPrintable(byte[])}. The buffer itself is not
+     * modified.
+     *
+     * @param bytes buffer of quoted-printable characters
+     * @return array of original bytes,
+     *         null if quoted-printable decoding is unsuccessful.
+     */
+    public static final byte[] decodeQuotedPrintable(ByteBuffer bytes) {
+        int length = getDecodedLength(bytes);
+        if (length < 0) {
+            return null;
+        }
+        byte[] decoded = new byte[length];
+        new Decoder().decode(bytes.duplicate(), decoded, 0);
+        return decoded;
+    }
+
+    /**
+     * Decodes the quoted-printable characters between the position and the
+     * limit of src into dst. The position of src is moved to its limit, and
+     * the position of dst past the decoded bytes.
+     *
+     * @param src buffer of quoted-printable characters
+     * @param dst buffer to decode into
+     * @return the number of bytes decoded,
+     *         -1 if quoted-printable decoding is unsuccessful; nothing is
+     *         decoded then.
+     * @throws BufferOverflowException if dst has less room than
+     *         {@link #getDecodedLength(ByteBuffer)} src; nothing is decoded
+     *         then.
+     */
+    public static int decodeQuotedPrintable(ByteBuffer src, ByteBuffer dst) {
+        int length = getDecodedLength(src);
+        if (length < 0) {
+            return -1;
+        } else if (dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+
+        Decoder decoder = new Decoder();
+        if (dst.hasArray()) {
+            decoder.decode(src, dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + length);
+        } else {
+            byte[] decoded = new byte[length];
+            decoder.decode(src, decoded, 0);
+            dst.put(decoded);
+        }
+        return length;
+    }
+
+    /**
+     * Count the bytes the quoted-printable characters between the position
+     * and the limit of a buffer decode into, without decoding them.
+     *
+     * @param bytes buffer of quoted-printable characters
+     * @return the length of the decoded data,
+     *         -1 if quoted-printable decoding is unsuccessful.
+     */
+    public static int getDecodedLength(ByteBuffer bytes) {
+        Decoder decoder = new Decoder();
+        int length;
+        if (bytes.hasArray()) {
+            int offset = bytes.arrayOffset();
+            length = decoder.count(bytes.array(), offset + bytes.position(),
+                    offset + bytes.limit());
+        } else {
+            ByteBuffer src = bytes.duplicate();
+            byte[] chunk = new byte[Math.min(src.remaining(), CHUNK_SIZE)];
+            length = 0;
+            while ((length >= 0) && src.hasRemaining()) {
+                int count = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, count);
+                int chunkLength = decoder.count(chunk, 0, count);
+                length = (chunkLength < 0) ? -1 : length + chunkLength;
+            }
+        }
+        return decoder.isComplete() ? length : -1;
+    }
+
+    /**
+     * Decodes quoted-printable characters given in pieces, keeping the
+     * escape which is incomplete at the end of a piece until the next one.
+     */
+    static final class Decoder {
+        /**
+         * Between escapes.
+         */
+        private static final int LITERAL = 0;
+
+        /**
+         * After an escape character.
+         */
+        private static final int ESCAPE = 1;
+
+        /**
+         * After an escape character and a CR, which must be the soft line
+         * break "=\r\n".
+         */
+        private static final int SOFT_LINE_BREAK = 2;
+
+        /**
+         * After an escape character and the first of its two hex digits.
+         */
+        private static final int SECOND_DIGIT = 3;
+
+        /**
+         * Returned by step() when the escape isn't complete yet.
+         */
+        private static final int NONE = -1;
+
+        /**
+         * Returned by step() for a malformed escape.
+         */
+        private static final int MALFORMED = -2;
+
+        private int mState = LITERAL;
+
+        /**
+         * The value of the first hex digit of the current escape.
+         */
+        private int mFirstDigit = 0;
+
+        /**
+         * @return true if the data ended outside of an escape.
+         */
+        boolean isComplete() {
+            return mState == LITERAL;
+        }
+
+        /**
+         * Decode the bytes between the position and the limit of src into
+         * dst, and move the position of src to its limit.
+         *
+         * @param src buffer of quoted-printable characters
+         * @param dst array to decode into, with room for src.remaining()
+         *        bytes
+         * @param out index in dst to decode at
+         * @return the index in dst after the decoded bytes,
+         *         -1 if quoted-printable decoding is unsuccessful.
+         */
+        int decode(ByteBuffer src, byte[] dst, int out) {
+            if (src.hasArray()) {
+                int offset = src.arrayOffset();
+                out = decode(src.array(), offset + src.position(), offset + src.limit(),
+                        dst, out);
+                src.position(src.limit());
+                return out;
+            }
+
+            byte[] chunk = new byte[Math.min(src.remaining(), CHUNK_SIZE)];
+            while ((out >= 0) && src.hasRemaining()) {
+                int count = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, count);
+                out = decode(chunk, 0, count, dst, out);
+            }
+            src.position(src.limit());
+            return out;
+        }
+
+        /**
+         * Decode src[off, end) into dst, like {@link #decode(ByteBuffer, byte[], int)}.
+         */
+        int decode(byte[] src, int off, int end, byte[] dst, int out) {
+            int i = off;
+            // Finish the escape left incomplete at the end of the last piece.
+            while ((mState != LITERAL) && (i < end)) {
+                int b = step(src[i++]);
+                if (b == MALFORMED) {
+                    return -1;
+                } else if (b != NONE) {
+                    dst[out++] = (byte) b;
+                }
+            }
+
+            while (i < end) {
+                byte b = src[i++];
+                if (b != ESCAPE_CHAR) {
+                    dst[out++] = b;
+                } else if (i + 1 < end) {
+                    int first = src[i];
+                    int second = src[i + 1];
+                    i += 2;
+                    if (('\r' == first) && ('\n' == second)) {
+                        // Soft line break.
+                        continue;
+                    }
+                    int u = HEX_DIGITS[first & 0xFF];
+                    int l = HEX_DIGITS[second & 0xFF];
+                    if ((u | l) < 0) {
+                        return -1;
+                    }
+                    dst[out++] = (byte) ((u << 4) + l);
+                } else {
+                    // The escape goes on in the next piece.
+                    mState = ESCAPE;
+                    if ((i < end) && (step(src[i++]) == MALFORMED)) {
+                        return -1;
+                    }
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Count the bytes src[off, end) decodes into, as
+         * {@link #decode(byte[], int, int, byte[], int)} would write.
+         *
+         * @return the number of bytes, -1 if quoted-printable decoding is
+         *         unsuccessful.
+         */
+        int count(byte[] src, int off, int end) {
+            int length = 0;
+            int i = off;
+            while ((mState != LITERAL) && (i < end)) {
+                int b = step(src[i++]);
+                if (b == MALFORMED) {
+                    return -1;
+                } else if (b != NONE) {
+                    length++;
+                }
+            }
+
+            while (i < end) {
+                if (src[i++] != ESCAPE_CHAR) {
+                    length++;
+                } else if (i + 1 < end) {
+                    int first = src[i];
+                    int second = src[i + 1];
+                    i += 2;
+                    if (('\r' == first) && ('\n' == second)) {
                         continue;
                     }
-                    int u = Character.digit((char) bytes[++i], 16);
-                    int l = Character.digit((char) bytes[++i], 16);
-                    if (u == -1 || l == -1) {
-                        return null;
+                    if ((HEX_DIGITS[first & 0xFF] | HEX_DIGITS[second & 0xFF]) < 0) {
+                        return -1;
+                    }
+                    length++;
+                } else {
+                    mState = ESCAPE;
+                    if ((i < end) && (step(src[i++]) == MALFORMED)) {
+                        return -1;
                     }
-                    buffer.write((char) ((u << 4) + l));
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    return null;
                 }
-            } else {
-                buffer.write(b);
             }
+            return length;
+        }
+
+        /**
+         * Take the next byte of an escape which spans pieces.
+         *
+         * @return the decoded byte, NONE if the escape goes on, or MALFORMED
+         */
+        private int step(int b) {
+            if (mState == ESCAPE) {
+                if (b == '\r') {
+                    mState = SOFT_LINE_BREAK;
+                } else if ((mFirstDigit = HEX_DIGITS[b & 0xFF]) >= 0) {
+                    mState = SECOND_DIGIT;
+                } else {
+                    return MALFORMED;
+                }
+                return NONE;
+            } else if (mState == SOFT_LINE_BREAK) {
+                if (b != '\n') {
+                    return MALFORMED;
+                }
+                mState = LITERAL;
+                return NONE;
+            }
+
+            int secondDigit = HEX_DIGITS[b & 0xFF];
+            if (secondDigit < 0) {
+                return MALFORMED;
+            }
+            mState = LITERAL;
+            return (mFirstDigit << 4) + secondDigit;
         }
-        return buffer.toByteArray();
     }
 }
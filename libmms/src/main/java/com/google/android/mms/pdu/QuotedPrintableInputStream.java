@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream which decodes the quoted-printable data read from another
+ * stream, a block at a time, for large text parts.
+ *
+ * Soft line breaks and escapes are decoded as by
+ * {@link QuotedPrintable#decodeQuotedPrintable(byte[])}; where that returns
+ * null, reading throws an IOException once the malformed escape is reached.
+ */
+public class QuotedPrintableInputStream extends DecodingInputStream {
+    private final QuotedPrintable.Decoder mDecoder = new QuotedPrintable.Decoder();
+
+    /**
+     * Constructor.
+     *
+     * @param in the stream of quoted-printable data
+     */
+    public QuotedPrintableInputStream(InputStream in) {
+        super(in, BLOCK_SIZE);
+    }
+
+    @Override
+    int decode(byte[] src, int length, byte[] dst) throws IOException {
+        int count = mDecoder.decode(src, 0, length, dst, 0);
+        if (count < 0) {
+            throw new IOException("Malformed quoted-printable escape");
+        }
+        return count;
+    }
+
+    @Override
+    int finish(byte[] dst) throws IOException {
+        if (!mDecoder.isComplete()) {
+            throw new IOException("Quoted-printable data ends in an escape");
+        }
+        return 0;
+    }
+}
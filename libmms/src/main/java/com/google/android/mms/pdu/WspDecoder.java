@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the WSP primitives of wap-230-wsp-20010705-a from a buffer.
+ *
+ * A decoder is a cursor over the bytes between the position and the limit
+ * of a {@link ByteBuffer}, heap or direct. It reads them by absolute index,
+ * never moving the position of the buffer, so the same buffer can back any
+ * number of decoders. A decoder is not thread safe.
+ *
+ * The decoders give the same results as the stream based parse methods of
+ * {@link PduParser} for the same input, including truncated input: a read
+ * past the end gives -1 where the stream read would.
+ */
+final class WspDecoder {
+    /**
+     * Types of strings for {@link #readString(int)}.
+     */
+    static final int TEXT_STRING = 0;
+    static final int QUOTED_STRING = 1;
+    static final int TOKEN_STRING = 2;
+
+    static final int QUOTE = 127;
+    static final int QUOTED_STRING_FLAG = 34;
+    static final int LENGTH_QUOTE = 31;
+    static final int SHORT_LENGTH_MAX = 30;
+    static final int SHORT_INTEGER_MAX = 127;
+    static final int LONG_INTEGER_LENGTH_MAX = 8;
+
+    /**
+     * The decoded bytes. Index 0 is the position of the buffer the decoder
+     * was created with.
+     */
+    private final ByteBuffer mBuffer;
+
+    /**
+     * The array backing mBuffer and the offset of index 0 in it, or null if
+     * the buffer is direct or read-only.
+     */
+    private final byte[] mArray;
+    private final int mArrayOffset;
+
+    private final int mLimit;
+    private int mPosition = 0;
+
+    /**
+     * Constructor. The bytes between the position and the limit of the
+     * buffer are decoded; the buffer itself is not modified.
+     *
+     * @param buffer the buffer to be decoded
+     */
+    WspDecoder(ByteBuffer buffer) {
+        mBuffer = buffer.slice();
+        mLimit = mBuffer.limit();
+        if (mBuffer.hasArray()) {
+            mArray = mBuffer.array();
+            mArrayOffset = mBuffer.arrayOffset();
+        } else {
+            mArray = null;
+            mArrayOffset = 0;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param data the bytes to be decoded
+     */
+    WspDecoder(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    int position() {
+        return mPosition;
+    }
+
+    void position(int position) {
+        if ((position < 0) || (position > mLimit)) {
+            throw new IllegalArgumentException("Bad position " + position);
+        }
+        mPosition = position;
+    }
+
+    int limit() {
+        return mLimit;
+    }
+
+    int remaining() {
+        return mLimit - mPosition;
+    }
+
+    /**
+     * @return the array backing the decoded bytes, or null if there isn't
+     *         one which can be read
+     */
+    byte[] array() {
+        return mArray;
+    }
+
+    /**
+     * @return the offset of index 0 in {@link #array()}
+     */
+    int arrayOffset() {
+        return mArrayOffset;
+    }
+
+    private int get(int index) {
+        return ((mArray != null) ? mArray[mArrayOffset + index] : mBuffer.get(index)) & 0xFF;
+    }
+
+    /**
+     * Get the octet at the position, without moving the position.
+     *
+     * @return the octet, or -1 at the end
+     */
+    int peekOctet() {
+        return (mPosition < mLimit) ? get(mPosition) : -1;
+    }
+
+    /**
+     * Read an octet.
+     *
+     * @return the octet, or -1 at the end
+     */
+    int readOctet() {
+        return (mPosition < mLimit) ? get(mPosition++) : -1;
+    }
+
+    /**
+     * Read up to len octets into an array.
+     *
+     * @return the number of octets read, -1 at the end
+     */
+    int read(byte[] b, int off, int len) {
+        if (mPosition == mLimit) {
+            return (len == 0) ? 0 : -1;
+        }
+        int count = Math.min(len, mLimit - mPosition);
+        if (mArray != null) {
+            System.arraycopy(mArray, mArrayOffset + mPosition, b, off, count);
+        } else {
+            ByteBuffer source = mBuffer.duplicate();
+            source.position(mPosition);
+            source.get(b, off, count);
+        }
+        mPosition += count;
+        return count;
+    }
+
+    /**
+     * Skip up to length octets.
+     *
+     * @return the number of octets skipped
+     */
+    int skip(int length) {
+        int count = Math.max(0, Math.min(length, mLimit - mPosition));
+        mPosition += count;
+        return count;
+    }
+
+    /**
+     * Take the next octets as a read-only view of the decoded buffer and
+     * skip over them. No data is copied.
+     *
+     * @param length the number of octets wanted
+     * @return a read-only buffer holding at most length octets
+     */
+    ByteBuffer slice(int length) {
+        int count = Math.max(0, Math.min(length, mLimit - mPosition));
+        ByteBuffer slice = mBuffer.duplicate();
+        slice.limit(mPosition + count);
+        slice.position(mPosition);
+        mPosition += count;
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Read a Uintvar-integer.
+     *
+     * @return the integer, -1 if the input ends within it
+     */
+    int readUintvar() {
+        int result = 0;
+        int octet;
+        do {
+            octet = readOctet();
+            if (octet == -1) {
+                return -1;
+            }
+            result = (result << 7) | (octet & 0x7F);
+        } while ((octet & 0x80) != 0);
+        return result;
+    }
+
+    /**
+     * Read a Value-length.
+     * Value-length = Short-length | (Length-quote Length)
+     *
+     * @return the length, -1 if the input ends within a Length
+     * @throws RuntimeException if the first octet is not a Value-length
+     */
+    int readValueLength() {
+        int first = readOctet() & 0xFF;
+        if (first <= SHORT_LENGTH_MAX) {
+            return first;
+        } else if (first == LENGTH_QUOTE) {
+            return readUintvar();
+        }
+        throw new RuntimeException("Value length > LENGTH_QUOTE!");
+    }
+
+    /**
+     * Read a Short-integer.
+     *
+     * @return the integer, in the low 7 bits of the octet
+     */
+    int readShortInteger() {
+        return readOctet() & 0x7F;
+    }
+
+    /**
+     * Read a Long-integer.
+     * Long-integer = Short-length Multi-octet-integer
+     *
+     * @return the integer
+     * @throws RuntimeException if it is longer than 8 octets
+     */
+    long readLongInteger() {
+        int count = readOctet() & 0xFF;
+        if (count > LONG_INTEGER_LENGTH_MAX) {
+            throw new RuntimeException("Octet count greater than 8 and I can't represent that!");
+        }
+        long result = 0;
+        for (int i = 0; i < count; i++) {
+            result <<= 8;
+            result += (readOctet() & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * Read an Integer-Value.
+     * Integer-Value = Short-integer | Long-integer
+     *
+     * @return the integer
+     */
+    long readIntegerValue() {
+        if (peekOctet() > SHORT_INTEGER_MAX) {
+            return readShortInteger();
+        }
+        return readLongInteger();
+    }
+
+    /**
+     * Read a Text-string, Quoted-string or Token-text, without its Quote,
+     * its quotation mark and its End-of-string. Octets which are not TEXT,
+     * or not token characters for a Token-text, are left out.
+     *
+     * @param stringType TEXT_STRING, QUOTED_STRING or TOKEN_STRING
+     * @return the string, null if it is empty
+     */
+    byte[] readString(int stringType) {
+        int first = peekOctet();
+        if (((stringType == QUOTED_STRING) && (first == QUOTED_STRING_FLAG))
+                || ((stringType == TEXT_STRING) && (first == QUOTE))) {
+            mPosition++;
+        }
+        return readStringContent(stringType);
+    }
+
+    /**
+     * Read the octets of a string up to its End-of-string, like
+     * {@link #readString(int)} but without looking for a leading Quote or
+     * quotation mark.
+     *
+     * @param stringType TEXT_STRING, QUOTED_STRING or TOKEN_STRING
+     * @return the string, null if it is empty
+     */
+    byte[] readStringContent(int stringType) {
+        int start = mPosition;
+        int end = start;
+        boolean allValid = true;
+        while (end < mLimit) {
+            int octet = get(end);
+            if (octet == 0) {
+                break;
+            }
+            if (!isValid(octet, stringType)) {
+                allValid = false;
+            }
+            end++;
+        }
+        // Skip the End-of-string too, if there is one.
+        mPosition = (end < mLimit) ? end + 1 : end;
+
+        if (allValid) {
+            return (end == start) ? null : copy(start, end - start);
+        }
+        int length = 0;
+        byte[] string = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            int octet = get(i);
+            if (isValid(octet, stringType)) {
+                string[length++] = (byte) octet;
+            }
+        }
+        if (length == 0) {
+            return null;
+        }
+        if (length == string.length) {
+            return string;
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(string, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private byte[] copy(int start, int length) {
+        byte[] copy = new byte[length];
+        if (mArray != null) {
+            System.arraycopy(mArray, mArrayOffset + start, copy, 0, length);
+        } else {
+            ByteBuffer source = mBuffer.duplicate();
+            source.position(start);
+            source.get(copy);
+        }
+        return copy;
+    }
+
+    private static boolean isValid(int octet, int stringType) {
+        return (stringType == TOKEN_STRING) ? isTokenCharacter(octet) : isText(octet);
+    }
+
+    /**
+     * Check TOKEN data defined in RFC2616.
+     * Token      = 1*<any CHAR except CTLs or separators>
+     * separators = "(" | ")" | "<" | ">" | "@" | "," | ";" | ":" | "\" | <">
+     *            | "/" | "[" | "]" | "?" | "=" | "{" | "}" | SP | HT
+     *
+     * @param ch checking data
+     * @return true when ch is TOKEN, false when ch is not TOKEN
+     */
+    static boolean isTokenCharacter(int ch) {
+        if ((ch < 33) || (ch > 126)) {
+            return false;
+        }
+
+        switch (ch) {
+            case '"':
+            case '(':
+            case ')':
+            case ',':
+            case '/':
+            case ':':
+            case ';':
+            case '<':
+            case '=':
+            case '>':
+            case '?':
+            case '@':
+            case '[':
+            case '\\':
+            case ']':
+            case '{':
+            case '}':
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Check TEXT data defined in RFC2616.
+     * TEXT = <any OCTET except CTLs, but including LWS>
+     *
+     * @param ch checking data
+     * @return true when ch is TEXT, false when ch is not TEXT
+     */
+    static boolean isText(int ch) {
+        if (((ch >= 32) && (ch <= 126)) || ((ch >= 128) && (ch <= 255))) {
+            return true;
+        }
+
+        switch (ch) {
+            case '\t':
+            case '\n':
+            case '\r':
+                return true;
+        }
+
+        return false;
+    }
+}
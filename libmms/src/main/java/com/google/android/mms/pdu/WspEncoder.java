@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+/**
+ * Encodes the WSP primitives of wap-230-wsp-20010705-a into an array.
+ *
+ * Each write method encodes a value at an absolute offset of the array and
+ * returns the offset after it; the array must have room for the value,
+ * which the size method of the same primitive gives. The encodings are
+ * those {@link PduComposer} always wrote, which {@link WspDecoder} decodes.
+ */
+final class WspEncoder {
+    /**
+     * The largest size of the integer primitives: a Long-integer is its
+     * Short-length and 8 octets, a Value-length its Length-quote and a
+     * Uintvar-integer of at most 6 octets.
+     */
+    static final int MAX_INTEGER_SIZE = 9;
+
+    private static final int END_OF_STRING = 0;
+
+    private WspEncoder() {
+    }
+
+    /**
+     * Write a Short-integer, keeping the low 7 bits of the value.
+     */
+    static int writeShortInteger(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value | 0x80);
+        return offset + 1;
+    }
+
+    /**
+     * Get the number of octets of a Uintvar-integer.
+     */
+    static int uintvarSize(long value) {
+        int size = 1;
+        long max = WspDecoder.SHORT_INTEGER_MAX;
+        while ((size < 6) && (value >= max)) {
+            max = (max << 7) | 0x7fl;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write a Uintvar-integer: 7-bit fragments of the value, the most
+     * significant first, with the Continue bit set in all but the last.
+     */
+    static int writeUintvar(byte[] dst, int offset, long value) {
+        int i = uintvarSize(value) - 1;
+        while (i > 0) {
+            dst[offset++] = (byte) (((value >>> (i * 7)) & 0x7f) | 0x80);
+            i--;
+        }
+        dst[offset++] = (byte) (value & 0x7f);
+        return offset;
+    }
+
+    /**
+     * Get the number of octets of a Value-length.
+     */
+    static int valueLengthSize(long value) {
+        if (value < WspDecoder.LENGTH_QUOTE) {
+            return 1;
+        }
+        return 1 + uintvarSize(value);
+    }
+
+    /**
+     * Write a Value-length.
+     * Value-length = Short-length | (Length-quote Length)
+     */
+    static int writeValueLength(byte[] dst, int offset, long value) {
+        if (value < WspDecoder.LENGTH_QUOTE) {
+            dst[offset] = (byte) value;
+            return offset + 1;
+        }
+        dst[offset] = (byte) WspDecoder.LENGTH_QUOTE;
+        return writeUintvar(dst, offset + 1, value);
+    }
+
+    /**
+     * Get the number of octets of a Long-integer.
+     */
+    static int longIntegerSize(long value) {
+        int size = 0;
+        for (long temp = value; (temp != 0) && (size < WspDecoder.LONG_INTEGER_LENGTH_MAX);
+                temp >>>= 8) {
+            size++;
+        }
+        return 1 + size;
+    }
+
+    /**
+     * Write a Long-integer: the Short-length of the value, then the value
+     * in as few octets as it fits in, the most significant first.
+     */
+    static int writeLongInteger(byte[] dst, int offset, long value) {
+        int size = longIntegerSize(value) - 1;
+        dst[offset++] = (byte) size;
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            dst[offset++] = (byte) (value >>> shift);
+        }
+        return offset;
+    }
+
+    /**
+     * Get the number of octets of an Integer-Value.
+     */
+    static int integerValueSize(long value) {
+        if ((value >= 0) && (value <= WspDecoder.SHORT_INTEGER_MAX)) {
+            return 1;
+        }
+        return longIntegerSize(value);
+    }
+
+    /**
+     * Write an Integer-Value.
+     * Integer-Value = Short-integer | Long-integer
+     */
+    static int writeIntegerValue(byte[] dst, int offset, long value) {
+        if ((value >= 0) && (value <= WspDecoder.SHORT_INTEGER_MAX)) {
+            return writeShortInteger(dst, offset, (int) value);
+        }
+        return writeLongInteger(dst, offset, value);
+    }
+
+    /**
+     * Check whether a Text-string needs a Quote: it does if its first
+     * octet is in the range of 128-255.
+     */
+    static boolean isQuoteNeeded(byte[] text) {
+        return (text[0] & 0xff) > WspDecoder.QUOTE;
+    }
+
+    /**
+     * Get the number of octets of a Text-string.
+     */
+    static int textStringSize(byte[] text) {
+        return (isQuoteNeeded(text) ? 1 : 0) + text.length + 1;
+    }
+
+    /**
+     * Write a Text-string.
+     * Text-string = [Quote] *TEXT End-of-string
+     */
+    static int writeTextString(byte[] dst, int offset, byte[] text) {
+        if (isQuoteNeeded(text)) {
+            dst[offset++] = (byte) WspDecoder.QUOTE;
+        }
+        System.arraycopy(text, 0, dst, offset, text.length);
+        offset += text.length;
+        dst[offset++] = END_OF_STRING;
+        return offset;
+    }
+
+    /**
+     * Get the number of octets of a Quoted-string.
+     */
+    static int quotedStringSize(byte[] text) {
+        return 1 + text.length + 1;
+    }
+
+    /**
+     * Write a Quoted-string.
+     * Quoted-string = <Octet 34> *TEXT End-of-string
+     */
+    static int writeQuotedString(byte[] dst, int offset, byte[] text) {
+        dst[offset++] = (byte) WspDecoder.QUOTED_STRING_FLAG;
+        System.arraycopy(text, 0, dst, offset, text.length);
+        offset += text.length;
+        dst[offset++] = END_OF_STRING;
+        return offset;
+    }
+}
@@ -19,8 +19,26 @@ package com.google.android.mms.util;
 
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A cache bounded both in number of entries and in estimated bytes. When it
+ * is full the least recently used entries are evicted, but only to make room
+ * for an entry which is asked for at least as often as the entries it would
+ * evict (TinyLFU admission), so that a scan through many entries which are
+ * used once doesn't flush the entries in use.
+ *
+ * Subclasses estimate the size of their entries by overriding
+ * {@link #sizeOf(Object, Object)}.
+ *
+ * {@link #get(Object)} may be called from any thread and doesn't lock, so
+ * it only marks the entry as used. The entries are kept in the order they
+ * were put, and an entry which has been used since it was last considered
+ * for eviction is moved to the back instead of being evicted (second
+ * chance), which approximates least recently used order. All the other
+ * methods which change the cache must be serialized by the caller.
+ */
 public abstract class AbstractCache<K, V> {
     private static final String TAG = "AbstractCache";
     private static final boolean DEBUG = false;
@@ -28,10 +46,61 @@ public abstract class AbstractCache<K, V> {
 
     private static final int MAX_CACHED_ITEMS  = 500;
 
-    private final HashMap<K, CacheEntry<V>> mCacheMap;
+    private final ConcurrentHashMap<K, CacheEntry<K, V>> mCacheMap;
+
+    /**
+     * The cached entries, from the next one to be considered for eviction.
+     * Only changed while the cache is being changed.
+     */
+    private CacheEntry<K, V> mHead;
+    private CacheEntry<K, V> mTail;
+
+    /**
+     * How often keys have been asked for, including keys not cached.
+     */
+    private final FrequencySketch mSketch;
+
+    private int mMaxEntries;
+    private long mMaxBytes;
+    private long mBytes;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private long mEvictionCount;
 
     protected AbstractCache() {
-        mCacheMap = new HashMap<K, CacheEntry<V>>();
+        this(MAX_CACHED_ITEMS, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries
+     * @param maxBytes the maximum total of the sizes of the entries,
+     *        as estimated by {@link #sizeOf(Object, Object)}
+     */
+    protected AbstractCache(int maxEntries, long maxBytes) {
+        if ((maxEntries <= 0) || (maxBytes <= 0)) {
+            throw new IllegalArgumentException("Invalid cache capacity");
+        }
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mCacheMap = new ConcurrentHashMap<K, CacheEntry<K, V>>();
+        mSketch = new FrequencySketch(maxEntries);
+    }
+
+    /**
+     * Estimate the size of an entry in bytes. The size of an entry must not
+     * change while it is cached. The default size is 0, so that only the
+     * number of entries is bounded.
+     */
+    protected long sizeOf(K key, V value) {
+        return 0;
+    }
+
+    /**
+     * Called when an entry is evicted to make room for another one, or
+     * because the capacity was reduced. Not called for purged entries.
+     */
+    protected void onEvicted(K key, V value) {
     }
 
     public boolean put(K key, V value) {
@@ -39,26 +108,40 @@ public abstract class AbstractCache<K, V> {
             Log.v(TAG, "Trying to put " + key + " into cache.");
         }
 
-        if (mCacheMap.size() >= MAX_CACHED_ITEMS) {
-            // TODO Should remove the oldest or least hit cached entry
-            // and then cache the new one.
+        if (key == null) {
+            return false;
+        }
+
+        mSketch.increment(key);
+        long size = sizeOf(key, value);
+        if (size > mMaxBytes) {
             if (LOCAL_LOGV) {
-                Log.v(TAG, "Failed! size limitation reached.");
+                Log.v(TAG, "Failed! " + key + " is larger than the cache.");
             }
             return false;
         }
 
-        if (key != null) {
-            CacheEntry<V> cacheEntry = new CacheEntry<V>();
-            cacheEntry.value = value;
-            mCacheMap.put(key, cacheEntry);
-
+        CacheEntry<K, V> previous = mCacheMap.get(key);
+        if (previous != null) {
+            // Replacing an entry, which doesn't need to be admitted again.
+            remove(previous);
+            trimTo(mMaxEntries - 1, mMaxBytes - size);
+        } else if (!makeRoom(key, size)) {
             if (LOCAL_LOGV) {
-                Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
+                Log.v(TAG, "Failed! " + key + " is used less than the entries to evict.");
             }
-            return true;
+            return false;
+        }
+
+        CacheEntry<K, V> cacheEntry = new CacheEntry<K, V>(key, value, size);
+        append(cacheEntry);
+        mCacheMap.put(key, cacheEntry);
+        mBytes += size;
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
         }
-        return false;
+        return true;
     }
 
     public V get(K key) {
@@ -67,24 +150,40 @@ public abstract class AbstractCache<K, V> {
         }
 
         if (key != null) {
-            CacheEntry<V> cacheEntry = mCacheMap.get(key);
+            mSketch.increment(key);
+            CacheEntry<K, V> cacheEntry = mCacheMap.get(key);
             if (cacheEntry != null) {
-                cacheEntry.hit++;
-                if (LOCAL_LOGV) {
-                    Log.v(TAG, key + " hit " + cacheEntry.hit + " times.");
+                // Only written once, so that hits on the same entry don't
+                // keep invalidating each other's caches.
+                if (!cacheEntry.used) {
+                    cacheEntry.used = true;
                 }
+                mHitCount.incrementAndGet();
                 return cacheEntry.value;
             }
         }
+        mMissCount.incrementAndGet();
         return null;
     }
 
+    /**
+     * Look up an entry without counting it as a hit or a miss, or as a use
+     * of the entry.
+     */
+    protected V peek(K key) {
+        CacheEntry<K, V> cacheEntry = (key == null) ? null : mCacheMap.get(key);
+        return (cacheEntry != null) ? cacheEntry.value : null;
+    }
+
     public V purge(K key) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to purge " + key);
         }
 
-        CacheEntry<V> v = mCacheMap.remove(key);
+        CacheEntry<K, V> v = (key == null) ? null : mCacheMap.get(key);
+        if (v != null) {
+            remove(v);
+        }
 
         if (LOCAL_LOGV) {
             Log.v(TAG, mCacheMap.size() + " items cached.");
@@ -99,14 +198,272 @@ public abstract class AbstractCache<K, V> {
                     + " items dropped.");
         }
         mCacheMap.clear();
+        mHead = null;
+        mTail = null;
+        mBytes = 0;
     }
 
     public int size() {
         return mCacheMap.size();
     }
 
-    private static class CacheEntry<V> {
-        int hit;
-        V value;
+    /**
+     * @return the total of the estimated sizes of the cached entries
+     */
+    public long sizeInBytes() {
+        return mBytes;
+    }
+
+    public int maxSize() {
+        return mMaxEntries;
+    }
+
+    public long maxSizeInBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Change the capacity of the cache, evicting the least recently used
+     * entries which don't fit any more.
+     */
+    public void setMaxSize(int maxEntries, long maxBytes) {
+        if ((maxEntries <= 0) || (maxBytes <= 0)) {
+            throw new IllegalArgumentException("Invalid cache capacity");
+        }
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mSketch.ensureCapacity(maxEntries);
+        trimTo(maxEntries, maxBytes);
+    }
+
+    /**
+     * @return the number of times {@link #get(Object)} returned a value
+     */
+    public long hitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of times {@link #get(Object)} returned null
+     */
+    public long missCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the number of entries evicted to make room
+     */
+    public long evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Evict least recently used entries so that a new entry fits, if the
+     * new entry is used at least as often as each of them.
+     *
+     * @return false if the new entry is not admitted
+     */
+    private boolean makeRoom(K key, long size) {
+        if ((mCacheMap.size() < mMaxEntries) && (mBytes + size <= mMaxBytes)) {
+            return true;
+        }
+        int victims = selectVictims(mMaxEntries - 1, mMaxBytes - size, mSketch.frequency(key));
+        if (victims < 0) {
+            return false;
+        }
+        evict(victims);
+        return true;
+    }
+
+    /**
+     * Evict least recently used entries until the cache holds at most
+     * maxEntries entries and maxBytes bytes.
+     */
+    private void trimTo(int maxEntries, long maxBytes) {
+        evict(selectVictims(maxEntries, maxBytes, FrequencySketch.MAX_COUNT));
+    }
+
+    /**
+     * Find how many entries from the head of the queue have to be evicted
+     * so that the cache holds at most maxEntries entries and maxBytes bytes.
+     * Entries which have been used since they were last considered are
+     * moved to the tail on the way.
+     *
+     * @param frequency the frequency of the entry to be admitted; no entry
+     *        used more often is evicted
+     * @return the number of entries to evict, or -1 if an entry used more
+     *         often would have to be evicted
+     */
+    private int selectVictims(int maxEntries, long maxBytes, int frequency) {
+        int victims = 0;
+        int entries = mCacheMap.size();
+        long bytes = mBytes;
+        // Bounds the second chances, as get() may mark entries as used
+        // again while they are being walked.
+        int chances = entries;
+        CacheEntry<K, V> lastVictim = null;
+        while ((entries > maxEntries) || (bytes > maxBytes)) {
+            CacheEntry<K, V> candidate = (null == lastVictim) ? mHead : lastVictim.next;
+            if (null == candidate) {
+                break;
+            }
+            if (candidate.used && (chances-- > 0)) {
+                candidate.used = false;
+                unlink(candidate);
+                append(candidate);
+                continue;
+            }
+            if (mSketch.frequency(candidate.key) > frequency) {
+                return -1;
+            }
+            lastVictim = candidate;
+            victims++;
+            entries--;
+            bytes -= candidate.size;
+        }
+        return victims;
+    }
+
+    /**
+     * Evict the given number of entries from the head of the queue.
+     */
+    private void evict(int count) {
+        for (int i = 0; i < count; i++) {
+            CacheEntry<K, V> victim = mHead;
+            remove(victim);
+            mEvictionCount++;
+            if (LOCAL_LOGV) {
+                Log.v(TAG, victim.key + " evicted.");
+            }
+            onEvicted(victim.key, victim.value);
+        }
+    }
+
+    private void remove(CacheEntry<K, V> entry) {
+        mCacheMap.remove(entry.key);
+        unlink(entry);
+        mBytes -= entry.size;
+    }
+
+    private void append(CacheEntry<K, V> entry) {
+        entry.prev = mTail;
+        if (null == mTail) {
+            mHead = entry;
+        } else {
+            mTail.next = entry;
+        }
+        mTail = entry;
+    }
+
+    private void unlink(CacheEntry<K, V> entry) {
+        if (null == entry.prev) {
+            mHead = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (null == entry.next) {
+            mTail = entry.prev;
+        } else {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    private static class CacheEntry<K, V> {
+        final K key;
+        final V value;
+        final long size;
+
+        /**
+         * Whether the entry has been used since it was last considered for
+         * eviction. Set by readers without locking.
+         */
+        volatile boolean used;
+
+        CacheEntry<K, V> prev;
+        CacheEntry<K, V> next;
+
+        CacheEntry(K key, V value, long size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Count-min sketch of how often keys are used, with 4-bit counters
+     * which are halved periodically so that old uses fade out.
+     *
+     * Readers of the cache increment it without locking, so concurrent
+     * increments may be lost. That only makes the counts a little lower.
+     */
+    private static class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {
+            0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F
+        };
+
+        private volatile byte[] mCounters;
+        private int mAdditions;
+        private int mResetAdditions;
+
+        FrequencySketch(int maxEntries) {
+            ensureCapacity(maxEntries);
+        }
+
+        void ensureCapacity(int maxEntries) {
+            int width = Integer.highestOneBit(Math.max(16, maxEntries - 1) * 2) * 4;
+            if ((mCounters == null) || (width > mCounters.length)) {
+                mCounters = new byte[width];
+                mAdditions = 0;
+            }
+            mResetAdditions = 10 * Math.max(16, maxEntries);
+        }
+
+        int frequency(Object key) {
+            return frequency(mCounters, spread(key.hashCode()));
+        }
+
+        void increment(Object key) {
+            byte[] counters = mCounters;
+            int hash = spread(key.hashCode());
+            int frequency = frequency(counters, hash);
+            if (frequency == MAX_COUNT) {
+                return;
+            }
+            // Conservative update: only raise the counters at the minimum.
+            for (int seed : SEEDS) {
+                int index = indexOf(counters, hash, seed);
+                if (counters[index] == frequency) {
+                    counters[index]++;
+                }
+            }
+            if (++mAdditions >= mResetAdditions) {
+                mAdditions = mResetAdditions / 2;
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+            }
+        }
+
+        private static int frequency(byte[] counters, int hash) {
+            int frequency = MAX_COUNT;
+            for (int seed : SEEDS) {
+                frequency = Math.min(frequency, counters[indexOf(counters, hash, seed)]);
+            }
+            return frequency;
+        }
+
+        private static int indexOf(byte[] counters, int hash, int seed) {
+            int h = (hash ^ seed) * 0x45D9F3B;
+            h ^= h >>> 16;
+            return h & (counters.length - 1);
+        }
+
+        private static int spread(int hash) {
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
     }
 }
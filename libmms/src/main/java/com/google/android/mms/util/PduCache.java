@@ -23,10 +23,40 @@ import android.net.Uri;
 import android.provider.Telephony.Mms;
 import android.util.Log;
 
+import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.MultimediaMessagePdu;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.PduSnapshot;
+
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
+/**
+ * Cache of loaded pdus, keyed on their Uri under content://mms.
+ *
+ * The pdus are spread over {@link #SEGMENTS} segments by the hash of their
+ * Uri. Each segment is an AbstractCache of its own, which is changed while
+ * holding its lock, so that threads caching or purging different pdus
+ * rarely wait for each other. Lookups don't lock at all.
+ *
+ * The Uris are also indexed by message box and by thread, so that a whole
+ * box or thread can be purged. The indexes are changed together with the
+ * segment of the Uri and under the same lock, so that they hold exactly
+ * the cached Uris.
+ *
+ * A {@link PduDiskCache} may be set as a second level. Then the pdus cached
+ * with a version are also written to it as {@link PduSnapshot}s, the pdus
+ * purged are also purged from it, and
+ * {@link #loadFromDisk(Uri, SnapshotReader)} brings pdus cached by an
+ * earlier process back into memory, once their version is checked against
+ * the provider.
+ */
+public final class PduCache {
     private static final String TAG = "PduCache";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
@@ -44,6 +74,24 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final int MMS_CONVERSATION    = 10;
     private static final int MMS_CONVERSATION_ID = 11;
 
+    /**
+     * Capacity of the cache, in pdus and in estimated bytes.
+     */
+    private static final int MAX_CACHED_PDUS = 500;
+    private static final long MAX_CACHED_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Number of segments the capacity is divided between. A power of two.
+     */
+    private static final int SEGMENTS = 4;
+
+    /**
+     * Estimated bytes used by a pdu besides the data of its parts, and by
+     * each part besides its data.
+     */
+    private static final int PDU_OVERHEAD_BYTES = 1024;
+    private static final int PART_OVERHEAD_BYTES = 256;
+
     private static final UriMatcher URI_MATCHER;
     private static final HashMap<Integer, Integer> MATCH_TO_MSGBOX_ID_MAP;
 
@@ -71,14 +119,26 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         MATCH_TO_MSGBOX_ID_MAP.put(MMS_OUTBOX, Mms.MESSAGE_BOX_OUTBOX);
     }
 
-    private final HashMap<Integer, HashSet<Uri>> mMessageBoxes;
-    private final HashMap<Long, HashSet<Uri>> mThreads;
-    private final HashSet<Uri> mUpdating;
+
+    private final Segment[] mSegments;
+    private final Index<Integer> mMessageBoxes;
+    private final Index<Long> mThreads;
+
+    private volatile PduDiskCache mDiskCache;
+
+    /**
+     * Number of purges so far, so that a snapshot written to the disk cache
+     * while a purge was running is deleted again.
+     */
+    private final AtomicLong mPurgeCount = new AtomicLong();
 
     private PduCache() {
-        mMessageBoxes = new HashMap<Integer, HashSet<Uri>>();
-        mThreads = new HashMap<Long, HashSet<Uri>>();
-        mUpdating = new HashSet<Uri>();
+        mSegments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            mSegments[i] = new Segment(MAX_CACHED_PDUS / SEGMENTS, MAX_CACHED_BYTES / SEGMENTS);
+        }
+        mMessageBoxes = new Index<Integer>();
+        mThreads = new Index<Long>();
     }
 
     synchronized public static final PduCache getInstance() {
@@ -91,46 +151,167 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         return sInstance;
     }
 
-    @Override
-    synchronized public boolean put(Uri uri, PduCacheEntry entry) {
-        int msgBoxId = entry.getMessageBox();
-        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
-        if (msgBox == null) {
-            msgBox = new HashSet<Uri>();
-            mMessageBoxes.put(msgBoxId, msgBox);
+    /**
+     * Checks the snapshots read from the disk cache against the provider,
+     * and decodes them into pdus.
+     */
+    public interface SnapshotReader {
+        /**
+         * @return true if the message still is in the message box, the
+         *         thread and at the version the snapshot was taken of
+         */
+        boolean isCurrent(Uri uri, PduDiskCache.Snapshot snapshot);
+
+        GenericPdu read(byte[] snapshot) throws IOException, MmsException;
+    }
+
+    /**
+     * Set the second level of the cache, or null to have none. The pdus
+     * already cached in memory are not written to it.
+     */
+    public void setDiskCache(PduDiskCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    public PduDiskCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    /**
+     * Cache a pdu in memory only, as without its version a snapshot of it
+     * couldn't be checked against the provider.
+     *
+     * @return true if the pdu is cached in memory
+     */
+    public boolean put(Uri uri, PduCacheEntry entry) {
+        Uri finalKey = normalizeKey(uri);
+        if (finalKey == null) {
+            return false;
         }
 
-        long threadId = entry.getThreadId();
-        HashSet<Uri> thread = mThreads.get(threadId);
-        if (thread == null) {
-            thread = new HashSet<Uri>();
-            mThreads.put(threadId, thread);
+        Segment segment = segmentFor(finalKey);
+        synchronized (segment) {
+            return putInMemory(segment, finalKey, entry);
         }
+    }
 
+    /**
+     * Cache a pdu, and write it to the disk cache if there is one, even if
+     * it isn't admitted in memory.
+     *
+     * @param version the version of the message in the provider, which
+     *        {@link SnapshotReader#isCurrent} checks the snapshot against
+     * @return true if the pdu is cached in memory
+     */
+    public boolean put(Uri uri, PduCacheEntry entry, long version) {
         Uri finalKey = normalizeKey(uri);
-        boolean result = super.put(finalKey, entry);
-        if (result) {
-            msgBox.add(finalKey);
-            thread.add(finalKey);
+        if (finalKey == null) {
+            return false;
+        }
+
+        // Written without holding the lock of the segment, so that puts and
+        // purges of the other pdus of the segment don't wait for the disk.
+        long msgId = ContentUris.parseId(finalKey);
+        long purgeCount = mPurgeCount.get();
+        PduDiskCache diskCache = mDiskCache;
+        if (diskCache != null) {
+            try {
+                diskCache.put(msgId, entry.getMessageBox(), entry.getThreadId(), version,
+                        PduSnapshot.write(entry.getPdu()));
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write " + finalKey + " to the disk cache", e);
+            }
+        }
+
+        Segment segment = segmentFor(finalKey);
+        synchronized (segment) {
+            if ((diskCache != null) && (mPurgeCount.get() != purgeCount)) {
+                // A purge ran meanwhile, and may have missed the snapshot.
+                diskCache.remove(msgId);
+            }
+            return putInMemory(segment, finalKey, entry);
         }
-        setUpdating(uri, false);
-        return result;
     }
 
-    synchronized public void setUpdating(Uri uri, boolean updating) {
-        if (updating) {
-            mUpdating.add(uri);
-        } else {
-            mUpdating.remove(uri);
+    /**
+     * Look a pdu up in the disk cache, and cache it in memory if it is
+     * there. Snapshots which are no longer current or can't be read are
+     * deleted.
+     *
+     * @param uri any Uri of the pdu
+     * @param reader checks and decodes the snapshot
+     * @return the pdu, null if it isn't in the disk cache
+     */
+    public PduCacheEntry loadFromDisk(Uri uri, SnapshotReader reader) {
+        Uri key = normalizeKey(uri);
+        PduDiskCache diskCache = mDiskCache;
+        if ((key == null) || (diskCache == null)) {
+            return null;
+        }
+
+        long msgId = ContentUris.parseId(key);
+        PduDiskCache.Snapshot snapshot = diskCache.get(msgId);
+        if (snapshot == null) {
+            return null;
+        }
+        if (!reader.isCurrent(key, snapshot)) {
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "Dropping the outdated snapshot of " + key);
+            }
+            diskCache.remove(msgId);
+            return null;
+        }
+        GenericPdu pdu;
+        try {
+            pdu = reader.read(snapshot.getData());
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping the snapshot of " + key, e);
+            diskCache.remove(msgId);
+            return null;
+        } catch (MmsException e) {
+            Log.w(TAG, "Dropping the snapshot of " + key, e);
+            diskCache.remove(msgId);
+            return null;
+        }
+
+        PduCacheEntry entry = new PduCacheEntry(pdu, snapshot.getMessageBox(),
+                snapshot.getThreadId());
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            putInMemory(segment, key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Cache a pdu in memory. Called with the lock of the segment held.
+     */
+    private boolean putInMemory(Segment segment, Uri key, PduCacheEntry entry) {
+        PduCacheEntry previous = segment.peek(key);
+        if (!segment.put(key, entry)) {
+            return false;
+        }
+        if (previous != null) {
+            removeFromIndexes(key, previous);
         }
+        mMessageBoxes.add(entry.getMessageBox(), key);
+        mThreads.add(entry.getThreadId(), key);
+        return true;
     }
 
-    synchronized public boolean isUpdating(Uri uri) {
-        return mUpdating.contains(uri);
+    /**
+     * Look up a pdu by any of its Uris. This doesn't lock, so it never waits
+     * for the cache to be changed by other threads.
+     */
+    public PduCacheEntry get(Uri uri) {
+        Uri key = normalizeKey(uri);
+        if (key == null) {
+            return null;
+        }
+        return segmentFor(key).get(key);
     }
 
-    @Override
-    synchronized public PduCacheEntry purge(Uri uri) {
+    public PduCacheEntry purge(Uri uri) {
         int match = URI_MATCHER.match(uri);
         switch (match) {
             case MMS_ALL_ID:
@@ -161,23 +342,112 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private PduCacheEntry purgeSingleEntry(Uri key) {
-        mUpdating.remove(key);
-        PduCacheEntry entry = super.purge(key);
-        if (entry != null) {
-            removeFromThreads(key, entry);
-            removeFromMessageBoxes(key, entry);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            mPurgeCount.incrementAndGet();
+            PduDiskCache diskCache = mDiskCache;
+            if (diskCache != null) {
+                diskCache.remove(ContentUris.parseId(key));
+            }
+            PduCacheEntry entry = segment.purge(key);
+            if (entry != null) {
+                removeFromIndexes(key, entry);
+            }
             return entry;
         }
-        return null;
     }
 
-    @Override
-    synchronized public void purgeAll() {
-        super.purgeAll();
+    public void purgeAll() {
+        purgeAll(0);
+    }
 
+    /**
+     * Lock the segments from the given one on, in order, and purge all of
+     * them once they are all locked, so that no pdu is cached meanwhile
+     * without being indexed.
+     */
+    private void purgeAll(int segment) {
+        if (segment < SEGMENTS) {
+            synchronized (mSegments[segment]) {
+                purgeAll(segment + 1);
+            }
+            return;
+        }
+
+        mPurgeCount.incrementAndGet();
+        PduDiskCache diskCache = mDiskCache;
+        if (diskCache != null) {
+            diskCache.removeAll();
+        }
+        for (Segment s : mSegments) {
+            s.purgeAll();
+        }
         mMessageBoxes.clear();
         mThreads.clear();
-        mUpdating.clear();
+    }
+
+    /**
+     * @return the number of cached pdus
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the estimated bytes used by the cached pdus
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (Segment segment : mSegments) {
+            bytes += segment.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of times {@link #get(Uri)} returned a pdu
+     */
+    public long hitCount() {
+        long count = 0;
+        for (Segment segment : mSegments) {
+            count += segment.hitCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of times {@link #get(Uri)} of a message returned null
+     */
+    public long missCount() {
+        long count = 0;
+        for (Segment segment : mSegments) {
+            count += segment.missCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of pdus evicted to make room
+     */
+    public long evictionCount() {
+        long count = 0;
+        for (Segment segment : mSegments) {
+            count += segment.evictionCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of Uris in the message box and the thread indexes,
+     *         which is twice the number of cached pdus when nothing changes
+     *         the cache meanwhile
+     */
+    int indexedUriCount() {
+        return mMessageBoxes.size() + mThreads.size();
     }
 
     /**
@@ -209,29 +479,26 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         return normalizedKey;
     }
 
+    private Segment segmentFor(Uri key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return mSegments[hash & (SEGMENTS - 1)];
+    }
+
     private void purgeByMessageBox(Integer msgBoxId) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Purge cache in message box: " + msgBoxId);
         }
 
         if (msgBoxId != null) {
-            HashSet<Uri> msgBox = mMessageBoxes.remove(msgBoxId);
-            if (msgBox != null) {
-                for (Uri key : msgBox) {
-                    mUpdating.remove(key);
-                    PduCacheEntry entry = super.purge(key);
-                    if (entry != null) {
-                        removeFromThreads(key, entry);
-                    }
-                }
+            mPurgeCount.incrementAndGet();
+            PduDiskCache diskCache = mDiskCache;
+            if (diskCache != null) {
+                diskCache.removeMessageBox(msgBoxId);
+            }
+            for (Uri key : mMessageBoxes.get(msgBoxId)) {
+                purgeSingleEntry(key);
             }
-        }
-    }
-
-    private void removeFromThreads(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> thread = mThreads.get(entry.getThreadId());
-        if (thread != null) {
-            thread.remove(key);
         }
     }
 
@@ -240,22 +507,141 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             Log.v(TAG, "Purge cache in thread: " + threadId);
         }
 
-        HashSet<Uri> thread = mThreads.remove(threadId);
-        if (thread != null) {
-            for (Uri key : thread) {
-                mUpdating.remove(key);
-                PduCacheEntry entry = super.purge(key);
-                if (entry != null) {
-                    removeFromMessageBoxes(key, entry);
+        mPurgeCount.incrementAndGet();
+        PduDiskCache diskCache = mDiskCache;
+        if (diskCache != null) {
+            diskCache.removeThread(threadId);
+        }
+        for (Uri key : mThreads.get(threadId)) {
+            purgeSingleEntry(key);
+        }
+    }
+
+    /**
+     * Remove a pdu which is no longer cached from both indexes. Called with
+     * the lock of the segment of the key held.
+     */
+    private void removeFromIndexes(Uri key, PduCacheEntry entry) {
+        mMessageBoxes.remove(entry.getMessageBox(), key);
+        mThreads.remove(entry.getThreadId(), key);
+    }
+
+    /**
+     * A part of the cache. It is only changed while holding its lock.
+     */
+    private final class Segment extends AbstractCache<Uri, PduCacheEntry> {
+        Segment(int maxEntries, long maxBytes) {
+            super(maxEntries, maxBytes);
+        }
+
+        /**
+         * Estimate the memory used by a cached pdu, which is mostly the data
+         * of its parts. Data which is only referenced by a Uri doesn't count.
+         */
+        @Override
+        protected long sizeOf(Uri uri, PduCacheEntry entry) {
+            long size = PDU_OVERHEAD_BYTES;
+            GenericPdu pdu = entry.getPdu();
+            if (pdu instanceof MultimediaMessagePdu) {
+                PduBody body = ((MultimediaMessagePdu) pdu).getBody();
+                int partsNum = (body == null) ? 0 : body.getPartsNum();
+                for (int i = 0; i < partsNum; i++) {
+                    PduPart part = body.getPart(i);
+                    size += PART_OVERHEAD_BYTES;
+                    if (part.getDataUri() == null) {
+                        size += part.getDataLength();
+                    }
                 }
             }
+            return size;
+        }
+
+        @Override
+        protected void onEvicted(Uri key, PduCacheEntry entry) {
+            removeFromIndexes(key, entry);
         }
     }
 
-    private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
-        if (msgBox != null) {
-            msgBox.remove(key);
+    /**
+     * The Uris of the cached pdus grouped by message box or by thread. Each
+     * group is changed while holding its own lock. A group which becomes
+     * empty is removed from the index and retired, so that no Uri is ever
+     * added to a group which is no longer in the index.
+     */
+    private static final class Index<G> {
+        private final ConcurrentHashMap<G, Group> mGroups = new ConcurrentHashMap<G, Group>();
+
+        void add(G groupId, Uri key) {
+            while (true) {
+                Group group = mGroups.get(groupId);
+                if (null == group) {
+                    Group created = new Group();
+                    group = mGroups.putIfAbsent(groupId, created);
+                    if (null == group) {
+                        group = created;
+                    }
+                }
+                synchronized (group) {
+                    if (!group.retired) {
+                        group.uris.add(key);
+                        return;
+                    }
+                }
+                // The group was emptied and removed meanwhile, try again.
+            }
         }
+
+        void remove(G groupId, Uri key) {
+            Group group = mGroups.get(groupId);
+            if (null == group) {
+                return;
+            }
+            synchronized (group) {
+                if (group.uris.remove(key) && group.uris.isEmpty()) {
+                    group.retired = true;
+                    mGroups.remove(groupId, group);
+                }
+            }
+        }
+
+        /**
+         * @return a copy of the Uris in the group
+         */
+        Uri[] get(G groupId) {
+            Group group = mGroups.get(groupId);
+            if (null == group) {
+                return new Uri[0];
+            }
+            synchronized (group) {
+                return group.uris.toArray(new Uri[group.uris.size()]);
+            }
+        }
+
+        /**
+         * Remove all the groups. Nothing may be added or removed meanwhile.
+         */
+        void clear() {
+            for (Group group : mGroups.values()) {
+                synchronized (group) {
+                    group.retired = true;
+                }
+            }
+            mGroups.clear();
+        }
+
+        int size() {
+            int size = 0;
+            for (Group group : mGroups.values()) {
+                synchronized (group) {
+                    size += group.uris.size();
+                }
+            }
+            return size;
+        }
+    }
+
+    private static final class Group {
+        final HashSet<Uri> uris = new HashSet<Uri>();
+        boolean retired;
     }
 }
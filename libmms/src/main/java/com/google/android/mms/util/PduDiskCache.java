@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The second level of {@link PduCache}: snapshots of pdus kept in files of
+ * a directory, so that they outlive the process. It only uses java.io.
+ *
+ * Each snapshot is a file named after the message id, the message box, the
+ * thread id and the version of the pdu, so that the cache is indexed by
+ * listing the directory, without reading the files. The version is opaque
+ * to the cache; it lets the caller tell whether the pdu changed since its
+ * snapshot was taken. A file holds the CRC32 of the
+ * snapshot followed by the snapshot; a file which doesn't match its CRC32
+ * is deleted when it is read.
+ *
+ * The cache is bounded in bytes. When it is full the least recently used
+ * snapshots are deleted; the order of use is kept in memory and is taken
+ * from the modification time of the files when the cache is opened.
+ *
+ * Files are written to a temporary file and renamed into place, so that
+ * a snapshot is either all there or not at all. They aren't synced, as a
+ * snapshot lost by a crash is only loaded from the provider again.
+ *
+ * The methods may be called from any thread; they are serialized.
+ */
+public final class PduDiskCache {
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int CRC_SIZE = 4;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /**
+     * The snapshots, from the least recently used.
+     */
+    private final LinkedHashMap<Long, Entry> mEntries =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    private long mBytes;
+
+    /**
+     * Open the cache in a directory, creating it if needed.
+     *
+     * @param directory the directory of the cache, which holds nothing else
+     * @param maxBytes the maximum total size of the files
+     * @throws IOException if the directory can't be created
+     */
+    public PduDiskCache(File directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache capacity");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+
+        File[] files = directory.listFiles();
+        if (null == files) {
+            throw new IOException("Failed to list " + directory);
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return (modified[a] < modified[b]) ? -1 : ((modified[a] == modified[b]) ? 0 : 1);
+            }
+        });
+        for (Integer i : order) {
+            File file = files[i];
+            Entry entry = Entry.fromFileName(file.getName());
+            if ((null == entry) || mEntries.containsKey(entry.msgId)) {
+                // A temporary file left by a crash, or a stray file.
+                file.delete();
+                continue;
+            }
+            entry.size = file.length();
+            mEntries.put(entry.msgId, entry);
+            mBytes += entry.size;
+        }
+        trimTo(mMaxBytes);
+    }
+
+    /**
+     * Read the snapshot of a message.
+     *
+     * @param msgId the message id
+     * @return the snapshot, null if there is none
+     */
+    public synchronized Snapshot get(long msgId) {
+        Entry entry = mEntries.get(msgId);
+        if (null == entry) {
+            return null;
+        }
+        File file = getFile(entry);
+        byte[] snapshot = read(file);
+        if (null == snapshot) {
+            remove(entry);
+            return null;
+        }
+        // Keeps the order of use for the next time the cache is opened.
+        file.setLastModified(System.currentTimeMillis());
+        return new Snapshot(snapshot, entry.msgBox, entry.threadId, entry.version);
+    }
+
+    /**
+     * Store the snapshot of a message, replacing the one it had.
+     *
+     * @param msgId the message id
+     * @param msgBox the message box of the message
+     * @param threadId the thread of the message
+     * @param version the version of the message the snapshot was taken of
+     * @param snapshot the snapshot
+     * @throws IOException if the snapshot can't be written
+     */
+    public synchronized void put(long msgId, int msgBox, long threadId, long version,
+            byte[] snapshot) throws IOException {
+        remove(msgId);
+        long size = CRC_SIZE + snapshot.length;
+        if (size > mMaxBytes) {
+            return;
+        }
+        trimTo(mMaxBytes - size);
+
+        Entry entry = new Entry(msgId, msgBox, threadId, version);
+        File temporary = new File(mDirectory, entry.getFileName() + TEMPORARY_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(snapshot, 0, snapshot.length);
+            int value = (int) crc.getValue();
+            out.write(new byte[] {
+                    (byte) (value >>> 24), (byte) (value >>> 16),
+                    (byte) (value >>> 8), (byte) value });
+            out.write(snapshot);
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(getFile(entry))) {
+            temporary.delete();
+            throw new IOException("Failed to rename " + temporary);
+        }
+        entry.size = size;
+        mEntries.put(msgId, entry);
+        mBytes += size;
+    }
+
+    /**
+     * Delete the snapshot of a message.
+     */
+    public synchronized void remove(long msgId) {
+        Entry entry = mEntries.get(msgId);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Delete the snapshots of the messages in a message box.
+     */
+    public synchronized void removeMessageBox(int msgBox) {
+        for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+            if (entry.msgBox == msgBox) {
+                remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Delete the snapshots of the messages in a thread.
+     */
+    public synchronized void removeThread(long threadId) {
+        for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+            if (entry.threadId == threadId) {
+                remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Delete all the snapshots.
+     */
+    public synchronized void removeAll() {
+        for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * @return the number of snapshots
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the total size of the files
+     */
+    public synchronized long sizeInBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Delete the least recently used snapshots until the files take at
+     * most maxBytes.
+     */
+    private void trimTo(long maxBytes) {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while ((mBytes > maxBytes) && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            getFile(entry).delete();
+            mBytes -= entry.size;
+        }
+    }
+
+    private void remove(Entry entry) {
+        mEntries.remove(entry.msgId);
+        getFile(entry).delete();
+        mBytes -= entry.size;
+    }
+
+    private File getFile(Entry entry) {
+        return new File(mDirectory, entry.getFileName());
+    }
+
+    /**
+     * Read a snapshot file.
+     *
+     * @return the snapshot, null if the file can't be read or doesn't match
+     *         its CRC32
+     */
+    private static byte[] read(File file) {
+        long length = file.length();
+        if ((length < CRC_SIZE) || (length > Integer.MAX_VALUE)) {
+            return null;
+        }
+        byte[] header = new byte[CRC_SIZE];
+        byte[] snapshot = new byte[(int) length - CRC_SIZE];
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                if (!readFully(in, header) || !readFully(in, snapshot)) {
+                    return null;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(snapshot, 0, snapshot.length);
+        int expected = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16)
+                | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+        if ((int) crc.getValue() != expected) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return false if the stream ends before the array is full
+     */
+    private static boolean readFully(FileInputStream in, byte[] data) throws IOException {
+        int count = 0;
+        while (count < data.length) {
+            int len = in.read(data, count, data.length - count);
+            if (len == -1) {
+                return false;
+            }
+            count += len;
+        }
+        return true;
+    }
+
+    /**
+     * A snapshot read from the cache, and the message box, the thread and
+     * the version of its message.
+     */
+    public static final class Snapshot {
+        private final byte[] mData;
+        private final int mMessageBox;
+        private final long mThreadId;
+        private final long mVersion;
+
+        Snapshot(byte[] data, int msgBox, long threadId, long version) {
+            mData = data;
+            mMessageBox = msgBox;
+            mThreadId = threadId;
+            mVersion = version;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getMessageBox() {
+            return mMessageBox;
+        }
+
+        public long getThreadId() {
+            return mThreadId;
+        }
+
+        public long getVersion() {
+            return mVersion;
+        }
+    }
+
+    /**
+     * A snapshot file, named msgId.msgBox.threadId.version.
+     */
+    private static final class Entry {
+        final long msgId;
+        final int msgBox;
+        final long threadId;
+        final long version;
+        long size;
+
+        Entry(long msgId, int msgBox, long threadId, long version) {
+            this.msgId = msgId;
+            this.msgBox = msgBox;
+            this.threadId = threadId;
+            this.version = version;
+        }
+
+        String getFileName() {
+            return msgId + "." + msgBox + "." + threadId + "." + version;
+        }
+
+        /**
+         * @return the entry of a file name, null if it isn't a snapshot file
+         */
+        static Entry fromFileName(String name) {
+            String[] fields = name.split("\\.");
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -18,15 +18,21 @@
 package com.google.android.mms.util;
 
 import android.app.ActivityManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+
 public final class SqliteWrapper {
     private static final String TAG = "SqliteWrapper";
     private static final String SQLITE_EXCEPTION_DETAIL_MESSAGE
@@ -117,4 +123,21 @@ public final class SqliteWrapper {
             return null;
         }
     }
+
+    public static ContentProviderResult[] applyBatch(Context context, ContentResolver resolver,
+            String authority, ArrayList<ContentProviderOperation> operations) {
+        try {
+            return resolver.applyBatch(authority, operations);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Catch a SQLiteException when applyBatch: ", e);
+            checkSQLiteException(context, e);
+            return null;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Catch a RemoteException when applyBatch: ", e);
+            return null;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Catch an OperationApplicationException when applyBatch: ", e);
+            return null;
+        }
+    }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Base64Test {
+    private static final int MAX_LENGTH = 600;
+
+    private final Random mRandom = new Random(0);
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        mRandom.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void decodesLikeTheJdkDecoder() {
+        java.util.Base64.Encoder[] encoders = {
+            java.util.Base64.getEncoder(),
+            java.util.Base64.getMimeEncoder(),
+            java.util.Base64.getMimeEncoder(4, new byte[] { '\n' }),
+        };
+        for (int length = 0; length < MAX_LENGTH; length++) {
+            byte[] data = randomBytes(length);
+            for (java.util.Base64.Encoder encoder : encoders) {
+                byte[] encoded = encoder.encode(data);
+                byte[] expected = java.util.Base64.getMimeDecoder().decode(encoded);
+                assertArrayEquals("length " + length, expected, Base64.decodeBase64(encoded));
+                assertEquals("length " + length, expected.length,
+                        Base64.getDecodedLength(ByteBuffer.wrap(encoded)));
+            }
+        }
+    }
+
+    @Test
+    public void decodesUnpaddedData() {
+        for (int length = 0; length < 16; length++) {
+            byte[] data = randomBytes(length);
+            byte[] encoded = java.util.Base64.getEncoder().withoutPadding().encode(data);
+            assertArrayEquals("length " + length, data, Base64.decodeBase64(encoded));
+        }
+    }
+
+    @Test
+    public void skipsBytesOutsideOfTheAlphabet() {
+        byte[] data = randomBytes(100);
+        byte[] encoded = java.util.Base64.getEncoder().encode(data);
+        ByteArrayOutputStream noisy = new ByteArrayOutputStream();
+        for (int i = 0; i < encoded.length; i++) {
+            noisy.write(encoded[i]);
+            if (i % 7 == 0) {
+                noisy.write(0x80 + i % 128);
+                noisy.write(' ');
+            }
+        }
+        assertArrayEquals(data, Base64.decodeBase64(noisy.toByteArray()));
+    }
+
+    @Test
+    public void eachPadEndsAQuadruple() {
+        // As the quadruple decoder this replaces did.
+        assertArrayEquals("AAB".getBytes(), Base64.decodeBase64("QQ==QUI=".getBytes()));
+        assertArrayEquals(new byte[0], Base64.decodeBase64("====".getBytes()));
+    }
+
+    @Test
+    public void decodesIntoABuffer() {
+        byte[] data = randomBytes(1000);
+        byte[] encoded = java.util.Base64.getMimeEncoder().encode(data);
+        ByteBuffer src = ByteBuffer.allocate(encoded.length + 2);
+        src.put((byte) 'x').put(encoded).flip();
+        src.position(1);
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(data.length + 3);
+        dst.position(3);
+        assertEquals(data.length, Base64.decodeBase64(src, dst));
+        assertEquals(src.limit(), src.position());
+        assertEquals(dst.capacity(), dst.position());
+
+        byte[] decoded = new byte[data.length];
+        dst.position(3);
+        dst.get(decoded);
+        assertArrayEquals(data, decoded);
+    }
+
+    @Test
+    public void decodesReadOnlyBuffers() {
+        // As the parser slices parts out of the pdu, with quadruples
+        // split across the chunks they are decoded in.
+        byte[] data = randomBytes(20000);
+        byte[] encoded = java.util.Base64.getMimeEncoder().encode(data);
+        ByteBuffer src = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+
+        assertArrayEquals(data, Base64.decodeBase64(src));
+        assertEquals(0, src.position());
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(data.length);
+        assertEquals(data.length, Base64.decodeBase64(src, dst));
+        byte[] decoded = new byte[data.length];
+        dst.flip();
+        dst.get(decoded);
+        assertArrayEquals(data, decoded);
+    }
+
+    @Test
+    public void doesntDecodeIntoABufferWhichIsTooSmall() {
+        ByteBuffer src = ByteBuffer.wrap(java.util.Base64.getEncoder().encode(randomBytes(10)));
+        ByteBuffer dst = ByteBuffer.allocate(9);
+        try {
+            Base64.decodeBase64(src, dst);
+            fail("10 bytes don't fit in 9");
+        } catch (BufferOverflowException e) {
+            // Expected.
+        }
+        assertEquals(0, src.position());
+        assertEquals(0, dst.position());
+    }
+
+    @Test
+    public void streamDecodesLikeTheJdkDecoder() throws IOException {
+        for (int length : new int[] { 0, 1, 2, 3, 100, 8191, 8192, 20000, 100000 }) {
+            byte[] data = randomBytes(length);
+            byte[] encoded = java.util.Base64.getMimeEncoder().encode(data);
+
+            assertArrayEquals("length " + length, data,
+                    readAll(new Base64InputStream(new TricklingInputStream(encoded)), 1000));
+            assertArrayEquals("length " + length, data,
+                    readOneByOne(new Base64InputStream(new ByteArrayInputStream(encoded))));
+        }
+    }
+
+    @Test
+    public void streamSkips() throws IOException {
+        byte[] data = randomBytes(20000);
+        InputStream is = new Base64InputStream(new ByteArrayInputStream(
+                java.util.Base64.getMimeEncoder().encode(data)));
+        assertEquals(15000, is.skip(15000));
+        assertArrayEquals(Arrays.copyOfRange(data, 15000, 20000), readAll(is, 4096));
+        assertEquals(0, is.skip(1));
+    }
+
+    @Test
+    public void partDataStreamDecodesEncodedData() throws IOException {
+        byte[] data = randomBytes(5000);
+        PduPart part = new PduPart();
+        part.setContentTransferEncoding(PduPart.P_BASE64.getBytes());
+        part.setEncodedData(ByteBuffer.wrap(java.util.Base64.getMimeEncoder().encode(data)));
+
+        assertArrayEquals(data, readAll(part.getDataStream(), 4096));
+        assertArrayEquals(data, part.getData());
+    }
+
+    private static byte[] readAll(InputStream is, int blockSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block = new byte[blockSize];
+        for (int len; (len = is.read(block)) != -1; ) {
+            out.write(block, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readOneByOne(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int b; (b = is.read()) != -1; ) {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns at most a few bytes per read, so that quadruples are split
+     * across reads.
+     */
+    private static class TricklingInputStream extends ByteArrayInputStream {
+        TricklingInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + pos % 7));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import com.google.android.mms.ContentType;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+
+import static org.junit.Assert.*;
+
+public class ContentTypeTableTest {
+    /**
+     * Interned before any test fills the table.
+     */
+    private static final ContentTypeTable.Entry CUSTOM =
+            ContentTypeTable.lookup("image/x-test-case".getBytes());
+    private static final String CUSTOM_NAME =
+            ContentTypeTable.toString("application/x-test-same".getBytes());
+
+    @Test
+    public void numbersWellKnownTypesSpelledExactly() {
+        for (int i = 0; i < PduContentTypes.contentTypes.length; i++) {
+            byte[] type = PduContentTypes.contentTypes[i].getBytes();
+            assertEquals(i, ContentTypeTable.getNumber(type));
+            assertArrayEquals(type, ContentTypeTable.getBytes(i));
+            assertSame(PduContentTypes.contentTypes[i], ContentTypeTable.get(i).name);
+        }
+        // Another spelling must be composed as it is.
+        assertEquals(-1, ContentTypeTable.getNumber("Image/JPEG".getBytes()));
+        assertEquals(-1, ContentTypeTable.getNumber("image/heic".getBytes()));
+        assertEquals(-1, ContentTypeTable.getNumber(null));
+    }
+
+    @Test
+    public void looksTypesUpIgnoringCase() {
+        ContentTypeTable.Entry entry = ContentTypeTable.lookup("IMAGE/Jpeg".getBytes());
+        assertSame(ContentTypeTable.get(0x1E), entry);
+        assertTrue(entry.matches("image/jpeg".getBytes()));
+        assertFalse(entry.matches("IMAGE/Jpeg".getBytes()));
+
+        assertEquals(-1, CUSTOM.number);
+        assertSame(CUSTOM, ContentTypeTable.lookup("Image/X-Test-Case".getBytes()));
+        assertEquals("image/x-test-case", CUSTOM.name);
+    }
+
+    @Test
+    public void decodesInternedTypesToTheSameString() {
+        assertSame(CUSTOM_NAME, ContentTypeTable.toString("application/x-test-same".getBytes()));
+        assertSame(ContentType.TEXT_PLAIN, ContentTypeTable.toString("text/plain".getBytes()));
+
+        // Spelled otherwise than the entry, the type is decoded as it is.
+        assertEquals("Text/Plain", ContentTypeTable.toString("Text/Plain".getBytes()));
+        assertEquals("text/\u00e9", ContentTypeTable.toString(
+                new byte[] { 't', 'e', 'x', 't', '/', (byte) 0xE9 }));
+    }
+
+    @Test
+    public void internsABoundedNumberOfTypes() {
+        assertNull(ContentTypeTable.lookup(new byte[ContentTypeTable.MAX_LENGTH + 1]));
+        assertNull(ContentTypeTable.lookup(new byte[] { 'a', '/', 0 }));
+        assertNull(ContentTypeTable.lookup(new byte[0]));
+
+        for (int i = 0; i <= ContentTypeTable.MAX_INTERNED; i++) {
+            ContentTypeTable.lookup(("application/x-test-bound-" + i).getBytes());
+        }
+        byte[] type = "application/x-test-full".getBytes();
+        assertNull(ContentTypeTable.lookup(type));
+        assertEquals("application/x-test-full", ContentTypeTable.toString(type));
+        // The well known types are still there.
+        assertSame(ContentTypeTable.get(3), ContentTypeTable.lookup("TEXT/PLAIN".getBytes()));
+    }
+
+    @Test
+    public void comparesBytesIgnoringCase() {
+        assertTrue(ContentTypeTable.equalsIgnoreCase("BASE64".getBytes(), PduPart.P_BASE64));
+        assertTrue(ContentTypeTable.equalsIgnoreCase("Quoted-Printable".getBytes(),
+                PduPart.P_QUOTED_PRINTABLE));
+        assertFalse(ContentTypeTable.equalsIgnoreCase("base6".getBytes(), PduPart.P_BASE64));
+        assertFalse(ContentTypeTable.equalsIgnoreCase(null, PduPart.P_BASE64));
+        // Only ASCII letters are folded.
+        assertFalse(ContentTypeTable.equalsIgnoreCase(new byte[] { (byte) 0xC9 }, "\u00e9"));
+
+        assertArrayEquals("hi".getBytes(), PduPart.decode("aGk=".getBytes(), "Base64".getBytes()));
+    }
+
+    @Test
+    public void looksCharsetNamesUpIgnoringCase() throws Exception {
+        assertEquals(CharacterSets.UTF_8, CharacterSets.getMibEnumValue("UTF-8".getBytes()));
+        assertEquals(CharacterSets.SHIFT_JIS,
+                CharacterSets.getMibEnumValue("shift_jis".getBytes()));
+        assertEquals(CharacterSets.ANY_CHARSET, CharacterSets.getMibEnumValue("*".getBytes()));
+        try {
+            CharacterSets.getMibEnumValue("koi8-r".getBytes());
+            fail("Looked up an unknown charset");
+        } catch (UnsupportedEncodingException expected) {
+        }
+    }
+}
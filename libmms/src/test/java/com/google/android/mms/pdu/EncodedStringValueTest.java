@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class EncodedStringValueTest {
+    private static final String SUBJECT = "R\u00E9union \u2014 \u4F1A\u8BAE";
+
+    private static byte[] bytes(String s, String charset) throws Exception {
+        return s.getBytes(charset);
+    }
+
+    @Test
+    public void charsetsAreResolvedFromMibEnumValues() {
+        assertEquals(Charset.forName("UTF-8"), CharacterSets.getCharset(CharacterSets.UTF_8));
+        assertEquals(Charset.forName("Shift_JIS"),
+                CharacterSets.getCharset(CharacterSets.SHIFT_JIS));
+        assertSame(CharacterSets.FALLBACK_CHARSET, CharacterSets.getCharset(0x7FFF));
+        assertSame(CharacterSets.FALLBACK_CHARSET,
+                CharacterSets.getCharset(CharacterSets.ANY_CHARSET));
+    }
+
+    @Test
+    public void decodedStringIsReused() throws Exception {
+        EncodedStringValue value = new EncodedStringValue(CharacterSets.UTF_8,
+                bytes(SUBJECT, "UTF-8"));
+        String string = value.getString();
+        assertEquals(SUBJECT, string);
+        assertSame(string, value.getString());
+        assertSame(string, EncodedStringValue.copy(value).getString());
+        assertSame(string, ((EncodedStringValue) value.clone()).getString());
+    }
+
+    @Test
+    public void changesAreDecodedAgain() throws Exception {
+        EncodedStringValue value = new EncodedStringValue(CharacterSets.UTF_8,
+                bytes("caf\u00E9", "UTF-8"));
+        assertEquals("caf\u00E9", value.getString());
+
+        value.setCharacterSet(CharacterSets.ISO_8859_1);
+        assertEquals("caf\u00C3\u00A9", value.getString());
+
+        value.setTextString(bytes("th\u00E9", "ISO-8859-1"));
+        assertEquals("th\u00E9", value.getString());
+
+        value.appendTextString(bytes(" vert", "ISO-8859-1"));
+        assertEquals("th\u00E9 vert", value.getString());
+    }
+
+    @Test
+    public void unknownCharsetsAreDecodedAsIso8859_1() throws Exception {
+        EncodedStringValue value = new EncodedStringValue(0x7FFF,
+                bytes("caf\u00E9", "ISO-8859-1"));
+        assertEquals("caf\u00E9", value.getString());
+    }
+}
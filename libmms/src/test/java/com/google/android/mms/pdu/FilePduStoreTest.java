@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.provider.Telephony.Mms;
+
+import com.google.android.mms.MmsException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class FilePduStoreTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void loadsWhatWasPersisted() throws Exception {
+        FilePduStore store = new FilePduStore(mFolder.getRoot());
+        try {
+            for (int seed = 0; seed < 20; seed++) {
+                GenericPdu pdu = parse(seed);
+                long msgId = store.persist(pdu, Mms.MESSAGE_BOX_INBOX);
+                assertEquals(seed + 1, msgId);
+                assertEquals(TestPdus.describe(pdu), TestPdus.describe(store.load(msgId)));
+            }
+            assertEquals(20, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void messagesSurviveAReopen() throws Exception {
+        FilePduStore store = new FilePduStore(mFolder.getRoot());
+        long first = store.persist(parse(1), Mms.MESSAGE_BOX_INBOX);
+        long second = store.persist(parse(2), Mms.MESSAGE_BOX_INBOX);
+        store.move(first, Mms.MESSAGE_BOX_SENT);
+        store.close();
+
+        store = new FilePduStore(mFolder.getRoot());
+        try {
+            assertEquals(2, store.size());
+            assertEquals(TestPdus.describe(parse(1)), TestPdus.describe(store.load(first)));
+            assertEquals(TestPdus.describe(parse(2)), TestPdus.describe(store.load(second)));
+            assertEquals(Mms.MESSAGE_BOX_SENT, store.getMessageBox(first));
+            assertEquals(Mms.MESSAGE_BOX_INBOX, store.getMessageBox(second));
+
+            // Ids aren't given out twice.
+            assertEquals(second + 1, store.persist(parse(3), Mms.MESSAGE_BOX_INBOX));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void updatesHeadersAndParts() throws Exception {
+        FilePduStore store = new FilePduStore(mFolder.getRoot());
+        try {
+            SendReq req = new SendReq();
+            req.setSubject(new EncodedStringValue("draft"));
+            req.setTo(EncodedStringValue.encodeStrings(new String[] { "+15552223333" }));
+            req.setBody(createBody("first"));
+            long msgId = store.persist(req, Mms.MESSAGE_BOX_DRAFTS);
+
+            req.setSubject(new EncodedStringValue("edited"));
+            store.updateHeaders(msgId, req);
+            SendReq loaded = (SendReq) store.load(msgId);
+            assertEquals("edited", loaded.getSubject().getString());
+            assertEquals("+15552223333", loaded.getTo()[0].getString());
+            assertEquals("first", new String(loaded.getBody().getPart(0).getData()));
+
+            store.updateParts(msgId, createBody("second"));
+            loaded = (SendReq) store.load(msgId);
+            assertEquals("edited", loaded.getSubject().getString());
+            assertEquals(1, loaded.getBody().getPartsNum());
+            PduPart part = loaded.getBody().getPart(0);
+            assertEquals("second", new String(part.getData()));
+            assertEquals("text/plain", new String(part.getContentType()));
+            assertEquals("<text>", new String(part.getContentId()));
+            assertEquals(CharacterSets.UTF_8, part.getCharset());
+            assertNull(part.getFilename());
+            assertEquals(Mms.MESSAGE_BOX_DRAFTS, store.getMessageBox(msgId));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void storesTheSameDataOnce() throws Exception {
+        FilePduStore store = new FilePduStore(mFolder.getRoot());
+        try {
+            store.persist(parse(7), Mms.MESSAGE_BOX_INBOX);
+            int blobs = countFiles(new File(mFolder.getRoot(), "blobs"));
+            assertEquals(((RetrieveConf) parse(7)).getBody().getPartsNum(), blobs);
+
+            store.persist(parse(7), Mms.MESSAGE_BOX_INBOX);
+            assertEquals(blobs, countFiles(new File(mFolder.getRoot(), "blobs")));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void streamsPendingDataToItsBlob() throws Exception {
+        FilePduStore store = new FilePduStore(mFolder.getRoot());
+        try {
+            RetrieveConf conf = (RetrieveConf) parse(7);
+            PduPart part = conf.getBody().getPart(0);
+            byte[] data = part.getData();
+            TestPdus.CountingLoader loader = new TestPdus.CountingLoader(data);
+            part.setDataLoader(loader);
+
+            long msgId = store.persist(conf, Mms.MESSAGE_BOX_INBOX);
+            assertEquals(0, loader.mLoads);
+            assertTrue(part.hasPendingData());
+            RetrieveConf copy = (RetrieveConf) store.load(msgId);
+            assertArrayEquals(data, copy.getBody().getPart(0).getData());
+
+            // The same data is found in the same blob.
+            int blobs = countFiles(new File(mFolder.getRoot(), "blobs"));
+            store.persist(parse(7), Mms.MESSAGE_BOX_INBOX);
+            assertEquals(blobs, countFiles(new File(mFolder.getRoot(), "blobs")));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void cutsOffATornRecord() throws Exception {
+        FilePduStore store = new FilePduStore(mFolder.getRoot());
+        long first = store.persist(parse(1), Mms.MESSAGE_BOX_INBOX);
+        store.close();
+        File index = new File(mFolder.getRoot(), "index");
+        long length = index.length();
+
+        store = new FilePduStore(mFolder.getRoot());
+        store.persist(parse(2), Mms.MESSAGE_BOX_INBOX);
+        store.close();
+        // A crash in the middle of writing the second record.
+        truncate(index, length + (index.length() - length) / 2);
+
+        store = new FilePduStore(mFolder.getRoot());
+        try {
+            assertEquals(length, index.length());
+            assertEquals(1, store.size());
+            assertEquals(TestPdus.describe(parse(1)), TestPdus.describe(store.load(first)));
+            assertEquals(first + 1, store.persist(parse(3), Mms.MESSAGE_BOX_INBOX));
+            assertEquals(TestPdus.describe(parse(3)), TestPdus.describe(store.load(first + 1)));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void failsForUnknownMessages() throws Exception {
+        FilePduStore store = new FilePduStore(mFolder.getRoot());
+        try {
+            try {
+                store.load(1);
+                fail("Loaded a message which wasn't stored");
+            } catch (MmsException expected) {
+            }
+            try {
+                store.move(1, Mms.MESSAGE_BOX_SENT);
+                fail("Moved a message which wasn't stored");
+            } catch (MmsException expected) {
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    private static GenericPdu parse(long seed) {
+        return new PduParser(TestPdus.randomRetrieveConf(seed), true).parse();
+    }
+
+    private static PduBody createBody(String text) {
+        PduPart part = new PduPart();
+        part.setContentType("text/plain".getBytes());
+        part.setContentId("<text>".getBytes());
+        part.setCharset(CharacterSets.UTF_8);
+        part.setData(text.getBytes());
+        PduBody body = new PduBody();
+        body.addPart(part);
+        return body;
+    }
+
+    private static int countFiles(File directory) {
+        int count = 0;
+        for (File file : directory.listFiles()) {
+            count += file.isDirectory() ? countFiles(file) : 1;
+        }
+        return count;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
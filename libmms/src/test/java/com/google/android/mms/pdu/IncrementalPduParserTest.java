@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IncrementalPduParserTest {
+    private static final int PDU_COUNT = 50;
+
+    @Test
+    public void matchesPduParserWhateverTheChunkSize() {
+        int[] chunkSizes = { 1, 3, 64, 1000, Integer.MAX_VALUE };
+        for (int i = 0; i < PDU_COUNT; i++) {
+            byte[] pdu = TestPdus.randomRetrieveConf(i);
+            String expected = TestPdus.describe(new PduParser(pdu, true).parse());
+            for (int chunkSize : chunkSizes) {
+                IncrementalPduParser parser = new IncrementalPduParser(true);
+                List<PduPart> parts = feed(parser, pdu, chunkSize);
+                assertTrue(parser.isDone());
+                parser.endOfInput();
+                assertEquals("pdu " + i + " in chunks of " + chunkSize,
+                        expected, TestPdus.describe(parser.getPdu()));
+
+                // The parts were polled in the order they are in the pdu.
+                PduBody body = ((RetrieveConf) parser.getPdu()).getBody();
+                assertEquals(body.getPartsNum(), parts.size());
+                for (PduPart part : parts) {
+                    assertTrue(body.getPartIndex(part) >= 0);
+                }
+                assertEquals("<" + i + ".0>", new String(parts.get(0).getContentId()));
+            }
+        }
+    }
+
+    @Test
+    public void headersAndPartsAreAvailableAsTheyArrive() {
+        List<TestPdus.Part> parts = new ArrayList<TestPdus.Part>();
+        parts.add(new TestPdus.Part("application/smil", "<smil>", "s.smil", null,
+                "<smil/>".getBytes()));
+        parts.add(new TestPdus.Part("image/jpeg", "<image>", "i.jpg", null, new byte[4096]));
+        byte[] pdu = TestPdus.retrieveConf("T1", "subject", "<smil>", null, parts);
+        PduParser headersParser = new PduParser(pdu, true);
+        headersParser.parseHeadersOnly();
+        int bodyOffset = headersParser.getBodyOffset();
+
+        IncrementalPduParser parser = new IncrementalPduParser(true);
+        parser.feed(ByteBuffer.wrap(pdu, 0, bodyOffset - 1));
+        assertNull(parser.getPdu());
+
+        parser.feed(ByteBuffer.wrap(pdu, bodyOffset - 1, 1));
+        RetrieveConf conf = (RetrieveConf) parser.getPdu();
+        assertNotNull(conf);
+        assertEquals("subject", conf.getSubject().getString());
+        assertNull(conf.getBody());
+        assertNull(parser.pollPart());
+
+        // All but the last octet of the image.
+        parser.feed(ByteBuffer.wrap(pdu, bodyOffset, pdu.length - bodyOffset - 1));
+        PduPart smil = parser.pollPart();
+        assertEquals("<smil>", new String(smil.getContentId()));
+        assertArrayEquals("<smil/>".getBytes(), smil.getData());
+        assertNull(parser.pollPart());
+        assertTrue(parser.needsMoreInput());
+
+        parser.feed(ByteBuffer.wrap(pdu, pdu.length - 1, 1));
+        assertEquals("<image>", new String(parser.pollPart().getContentId()));
+        assertTrue(parser.isDone());
+        assertEquals(2, conf.getBody().getPartsNum());
+    }
+
+    @Test
+    public void pduWithoutBodyEndsWithTheInput() {
+        byte[] pdu = {
+            (byte) PduHeaders.MESSAGE_TYPE, (byte) PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND,
+            (byte) PduHeaders.TRANSACTION_ID, 'T', '1', 0,
+            (byte) PduHeaders.MMS_VERSION, (byte) (0x80 | PduHeaders.MMS_VERSION_1_2),
+            (byte) PduHeaders.STATUS, (byte) PduHeaders.STATUS_RETRIEVED
+        };
+        assertNotNull(new PduParser(pdu, true).parse());
+
+        IncrementalPduParser parser = new IncrementalPduParser(true);
+        feed(parser, pdu, 1);
+        // More headers could follow.
+        assertTrue(parser.needsMoreInput());
+
+        parser.endOfInput();
+        assertTrue(parser.isDone());
+        NotifyRespInd ind = (NotifyRespInd) parser.getPdu();
+        assertEquals("T1", new String(ind.getTransactionId()));
+        assertEquals(PduHeaders.STATUS_RETRIEVED, ind.getStatus());
+    }
+
+    @Test
+    public void truncatedPdusFail() {
+        byte[] pdu = TestPdus.randomRetrieveConf(3);
+        for (int length = 0; length < pdu.length; length += 7) {
+            IncrementalPduParser parser = new IncrementalPduParser(true);
+            parser.feed(ByteBuffer.wrap(pdu, 0, length));
+            parser.endOfInput();
+            assertTrue("truncated to " + length, parser.hasFailed());
+            assertNull(parser.getPdu());
+            assertNull(parser.pollPart());
+        }
+    }
+
+    @Test
+    public void headersAreBounded() {
+        byte[] pdu = TestPdus.retrieveConf("T1", new String(new char[2000]).replace('\0', 's'),
+                null, null, new ArrayList<TestPdus.Part>());
+        IncrementalPduParser parser = new IncrementalPduParser(true, 1024);
+        parser.feed(ByteBuffer.wrap(pdu));
+        assertTrue(parser.hasFailed());
+
+        parser = new IncrementalPduParser(true, 4096);
+        parser.feed(ByteBuffer.wrap(pdu));
+        assertTrue(parser.isDone());
+    }
+
+    @Test
+    public void partLengthsCostNoMemoryBeforeTheDataArrives() {
+        // A part claiming 0x7FFFFFFF octets of data.
+        byte[] pdu = {
+            (byte) 0x8c, (byte) 0x80, (byte) 0x98, 0x74, 0x00, (byte) 0x8d, (byte) 0x92,
+            (byte) 0x89, 0x01, (byte) 0x81, (byte) 0x84, (byte) 0xa3, 0x01, 0x01,
+            (byte) 0x87, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f, (byte) 0x83
+        };
+        IncrementalPduParser parser = new IncrementalPduParser(true);
+        parser.feed(ByteBuffer.wrap(pdu));
+        assertTrue(parser.needsMoreInput());
+        parser.feed(ByteBuffer.wrap(new byte[1000]));
+        assertTrue(parser.needsMoreInput());
+        parser.endOfInput();
+        assertTrue(parser.hasFailed());
+    }
+
+    @Test
+    public void largePartsGrowAsTheirDataArrives() {
+        List<TestPdus.Part> parts = new ArrayList<TestPdus.Part>();
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        parts.add(new TestPdus.Part("image/jpeg", "<image>", "i.jpg", null, data));
+        byte[] pdu = TestPdus.retrieveConf("T1", "subject", null, null, parts);
+
+        IncrementalPduParser parser = new IncrementalPduParser(true);
+        List<PduPart> polled = feed(parser, pdu, 777);
+        assertTrue(parser.isDone());
+        assertEquals(1, polled.size());
+        assertArrayEquals(data, polled.get(0).getData());
+    }
+
+    @Test
+    public void bytesAfterThePduAreIgnored() {
+        byte[] pdu = TestPdus.randomRetrieveConf(5);
+        byte[] padded = Arrays.copyOf(pdu, pdu.length + 100);
+        IncrementalPduParser parser = new IncrementalPduParser(true);
+        ByteBuffer data = ByteBuffer.wrap(padded);
+        parser.feed(data);
+        assertFalse(data.hasRemaining());
+        assertTrue(parser.isDone());
+        assertEquals(TestPdus.describe(new PduParser(pdu, true).parse()),
+                TestPdus.describe(parser.getPdu()));
+    }
+
+    /**
+     * Feed a pdu in chunks, polling the parts after each chunk.
+     *
+     * @return the polled parts
+     */
+    private static List<PduPart> feed(IncrementalPduParser parser, byte[] pdu, int chunkSize) {
+        List<PduPart> parts = new ArrayList<PduPart>();
+        for (int offset = 0; offset < pdu.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, pdu.length - offset);
+            ByteBuffer chunk = ByteBuffer.wrap(pdu, offset, length);
+            parser.feed(chunk);
+            assertFalse(chunk.hasRemaining());
+            for (PduPart part; (part = parser.pollPart()) != null; ) {
+                parts.add(part);
+            }
+        }
+        return parts;
+    }
+}
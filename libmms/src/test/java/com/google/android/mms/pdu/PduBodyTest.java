@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PduBodyTest {
+    @Test
+    public void keepsPartsInOrder() {
+        PduBody body = new PduBody();
+        PduPart[] parts = new PduPart[10];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = createPart("cid" + i, "loc" + i);
+            assertTrue(body.addPart(parts[i]));
+        }
+        PduPart first = createPart("first", null);
+        body.addPart(0, first);
+        PduPart middle = createPart("middle", null);
+        body.addPart(5, middle);
+
+        assertEquals(12, body.getPartsNum());
+        assertSame(first, body.getPart(0));
+        assertSame(parts[3], body.getPart(4));
+        assertSame(middle, body.getPart(5));
+        assertSame(parts[4], body.getPart(6));
+        assertSame(parts[9], body.getPart(11));
+        assertEquals(6, body.getPartIndex(parts[4]));
+        assertEquals(-1, body.getPartIndex(new PduPart()));
+        assertEquals(-1, body.getPartIndex(null));
+
+        assertSame(middle, body.removePart(5));
+        assertEquals(11, body.getPartsNum());
+        assertSame(parts[4], body.getPart(5));
+
+        body.removeAll();
+        assertEquals(0, body.getPartsNum());
+    }
+
+    @Test
+    public void rejectsBadIndexesAsVectorDid() {
+        PduBody body = new PduBody();
+        body.addPart(new PduPart());
+        assertOutOfBounds(body, -1);
+        assertOutOfBounds(body, 1);
+        try {
+            body.addPart(2, new PduPart());
+            fail("Added a part after the end");
+        } catch (ArrayIndexOutOfBoundsException expected) {
+        }
+        body.addPart(1, new PduPart());
+        assertEquals(2, body.getPartsNum());
+        try {
+            body.addPart(null);
+            fail("Added a null part");
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    @Test
+    public void looksPartsUpByTheirKeys() {
+        PduBody body = new PduBody();
+        PduPart image = createPart("<image>", "image.jpg");
+        image.setName("photo".getBytes());
+        image.setFilename("photo.jpg".getBytes());
+        PduPart text = createPart("<text>", "text.txt");
+        body.addPart(image);
+        body.addPart(text);
+
+        assertSame(image, body.getPartByContentId("<image>"));
+        assertSame(text, body.getPartByContentLocation("text.txt"));
+        assertSame(image, body.getPartByName("photo"));
+        assertSame(image, body.getPartByFileName("photo.jpg"));
+        assertNull(body.getPartByName("text"));
+
+        // The maps follow the parts added and removed after a lookup.
+        PduPart other = createPart("<image>", "other.jpg");
+        body.addPart(other);
+        assertSame(other, body.getPartByContentId("<image>"));
+        assertSame(other, body.getPartByContentLocation("other.jpg"));
+        body.removePart(2);
+        assertSame(image, body.getPartByContentId("<image>"));
+        assertNull(body.getPartByContentLocation("other.jpg"));
+        body.removeAll();
+        assertNull(body.getPartByContentId("<image>"));
+    }
+
+    private static PduPart createPart(String contentId, String contentLocation) {
+        PduPart part = new PduPart();
+        part.setContentId(contentId.getBytes());
+        if (null != contentLocation) {
+            part.setContentLocation(contentLocation.getBytes());
+        }
+        return part;
+    }
+
+    private static void assertOutOfBounds(PduBody body, int index) {
+        try {
+            body.getPart(index);
+            fail("Got part " + index);
+        } catch (ArrayIndexOutOfBoundsException expected) {
+        }
+        try {
+            body.removePart(index);
+            fail("Removed part " + index);
+        } catch (ArrayIndexOutOfBoundsException expected) {
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.google.android.mms.InvalidHeaderValueException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that PduComposer composes the same bytes as the composer which
+ * copied each length-prefixed block out of a stack of buffers. The
+ * expected pdus were composed by that composer.
+ */
+public class PduComposerTest {
+    /**
+     * A context without content, as the pdus composed here hold all their
+     * data.
+     */
+    private static final Context CONTEXT = new ContextWrapper(null) {
+        @Override
+        public ContentResolver getContentResolver() {
+            return null;
+        }
+    };
+
+    private static final String SEND_REQ =
+            "8c80985431323334008d9285046553f100891a8018ea2b313535353030303131"
+            + "31312f545950453d504c4d4e009718ea2b31353535323232333333332f545950"
+            + "453d504c4d4e009715ea736f6d656f6e65406578616d706c652e636f6d008214"
+            + "ea31302e302e302e312f545950453d4950563400961f2eea41207375626a6563"
+            + "74207768696368206973206c6f6e676572207468616e20746869727479206f63"
+            + "74657473008a8088058103093a808f818681841bb38a3c736d696c3e00896170"
+            + "706c69636174696f6e2f736d696c00032f281b6170706c69636174696f6e2f73"
+            + "6d696c0085736d696c2e786d6c00c0223c736d696c3e008e736d696c2e786d6c"
+            + "00000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e"
+            + "1f202122232425262731291b782d637573746f6d2f7479706500857061727431"
+            + "2e6461740081eac0223c70617274313e008e70617274312e646174001f202122"
+            + "232425262728292a2b2c2d2e2f303132333435363738393a3b3c3d3e3f404142"
+            + "4344454647222a0c9e8570617274322e64617400c0223c70617274323e008e70"
+            + "617274322e646174003e3f404142434445464748494a4b4c4d4e4f5051525354"
+            + "55565758595a5b5c5d5e5f6061626364656667";
+    private static final String EMPTY_SEND_REQ =
+            "8c80985431323334008d9285046553f100891a8018ea2b313535353030303131"
+            + "31312f545950453d504c4d4e009718ea2b31353535323232333333332f545950"
+            + "453d504c4d4e009715ea736f6d656f6e65406578616d706c652e636f6d008214"
+            + "ea31302e302e302e312f545950453d4950563400961f2eea41207375626a6563"
+            + "74207768696368206973206c6f6e676572207468616e20746869727479206f63"
+            + "74657473008a8088058103093a808f81868184b300";
+    private static final String NOTIFY_RESP_IND = "8c83985431323334008d929581";
+    private static final String ACKNOWLEDGE_IND = "8c85985431323334008d92";
+    private static final String READ_REC_IND =
+            "8c878d928b6d6573736167652d6964009718ea2b31353535323232333333332f"
+            + "545950453d504c4d4e00891a8018ea2b31353535303030313131312f54595045"
+            + "3d504c4d4e009b80";
+
+    @Test
+    public void composesSendReq() throws Exception {
+        assertEquals(SEND_REQ, toHex(new PduComposer(CONTEXT, createSendReq(3, 40)).make()));
+    }
+
+    @Test
+    public void composesSendReqWithoutParts() throws Exception {
+        assertEquals(EMPTY_SEND_REQ,
+                toHex(new PduComposer(CONTEXT, createSendReq(0, 0)).make()));
+    }
+
+    @Test
+    public void composesNotifyRespInd() throws Exception {
+        NotifyRespInd pdu = new NotifyRespInd(PduHeaders.CURRENT_MMS_VERSION,
+                "T1234".getBytes(), PduHeaders.STATUS_RETRIEVED);
+        assertEquals(NOTIFY_RESP_IND, toHex(new PduComposer(CONTEXT, pdu).make()));
+    }
+
+    @Test
+    public void composesAcknowledgeInd() throws Exception {
+        AcknowledgeInd pdu = new AcknowledgeInd(PduHeaders.CURRENT_MMS_VERSION,
+                "T1234".getBytes());
+        assertEquals(ACKNOWLEDGE_IND, toHex(new PduComposer(CONTEXT, pdu).make()));
+    }
+
+    @Test
+    public void composesReadRecInd() throws Exception {
+        ReadRecInd pdu = new ReadRecInd(new EncodedStringValue("+15550001111"),
+                "message-id".getBytes(), PduHeaders.CURRENT_MMS_VERSION,
+                PduHeaders.READ_STATUS_READ,
+                new EncodedStringValue[] { new EncodedStringValue("+15552223333") });
+        assertEquals(READ_REC_IND, toHex(new PduComposer(CONTEXT, pdu).make()));
+    }
+
+    @Test
+    public void arrayAndStreamAreTheSame() throws Exception {
+        SendReq req = createSendReq(20, 4096);
+        byte[] pdu = new PduComposer(CONTEXT, req).make();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new PduComposer(CONTEXT, req).make(out));
+        assertArrayEquals(pdu, out.toByteArray());
+
+        PduBody body = ((SendReq) new PduParser(pdu, true).parse()).getBody();
+        assertEquals(20, body.getPartsNum());
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(req.getBody().getPart(i).getData(), body.getPart(i).getData());
+        }
+    }
+
+    @Test
+    public void streamsPendingDataWithoutLoadingIt() throws Exception {
+        SendReq req = createSendReq(3, 40);
+        byte[] expected = new PduComposer(CONTEXT, req).make();
+        PduPart part = req.getBody().getPart(2);
+        TestPdus.CountingLoader loader = new TestPdus.CountingLoader(part.getData());
+        part.setDataLoader(loader);
+
+        assertArrayEquals(expected, new PduComposer(CONTEXT, req).make());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new PduComposer(CONTEXT, req).make(out));
+        assertArrayEquals(expected, out.toByteArray());
+        // Sized by its length, then streamed once per pdu.
+        assertEquals(2, loader.mLengths);
+        assertEquals(2, loader.mOpens);
+        assertEquals(0, loader.mLoads);
+        assertTrue(part.hasPendingData());
+    }
+
+    @Test
+    public void writeFailuresAreThrown() throws Exception {
+        SendReq req = createSendReq(3, 40);
+        PduPart part = req.getBody().getPart(2);
+        part.setDataLoader(new TestPdus.CountingLoader(new byte[100 * 1024]));
+        assertWriteFails(req);
+
+        // Data in memory is written elsewhere.
+        part.setData(new byte[100 * 1024]);
+        assertWriteFails(req);
+    }
+
+    private static void assertWriteFails(SendReq req) {
+        try {
+            new PduComposer(CONTEXT, req).make(new FullOutputStream(20 * 1024));
+            fail("Wrote to a full stream");
+        } catch (IOException expected) {
+            assertEquals("disk full", expected.getMessage());
+        }
+    }
+
+    /**
+     * Fails once a number of octets were written to it.
+     */
+    private static class FullOutputStream extends OutputStream {
+        private int mRoom;
+
+        FullOutputStream(int room) {
+            mRoom = room;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > mRoom) {
+                throw new IOException("disk full");
+            }
+            mRoom -= len;
+        }
+    }
+
+    /**
+     * Create a send-req with a smil part and the given number of other
+     * parts, covering the ways the headers of a part are composed.
+     */
+    private static SendReq createSendReq(int parts, int size)
+            throws InvalidHeaderValueException {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue("+15550001111"));
+        req.setTo(EncodedStringValue.encodeStrings(new String[] {
+            "+15552223333", "someone@example.com"
+        }));
+        req.setCc(EncodedStringValue.encodeStrings(new String[] { "10.0.0.1" }));
+        req.setSubject(new EncodedStringValue(CharacterSets.UTF_8,
+                "A subject which is longer than thirty octets".getBytes()));
+        req.setDate(1700000000L);
+        req.setTransactionId("T1234".getBytes());
+        req.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+        req.setExpiry(604800);
+        req.setPriority(PduHeaders.PRIORITY_NORMAL);
+        req.setDeliveryReport(PduHeaders.VALUE_NO);
+        if (parts == 0) {
+            return req;
+        }
+
+        PduBody body = new PduBody();
+        for (int i = 0; i < parts; i++) {
+            PduPart part = new PduPart();
+            if (i == 0) {
+                part.setContentType("application/smil".getBytes());
+                part.setContentId("<smil>".getBytes());
+                part.setContentLocation("smil.xml".getBytes());
+            } else {
+                // A well-known content type and one which is a text string.
+                part.setContentType(((i % 2 == 0) ? "image/jpeg" : "x-custom/type").getBytes());
+                part.setContentId(("part" + i).getBytes());
+                if (i % 3 == 0) {
+                    part.setName(("name" + i).getBytes());
+                } else {
+                    part.setContentLocation(("part" + i + ".dat").getBytes());
+                }
+                if (i % 2 == 1) {
+                    part.setCharset(CharacterSets.UTF_8);
+                }
+            }
+            byte[] data = new byte[size + i];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (i * 31 + j);
+            }
+            part.setData(data);
+            body.addPart(part);
+        }
+        req.setBody(body);
+        return req;
+    }
+
+    private static String toHex(byte[] bytes) {
+        assertNotNull(bytes);
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
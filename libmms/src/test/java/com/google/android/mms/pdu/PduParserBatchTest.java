@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class PduParserBatchTest {
+    private static final int PDU_COUNT = 1000;
+
+    @Test
+    public void resultsAreInOrderAndFailuresDontAbortTheBatch() throws Exception {
+        List<byte[]> pdus = new ArrayList<byte[]>(PDU_COUNT);
+        for (int i = 0; i < PDU_COUNT; i++) {
+            if (i % 100 == 7) {
+                // Unknown message type.
+                pdus.add(new byte[] { (byte) PduHeaders.MESSAGE_TYPE, (byte) 0xFF });
+            } else {
+                pdus.add(TestPdus.randomRetrieveConf(i));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<GenericPdu> results;
+        try {
+            results = PduParser.parseAll(pdus, true, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(PDU_COUNT, results.size());
+        for (int i = 0; i < PDU_COUNT; i++) {
+            if (i % 100 == 7) {
+                assertNull("pdu " + i, results.get(i));
+            } else {
+                assertEquals("pdu " + i,
+                        TestPdus.describe(new PduParser(pdus.get(i), true).parse()),
+                        TestPdus.describe(results.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void runsOnCallingThreadExecutor() throws Exception {
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        List<byte[]> pdus = new ArrayList<byte[]>();
+        pdus.add(TestPdus.randomRetrieveConf(1));
+        pdus.add(TestPdus.randomRetrieveConf(2));
+
+        List<GenericPdu> results = PduParser.parseAll(pdus, true, direct);
+        assertEquals(2, results.size());
+        assertEquals("T1", new String(((RetrieveConf) results.get(0)).getTransactionId()));
+        assertEquals("T2", new String(((RetrieveConf) results.get(1)).getTransactionId()));
+
+        assertEquals(0, PduParser.parseAll(Collections.<byte[]>emptyList(), true, direct).size());
+    }
+
+    @Test
+    public void failuresAreReportedWithTheirCause() throws Exception {
+        final List<byte[]> pdus = new ArrayList<byte[]>();
+        for (int i = 0; i < 20; i++) {
+            pdus.add(TestPdus.randomRetrieveConf(i));
+        }
+        // Unknown message type.
+        pdus.set(4, new byte[] { (byte) PduHeaders.MESSAGE_TYPE, (byte) 0xFF });
+        final IllegalStateException exception = new IllegalStateException();
+        final AssertionError error = new AssertionError();
+        List<byte[]> failing = new AbstractList<byte[]>() {
+            @Override
+            public byte[] get(int index) {
+                if (index == 9) {
+                    throw exception;
+                } else if (index == 13) {
+                    throw error;
+                }
+                return pdus.get(index);
+            }
+
+            @Override
+            public int size() {
+                return pdus.size();
+            }
+        };
+
+        final ConcurrentHashMap<Integer, Object> failures = new ConcurrentHashMap<Integer, Object>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            PduParser.parseAll(failing, true, executor, new PduParser.ParseFailureListener() {
+                @Override
+                public void onParseFailed(int index, Throwable cause) {
+                    failures.put(index, (cause != null) ? cause : "null");
+                }
+            });
+            fail("Swallowed the error");
+        } catch (AssertionError e) {
+            assertSame(error, e);
+        } finally {
+            executor.shutdown();
+        }
+
+        // Every pdu was parsed, and the failures were told apart.
+        assertEquals(3, failures.size());
+        assertEquals("null", failures.get(4));
+        assertSame(exception, failures.get(9));
+        assertSame(error, failures.get(13));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that parsing a pdu out of a ByteBuffer or a memory-mapped file
+ * gives the same pdu as parsing it out of an array, with the part data
+ * left in the buffer.
+ */
+public class PduParserBufferTest {
+    private static final int PDU_COUNT = 20;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void parsesHeapBuffersAsArrays() {
+        for (int i = 0; i < PDU_COUNT; i++) {
+            byte[] pdu = TestPdus.randomRetrieveConf(i);
+            assertEquals("pdu " + i, parseArray(pdu),
+                    TestPdus.describe(new PduParser(ByteBuffer.wrap(pdu), true).parse()));
+        }
+    }
+
+    @Test
+    public void parsesFromThePositionToTheLimit() {
+        for (int i = 0; i < PDU_COUNT; i++) {
+            byte[] pdu = TestPdus.randomRetrieveConf(i);
+            String expected = parseArray(pdu);
+
+            // The pdu between other bytes.
+            byte[] padded = new byte[pdu.length + 48];
+            Arrays.fill(padded, (byte) 0xFF);
+            System.arraycopy(pdu, 0, padded, 37, pdu.length);
+            ByteBuffer buffer = ByteBuffer.wrap(padded, 37, pdu.length);
+            assertEquals("pdu " + i, expected,
+                    TestPdus.describe(new PduParser(buffer, true).parse()));
+
+            // A slice with an array offset, read from a position within it.
+            ByteBuffer slice = ByteBuffer.wrap(padded, 30, pdu.length + 7).slice();
+            slice.position(7);
+            assertEquals("pdu " + i, expected,
+                    TestPdus.describe(new PduParser(slice, true).parse()));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+            direct.put(padded).position(37);
+            direct.limit(37 + pdu.length);
+            assertEquals("pdu " + i, expected,
+                    TestPdus.describe(new PduParser(direct, true).parse()));
+        }
+    }
+
+    @Test
+    public void partDataAreReadOnlyViewsOfTheBuffer() {
+        byte[] pdu = TestPdus.randomRetrieveConf(4);
+        byte[] padded = new byte[pdu.length + 16];
+        System.arraycopy(pdu, 0, padded, 16, pdu.length);
+        RetrieveConf conf = (RetrieveConf) new PduParser(
+                ByteBuffer.wrap(padded, 16, pdu.length), true).parse();
+        assertBodyIsAView(conf.getBody(), padded);
+    }
+
+    @Test
+    public void parsesMappedFilesAsArrays() throws Exception {
+        for (int i = 0; i < PDU_COUNT; i++) {
+            byte[] pdu = TestPdus.randomRetrieveConf(i);
+            String expected = parseArray(pdu);
+            File file = writeFile(pdu);
+            assertEquals("pdu " + i, expected,
+                    TestPdus.describe(new PduParser(file, true).parse()));
+
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                assertEquals("pdu " + i, expected, TestPdus.describe(
+                        new PduParser(randomAccessFile.getChannel(), true).parse()));
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    @Test
+    public void partDataStayInTheMapping() throws Exception {
+        byte[] pdu = TestPdus.randomRetrieveConf(6);
+        String expected = parseArray(pdu);
+        File file = writeFile(pdu);
+        RetrieveConf conf = (RetrieveConf) new PduParser(file, true).parse();
+
+        PduBody body = conf.getBody();
+        for (int i = 0; i < body.getPartsNum(); i++) {
+            ByteBuffer buffer = body.getPart(i).getDataBuffer();
+            assertTrue(buffer.isDirect());
+            assertTrue(buffer.isReadOnly());
+        }
+        // The mapping outlives the file.
+        file.delete();
+        assertEquals(expected, TestPdus.describe(conf));
+    }
+
+    @Test
+    public void failsForMissingFiles() {
+        try {
+            new PduParser(new File(mFolder.getRoot(), "missing"), true);
+            fail("Parsed a missing file");
+        } catch (IOException expected) {
+        }
+    }
+
+    private File writeFile(byte[] pdu) throws IOException {
+        File file = mFolder.newFile("pdu" + Arrays.hashCode(pdu));
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(pdu);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Check that the part data of a body are read-only views of the parsed
+     * bytes, by changing those bytes.
+     */
+    private static void assertBodyIsAView(PduBody body, byte[] parsed) {
+        byte[][] data = new byte[body.getPartsNum()][];
+        for (int i = 0; i < data.length; i++) {
+            ByteBuffer buffer = body.getPart(i).getDataBuffer();
+            assertTrue(buffer.isReadOnly());
+            try {
+                buffer.put(0, (byte) 0);
+                fail("Changed the data of part " + i);
+            } catch (ReadOnlyBufferException expected) {
+            } catch (IndexOutOfBoundsException expected) {
+                // No data.
+            }
+            data[i] = body.getPart(i).getData();
+        }
+
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = (byte) ~parsed[i];
+        }
+        for (int i = 0; i < data.length; i++) {
+            byte[] changed = body.getPart(i).getData();
+            assertEquals(data[i].length, changed.length);
+            for (int j = 0; j < changed.length; j++) {
+                assertEquals((byte) ~data[i][j], changed[j]);
+            }
+        }
+    }
+
+    private static String parseArray(byte[] pdu) {
+        GenericPdu parsed = new PduParser(pdu, true).parse();
+        assertNotNull(parsed);
+        return TestPdus.describe(parsed);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses many distinct pdus concurrently and checks that every result is
+ * the same as when the pdus are parsed one after the other.
+ */
+public class PduParserConcurrencyTest {
+    private static final int PDU_COUNT = 4000;
+    private static final int THREAD_COUNT = 8;
+
+    @Test
+    public void parallelParsingMatchesSerialParsing() throws Exception {
+        final List<byte[]> pdus = new ArrayList<byte[]>(PDU_COUNT);
+        List<String> expected = new ArrayList<String>(PDU_COUNT);
+        for (int i = 0; i < PDU_COUNT; i++) {
+            byte[] pdu = TestPdus.randomRetrieveConf(i);
+            GenericPdu parsed = new PduParser(pdu, true).parse();
+            assertNotNull(parsed);
+            pdus.add(pdu);
+            expected.add(TestPdus.describe(parsed));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            // Start all of the parsers at once to get as much overlap as possible.
+            final CountDownLatch startSignal = new CountDownLatch(1);
+            List<Future<String>> results = new ArrayList<Future<String>>(PDU_COUNT);
+            for (int i = 0; i < PDU_COUNT; i++) {
+                final byte[] pdu = pdus.get(i);
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        startSignal.await();
+                        return TestPdus.describe(new PduParser(pdu, true).parse());
+                    }
+                }));
+            }
+            startSignal.countDown();
+
+            for (int i = 0; i < PDU_COUNT; i++) {
+                assertEquals("pdu " + i, expected.get(i), results.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void rootPartIsMovedToFront() {
+        List<TestPdus.Part> parts = new ArrayList<TestPdus.Part>();
+        parts.add(new TestPdus.Part("text/plain", "<a>", "a.txt", null, new byte[] { 'a' }));
+        parts.add(new TestPdus.Part("application/smil", "<b>", "b.smil", null, new byte[] { 'b' }));
+        byte[] pdu = TestPdus.retrieveConf("T1", "s", "<b>", null, parts);
+
+        PduBody body = ((RetrieveConf) new PduParser(pdu, true).parse()).getBody();
+        assertEquals("<b>", new String(body.getPart(0).getContentId()));
+        assertEquals("<a>", new String(body.getPart(1).getContentId()));
+
+        // A following pdu without "start" parameter keeps its parts in order.
+        pdu = TestPdus.retrieveConf("T2", "s", null, null, parts);
+        body = ((RetrieveConf) new PduParser(pdu, true).parse()).getBody();
+        assertEquals("<a>", new String(body.getPart(0).getContentId()));
+        assertEquals("<b>", new String(body.getPart(1).getContentId()));
+    }
+}
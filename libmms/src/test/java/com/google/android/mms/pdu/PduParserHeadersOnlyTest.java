@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PduParserHeadersOnlyTest {
+    private static final int PDU_COUNT = 20;
+
+    @Test
+    public void headersAreTheSameAsParsed() {
+        for (int i = 0; i < PDU_COUNT; i++) {
+            byte[] pdu = TestPdus.randomRetrieveConf(i);
+            RetrieveConf expected = (RetrieveConf) new PduParser(pdu, true).parse();
+
+            PduParser parser = new PduParser(pdu, true);
+            RetrieveConf conf = (RetrieveConf) parser.parseHeadersOnly();
+            assertNull(conf.getBody());
+            assertArrayEquals(expected.getTransactionId(), conf.getTransactionId());
+            assertEquals(expected.getSubject().getString(), conf.getSubject().getString());
+            assertArrayEquals(expected.getContentType(), conf.getContentType());
+            assertEquals(expected.getMessageType(), conf.getMessageType());
+            assertEquals(expected.getMmsVersion(), conf.getMmsVersion());
+            // The body starts with the number of parts.
+            assertEquals(expected.getBody().getPartsNum(), pdu[parser.getBodyOffset()]);
+        }
+    }
+
+    @Test
+    public void bodyCompletesThePdu() {
+        for (int i = 0; i < PDU_COUNT; i++) {
+            byte[] pdu = TestPdus.randomRetrieveConf(i);
+            PduParser parser = new PduParser(pdu, true);
+            GenericPdu headers = parser.parseHeadersOnly();
+            PduBody body = parser.parseBody();
+
+            assertSame(body, ((RetrieveConf) headers).getBody());
+            assertEquals("pdu " + i, TestPdus.describe(new PduParser(pdu, true).parse()),
+                    TestPdus.describe(headers));
+        }
+    }
+
+    @Test
+    public void bodyIsParsedOnce() {
+        PduParser parser = new PduParser(TestPdus.randomRetrieveConf(2), true);
+        parser.parseHeadersOnly();
+        PduBody body = parser.parseBody();
+        assertNotNull(body);
+        assertSame(body, parser.parseBody());
+    }
+
+    @Test
+    public void bodyNeedsTheHeaders() {
+        PduParser parser = new PduParser(TestPdus.randomRetrieveConf(2), true);
+        assertEquals(-1, parser.getBodyOffset());
+        assertNull(parser.parseBody());
+        // Nothing was consumed.
+        assertNotNull(parser.parseHeadersOnly());
+        assertNotNull(parser.parseBody());
+    }
+
+    @Test
+    public void pdusWithoutBodyHaveNone() {
+        byte[] pdu = {
+            (byte) PduHeaders.MESSAGE_TYPE, (byte) PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND,
+            (byte) PduHeaders.TRANSACTION_ID, 'T', '1', 0,
+            (byte) PduHeaders.MMS_VERSION, (byte) (0x80 | PduHeaders.MMS_VERSION_1_2),
+            (byte) PduHeaders.STATUS, (byte) PduHeaders.STATUS_RETRIEVED
+        };
+        PduParser parser = new PduParser(pdu, true);
+        assertTrue(parser.parseHeadersOnly() instanceof NotifyRespInd);
+        assertEquals(pdu.length, parser.getBodyOffset());
+        assertNull(parser.parseBody());
+    }
+
+    @Test
+    public void headersDoNotNeedAValidBody() {
+        byte[] pdu = TestPdus.randomRetrieveConf(9);
+        PduParser headersParser = new PduParser(pdu, true);
+        headersParser.parseHeadersOnly();
+        byte[] truncated = Arrays.copyOf(pdu, headersParser.getBodyOffset() + 3);
+        assertNull(new PduParser(truncated, true).parse());
+
+        PduParser parser = new PduParser(truncated, true);
+        RetrieveConf conf = (RetrieveConf) parser.parseHeadersOnly();
+        assertNotNull(conf);
+        assertEquals("subject 9", conf.getSubject().getString());
+        assertNull(parser.parseBody());
+        assertNull(conf.getBody());
+    }
+}
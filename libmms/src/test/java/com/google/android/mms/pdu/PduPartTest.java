@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PduPartTest {
+    private static final byte[] DATA = "BEGIN:VCARD\r\nEND:VCARD\r\n".getBytes();
+
+    @Test
+    public void dataIsLoadedOnceWhenFirstAccessed() {
+        TestPdus.CountingLoader loader = new TestPdus.CountingLoader(DATA);
+        PduPart part = new PduPart();
+        part.setDataLoader(loader);
+        assertEquals(0, loader.mLoads);
+        assertTrue(part.hasPendingData());
+
+        assertArrayEquals(DATA, part.getData());
+        assertEquals(DATA.length, part.getDataLength());
+        assertEquals(DATA.length, part.getDataBuffer().remaining());
+        assertEquals(1, loader.mLoads);
+        assertFalse(part.hasPendingData());
+    }
+
+    @Test
+    public void pendingDataIsStreamedWithoutLoadingIt() throws IOException {
+        TestPdus.CountingLoader loader = new TestPdus.CountingLoader(DATA);
+        PduPart part = new PduPart();
+        part.setDataLoader(loader);
+
+        InputStream is = part.getDataStream();
+        byte[] data = new byte[DATA.length];
+        assertEquals(DATA.length, is.read(data));
+        assertArrayEquals(DATA, data);
+        assertEquals(1, loader.mOpens);
+        assertEquals(0, loader.mLoads);
+        assertTrue(part.hasPendingData());
+    }
+
+    @Test
+    public void pendingDataIsSizedWithoutLoadingIt() {
+        TestPdus.CountingLoader loader = new TestPdus.CountingLoader(DATA);
+        PduPart part = new PduPart();
+        assertEquals(-1, part.getPendingDataLength());
+        part.setDataLoader(loader);
+
+        assertEquals(DATA.length, part.getPendingDataLength());
+        assertEquals(1, loader.mLengths);
+        assertEquals(0, loader.mLoads);
+        assertTrue(part.hasPendingData());
+
+        part.getData();
+        assertEquals(-1, part.getPendingDataLength());
+    }
+
+    @Test
+    public void failedLoadsAreRetried() {
+        TestPdus.CountingLoader loader = new TestPdus.CountingLoader(DATA);
+        loader.mFailures = 1;
+        PduPart part = new PduPart();
+        part.setDataLoader(loader);
+
+        assertNull(part.getData());
+        assertTrue(part.hasPendingData());
+        assertArrayEquals(DATA, part.getData());
+        assertEquals(2, loader.mLoads);
+    }
+
+    @Test
+    public void settingTheDataUriKeepsTheLoader() {
+        TestPdus.CountingLoader loader = new TestPdus.CountingLoader(DATA);
+        loader.mFailures = 1;
+        PduPart part = new PduPart();
+        part.setDataLoader(loader);
+
+        // The data is loaded from the new uri when it is accessed.
+        part.setDataUri(null);
+        assertEquals(0, loader.mLoads);
+        assertTrue(part.hasPendingData());
+
+        // A failed load keeps the data pending.
+        assertNull(part.getData());
+        assertTrue(part.hasPendingData());
+        assertArrayEquals(DATA, part.getData());
+        assertEquals(2, loader.mLoads);
+    }
+
+    @Test
+    public void settingDataDropsTheLoader() {
+        TestPdus.CountingLoader loader = new TestPdus.CountingLoader(DATA);
+        PduPart part = new PduPart();
+        part.setDataLoader(loader);
+        part.setData(new byte[] { 1, 2, 3 });
+
+        assertFalse(part.hasPendingData());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, part.getData());
+        assertEquals(0, loader.mLoads);
+    }
+
+    @Test
+    public void lazilyDecodedDataIsSeenByConcurrentReaders() throws Exception {
+        final int threads = 8;
+        final byte[] data = "Decoded by whichever thread comes first".getBytes();
+        byte[] encoded = java.util.Base64.getMimeEncoder().encode(data);
+        for (int round = 0; round < 200; round++) {
+            final PduPart part = new PduPart();
+            part.setContentTransferEncoding(PduPart.P_BASE64.getBytes());
+            part.setEncodedData(ByteBuffer.wrap(encoded));
+
+            final CyclicBarrier start = new CyclicBarrier(threads);
+            final AtomicInteger mismatches = new AtomicInteger();
+            List<Thread> readers = new ArrayList<Thread>();
+            for (int i = 0; i < threads; i++) {
+                Thread reader = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                        if (!java.util.Arrays.equals(data, part.getData())) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                };
+                reader.start();
+                readers.add(reader);
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            assertEquals("round " + round, 0, mismatches.get());
+        }
+    }
+
+    @Test
+    public void partsAreDecodedByTheirContentTransferEncoding() throws Exception {
+        byte[] data = "caf\u00e9 = 1".getBytes("UTF-8");
+        List<TestPdus.Part> parts = new ArrayList<TestPdus.Part>();
+        parts.add(new TestPdus.Part("text/plain", "<b64>", "b64.txt", "BASE64",
+                java.util.Base64.getMimeEncoder().encode(data)));
+        parts.add(new TestPdus.Part("text/plain", "<qp>", "qp.txt", "quoted-printable",
+                "caf=C3=A9 =3D 1".getBytes()));
+        parts.add(new TestPdus.Part("text/plain", "<bin>", "bin.txt", "binary",
+                "caf=C3=A9".getBytes()));
+        byte[] pdu = TestPdus.retrieveConf("T1", "subject", null, null, parts);
+
+        for (boolean lazily : new boolean[] { false, true }) {
+            PduParser parser = new PduParser(pdu, true);
+            parser.setDecodePartsLazily(lazily);
+            PduBody body = ((RetrieveConf) parser.parse()).getBody();
+            assertArrayEquals(data, body.getPartByContentId("<b64>").getData());
+            assertArrayEquals(data, body.getPartByContentId("<qp>").getData());
+            // Other encodings leave the data as it is.
+            assertArrayEquals("caf=C3=A9".getBytes(),
+                    body.getPartByContentId("<bin>").getData());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.net.Uri;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PduSnapshotTest {
+    @Test
+    public void rebuildsParsedPdus() throws Exception {
+        for (int seed = 0; seed < 50; seed++) {
+            GenericPdu pdu = new PduParser(TestPdus.randomRetrieveConf(seed), true).parse();
+            GenericPdu copy = PduSnapshot.read(PduSnapshot.write(pdu));
+
+            assertTrue(copy instanceof RetrieveConf);
+            assertEquals(TestPdus.describe(pdu), TestPdus.describe(copy));
+            assertArrayEquals(headersOf(pdu), headersOf(copy));
+            PduBody body = ((RetrieveConf) pdu).getBody();
+            PduBody copyBody = ((RetrieveConf) copy).getBody();
+            for (int i = 0; i < body.getPartsNum(); i++) {
+                PduPart part = body.getPart(i);
+                PduPart copyPart = copyBody.getPart(i);
+                assertEquals(part.getCharset(), copyPart.getCharset());
+                assertArrayEquals(part.getName(), copyPart.getName());
+                assertArrayEquals(part.getFilename(), copyPart.getFilename());
+                assertArrayEquals(part.getContentDisposition(),
+                        copyPart.getContentDisposition());
+            }
+        }
+    }
+
+    @Test
+    public void rebuildsPdusWithoutBody() throws Exception {
+        NotificationInd ind = new NotificationInd();
+        ind.setTransactionId("T1".getBytes());
+        ind.setContentLocation("http://mmsc/m1".getBytes());
+        ind.setMessageSize(12345);
+        ind.setExpiry(-1L);
+        ind.setFrom(new EncodedStringValue("+15551234"));
+        ind.setSubject(new EncodedStringValue(CharacterSets.UTF_8,
+                "\u4f1a\u8bae".getBytes("UTF-8")));
+
+        GenericPdu copy = PduSnapshot.read(PduSnapshot.write(ind));
+        assertTrue(copy instanceof NotificationInd);
+        assertArrayEquals(headersOf(ind), headersOf(copy));
+        assertEquals(-1L, ((NotificationInd) copy).getExpiry());
+        assertEquals(CharacterSets.UTF_8,
+                ((NotificationInd) copy).getSubject().getCharacterSet());
+    }
+
+    @Test
+    public void writesWellKnownContentTypesAsNumbers() throws Exception {
+        PduPart image = new PduPart();
+        image.setContentType("image/jpeg".getBytes());
+        image.setData(new byte[] { 1, 2, 3 });
+        PduPart other = new PduPart();
+        other.setContentType("image/heic".getBytes());
+        PduBody body = new PduBody();
+        body.addPart(image);
+        body.addPart(other);
+
+        byte[] snapshot = PduSnapshot.write(createSendReq(body));
+        assertFalse(contains(snapshot, "image/jpeg".getBytes()));
+        assertTrue(contains(snapshot, "image/heic".getBytes()));
+
+        PduBody copy = ((SendReq) PduSnapshot.read(snapshot)).getBody();
+        assertEquals("image/jpeg", new String(copy.getPart(0).getContentType()));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, copy.getPart(0).getData());
+        assertEquals("image/heic", new String(copy.getPart(1).getContentType()));
+        assertNull(copy.getPart(1).getData());
+    }
+
+    @Test
+    public void leavesPendingDataUnloaded() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        PduPart part = new PduPart();
+        part.setContentType("text/x-vCard".getBytes());
+        part.setDataLoader(new PduPart.DataLoader() {
+            @Override
+            public byte[] load(Uri uri) {
+                loads.incrementAndGet();
+                return new byte[] { 1, 2, 3 };
+            }
+
+            @Override
+            public InputStream open(Uri uri) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long length(Uri uri) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        PduBody body = new PduBody();
+        body.addPart(part);
+
+        byte[] snapshot = PduSnapshot.write(createSendReq(body));
+        assertEquals(0, loads.get());
+        assertTrue(part.hasPendingData());
+
+        // The data is only referred to by its Uri; without one there is none.
+        PduPart copy = ((SendReq) PduSnapshot.read(snapshot)).getBody().getPart(0);
+        assertFalse(copy.hasPendingData());
+        assertNull(copy.getData());
+        assertEquals("text/x-vCard", new String(copy.getContentType()));
+    }
+
+    @Test
+    public void rejectsCorruptSnapshots() throws Exception {
+        byte[] snapshot = PduSnapshot.write(
+                new PduParser(TestPdus.randomRetrieveConf(3), true).parse());
+        for (int length = 0; length < snapshot.length; length++) {
+            try {
+                PduSnapshot.read(Arrays.copyOf(snapshot, length));
+                fail("Read a snapshot cut at " + length);
+            } catch (IOException expected) {
+            }
+        }
+
+        byte[] longer = Arrays.copyOf(snapshot, snapshot.length + 1);
+        try {
+            PduSnapshot.read(longer);
+            fail("Read a snapshot with trailing bytes");
+        } catch (IOException expected) {
+        }
+
+        byte[] otherVersion = snapshot.clone();
+        otherVersion[4]++;
+        try {
+            PduSnapshot.read(otherVersion);
+            fail("Read a snapshot of another version");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static SendReq createSendReq(PduBody body) throws Exception {
+        SendReq req = new SendReq();
+        req.setBody(body);
+        req.setContentType("application/vnd.wap.multipart.related".getBytes());
+        return req;
+    }
+
+    private static byte[] headersOf(GenericPdu pdu) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdu.getPduHeaders().writeTo(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    private static boolean contains(byte[] data, byte[] value) {
+        for (int i = 0; i + value.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + value.length), value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
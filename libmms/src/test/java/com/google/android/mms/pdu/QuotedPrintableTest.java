@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QuotedPrintableTest {
+    /**
+     * Bytes the random inputs are made of: escapes, line breaks, hex digits
+     * of both cases and bytes which are none of them.
+     */
+    private static final byte[] ALPHABET = {
+        '=', '=', '=', '\r', '\n', '0', '9', 'A', 'f', 'G', 'z', ' ', (byte) 0xC3, (byte) 0xFF,
+    };
+
+    private final Random mRandom = new Random(0);
+
+    private byte[] randomInput(int length) {
+        byte[] input = new byte[length];
+        for (int i = 0; i < length; i++) {
+            input[i] = ALPHABET[mRandom.nextInt(ALPHABET.length)];
+        }
+        return input;
+    }
+
+    @Test
+    public void decodesLikeTheReferenceDecoder() throws IOException {
+        int malformed = 0;
+        for (int i = 0; i < 20000; i++) {
+            byte[] input = randomInput(mRandom.nextInt(24));
+            byte[] expected = referenceDecode(input);
+            if (null == expected) {
+                malformed++;
+            }
+            String message = new String(input, "ISO-8859-1");
+
+            assertArrayEquals(message, expected, QuotedPrintable.decodeQuotedPrintable(input));
+            assertArrayEquals(message, expected, QuotedPrintable.decodeQuotedPrintable(
+                    ByteBuffer.wrap(input).asReadOnlyBuffer()));
+
+            ByteBuffer dst = ByteBuffer.allocate(input.length);
+            int length = QuotedPrintable.decodeQuotedPrintable(ByteBuffer.wrap(input), dst);
+            if (null == expected) {
+                assertEquals(message, -1, length);
+                assertEquals(message, 0, dst.position());
+            } else {
+                assertEquals(message, expected.length, length);
+                assertArrayEquals(message, expected, java.util.Arrays.copyOf(dst.array(), length));
+            }
+
+            try {
+                byte[] streamed = readAll(new QuotedPrintableInputStream(
+                        new TricklingInputStream(input)));
+                assertArrayEquals(message, expected, streamed);
+            } catch (IOException e) {
+                assertNull(message, expected);
+            }
+        }
+        // Both outcomes are covered.
+        assertTrue(malformed > 1000);
+        assertTrue(malformed < 19000);
+    }
+
+    @Test
+    public void decodesSoftLineBreaksAndEscapes() throws IOException {
+        assertArrayEquals("Caf\u00e9 au lait".getBytes("ISO-8859-1"),
+                QuotedPrintable.decodeQuotedPrintable("Caf=E9 au=\r\n lait".getBytes()));
+        assertArrayEquals("a\r\nb".getBytes(),
+                QuotedPrintable.decodeQuotedPrintable("a\r\nb".getBytes()));
+        assertNull(QuotedPrintable.decodeQuotedPrintable("a=\nb".getBytes()));
+        assertNull(QuotedPrintable.decodeQuotedPrintable("a=".getBytes()));
+        assertNull(QuotedPrintable.decodeQuotedPrintable("a=4".getBytes()));
+        assertNull(QuotedPrintable.decodeQuotedPrintable("a=4G".getBytes()));
+        assertNull(QuotedPrintable.decodeQuotedPrintable((byte[]) null));
+    }
+
+    @Test
+    public void streamDecodesLargeParts() throws IOException {
+        // Crosses the blocks the stream is decoded in.
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 3 * DecodingInputStream.BLOCK_SIZE) {
+            text.append("R\u00e9union \u00e0 8h=10h, caf\u00e9. ");
+        }
+        byte[] data = text.toString().getBytes("UTF-8");
+        byte[] encoded = encode(data);
+
+        assertArrayEquals(data, QuotedPrintable.decodeQuotedPrintable(encoded));
+        assertArrayEquals(data, readAll(new QuotedPrintableInputStream(
+                new ByteArrayInputStream(encoded))));
+    }
+
+    /**
+     * The decoder QuotedPrintable used to have, byte by byte.
+     */
+    private static byte[] referenceDecode(byte[] bytes) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i];
+            if (b == '=') {
+                try {
+                    if ('\r' == (char) bytes[i + 1] && '\n' == (char) bytes[i + 2]) {
+                        i += 2;
+                        continue;
+                    }
+                    int u = Character.digit((char) bytes[++i], 16);
+                    int l = Character.digit((char) bytes[++i], 16);
+                    if (u == -1 || l == -1) {
+                        return null;
+                    }
+                    buffer.write((char) ((u << 4) + l));
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    return null;
+                }
+            } else {
+                buffer.write(b);
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Encode data as quoted-printable, with soft line breaks after at most
+     * 76 characters.
+     */
+    private static byte[] encode(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int lineLength = 0;
+        for (byte b : data) {
+            int c = b & 0xFF;
+            boolean literal = (c >= 33) && (c <= 126) && (c != '=');
+            String chars = literal ? String.valueOf((char) c) : String.format("=%02X", c);
+            if (lineLength + chars.length() > 75) {
+                out.write('=');
+                out.write('\r');
+                out.write('\n');
+                lineLength = 0;
+            }
+            for (int i = 0; i < chars.length(); i++) {
+                out.write(chars.charAt(i));
+            }
+            lineLength += chars.length();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block = new byte[1000];
+        for (int len; (len = is.read(block)) != -1; ) {
+            out.write(block, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns at most a few bytes per read, so that escapes are split
+     * across reads.
+     */
+    private static class TricklingInputStream extends ByteArrayInputStream {
+        TricklingInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + pos % 3));
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.net.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Encodes pdus for the tests, without going through PduComposer, which
+ * can only compose outgoing pdus.
+ */
+final class TestPdus {
+    private static final String[] CONTENT_TYPES = {
+        "text/plain", "image/jpeg", "image/gif", "audio/amr", "video/3gpp"
+    };
+
+    /**
+     * A part of a multipart pdu.
+     */
+    static final class Part {
+        final String contentType;
+        final String contentId;
+        final String contentLocation;
+        final String transferEncoding;
+        final byte[] data;
+
+        Part(String contentType, String contentId, String contentLocation,
+                String transferEncoding, byte[] data) {
+            this.contentType = contentType;
+            this.contentId = contentId;
+            this.contentLocation = contentLocation;
+            this.transferEncoding = transferEncoding;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Serves the data of a part which is loaded lazily, counting the
+     * accesses and failing the first loads if asked to.
+     */
+    static final class CountingLoader implements PduPart.DataLoader {
+        final byte[] mData;
+        int mLoads;
+        int mOpens;
+        int mLengths;
+        int mFailures;
+
+        CountingLoader(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public byte[] load(Uri uri) throws IOException {
+            mLoads++;
+            if (mFailures > 0) {
+                mFailures--;
+                throw new IOException("Can't read the file");
+            }
+            return mData.clone();
+        }
+
+        @Override
+        public InputStream open(Uri uri) {
+            mOpens++;
+            return new ByteArrayInputStream(mData);
+        }
+
+        @Override
+        public long length(Uri uri) {
+            mLengths++;
+            return mData.length;
+        }
+    }
+
+    private TestPdus() {
+    }
+
+    /**
+     * Encode a multipart/related retrieve-conf.
+     *
+     * @param transactionId the transaction id
+     * @param subject the subject
+     * @param start the "start" content-type parameter, may be null
+     * @param type the "type" content-type parameter, may be null
+     * @param parts the parts of the body
+     */
+    static byte[] retrieveConf(String transactionId, String subject, String start,
+            String type, List<Part> parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+        out.write(PduHeaders.TRANSACTION_ID);
+        appendText(out, transactionId);
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+        out.write(PduHeaders.DATE);
+        out.write(4);
+        appendBytes(out, new byte[] { 0x65, 0x53, (byte) 0xF1, 0x00 });
+
+        ByteArrayOutputStream from = new ByteArrayOutputStream();
+        from.write(PduHeaders.FROM_ADDRESS_PRESENT_TOKEN);
+        appendText(from, "+15551234567/TYPE=PLMN");
+        out.write(PduHeaders.FROM);
+        out.write(from.size());
+        appendBytes(out, from.toByteArray());
+
+        out.write(PduHeaders.TO);
+        appendText(out, "+15559876543/TYPE=PLMN");
+        out.write(PduHeaders.SUBJECT);
+        appendText(out, subject);
+
+        ByteArrayOutputStream contentType = new ByteArrayOutputStream();
+        contentType.write(0x80 | 0x33); // application/vnd.wap.multipart.related
+        if (null != start) {
+            contentType.write(PduPart.P_DEP_START);
+            appendText(contentType, start);
+        }
+        if (null != type) {
+            contentType.write(PduPart.P_CT_MR_TYPE);
+            appendText(contentType, type);
+        }
+        out.write(PduHeaders.CONTENT_TYPE);
+        appendValueLength(out, contentType.size());
+        appendBytes(out, contentType.toByteArray());
+
+        appendUintvar(out, parts.size());
+        for (Part part : parts) {
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            appendText(headers, part.contentType);
+            if (null != part.contentId) {
+                headers.write(PduPart.P_CONTENT_ID);
+                headers.write('"');
+                appendText(headers, part.contentId);
+            }
+            if (null != part.contentLocation) {
+                headers.write(PduPart.P_CONTENT_LOCATION);
+                appendText(headers, part.contentLocation);
+            }
+            if (null != part.transferEncoding) {
+                appendText(headers, "Content-Transfer-Encoding");
+                appendText(headers, part.transferEncoding);
+            }
+            appendUintvar(out, headers.size());
+            appendUintvar(out, part.data.length);
+            appendBytes(out, headers.toByteArray());
+            appendBytes(out, part.data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode a retrieve-conf with 1 to 20 parts of random data, which
+     * randomly uses the "start" or the "type" parameter to select its
+     * root part. The same seed always gives the same pdu.
+     */
+    static byte[] randomRetrieveConf(long seed) {
+        Random random = new Random(seed);
+        int count = 1 + random.nextInt(20);
+        List<Part> parts = new ArrayList<Part>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[random.nextInt(2048)];
+            random.nextBytes(data);
+            String contentType = CONTENT_TYPES[random.nextInt(CONTENT_TYPES.length)];
+            parts.add(new Part(contentType, "<" + seed + "." + i + ">",
+                    "part" + i, null, data));
+        }
+
+        Part root = parts.get(random.nextInt(count));
+        String start = null;
+        String type = null;
+        switch (random.nextInt(3)) {
+            case 0:
+                start = root.contentId;
+                break;
+            case 1:
+                type = root.contentType;
+                break;
+            default:
+                break;
+        }
+        return retrieveConf("T" + seed, "subject " + seed, start, type, parts);
+    }
+
+    /**
+     * Describe a parsed retrieve-conf, so that the results of different
+     * parsers can be compared.
+     */
+    static String describe(GenericPdu pdu) {
+        if (null == pdu) {
+            return "null";
+        }
+        RetrieveConf conf = (RetrieveConf) pdu;
+        StringBuilder builder = new StringBuilder();
+        builder.append(new String(conf.getTransactionId()))
+                .append(' ').append(new String(conf.getSubject().getTextString()))
+                .append(' ').append(new String(conf.getContentType()));
+        PduBody body = conf.getBody();
+        for (int i = 0; i < body.getPartsNum(); i++) {
+            PduPart part = body.getPart(i);
+            builder.append(" [").append(new String(part.getContentId()))
+                    .append(' ').append(new String(part.getContentType()))
+                    .append(' ').append(new String(part.getContentLocation()))
+                    .append(' ').append(Arrays.hashCode(part.getData()))
+                    .append(']');
+        }
+        return builder.toString();
+    }
+
+    private static void appendText(ByteArrayOutputStream out, String text) {
+        appendBytes(out, text.getBytes());
+        out.write(0);
+    }
+
+    private static void appendBytes(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void appendValueLength(ByteArrayOutputStream out, int length) {
+        if (length > 30) {
+            out.write(31);
+            appendUintvar(out, length);
+        } else {
+            out.write(length);
+        }
+    }
+
+    private static void appendUintvar(ByteArrayOutputStream out, int value) {
+        int shift = 28;
+        while ((shift > 0) && ((value >>> shift) == 0)) {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            out.write(((value >>> shift) & 0x7f) | 0x80);
+        }
+        out.write(value & 0x7f);
+    }
+}
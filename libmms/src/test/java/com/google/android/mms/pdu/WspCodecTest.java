@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the WSP primitives through WspEncoder and WspDecoder,
+ * checked against the stream based parse methods of PduParser.
+ */
+public class WspCodecTest {
+    private static final int ROUNDS = 2000;
+
+    private static final long[] EDGE_VALUES = {
+        0, 1, 30, 31, 126, 127, 128, 255, 256, 16383, 16384, 2097151, 2097152,
+        268435455, 268435456, Integer.MAX_VALUE
+    };
+
+    private final Random mRandom = new Random(0);
+    private final byte[] mBuffer = new byte[1024];
+
+    @Test
+    public void uintvarsRoundTrip() {
+        for (long value : uintvars()) {
+            int end = WspEncoder.writeUintvar(mBuffer, 0, value);
+            assertEquals(WspEncoder.uintvarSize(value), end);
+            assertEquals(value, decoder(end).readUintvar());
+            assertEquals(value, PduParser.parseUnsignedInt(stream(end)));
+        }
+    }
+
+    @Test
+    public void valueLengthsRoundTrip() {
+        for (long value : uintvars()) {
+            int end = WspEncoder.writeValueLength(mBuffer, 0, value);
+            assertEquals(WspEncoder.valueLengthSize(value), end);
+            assertEquals(value, decoder(end).readValueLength());
+            assertEquals(value, PduParser.parseValueLength(stream(end)));
+        }
+    }
+
+    @Test
+    public void shortIntegersRoundTrip() {
+        for (int value = 0; value <= 127; value++) {
+            int end = WspEncoder.writeShortInteger(mBuffer, 0, value);
+            assertEquals(1, end);
+            assertEquals(value, decoder(end).readShortInteger());
+            assertEquals(value, PduParser.parseShortInteger(stream(end)));
+        }
+    }
+
+    @Test
+    public void longIntegersRoundTrip() {
+        for (long value : longs()) {
+            int end = WspEncoder.writeLongInteger(mBuffer, 0, value);
+            assertEquals(WspEncoder.longIntegerSize(value), end);
+            assertEquals(value, decoder(end).readLongInteger());
+            assertEquals(value, PduParser.parseLongInteger(stream(end)));
+        }
+    }
+
+    @Test
+    public void integerValuesRoundTrip() {
+        for (long value : longs()) {
+            int end = WspEncoder.writeIntegerValue(mBuffer, 0, value);
+            assertEquals(WspEncoder.integerValueSize(value), end);
+            assertEquals(value, decoder(end).readIntegerValue());
+            assertEquals(value, PduParser.parseIntegerValue(stream(end)));
+        }
+    }
+
+    @Test
+    public void textStringsRoundTrip() {
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] text = randomText(false);
+            int end = WspEncoder.writeTextString(mBuffer, 0, text);
+            assertEquals(WspEncoder.textStringSize(text), end);
+            WspDecoder decoder = decoder(end);
+            assertArrayEquals(text, decoder.readString(WspDecoder.TEXT_STRING));
+            assertEquals(end, decoder.position());
+            assertArrayEquals(text,
+                    PduParser.parseWapString(stream(end), WspDecoder.TEXT_STRING));
+        }
+    }
+
+    @Test
+    public void quotedStringsRoundTrip() {
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] text = randomText(false);
+            int end = WspEncoder.writeQuotedString(mBuffer, 0, text);
+            assertEquals(WspEncoder.quotedStringSize(text), end);
+            WspDecoder decoder = decoder(end);
+            assertArrayEquals(text, decoder.readString(WspDecoder.QUOTED_STRING));
+            assertEquals(end, decoder.position());
+            assertArrayEquals(text,
+                    PduParser.parseWapString(stream(end), WspDecoder.QUOTED_STRING));
+        }
+    }
+
+    @Test
+    public void tokensRoundTrip() {
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] token = randomText(true);
+            int end = WspEncoder.writeTextString(mBuffer, 0, token);
+            assertArrayEquals(token, decoder(end).readString(WspDecoder.TOKEN_STRING));
+            assertArrayEquals(token,
+                    PduParser.parseWapString(stream(end), WspDecoder.TOKEN_STRING));
+        }
+    }
+
+    @Test
+    public void sequencesRoundTripFromAnyBuffer() {
+        for (int i = 0; i < ROUNDS; i++) {
+            long uintvar = mRandom.nextInt() & Integer.MAX_VALUE;
+            long longInteger = mRandom.nextLong();
+            int shortInteger = mRandom.nextInt(128);
+            byte[] text = randomText(false);
+
+            int offset = mRandom.nextInt(16);
+            int end = WspEncoder.writeUintvar(mBuffer, offset, uintvar);
+            end = WspEncoder.writeTextString(mBuffer, end, text);
+            end = WspEncoder.writeLongInteger(mBuffer, end, longInteger);
+            end = WspEncoder.writeShortInteger(mBuffer, end, shortInteger);
+            end = WspEncoder.writeValueLength(mBuffer, end, uintvar);
+
+            // A slice of a heap buffer and a direct buffer.
+            ByteBuffer heap = ByteBuffer.wrap(mBuffer, offset, end - offset).slice();
+            ByteBuffer direct = ByteBuffer.allocateDirect(end - offset);
+            direct.put(heap.duplicate()).flip();
+            for (ByteBuffer buffer : new ByteBuffer[] { heap, direct }) {
+                WspDecoder decoder = new WspDecoder(buffer);
+                assertEquals(uintvar, decoder.readUintvar());
+                assertArrayEquals(text, decoder.readString(WspDecoder.TEXT_STRING));
+                assertEquals(longInteger, decoder.readLongInteger());
+                assertEquals(shortInteger, decoder.readShortInteger());
+                assertEquals(uintvar, decoder.readValueLength());
+                assertEquals(0, decoder.remaining());
+                assertEquals(-1, decoder.readOctet());
+            }
+        }
+    }
+
+    @Test
+    public void invalidOctetsAreLeftOutOfStrings() {
+        byte[] data = { 'a', 1, 'b', '(', 'c', 0, 'd' };
+        WspDecoder decoder = new WspDecoder(data);
+        assertArrayEquals("ab(c".getBytes(), decoder.readString(WspDecoder.TEXT_STRING));
+        assertEquals(6, decoder.position());
+        decoder.position(0);
+        assertArrayEquals("abc".getBytes(), decoder.readString(WspDecoder.TOKEN_STRING));
+        assertArrayEquals("ab(c".getBytes(),
+                PduParser.parseWapString(new ByteArrayInputStream(data),
+                        WspDecoder.TEXT_STRING));
+
+        // Nothing but an End-of-string.
+        decoder = new WspDecoder(new byte[] { 0, 'x' });
+        assertNull(decoder.readString(WspDecoder.TEXT_STRING));
+        assertEquals(1, decoder.position());
+    }
+
+    @Test
+    public void truncatedInputDecodesAsFarAsItGoes() {
+        for (int i = 0; i < ROUNDS; i++) {
+            long value = mRandom.nextInt() & Integer.MAX_VALUE;
+            int end = WspEncoder.writeUintvar(mBuffer, 0, value);
+            int cut = mRandom.nextInt(end);
+            assertEquals(PduParser.parseUnsignedInt(stream(cut)), decoder(cut).readUintvar());
+
+            // The stream asserts that strings end, so a truncated string
+            // is checked against its text instead.
+            byte[] text = randomText(false);
+            end = WspEncoder.writeTextString(mBuffer, 0, text);
+            cut = 1 + mRandom.nextInt(end - 1);
+            int length = cut - (WspEncoder.isQuoteNeeded(text) ? 1 : 0);
+            WspDecoder decoder = decoder(cut);
+            assertArrayEquals((length > 0) ? Arrays.copyOf(text, length) : null,
+                    decoder.readString(WspDecoder.TEXT_STRING));
+            assertEquals(cut, decoder.position());
+        }
+    }
+
+    @Test
+    public void truncatedValuesAreSkippedAsByTheStream() {
+        byte[] data = { 1, 2, 3, 4, 5 };
+        for (int position = 0; position <= data.length; position++) {
+            for (int length = 0; length <= data.length + 1; length++) {
+                ByteArrayInputStream expected = new ByteArrayInputStream(data);
+                expected.skip(position);
+                ByteArrayInputStream actual = new ByteBufferInputStream(ByteBuffer.wrap(data));
+                actual.skip(position);
+                assertEquals("skipping " + length + " at " + position,
+                        PduParser.skipWapValue(expected, length),
+                        PduParser.skipWapValue(actual, length));
+            }
+        }
+
+        // A header with no value at the end of the part headers.
+        assertEquals(-1, PduParser.skipWapValue(
+                new ByteBufferInputStream(ByteBuffer.wrap(data, data.length, 0)), 0));
+    }
+
+    private WspDecoder decoder(int length) {
+        return new WspDecoder(ByteBuffer.wrap(mBuffer, 0, length));
+    }
+
+    /**
+     * A plain stream, so that PduParser decodes it an octet at a time.
+     */
+    private ByteArrayInputStream stream(int length) {
+        return new ByteArrayInputStream(Arrays.copyOf(mBuffer, length));
+    }
+
+    private long[] uintvars() {
+        long[] values = Arrays.copyOf(EDGE_VALUES, EDGE_VALUES.length + ROUNDS);
+        for (int i = EDGE_VALUES.length; i < values.length; i++) {
+            // Spread over all of the sizes.
+            values[i] = (mRandom.nextInt() & Integer.MAX_VALUE) >>> mRandom.nextInt(31);
+        }
+        return values;
+    }
+
+    private long[] longs() {
+        long[] values = Arrays.copyOf(EDGE_VALUES, EDGE_VALUES.length + ROUNDS + 2);
+        values[EDGE_VALUES.length] = Long.MAX_VALUE;
+        values[EDGE_VALUES.length + 1] = Long.MIN_VALUE;
+        for (int i = EDGE_VALUES.length + 2; i < values.length; i++) {
+            values[i] = mRandom.nextLong() >>> mRandom.nextInt(64);
+            if (mRandom.nextBoolean()) {
+                values[i] = -values[i];
+            }
+        }
+        return values;
+    }
+
+    /**
+     * A random non-empty TEXT or token string.
+     */
+    private byte[] randomText(boolean token) {
+        byte[] text = new byte[1 + mRandom.nextInt(300)];
+        for (int i = 0; i < text.length; ) {
+            int octet = mRandom.nextInt(256);
+            if (token ? WspDecoder.isTokenCharacter(octet) : WspDecoder.isText(octet)) {
+                text[i++] = (byte) octet;
+            }
+        }
+        return text;
+    }
+}
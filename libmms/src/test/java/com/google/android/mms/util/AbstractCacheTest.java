@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AbstractCacheTest {
+    /**
+     * Cache of byte arrays, sized by their length.
+     */
+    private static class TestCache extends AbstractCache<String, byte[]> {
+        final List<String> mEvicted = new ArrayList<String>();
+
+        TestCache(int maxEntries, long maxBytes) {
+            super(maxEntries, maxBytes);
+        }
+
+        @Override
+        protected long sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+
+        @Override
+        protected void onEvicted(String key, byte[] value) {
+            mEvicted.add(key);
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntryWhenFull() {
+        TestCache cache = new TestCache(3, Long.MAX_VALUE);
+        assertTrue(cache.put("a", new byte[1]));
+        assertTrue(cache.put("b", new byte[1]));
+        assertTrue(cache.put("c", new byte[1]));
+        assertNotNull(cache.get("a"));
+
+        assertTrue(cache.put("d", new byte[1]));
+        assertEquals(3, cache.size());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertEquals(1, cache.evictionCount());
+        assertEquals("[b]", cache.mEvicted.toString());
+    }
+
+    @Test
+    public void keepsFrequentlyUsedEntriesOverNewOnes() {
+        TestCache cache = new TestCache(2, Long.MAX_VALUE);
+        cache.put("hot1", new byte[1]);
+        cache.put("hot2", new byte[1]);
+        for (int i = 0; i < 4; i++) {
+            cache.get("hot1");
+            cache.get("hot2");
+        }
+
+        // A scan of entries used once doesn't flush the hot entries.
+        for (int i = 0; i < 100; i++) {
+            assertFalse(cache.put("cold" + i, new byte[1]));
+        }
+        assertNotNull(cache.get("hot1"));
+        assertNotNull(cache.get("hot2"));
+        assertEquals(0, cache.evictionCount());
+
+        // An entry asked for more often than the hot ones is admitted.
+        for (int i = 0; i < 8; i++) {
+            assertNull(cache.get("new"));
+        }
+        assertTrue(cache.put("new", new byte[1]));
+        assertEquals(1, cache.evictionCount());
+        assertNotNull(cache.get("new"));
+    }
+
+    @Test
+    public void boundsEstimatedBytes() {
+        TestCache cache = new TestCache(100, 100);
+        assertTrue(cache.put("a", new byte[60]));
+        assertTrue(cache.put("b", new byte[30]));
+        assertEquals(90, cache.sizeInBytes());
+
+        assertTrue(cache.put("c", new byte[50]));
+        assertNull(cache.get("a"));
+        assertEquals(80, cache.sizeInBytes());
+
+        // Larger than the whole cache.
+        assertFalse(cache.put("d", new byte[101]));
+        assertEquals(80, cache.sizeInBytes());
+
+        // Replacing an entry updates the size.
+        assertTrue(cache.put("b", new byte[10]));
+        assertEquals(60, cache.sizeInBytes());
+
+        cache.purge("c");
+        assertEquals(10, cache.sizeInBytes());
+        cache.purgeAll();
+        assertEquals(0, cache.sizeInBytes());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void setMaxSizeEvictsEntriesWhichDontFit() {
+        TestCache cache = new TestCache(10, 1000);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, new byte[10]);
+        }
+        cache.setMaxSize(4, 1000);
+        assertEquals(4, cache.size());
+        assertEquals("[k0, k1, k2, k3, k4, k5]", cache.mEvicted.toString());
+
+        cache.setMaxSize(4, 25);
+        assertEquals(2, cache.size());
+        assertEquals(20, cache.sizeInBytes());
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        TestCache cache = new TestCache(10, 1000);
+        cache.put("a", new byte[1]);
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        cache.get(null);
+        assertEquals(2, cache.hitCount());
+        assertEquals(2, cache.missCount());
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    public void peekIsNotAUse() {
+        TestCache cache = new TestCache(2, Long.MAX_VALUE);
+        byte[] a = new byte[1];
+        cache.put("a", a);
+        cache.put("b", new byte[1]);
+        assertSame(a, cache.peek("a"));
+        assertNull(cache.peek("c"));
+        assertEquals(0, cache.hitCount());
+        assertEquals(0, cache.missCount());
+
+        // "a" wasn't marked as used, so it is still evicted first.
+        cache.put("c", new byte[1]);
+        assertNull(cache.peek("a"));
+        assertEquals("[a]", cache.mEvicted.toString());
+    }
+
+    @Test
+    public void getsDontLockWhileTheCacheIsChanged() throws InterruptedException {
+        final TestCache cache = new TestCache(64, Long.MAX_VALUE);
+        final byte[] value = new byte[1];
+        final AtomicInteger wrongValues = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 200000; j++) {
+                        byte[] v = cache.get("k" + (j % 128));
+                        if ((v != null) && (v != value)) {
+                            wrongValues.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        start.countDown();
+        // The writer holds the lock readers would have waited for.
+        synchronized (cache) {
+            for (int j = 0; j < 200000; j++) {
+                cache.put("k" + (j % 128), value);
+                if (j % 7 == 0) {
+                    cache.purge("k" + (j % 11));
+                }
+            }
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(0, wrongValues.get());
+        assertTrue(cache.size() <= 64);
+        assertEquals(cache.size(), cache.sizeInBytes());
+        assertEquals(800000, cache.hitCount() + cache.missCount());
+    }
+}
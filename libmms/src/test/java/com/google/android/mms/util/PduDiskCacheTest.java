@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class PduDiskCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void snapshotsSurviveAReopen() throws Exception {
+        PduDiskCache cache = new PduDiskCache(mFolder.getRoot(), 1024);
+        cache.put(1, 1, 10, 7, new byte[] { 1, 2, 3 });
+        cache.put(2, 2, -1, -1L << 32, new byte[0]);
+        assertEquals(2, cache.size());
+        assertEquals(4 + 3 + 4, cache.sizeInBytes());
+
+        cache = new PduDiskCache(mFolder.getRoot(), 1024);
+        assertEquals(2, cache.size());
+        PduDiskCache.Snapshot snapshot = cache.get(1);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, snapshot.getData());
+        assertEquals(1, snapshot.getMessageBox());
+        assertEquals(10, snapshot.getThreadId());
+        assertEquals(7, snapshot.getVersion());
+        snapshot = cache.get(2);
+        assertEquals(0, snapshot.getData().length);
+        assertEquals(-1, snapshot.getThreadId());
+        assertEquals(-1L << 32, snapshot.getVersion());
+        assertNull(cache.get(3));
+    }
+
+    @Test
+    public void replacesTheSnapshotOfAMessage() throws Exception {
+        PduDiskCache cache = new PduDiskCache(mFolder.getRoot(), 1024);
+        cache.put(1, 1, 10, 0, new byte[10]);
+        cache.put(1, 4, 11, 0, new byte[5]);
+        assertEquals(1, cache.size());
+        assertEquals(4 + 5, cache.sizeInBytes());
+        assertEquals(1, mFolder.getRoot().listFiles().length);
+        assertEquals(4, cache.get(1).getMessageBox());
+    }
+
+    @Test
+    public void deletesLeastRecentlyUsedSnapshotsWhenFull() throws Exception {
+        PduDiskCache cache = new PduDiskCache(mFolder.getRoot(), 3 * 14);
+        cache.put(1, 1, 1, 0, new byte[10]);
+        cache.put(2, 1, 1, 0, new byte[10]);
+        cache.put(3, 1, 1, 0, new byte[10]);
+        assertNotNull(cache.get(1));
+
+        cache.put(4, 1, 1, 0, new byte[10]);
+        assertEquals(3, cache.size());
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(1));
+        assertEquals(3, mFolder.getRoot().listFiles().length);
+
+        // Larger than the whole cache.
+        cache.put(5, 1, 1, 0, new byte[100]);
+        assertNull(cache.get(5));
+        assertEquals(3, cache.size());
+
+        // A smaller capacity is applied when the cache is opened again.
+        cache = new PduDiskCache(mFolder.getRoot(), 2 * 14);
+        assertEquals(2, cache.size());
+        assertEquals(2, mFolder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void removesByMessageBoxAndThread() throws Exception {
+        PduDiskCache cache = new PduDiskCache(mFolder.getRoot(), 1024);
+        cache.put(1, 1, 10, 0, new byte[1]);
+        cache.put(2, 1, 11, 0, new byte[1]);
+        cache.put(3, 2, 10, 0, new byte[1]);
+        cache.put(4, 2, 12, 0, new byte[1]);
+
+        cache.removeMessageBox(1);
+        assertNull(cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals(2, cache.size());
+
+        cache.removeThread(10);
+        assertNull(cache.get(3));
+        assertNotNull(cache.get(4));
+
+        cache.remove(4);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+        assertEquals(0, mFolder.getRoot().listFiles().length);
+
+        cache.put(5, 1, 1, 0, new byte[1]);
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, mFolder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void dropsCorruptAndStrayFiles() throws Exception {
+        PduDiskCache cache = new PduDiskCache(mFolder.getRoot(), 1024);
+        cache.put(1, 1, 10, 0, new byte[] { 1, 2, 3 });
+        cache.put(2, 1, 10, 0, new byte[] { 4, 5, 6 });
+
+        RandomAccessFile file = new RandomAccessFile(new File(mFolder.getRoot(), "1.1.10.0"), "rw");
+        try {
+            file.seek(5);
+            file.write(0x7F);
+        } finally {
+            file.close();
+        }
+        assertNull(cache.get(1));
+        assertEquals(1, cache.size());
+        assertFalse(new File(mFolder.getRoot(), "1.1.10.0").exists());
+
+        touch(new File(mFolder.getRoot(), "3.1.10.0.tmp"));
+        touch(new File(mFolder.getRoot(), "journal"));
+        // A snapshot from before snapshots had a version.
+        touch(new File(mFolder.getRoot(), "4.1.10"));
+        cache = new PduDiskCache(mFolder.getRoot(), 1024);
+        assertEquals(1, cache.size());
+        assertEquals(1, mFolder.getRoot().listFiles().length);
+        assertArrayEquals(new byte[] { 4, 5, 6 }, cache.get(2).getData());
+    }
+
+    private static void touch(File file) throws IOException {
+        new FileOutputStream(file).close();
+    }
+}